@@ -16,6 +16,7 @@ import group.pals.android.lib.ui.filechooser.providers.history.HistoryContract;
 import group.pals.android.lib.ui.filechooser.providers.history.HistoryProviderUtils;
 import group.pals.android.lib.ui.filechooser.providers.localfile.LocalFileContract;
 import group.pals.android.lib.ui.filechooser.providers.localfile.LocalFileProvider;
+import group.pals.android.lib.ui.filechooser.utils.Converter;
 import group.pals.android.lib.ui.filechooser.utils.E;
 import group.pals.android.lib.ui.filechooser.utils.EnvUtils;
 import group.pals.android.lib.ui.filechooser.utils.FileUtils;
@@ -45,6 +46,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.graphics.Rect;
@@ -205,6 +207,34 @@ public class FileChooserActivity extends FragmentActivity implements
      */
     public static final String _NegativeRegexFilter = _ClassName
             + ".negative_regex_filter";
+    /**
+     * Key to hold the glob patterns to filter files, separated by
+     * {@code "|"} (for example {@code "*.pdf|*.docx"}), default is
+     * {@code null}.
+     * 
+     * @since v5.1 beta
+     * @see BaseFile#_ParamGlobFilter
+     */
+    public static final String _GlobFilter = _ClassName + ".glob_filter";
+    /**
+     * Key to hold the file extensions to filter files, separated by
+     * {@code "|"} (for example {@code "pdf|docx"}), default is {@code null}.
+     * 
+     * @since v5.1 beta
+     * @see BaseFile#_ParamExtensionFilter
+     */
+    public static final String _ExtensionFilter = _ClassName
+            + ".extension_filter";
+    /**
+     * Key to hold the MIME types to filter files, separated by {@code "|"}
+     * (for example {@code "image/*|application/pdf"}), default is
+     * {@code null}.
+     * 
+     * @since v5.1 beta
+     * @see BaseFile#_ParamMimeTypeFilter
+     */
+    public static final String _MimeTypeFilter = _ClassName
+            + ".mime_type_filter";
     /**
      * Key to hold display-hidden-files, default = {@code false}
      */
@@ -478,6 +508,14 @@ public class FileChooserActivity extends FragmentActivity implements
 
         menu.findItem(R.id.afc_menuitem_new_folder).setEnabled(!mLoading);
 
+        /*
+         * Delete selected files.
+         */
+
+        menuItem = menu.findItem(R.id.afc_menuitem_delete_selected);
+        menuItem.setVisible(mIsMultiSelection);
+        menuItem.setEnabled(!mLoading);
+
         return true;
     }// onPrepareOptionsMenu()
 
@@ -495,6 +533,8 @@ public class FileChooserActivity extends FragmentActivity implements
             doShowHistoryManager();
         else if (item.getItemId() == R.id.afc_menuitem_bookmarks)
             doShowBookmarkManager();
+        else if (item.getItemId() == R.id.afc_menuitem_delete_selected)
+            doDeleteSelectedFiles();
 
         return true;
     }// onOptionsItemSelected()
@@ -571,6 +611,9 @@ public class FileChooserActivity extends FragmentActivity implements
 
         String positiveRegex = getIntent().getStringExtra(_PositiveRegexFilter);
         String negativeRegex = getIntent().getStringExtra(_NegativeRegexFilter);
+        String globs = getIntent().getStringExtra(_GlobFilter);
+        String extensions = getIntent().getStringExtra(_ExtensionFilter);
+        String mimeTypes = getIntent().getStringExtra(_MimeTypeFilter);
 
         if (BuildConfig.DEBUG)
             Log.d(_ClassName, "onCreateLoader() >> path = " + path);
@@ -597,18 +640,43 @@ public class FileChooserActivity extends FragmentActivity implements
                         TextUtils.isEmpty(positiveRegex) ? "" : positiveRegex)
                 .appendQueryParameter(BaseFile._ParamNegativeRegexFilter,
                         TextUtils.isEmpty(negativeRegex) ? "" : negativeRegex)
-                .build(), null, null, null, null);
+                .appendQueryParameter(BaseFile._ParamGlobFilter,
+                        TextUtils.isEmpty(globs) ? "" : globs)
+                .appendQueryParameter(BaseFile._ParamExtensionFilter,
+                        TextUtils.isEmpty(extensions) ? "" : extensions)
+                .appendQueryParameter(BaseFile._ParamMimeTypeFilter,
+                        TextUtils.isEmpty(mimeTypes) ? "" : mimeTypes)
+                .appendQueryParameter(BaseFile._ParamStreaming,
+                        Boolean.toString(true)).build(), null, null, null,
+                null);
     }// onCreateLoader()
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, final Cursor data) {
         mLoading = false;
 
+        /*
+         * If this is a new batch of a streaming listing, keep the scroll
+         * position.
+         */
+        int firstVisiblePosition = mViewFiles.getFirstVisiblePosition();
+        View firstVisibleView = mViewFiles.getChildAt(0);
+        int firstVisibleTop = firstVisibleView != null ? firstVisibleView
+                .getTop() : 0;
+
         /*
          * Update list view.
          */
         mFileAdapter.changeCursor(data);
 
+        if (!mNewLoader && data != null) {
+            if (mViewFiles instanceof ListView)
+                ((ListView) mViewFiles).setSelectionFromTop(
+                        firstVisiblePosition, firstVisibleTop);
+            else
+                mViewFiles.setSelection(firstVisiblePosition);
+        }
+
         mViewGroupFiles.setVisibility(View.VISIBLE);
         mViewLoadingHandler.removeCallbacksAndMessages(null);
         mViewLoading.setVisibility(View.GONE);
@@ -639,12 +707,18 @@ public class FileChooserActivity extends FragmentActivity implements
 
         boolean hasMoreFiles = ProviderUtils.getBooleanQueryParam(uriInfo,
                 BaseFile._ParamHasMoreFiles);
-        showFooterView(
-                hasMoreFiles || mFileAdapter.isEmpty(),
-                hasMoreFiles ? getString(
-                        R.string.afc_pmsg_max_file_count_allowed, mMaxFileCount)
-                        : getString(R.string.afc_msg_empty),
-                mFileAdapter.isEmpty());
+        boolean stillLoading = ProviderUtils.getBooleanQueryParam(uriInfo,
+                BaseFile._ParamLoading);
+        if (stillLoading)
+            showFooterView(true, getString(R.string.afc_msg_loading),
+                    mFileAdapter.isEmpty());
+        else
+            showFooterView(
+                    hasMoreFiles || mFileAdapter.isEmpty(),
+                    hasMoreFiles ? getString(
+                            R.string.afc_pmsg_max_file_count_allowed,
+                            mMaxFileCount) : getString(R.string.afc_msg_empty),
+                    mFileAdapter.isEmpty());
 
         if (mNewLoader || selectedFile != null) {
             /*
@@ -1403,6 +1477,69 @@ public class FileChooserActivity extends FragmentActivity implements
                                 filename), true) {
 
                             final int mTaskId = EnvUtils.genId();
+                            /**
+                             * {@code true} if the file couldn't be moved to
+                             * trash and was deleted permanently.
+                             */
+                            boolean mDeletedPermanently = false;
+
+                            /**
+                             * Shows the progress of the deletion. Without
+                             * handler, it is called on a binder thread, so
+                             * the progress is queried off the UI thread.
+                             */
+                            final ContentObserver mProgressObserver = new ContentObserver(
+                                    null) {
+
+                                @Override
+                                public void onChange(boolean selfChange) {
+                                    showProgress();
+                                }// onChange()
+                            };
+
+                            private Uri getProgressUri() {
+                                return BaseFile
+                                        .genContentUriApi(uri.getAuthority())
+                                        .buildUpon()
+                                        .appendPath(BaseFile._CmdGetProgress)
+                                        .build();
+                            }// getProgressUri()
+
+                            private void showProgress() {
+                                Cursor cursor = getContentResolver()
+                                        .query(getProgressUri()
+                                                .buildUpon()
+                                                .appendQueryParameter(
+                                                        BaseFile._ParamTaskId,
+                                                        Integer.toString(mTaskId))
+                                                .build(), null, null, null,
+                                                null);
+                                if (cursor == null)
+                                    return;
+
+                                try {
+                                    if (cursor.moveToFirst())
+                                        postMessage(getString(
+                                                R.string.afc_pmsg_deleting_file_progress,
+                                                isFile ? getString(R.string.afc_file)
+                                                        : getString(R.string.afc_folder),
+                                                filename,
+                                                cursor.getInt(cursor
+                                                        .getColumnIndex(BaseFile._ColumnProgressCount)),
+                                                Converter.sizeToStr(cursor.getLong(cursor
+                                                        .getColumnIndex(BaseFile._ColumnProgressBytes)))));
+                                } finally {
+                                    cursor.close();
+                                }
+                            }// showProgress()
+
+                            @Override
+                            protected void onPreExecute() {
+                                super.onPreExecute();
+                                getContentResolver().registerContentObserver(
+                                        getProgressUri(), false,
+                                        mProgressObserver);
+                            }// onPreExecute()
 
                             private void notifyFileDeleted() {
                                 mHistory.removeAll(new HistoryFilter<Uri>() {
@@ -1422,27 +1559,52 @@ public class FileChooserActivity extends FragmentActivity implements
                                 Dlg.toast(
                                         FileChooserActivity.this,
                                         getString(
-                                                R.string.afc_pmsg_file_has_been_deleted,
+                                                mDeletedPermanently ? R.string.afc_pmsg_file_has_been_deleted_permanently
+                                                        : R.string.afc_pmsg_file_has_been_deleted,
                                                 isFile ? getString(R.string.afc_file)
                                                         : getString(R.string.afc_folder),
-                                                filename), Dlg._LengthShort);
+                                                filename),
+                                        mDeletedPermanently ? Dlg._LengthLong
+                                                : Dlg._LengthShort);
                             }// notifyFileDeleted()
 
                             @Override
                             protected Object doInBackground(Void... arg0) {
-                                getContentResolver()
+                                int count = getContentResolver()
                                         .delete(uri
                                                 .buildUpon()
                                                 .appendQueryParameter(
                                                         BaseFile._ParamTaskId,
                                                         Integer.toString(mTaskId))
+                                                .appendQueryParameter(
+                                                        BaseFile._ParamMoveToTrash,
+                                                        Boolean.toString(true))
                                                 .build(), null, null);
 
+                                /*
+                                 * The file can't be moved to trash, delete it
+                                 * permanently.
+                                 */
+                                if (count == 0
+                                        && !isCancelled()
+                                        && BaseFileProviderUtils.fileExists(
+                                                FileChooserActivity.this, uri))
+                                    mDeletedPermanently = getContentResolver()
+                                            .delete(uri
+                                                    .buildUpon()
+                                                    .appendQueryParameter(
+                                                            BaseFile._ParamTaskId,
+                                                            Integer.toString(mTaskId))
+                                                    .build(), null, null) > 0;
+
                                 return null;
                             }// doInBackground()
 
                             @Override
                             protected void onCancelled() {
+                                getContentResolver().unregisterContentObserver(
+                                        mProgressObserver);
+
                                 if (getCurrentLocation() != null)
                                     BaseFileProviderUtils
                                             .cancelTask(
@@ -1466,6 +1628,8 @@ public class FileChooserActivity extends FragmentActivity implements
                             @Override
                             protected void onPostExecute(Object result) {
                                 super.onPostExecute(result);
+                                getContentResolver().unregisterContentObserver(
+                                        mProgressObserver);
 
                                 if (BaseFileProviderUtils.fileExists(
                                         FileChooserActivity.this, uri)) {
@@ -1491,6 +1655,228 @@ public class FileChooserActivity extends FragmentActivity implements
                 });
     }// doDeleteFile()
 
+    /**
+     * Deletes selected files, as one task.
+     */
+    private void doDeleteSelectedFiles() {
+        final ArrayList<Uri> uris = mFileAdapter.getSelectedItems();
+        if (uris.isEmpty()) {
+            Dlg.toast(this, R.string.afc_msg_no_selected_items,
+                    Dlg._LengthShort);
+            return;
+        }
+
+        if (LocalFileContract._Authority.equals(mFileProviderAuthority)
+                && !Utils.hasPermissions(this,
+                        Manifest.permission.WRITE_EXTERNAL_STORAGE)) {
+            Dlg.toast(
+                    this,
+                    R.string.afc_msg_app_doesnot_have_permission_to_delete_files,
+                    Dlg._LengthShort);
+            return;
+        }
+
+        final int total = uris.size();
+        final String authority = uris.get(0).getAuthority();
+
+        mFileAdapter.markSelectedItemsAsDeleted(true);
+
+        Dlg.confirmYesno(
+                this,
+                getString(R.string.afc_pmsg_confirm_delete_files, total),
+                new DialogInterface.OnClickListener() {
+
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        new LoadingDialog(FileChooserActivity.this, getString(
+                                R.string.afc_pmsg_deleting_files, total), true) {
+
+                            final int mTaskId = EnvUtils.genId();
+                            int mCount = 0;
+                            /**
+                             * Number of files which couldn't be moved to
+                             * trash and were deleted permanently.
+                             */
+                            int mPermanentCount = 0;
+
+                            /**
+                             * Shows the progress of the deletion. Without
+                             * handler, it is called on a binder thread, so
+                             * the progress is queried off the UI thread.
+                             */
+                            final ContentObserver mProgressObserver = new ContentObserver(
+                                    null) {
+
+                                @Override
+                                public void onChange(boolean selfChange) {
+                                    showProgress();
+                                }// onChange()
+                            };
+
+                            private Uri getProgressUri() {
+                                return BaseFile.genContentUriApi(authority)
+                                        .buildUpon()
+                                        .appendPath(BaseFile._CmdGetProgress)
+                                        .build();
+                            }// getProgressUri()
+
+                            private void showProgress() {
+                                Cursor cursor = getContentResolver()
+                                        .query(getProgressUri()
+                                                .buildUpon()
+                                                .appendQueryParameter(
+                                                        BaseFile._ParamTaskId,
+                                                        Integer.toString(mTaskId))
+                                                .build(), null, null, null,
+                                                null);
+                                if (cursor == null)
+                                    return;
+
+                                try {
+                                    if (cursor.moveToFirst())
+                                        postMessage(getString(
+                                                R.string.afc_pmsg_deleting_files_progress,
+                                                total,
+                                                cursor.getInt(cursor
+                                                        .getColumnIndex(BaseFile._ColumnProgressCount)),
+                                                Converter.sizeToStr(cursor.getLong(cursor
+                                                        .getColumnIndex(BaseFile._ColumnProgressBytes)))));
+                                } finally {
+                                    cursor.close();
+                                }
+                            }// showProgress()
+
+                            @Override
+                            protected void onPreExecute() {
+                                super.onPreExecute();
+                                getContentResolver().registerContentObserver(
+                                        getProgressUri(), false,
+                                        mProgressObserver);
+                            }// onPreExecute()
+
+                            private void notifyFilesDeleted() {
+                                mFileAdapter.markSelectedItemsAsDeleted(false);
+                                mHistory.removeAll(new HistoryFilter<Uri>() {
+
+                                    @Override
+                                    public boolean accept(Uri item) {
+                                        return !BaseFileProviderUtils
+                                                .isDirectory(
+                                                        FileChooserActivity.this,
+                                                        item);
+                                    }// accept()
+                                });
+
+                                if (mCount < total)
+                                    Dlg.toast(
+                                            FileChooserActivity.this,
+                                            getString(
+                                                    R.string.afc_pmsg_cannot_delete_files,
+                                                    total - mCount, total),
+                                            Dlg._LengthShort);
+                                else if (mPermanentCount > 0)
+                                    Dlg.toast(
+                                            FileChooserActivity.this,
+                                            getString(
+                                                    R.string.afc_pmsg_files_have_been_deleted_permanently,
+                                                    mCount, mPermanentCount),
+                                            Dlg._LengthLong);
+                                else
+                                    Dlg.toast(
+                                            FileChooserActivity.this,
+                                            getString(
+                                                    R.string.afc_pmsg_files_have_been_deleted,
+                                                    mCount), Dlg._LengthShort);
+                            }// notifyFilesDeleted()
+
+                            @Override
+                            protected Object doInBackground(Void... arg0) {
+                                /*
+                                 * The provider takes file IDs, which are the
+                                 * last path segments of the file URIs.
+                                 */
+                                String[] fileIds = new String[total];
+                                for (int i = 0; i < total; i++)
+                                    fileIds[i] = uris.get(i)
+                                            .getLastPathSegment();
+
+                                Uri deleteUri = BaseFile
+                                        .genContentUriApi(authority)
+                                        .buildUpon()
+                                        .appendPath(BaseFile._CmdDeleteFiles)
+                                        .appendQueryParameter(
+                                                BaseFile._ParamTaskId,
+                                                Integer.toString(mTaskId))
+                                        .build();
+                                mCount = getContentResolver().delete(
+                                        deleteUri
+                                                .buildUpon()
+                                                .appendQueryParameter(
+                                                        BaseFile._ParamMoveToTrash,
+                                                        Boolean.toString(true))
+                                                .build(), null, fileIds);
+
+                                /*
+                                 * Files which can't be moved to trash are
+                                 * deleted permanently.
+                                 */
+                                if (mCount < total && !isCancelled()) {
+                                    List<String> remainingFileIds = new ArrayList<String>();
+                                    for (int i = 0; i < total; i++) {
+                                        if (BaseFileProviderUtils.fileExists(
+                                                FileChooserActivity.this,
+                                                uris.get(i)))
+                                            remainingFileIds.add(fileIds[i]);
+                                    }
+                                    if (!remainingFileIds.isEmpty()) {
+                                        mPermanentCount = getContentResolver()
+                                                .delete(deleteUri,
+                                                        null,
+                                                        remainingFileIds
+                                                                .toArray(new String[remainingFileIds
+                                                                        .size()]));
+                                        mCount += mPermanentCount;
+                                    }
+                                }
+
+                                return null;
+                            }// doInBackground()
+
+                            @Override
+                            protected void onCancelled() {
+                                getContentResolver().unregisterContentObserver(
+                                        mProgressObserver);
+
+                                BaseFileProviderUtils.cancelTask(
+                                        FileChooserActivity.this, authority,
+                                        mTaskId);
+                                mFileAdapter.markSelectedItemsAsDeleted(false);
+                                Dlg.toast(FileChooserActivity.this,
+                                        R.string.afc_msg_cancelled,
+                                        Dlg._LengthShort);
+
+                                super.onCancelled();
+                            }// onCancelled()
+
+                            @Override
+                            protected void onPostExecute(Object result) {
+                                super.onPostExecute(result);
+                                getContentResolver().unregisterContentObserver(
+                                        mProgressObserver);
+
+                                notifyFilesDeleted();
+                            }// onPostExecute()
+                        }.execute();// LoadingDialog
+                    }// onClick()
+                }, new DialogInterface.OnCancelListener() {
+
+                    @Override
+                    public void onCancel(DialogInterface dialog) {
+                        mFileAdapter.markSelectedItemsAsDeleted(false);
+                    }// onCancel()
+                });
+    }// doDeleteSelectedFiles()
+
     /**
      * As the name means.
      * 
@@ -1515,7 +1901,9 @@ public class FileChooserActivity extends FragmentActivity implements
                 getCurrentLocation()
                         .buildUpon()
                         .appendQueryParameter(BaseFile._ParamAppendName,
-                                filename).build(), null, null, null, null);
+                                filename).build(),
+                new String[] { BaseFile._ColumnUri, BaseFile._ColumnType },
+                null, null, null);
         if (cursor != null) {
             try {
                 if (cursor.moveToFirst()) {
@@ -1687,8 +2075,13 @@ public class FileChooserActivity extends FragmentActivity implements
         final int dim = getResources().getDimensionPixelSize(R.dimen.afc_5dp);
         int count = 0;
 
-        Cursor cursor = getContentResolver()
-                .query(path, null, null, null, null);
+        /*
+         * The buttons only need the URIs and names of the directories.
+         */
+        final String[] projection = { BaseFile._ColumnUri,
+                BaseFile._ColumnName };
+        Cursor cursor = getContentResolver().query(path, projection, null,
+                null, null);
         while (cursor != null) {
             Uri lastUri = null;
             if (cursor.moveToFirst()) {
@@ -1734,7 +2127,7 @@ public class FileChooserActivity extends FragmentActivity implements
                             .appendPath(BaseFile._CmdGetParent)
                             .appendQueryParameter(BaseFile._ParamSource,
                                     lastUri.getLastPathSegment()).build(),
-                    null, null, null, null);
+                    projection, null, null, null);
             if (cursor != null) {
                 View divider = inflater.inflate(
                         R.layout.afc_view_locations_divider, null);
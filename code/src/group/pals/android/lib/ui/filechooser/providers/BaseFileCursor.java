@@ -0,0 +1,693 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.net.Uri;
+
+/**
+ * A cursor of base files, which has the columns
+ * {@link BaseFileProviderUtils#_BaseFileCursorColumns}.
+ * <p>
+ * Unlike {@link android.database.MatrixCursor}, values are kept in primitive
+ * arrays (one per column). So adding a row doesn't box anything, in-process
+ * clients read values directly from the arrays, and cross-process clients get
+ * their windows filled directly by {@link #fillWindow(int, CursorWindow)}.
+ * </p>
+ * <p>
+ * Rows of a directory listing share their parent: the cursor stores the
+ * parent once (see {@link #addParent(String, String)}) plus the name of each
+ * row. Their URIs and paths are only built when they are read, then
+ * memoized.
+ * </p>
+ * <p>
+ * The cursor can be created with a projection, in which case it only exposes
+ * the requested columns. Providers should check {@link #hasColumn(String)}
+ * and skip the work of columns which are not requested.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class BaseFileCursor extends AbstractCursor {
+
+    /**
+     * Listener of {@link BaseFileCursor#close()}.
+     */
+    public static interface OnCloseListener {
+
+        /**
+         * Will be called once, after the cursor has been closed.
+         * 
+         * @param cursor
+         *            the cursor.
+         */
+        void onClose(BaseFileCursor cursor);
+    }// OnCloseListener
+
+    /*
+     * Column indices, in the order of
+     * BaseFileProviderUtils._BaseFileCursorColumns.
+     */
+
+    private static final int _ColumnId = 0;
+    private static final int _ColumnUri = 1;
+    private static final int _ColumnPath = 2;
+    private static final int _ColumnName = 3;
+    private static final int _ColumnCanRead = 4;
+    private static final int _ColumnCanWrite = 5;
+    private static final int _ColumnSize = 6;
+    private static final int _ColumnType = 7;
+    private static final int _ColumnModificationTime = 8;
+    private static final int _ColumnIconId = 9;
+    private static final int _ColumnFileCategory = 10;
+
+    private static final int _ColumnCount = BaseFileProviderUtils._BaseFileCursorColumns.length;
+
+    /**
+     * Null mask of rows which only have the ID, URI, path and name.
+     */
+    private static final int _InfoRowNullMask = ~((1 << _ColumnId)
+            | (1 << _ColumnUri) | (1 << _ColumnPath) | (1 << _ColumnName));
+
+    /**
+     * The exposed columns.
+     */
+    private final String[] mColumnNames;
+    /**
+     * The internal index of each exposed column.
+     */
+    private final int[] mColumnMap;
+    /**
+     * Bit {@code i} is set if internal column {@code i} is exposed.
+     */
+    private final int mColumnMask;
+
+    private int mCount = 0;
+    private int mCapacity;
+    private int[] mIds;
+    /**
+     * URI prefixes of the parents.
+     */
+    private final List<String> mParentUriPrefixes = new ArrayList<String>();
+    /**
+     * Path prefixes of the parents.
+     */
+    private final List<String> mParentPathPrefixes = new ArrayList<String>();
+    /**
+     * The parent index of each row, or {@code -1} if the row has its own URI
+     * and path.
+     */
+    private int[] mParents;
+    private String[] mNames;
+    /**
+     * The URIs and paths which have been given or built. They are allocated
+     * on demand.
+     */
+    private String[] mUris;
+    private String[] mPaths;
+    /**
+     * Bit 0: readable; bit 1: writable.
+     */
+    private int[] mFlags;
+    private long[] mSizes;
+    private int[] mTypes;
+    private long[] mModificationTimes;
+    private int[] mIconIds;
+    private int[] mFileCategories;
+    /**
+     * Bit {@code i} is set if column {@code i} is {@code null}.
+     */
+    private int[] mNullMasks;
+    private OnCloseListener mOnCloseListener;
+
+    /**
+     * Creates new instance, with all columns.
+     * 
+     * @param capacity
+     *            the initial capacity.
+     */
+    public BaseFileCursor(int capacity) {
+        this(capacity, null);
+    }// BaseFileCursor()
+
+    /**
+     * Creates new instance.
+     * 
+     * @param capacity
+     *            the initial capacity.
+     * @param projection
+     *            the columns to expose, in order. Can be {@code null} or empty
+     *            for all columns.
+     * @throws IllegalArgumentException
+     *             if {@code projection} contains an unknown column.
+     */
+    public BaseFileCursor(int capacity, String[] projection) {
+        if (projection == null || projection.length == 0) {
+            mColumnNames = BaseFileProviderUtils._BaseFileCursorColumns;
+            mColumnMap = new int[_ColumnCount];
+            for (int i = 0; i < _ColumnCount; i++)
+                mColumnMap[i] = i;
+        } else {
+            mColumnNames = projection.clone();
+            mColumnMap = new int[projection.length];
+            for (int i = 0; i < projection.length; i++)
+                mColumnMap[i] = indexOfColumn(projection[i]);
+        }
+
+        int mask = 0;
+        for (int column : mColumnMap)
+            mask |= 1 << column;
+        mColumnMask = mask;
+
+        allocate(Math.max(1, capacity));
+    }// BaseFileCursor()
+
+    /**
+     * Gets the internal index of a column.
+     * 
+     * @param columnName
+     *            the column name.
+     * @return the internal index.
+     * @throws IllegalArgumentException
+     *             if the column is unknown.
+     */
+    private static int indexOfColumn(String columnName) {
+        for (int i = 0; i < _ColumnCount; i++)
+            if (BaseFileProviderUtils._BaseFileCursorColumns[i]
+                    .equals(columnName))
+                return i;
+        throw new IllegalArgumentException("Invalid column " + columnName);
+    }// indexOfColumn()
+
+    /**
+     * Checks if a column is exposed by this cursor. Values of columns which
+     * are not exposed can be left as anything when adding rows.
+     * 
+     * @param columnName
+     *            the column name, one of
+     *            {@link BaseFileProviderUtils#_BaseFileCursorColumns}.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean hasColumn(String columnName) {
+        return (mColumnMask & (1 << indexOfColumn(columnName))) != 0;
+    }// hasColumn()
+
+    /**
+     * Adds a parent, which can be shared by many rows.
+     * <p>
+     * The URI of a row which has this parent is {@code uriPrefix} followed by
+     * the name of the row, encoded twice with {@link Uri#encode(String)}:
+     * once as a part of the file URI, once as a path segment of the content
+     * URI. The path of that row is {@code pathPrefix} followed by its name.
+     * </p>
+     * 
+     * @param uriPrefix
+     *            the URI prefix.
+     * @param pathPrefix
+     *            the path prefix, which usually ends with {@code "/"}.
+     * @return the index of the parent.
+     */
+    public int addParent(String uriPrefix, String pathPrefix) {
+        mParentUriPrefixes.add(uriPrefix);
+        mParentPathPrefixes.add(pathPrefix);
+        return mParentUriPrefixes.size() - 1;
+    }// addParent()
+
+    /**
+     * Adds a file row whose URI and path are derived from its parent.
+     * 
+     * @param id
+     *            see {@link BaseFile#_ID}.
+     * @param parent
+     *            the parent index, see {@link #addParent(String, String)}.
+     * @param name
+     *            see {@link BaseFile#_ColumnName}.
+     * @param canRead
+     *            see {@link BaseFile#_ColumnCanRead}.
+     * @param canWrite
+     *            see {@link BaseFile#_ColumnCanWrite}.
+     * @param size
+     *            see {@link BaseFile#_ColumnSize}.
+     * @param type
+     *            see {@link BaseFile#_ColumnType}.
+     * @param modificationTime
+     *            see {@link BaseFile#_ColumnModificationTime}.
+     * @param iconId
+     *            see {@link BaseFile#_ColumnIconId}.
+     * @param fileCategory
+     *            see {@link BaseFile#_ColumnFileCategory}.
+     */
+    public void addRow(int id, int parent, String name, boolean canRead,
+            boolean canWrite, long size, int type, long modificationTime,
+            int iconId, int fileCategory) {
+        if (parent < 0 || parent >= mParentUriPrefixes.size())
+            throw new IndexOutOfBoundsException("Invalid parent " + parent);
+
+        int row = newRow(id, parent, null, null, name);
+        setAttributes(row, canRead, canWrite, size, type, modificationTime,
+                iconId, fileCategory);
+    }// addRow()
+
+    /**
+     * Adds a file row.
+     * 
+     * @param id
+     *            see {@link BaseFile#_ID}.
+     * @param uri
+     *            see {@link BaseFile#_ColumnUri}.
+     * @param path
+     *            see {@link BaseFile#_ColumnPath}.
+     * @param name
+     *            see {@link BaseFile#_ColumnName}.
+     * @param canRead
+     *            see {@link BaseFile#_ColumnCanRead}.
+     * @param canWrite
+     *            see {@link BaseFile#_ColumnCanWrite}.
+     * @param size
+     *            see {@link BaseFile#_ColumnSize}.
+     * @param type
+     *            see {@link BaseFile#_ColumnType}.
+     * @param modificationTime
+     *            see {@link BaseFile#_ColumnModificationTime}.
+     * @param iconId
+     *            see {@link BaseFile#_ColumnIconId}.
+     * @param fileCategory
+     *            see {@link BaseFile#_ColumnFileCategory}.
+     */
+    public void addRow(int id, String uri, String path, String name,
+            boolean canRead, boolean canWrite, long size, int type,
+            long modificationTime, int iconId, int fileCategory) {
+        int row = newRow(id, -1, uri, path, name);
+        setAttributes(row, canRead, canWrite, size, type, modificationTime,
+                iconId, fileCategory);
+    }// addRow()
+
+    /**
+     * Sets the attribute columns of a row.
+     */
+    private void setAttributes(int row, boolean canRead, boolean canWrite,
+            long size, int type, long modificationTime, int iconId,
+            int fileCategory) {
+        mFlags[row] = (canRead ? 1 : 0) | (canWrite ? 2 : 0);
+        mSizes[row] = size;
+        mTypes[row] = type;
+        mModificationTimes[row] = modificationTime;
+        mIconIds[row] = iconId;
+        mFileCategories[row] = fileCategory;
+        mNullMasks[row] = 0;
+    }// setAttributes()
+
+    /**
+     * Adds a row which only has the ID, URI, path and name. Other columns
+     * will be {@code null}.
+     * 
+     * @param id
+     *            see {@link BaseFile#_ID}.
+     * @param uri
+     *            see {@link BaseFile#_ColumnUri}.
+     * @param path
+     *            see {@link BaseFile#_ColumnPath}.
+     * @param name
+     *            see {@link BaseFile#_ColumnName}.
+     */
+    public void addInfoRow(int id, String uri, String path, String name) {
+        int row = newRow(id, -1, uri, path, name);
+        mNullMasks[row] = _InfoRowNullMask;
+    }// addInfoRow()
+
+    /**
+     * Makes sure this cursor can hold at least {@code capacity} rows without
+     * re-allocating its columns.
+     * 
+     * @param capacity
+     *            the capacity.
+     */
+    public void ensureCapacity(int capacity) {
+        if (capacity > mCapacity)
+            allocate(capacity);
+    }// ensureCapacity()
+
+    /**
+     * Allocates a new row and fills its ID and string columns.
+     * 
+     * @return the new row index.
+     */
+    private int newRow(int id, int parent, String uri, String path,
+            String name) {
+        if (mCount == mCapacity)
+            allocate(mCapacity * 2);
+
+        int row = mCount++;
+        mIds[row] = id;
+        mParents[row] = parent;
+        mNames[row] = name;
+        if (uri != null) {
+            if (mUris == null)
+                mUris = new String[mCapacity];
+            mUris[row] = uri;
+        }
+        if (path != null) {
+            if (mPaths == null)
+                mPaths = new String[mCapacity];
+            mPaths[row] = path;
+        }
+        return row;
+    }// newRow()
+
+    /**
+     * Allocates (or re-allocates) the columns.
+     * 
+     * @param capacity
+     *            the new capacity.
+     */
+    private void allocate(int capacity) {
+        mIds = grow(mIds, capacity);
+        mParents = grow(mParents, capacity);
+        mNames = grow(mNames, capacity);
+        if (mUris != null)
+            mUris = grow(mUris, capacity);
+        if (mPaths != null)
+            mPaths = grow(mPaths, capacity);
+        mFlags = grow(mFlags, capacity);
+        mSizes = grow(mSizes, capacity);
+        mTypes = grow(mTypes, capacity);
+        mModificationTimes = grow(mModificationTimes, capacity);
+        mIconIds = grow(mIconIds, capacity);
+        mFileCategories = grow(mFileCategories, capacity);
+        mNullMasks = grow(mNullMasks, capacity);
+        mCapacity = capacity;
+    }// allocate()
+
+    private int[] grow(int[] array, int capacity) {
+        int[] result = new int[capacity];
+        if (array != null)
+            System.arraycopy(array, 0, result, 0, mCount);
+        return result;
+    }// grow()
+
+    private long[] grow(long[] array, int capacity) {
+        long[] result = new long[capacity];
+        if (array != null)
+            System.arraycopy(array, 0, result, 0, mCount);
+        return result;
+    }// grow()
+
+    private String[] grow(String[] array, int capacity) {
+        String[] result = new String[capacity];
+        if (array != null)
+            System.arraycopy(array, 0, result, 0, mCount);
+        return result;
+    }// grow()
+
+    /*
+     * CURSOR
+     */
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }// getCount()
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }// getColumnNames()
+
+    @Override
+    public int getType(int column) {
+        return getType(mPos, mapColumn(column));
+    }// getType()
+
+    @Override
+    public boolean isNull(int column) {
+        return isNull(mPos, mapColumn(column));
+    }// isNull()
+
+    @Override
+    public String getString(int column) {
+        return getString(mPos, mapColumn(column), true);
+    }// getString()
+
+    @Override
+    public long getLong(int column) {
+        return getLong(mPos, mapColumn(column));
+    }// getLong()
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }// getInt()
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }// getShort()
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }// getFloat()
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }// getDouble()
+
+    @Override
+    public void fillWindow(int position, CursorWindow window) {
+        if (position < 0 || position >= mCount)
+            return;
+
+        window.acquireReference();
+        try {
+            window.clear();
+            window.setStartPosition(position);
+            window.setNumColumns(mColumnMap.length);
+
+            for (int row = position; row < mCount; row++) {
+                if (!window.allocRow())
+                    break;
+                if (!putRow(window, row)) {
+                    window.freeLastRow();
+                    break;
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }// fillWindow()
+
+    /**
+     * Puts a row into {@code window}.
+     * 
+     * @param window
+     *            the window.
+     * @param row
+     *            the row index.
+     * @return {@code true} if succeeded, {@code false} if the window is
+     *         full.
+     */
+    private boolean putRow(CursorWindow window, int row) {
+        for (int column = 0; column < mColumnMap.length; column++) {
+            int internalColumn = mColumnMap[column];
+            boolean ok;
+            switch (getType(row, internalColumn)) {
+            case Cursor.FIELD_TYPE_NULL:
+                ok = window.putNull(row, column);
+                break;
+            case Cursor.FIELD_TYPE_STRING:
+                /*
+                 * Don't memoize: the whole cursor goes to the window anyway.
+                 */
+                ok = window.putString(getString(row, internalColumn, false),
+                        row, column);
+                break;
+            default:
+                ok = window.putLong(getLong(row, internalColumn), row,
+                        column);
+                break;
+            }
+
+            if (!ok)
+                return false;
+        }
+
+        return true;
+    }// putRow()
+
+    /*
+     * ROW ACCESS
+     */
+
+    /**
+     * Maps an exposed column to its internal index.
+     */
+    private int mapColumn(int column) {
+        if (column < 0 || column >= mColumnMap.length)
+            throw new IndexOutOfBoundsException("Invalid column " + column);
+        return mColumnMap[column];
+    }// mapColumn()
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= mCount)
+            throw new IndexOutOfBoundsException(String.format(
+                    "Row %,d is out of range [0, %,d)", row, mCount));
+    }// checkRow()
+
+    private boolean isNull(int row, int column) {
+        checkRow(row);
+        if ((mNullMasks[row] & (1 << column)) != 0)
+            return true;
+
+        switch (column) {
+        case _ColumnUri:
+            return mParents[row] < 0 && (mUris == null || mUris[row] == null);
+        case _ColumnPath:
+            return mParents[row] < 0
+                    && (mPaths == null || mPaths[row] == null);
+        case _ColumnName:
+            return mNames[row] == null;
+        default:
+            return false;
+        }
+    }// isNull()
+
+    private int getType(int row, int column) {
+        if (isNull(row, column))
+            return Cursor.FIELD_TYPE_NULL;
+        return isStringColumn(column) ? Cursor.FIELD_TYPE_STRING
+                : Cursor.FIELD_TYPE_INTEGER;
+    }// getType()
+
+    private static boolean isStringColumn(int column) {
+        return column == _ColumnUri || column == _ColumnPath
+                || column == _ColumnName;
+    }// isStringColumn()
+
+    /**
+     * Gets a string value.
+     * 
+     * @param row
+     *            the row index.
+     * @param column
+     *            the column index.
+     * @param memoize
+     *            {@code true} to keep the URI or path if it is built.
+     * @return the string value.
+     */
+    private String getString(int row, int column, boolean memoize) {
+        checkRow(row);
+        switch (column) {
+        case _ColumnUri: {
+            if (mUris != null && mUris[row] != null)
+                return mUris[row];
+            if (mParents[row] < 0)
+                return null;
+
+            String uri = mParentUriPrefixes.get(mParents[row])
+                    + Uri.encode(Uri.encode(mNames[row]));
+            if (memoize) {
+                if (mUris == null)
+                    mUris = new String[mCapacity];
+                mUris[row] = uri;
+            }
+            return uri;
+        }
+
+        case _ColumnPath: {
+            if (mPaths != null && mPaths[row] != null)
+                return mPaths[row];
+            if (mParents[row] < 0)
+                return null;
+
+            String path = mParentPathPrefixes.get(mParents[row])
+                    + mNames[row];
+            if (memoize) {
+                if (mPaths == null)
+                    mPaths = new String[mCapacity];
+                mPaths[row] = path;
+            }
+            return path;
+        }
+
+        case _ColumnName:
+            return mNames[row];
+
+        default:
+            if ((mNullMasks[row] & (1 << column)) != 0)
+                return null;
+            return Long.toString(getLong(row, column));
+        }
+    }// getString()
+
+    private long getLong(int row, int column) {
+        checkRow(row);
+        if ((mNullMasks[row] & (1 << column)) != 0)
+            return 0;
+
+        switch (column) {
+        case _ColumnId:
+            return mIds[row];
+        case _ColumnCanRead:
+            return mFlags[row] & 1;
+        case _ColumnCanWrite:
+            return (mFlags[row] >> 1) & 1;
+        case _ColumnSize:
+            return mSizes[row];
+        case _ColumnType:
+            return mTypes[row];
+        case _ColumnModificationTime:
+            return mModificationTimes[row];
+        case _ColumnIconId:
+            return mIconIds[row];
+        case _ColumnFileCategory:
+            return mFileCategories[row];
+        case _ColumnUri:
+        case _ColumnPath:
+        case _ColumnName: {
+            String s = getString(row, column, true);
+            return s != null ? Long.parseLong(s) : 0;
+        }
+        default:
+            throw new IndexOutOfBoundsException("Invalid column " + column);
+        }
+    }// getLong()
+
+    /**
+     * Sets the listener which will be called after this cursor has been
+     * closed.
+     * 
+     * @param listener
+     *            the listener, can be {@code null}.
+     */
+    public synchronized void setOnCloseListener(OnCloseListener listener) {
+        mOnCloseListener = listener;
+    }// setOnCloseListener()
+
+    @Override
+    public void close() {
+        super.close();
+
+        OnCloseListener listener;
+        synchronized (this) {
+            listener = mOnCloseListener;
+            mOnCloseListener = null;
+        }
+        if (listener != null)
+            listener.onClose(this);
+    }// close()
+}
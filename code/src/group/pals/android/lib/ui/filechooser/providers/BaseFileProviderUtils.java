@@ -198,23 +198,56 @@ public class BaseFileProviderUtils {
      * <li>{@link BaseFile#_ColumnType}</li>
      * <li>{@link BaseFile#_ColumnModificationTime}</li>
      * <li>{@link BaseFile#_ColumnIconId}</li>
+     * <li>{@link BaseFile#_ColumnFileCategory}</li>
      * </p>
      */
     public static final String[] _BaseFileCursorColumns = { BaseFile._ID,
             BaseFile._ColumnUri, BaseFile._ColumnPath, BaseFile._ColumnName,
             BaseFile._ColumnCanRead, BaseFile._ColumnCanWrite,
             BaseFile._ColumnSize, BaseFile._ColumnType,
-            BaseFile._ColumnModificationTime, BaseFile._ColumnIconId };
+            BaseFile._ColumnModificationTime, BaseFile._ColumnIconId,
+            BaseFile._ColumnFileCategory };
+
+    /**
+     * Projection of {@link BaseFile#_ColumnType}.
+     */
+    private static final String[] _ProjectionType = { BaseFile._ColumnType };
+
+    /**
+     * Projection of {@link BaseFile#_ColumnUri}.
+     */
+    private static final String[] _ProjectionUri = { BaseFile._ColumnUri };
 
     /**
      * Creates new cursor which hold default properties of a base file for
      * client to access.
      * 
+     * @param capacity
+     *            the initial capacity (number of rows) of the cursor.
      * @return the new empty cursor. The columns are
      *         {@link #_BaseFileCursorColumns}.
      */
-    public static MatrixCursor newBaseFileCursor() {
-        return new MatrixCursor(_BaseFileCursorColumns);
+    public static BaseFileCursor newBaseFileCursor(int capacity) {
+        return new BaseFileCursor(capacity);
+    }// newBaseFileCursor()
+
+    /**
+     * Creates new cursor which hold the requested properties of a base file
+     * for client to access.
+     * 
+     * @param capacity
+     *            the initial capacity (number of rows) of the cursor.
+     * @param projection
+     *            the requested columns, can be {@code null} for all of
+     *            {@link #_BaseFileCursorColumns}.
+     * @return the new empty cursor.
+     * @throws IllegalArgumentException
+     *             if {@code projection} contains a column which is not one of
+     *             {@link #_BaseFileCursorColumns}.
+     */
+    public static BaseFileCursor newBaseFileCursor(int capacity,
+            String[] projection) {
+        return new BaseFileCursor(capacity, projection);
     }// newBaseFileCursor()
 
     /**
@@ -239,8 +272,8 @@ public class BaseFileProviderUtils {
      *         otherwise.
      */
     public static boolean isDirectory(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                _ProjectionType, null, null, null);
         if (cursor == null)
             return false;
 
@@ -275,8 +308,8 @@ public class BaseFileProviderUtils {
      * @return {@code true} if {@code uri} is a file, {@code false} otherwise.
      */
     public static boolean isFile(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                _ProjectionType, null, null, null);
         if (cursor == null)
             return false;
 
@@ -310,8 +343,8 @@ public class BaseFileProviderUtils {
      * @return the file name if {@code uri} is a file, {@code null} otherwise.
      */
     public static String getFileName(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[] { BaseFile._ColumnName }, null, null, null);
         if (cursor == null)
             return null;
 
@@ -345,8 +378,8 @@ public class BaseFileProviderUtils {
      * @return the human-readable path of {@code uri}.
      */
     public static String getFilePath(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[] { BaseFile._ColumnPath }, null, null, null);
         if (cursor == null)
             return null;
 
@@ -382,8 +415,8 @@ public class BaseFileProviderUtils {
      *         {@link #_FileTypeUnknown}, {@link #_FileTypeNotExisted}.
      */
     public static int getFileType(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                _ProjectionType, null, null, null);
         if (cursor == null)
             return BaseFile._FileTypeNotExisted;
 
@@ -431,8 +464,8 @@ public class BaseFileProviderUtils {
      * @return {@code true} or {@code false}.
      */
     public static boolean fileExists(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                _ProjectionType, null, null, null);
         if (cursor == null)
             return false;
 
@@ -456,8 +489,9 @@ public class BaseFileProviderUtils {
      * @return {@code true} or {@code false}.
      */
     public static boolean fileCanRead(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[] { BaseFile._ColumnCanRead, BaseFile._ColumnType },
+                null, null, null);
         if (cursor == null)
             return false;
 
@@ -493,8 +527,9 @@ public class BaseFileProviderUtils {
      * @return {@code true} or {@code false}.
      */
     public static boolean fileCanWrite(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor cursor = context.getContentResolver().query(uri,
+                new String[] { BaseFile._ColumnCanWrite, BaseFile._ColumnType },
+                null, null, null);
         if (cursor == null)
             return false;
 
@@ -532,8 +567,8 @@ public class BaseFileProviderUtils {
     public static Uri getDefaultPath(Context context, String authority) {
         Cursor cursor = context.getContentResolver().query(
                 BaseFile.genContentUriApi(authority).buildUpon()
-                        .appendPath(BaseFile._CmdGetDefaultPath).build(), null,
-                null, null, null);
+                        .appendPath(BaseFile._CmdGetDefaultPath).build(),
+                _ProjectionUri, null, null, null);
         if (cursor == null)
             return null;
 
@@ -562,8 +597,8 @@ public class BaseFileProviderUtils {
                         .buildUpon()
                         .appendPath(BaseFile._CmdGetParent)
                         .appendQueryParameter(BaseFile._ParamSource,
-                                uri.getLastPathSegment()).build(), null, null,
-                null, null);
+                                uri.getLastPathSegment()).build(),
+                _ProjectionUri, null, null, null);
         if (cursor == null)
             return null;
 
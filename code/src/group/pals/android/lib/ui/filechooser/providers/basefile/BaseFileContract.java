@@ -9,7 +9,7 @@ package group.pals.android.lib.ui.filechooser.providers.basefile;
 
 import group.pals.android.lib.ui.filechooser.providers.BaseColumns;
 import group.pals.android.lib.ui.filechooser.providers.ProviderUtils;
-import group.pals.android.lib.ui.filechooser.providers.localfile.FileObserverEx;
+import group.pals.android.lib.ui.filechooser.providers.localfile.FileObserverPool;
 import group.pals.android.lib.ui.filechooser.providers.localfile.LocalFileProvider;
 import android.content.ContentResolver;
 import android.net.Uri;
@@ -99,6 +99,65 @@ public class BaseFileContract {
          */
         public static final int _SortByModificationTime = 2;
 
+        /*
+         * FILE CATEGORY.
+         */
+
+        /**
+         * Not a directory nor a regular file (see {@link #_FileTypeUnknown}
+         * and {@link #_FileTypeNotExisted}).
+         */
+        public static final int _FileCategoryNone = 0;
+        /**
+         * Directory.
+         */
+        public static final int _FileCategoryDirectory = 1;
+        /**
+         * Regular file which does not belong to other categories.
+         */
+        public static final int _FileCategoryOther = 2;
+        /**
+         * Audio file.
+         */
+        public static final int _FileCategoryAudio = 3;
+        /**
+         * Video file.
+         */
+        public static final int _FileCategoryVideo = 4;
+        /**
+         * Image file.
+         */
+        public static final int _FileCategoryImage = 5;
+        /**
+         * Plain text file.
+         */
+        public static final int _FileCategoryPlainText = 6;
+        /**
+         * APK file.
+         */
+        public static final int _FileCategoryApk = 7;
+        /**
+         * Compressed file.
+         */
+        public static final int _FileCategoryCompressed = 8;
+
+        /*
+         * CHECKSUM ALGORITHM.
+         */
+
+        /**
+         * CRC32.
+         */
+        public static final String _ChecksumCrc32 = "crc32";
+        /**
+         * MD5.
+         */
+        public static final String _ChecksumMd5 = "md5";
+        /**
+         * SHA-256.
+         */
+        public static final String _ChecksumSha256 = "sha-256";
+
         /*
          * PATHS
          */
@@ -132,7 +191,8 @@ public class BaseFileContract {
 
         /**
          * Use this command to cancel a previous task you executed. You set the
-         * task ID with {@link #_ParamTaskId}.
+         * task ID with {@link #_ParamTaskId}. All running tasks which have that
+         * ID are cancelled; task ID {@code 0} cancels all running tasks.
          * 
          * @see #_ParamTaskId
          */
@@ -186,7 +246,7 @@ public class BaseFileContract {
          * Use this command when you don't need to work with the content
          * provider anymore. Normally <i>Android handles ContentProvider startup
          * and shutdown automatically</i>. But in case of
-         * {@link LocalFileProvider}, it uses {@link FileObserverEx} to watch
+         * {@link LocalFileProvider}, it uses {@link FileObserverPool} to watch
          * for changes of files. The SDK doesn't clarify the ending events of a
          * content provider. So the file-observer objects could continue to run
          * even if your activity has stopped. Hence this command is useful to
@@ -194,6 +254,232 @@ public class BaseFileContract {
          */
         public static final String _CmdShutdown = "shutdown";
 
+        /**
+         * Use this command to get the statistics of a provider, such as cache
+         * hits and misses. The result is a cursor which has two columns:
+         * {@link #_ColumnStatName} and {@link #_ColumnStatValue}, one row for
+         * each statistic. The statistic names are defined by each provider.
+         */
+        public static final String _CmdGetStats = "get_stats";
+
+        /**
+         * Use this command to search a directory and its sub directories for
+         * files. You provide the directory ID with {@link #_ParamSource}. The
+         * files are matched with the same params and selection as when
+         * querying a directory ({@link #_ParamGlobFilter},
+         * {@link #_ParamPositiveRegexFilter}...). The search stops when
+         * {@link #_ParamLimit} files are found.
+         * <p>
+         * The result is a base file cursor, like querying a directory, except
+         * that it is always streamed (see {@link #_ParamStreaming}): the
+         * clients are notified via the notification URI of the cursor when
+         * more files are found. Starting a new search with the same
+         * {@link #_ParamTaskId} cancels the previous one, so clients can
+         * search while the user is typing. Progress (the number of searched
+         * directories) works with {@link #_CmdGetProgress}.
+         * </p>
+         * 
+         * @see #_ParamSource
+         * @see #_ParamLimit
+         */
+        public static final String _CmdSearch = "search";
+
+        /**
+         * Use this command to search for files by name in an index, which is
+         * built and kept fresh in background by providers which support it.
+         * You provide the words to search for with {@link #_ParamQuery}.
+         * Files whose names have all the words (as prefixes of the words of
+         * the names) are returned. Optionally, you can limit the search to a
+         * directory with {@link #_ParamSource}, and the number of files with
+         * {@link #_ParamLimit}.
+         * <p>
+         * The result is a base file cursor, like querying a directory. If the
+         * index is still being built, the directory-info row has
+         * {@link #_ParamLoading} set to {@code true}.
+         * </p>
+         * 
+         * @see #_ParamQuery
+         * @see #_CmdSearch
+         */
+        public static final String _CmdIndexSearch = "index_search";
+
+        /**
+         * Use this command to get the progress of a task, such as deleting a
+         * directory recursively. You set the task ID with
+         * {@link #_ParamTaskId}. The result is a cursor which has one row,
+         * with columns {@link #_ColumnProgressCount},
+         * {@link #_ColumnProgressBytes}, {@link #_ColumnProgressPath},
+         * {@link #_ColumnErrorCount}, {@link #_ColumnFinished} and
+         * {@link #_ColumnProgressSpeed}; or
+         * {@code null} if there is no such task.
+         * <p>
+         * The provider notifies changes of the progress to the URI of this
+         * command (without parameters), so you can register an observer on
+         * it.
+         * </p>
+         * 
+         * @see #_ParamTaskId
+         */
+        public static final String _CmdGetProgress = "get_progress";
+
+        /**
+         * Use this command to get the errors of a task, such as the files
+         * which could not be deleted. You set the task ID with
+         * {@link #_ParamTaskId}. The result is a cursor which has two
+         * columns: {@link #_ColumnPath} and {@link #_ColumnErrorMessage}, one
+         * row for each error; or {@code null} if there is no such task.
+         * Providers can limit the number of errors they keep, see
+         * {@link #_ColumnErrorCount} for the total.
+         * 
+         * @see #_ParamTaskId
+         */
+        public static final String _CmdGetErrors = "get_errors";
+
+        /**
+         * Use this command to restore a file which was moved to trash with
+         * {@link #_ParamMoveToTrash}. You provide the original file ID with
+         * {@link #_ParamSource}. If the file was trashed more than once, the
+         * latest one is restored. The result is a cursor which has one row
+         * with the restored file; or {@code null} if there is no such file in
+         * trash, or if the original file exists.
+         * 
+         * @see #_ParamSource
+         * @see #_ParamMoveToTrash
+         */
+        public static final String _CmdRestore = "restore";
+
+        /**
+         * Use this command with {@code delete()} to delete many files as one
+         * task, such as the selected files of a list. You provide the file
+         * IDs as the selection arguments (the selection itself is ignored).
+         * Parameters {@link #_ParamTaskId}, {@link #_ParamTimeout},
+         * {@link #_ParamRecursive} and {@link #_ParamMoveToTrash} work the
+         * same as deleting one file; {@link #_CmdGetProgress} and
+         * {@link #_CmdGetErrors} report the whole task.
+         * <p>
+         * Each parent directory is notified once, after the task finishes.
+         * The result is the number of given files which have been deleted.
+         * </p>
+         * 
+         * @see #_ParamTaskId
+         * @see #_ParamMoveToTrash
+         */
+        public static final String _CmdDeleteFiles = "delete_files";
+
+        /**
+         * Use this command with {@code update()} to copy files and
+         * directories (recursively) into a directory, as one task. You
+         * provide the target directory ID with {@link #_ParamTarget}, and the
+         * source file IDs as the selection arguments (the values and the
+         * selection are ignored). Existing files are never overwritten, they
+         * are reported as errors.
+         * <p>
+         * Cancellation and progress work with {@link #_ParamTaskId}, see
+         * {@link #_CmdCancel}, {@link #_CmdGetProgress} and
+         * {@link #_CmdGetErrors}. The result is the number of copied files
+         * and directories.
+         * </p>
+         * 
+         * @see #_ParamTarget
+         * @see #_ParamTaskId
+         */
+        public static final String _CmdCopy = "copy";
+
+        /**
+         * Use this command with {@code update()} to move files and
+         * directories into a directory, as one task. It works the same as
+         * {@link #_CmdCopy}. Moving inside a volume is a rename; otherwise the
+         * sources are copied, then deleted if they were copied without errors
+         * and the content of each copy matches its source.
+         * 
+         * @see #_CmdCopy
+         */
+        public static final String _CmdMove = "move";
+
+        /**
+         * Use this command with {@code update()} to copy a large file, so the
+         * copy can be resumed after it has been cancelled (see
+         * {@link #_CmdCancel}) or after the process has been killed. The job
+         * is identified by {@link #_ParamTaskId}, which is required.
+         * <p>
+         * To start a new job, you provide the source file ID with
+         * {@link #_ParamSource} and the target directory ID with
+         * {@link #_ParamTarget}. To resume a job, you only need its task ID.
+         * The file is copied into a temporary file next to the target, and is
+         * renamed to the target after it has been verified. The result is
+         * {@code 1} if the file has been copied, {@code 0} if not (the job
+         * can be resumed later, see {@link #_CmdGetErrors} for the reason).
+         * </p>
+         * <p>
+         * Calling {@code delete()} with this command and a task ID discards
+         * the job and its temporary file.
+         * </p>
+         * 
+         * @see #_CmdGetCopyJobs
+         */
+        public static final String _CmdResumableCopy = "resumable_copy";
+
+        /**
+         * Use this command to get the jobs of {@link #_CmdResumableCopy}
+         * which have not completed. You can set {@link #_ParamTaskId} to get
+         * one job. The result is a cursor which has columns
+         * {@link #_ColumnTaskId}, {@link #_ColumnPath} (of the source),
+         * {@link #_ColumnTargetPath}, {@link #_ColumnSize} and
+         * {@link #_ColumnProgressBytes} (the number of bytes which have been
+         * copied), one row for each job.
+         * 
+         * @see #_CmdResumableCopy
+         */
+        public static final String _CmdGetCopyJobs = "get_copy_jobs";
+
+        /**
+         * Use this command to compute the checksums of a file, or of all
+         * files in a directory. You provide the file ID with
+         * {@link #_ParamSource}, and the algorithm with
+         * {@link #_ParamAlgorithm}. Files in sub directories are included
+         * unless {@link #_ParamRecursive} is {@code false}. Cancellation and
+         * progress work with {@link #_ParamTaskId}.
+         * <p>
+         * The result is a cursor which has columns {@link #_ColumnPath},
+         * {@link #_ColumnSize}, {@link #_ColumnChecksum} and
+         * {@link #_ColumnProgressSpeed} (of computing the checksum of that
+         * file, {@code 0} if it was cached or unknown), one row for each
+         * file; or {@code null} if the file doesn't exist. Providers can cache
+         * the checksums of unchanged files.
+         * </p>
+         * 
+         * @see #_ParamSource
+         * @see #_ParamAlgorithm
+         */
+        public static final String _CmdChecksum = "checksum";
+
+        /**
+         * Use this command to search for text in plain text files (see
+         * {@link #_FileCategoryPlainText}) of a directory. You provide the
+         * directory ID with {@link #_ParamSource}, and the text with
+         * {@link #_ParamQuery}. Files in sub directories are included unless
+         * {@link #_ParamRecursive} is {@code false}. Only the first
+         * {@link #_ParamMaxFileSize} bytes of each file are searched. The
+         * search stops when {@link #_ParamLimit} lines are found.
+         * <p>
+         * The result is a cursor which has columns {@link #_ColumnUri},
+         * {@link #_ColumnPath}, {@link #_ColumnLineNumber} and
+         * {@link #_ColumnSnippet}, one row for each matching line; or
+         * {@code null} if the directory is not available. Like
+         * {@link #_CmdSearch}, the result is streamed: the clients are
+         * notified via the notification URI of the cursor when more lines
+         * are found. Starting a new search with the same {@link #_ParamTaskId}
+         * cancels the previous one. Progress (the number of searched files)
+         * and the end of the search ({@link #_ColumnFinished}) work with
+         * {@link #_CmdGetProgress}.
+         * </p>
+         * 
+         * @see #_ParamSource
+         * @see #_ParamQuery
+         * @see #_ParamCaseSensitive
+         */
+        public static final String _CmdContentSearch = "content_search";
+
         /*
          * PARAMETERS.
          */
@@ -244,6 +530,17 @@ public class BaseFileContract {
          */
         public static final String _ParamTaskId = "task_id";
 
+        /**
+         * Use this parameter to set the maximum time a task (a directory
+         * listing or a deletion) can run, in milliseconds. When it expires,
+         * the task is cancelled, the same way as with {@link #_CmdCancel}.<br>
+         * Default: {@code 0}, no limit.
+         * <p>
+         * Type: {@code Long}
+         * </p>
+         */
+        public static final String _ParamTimeout = "timeout";
+
         /**
          * Use this parameter for operators which can work recursively, such as
          * deleting a directory... The value can be {@code "true"} or
@@ -261,6 +558,73 @@ public class BaseFileContract {
          */
         public static final String _ParamRecursive = "recursive";
 
+        /**
+         * Use this parameter with {@code delete()} to move the file to trash
+         * instead of deleting it, so it can be restored with
+         * {@link #_CmdRestore}. If the provider doesn't support trash, or
+         * can't use it for the given file (for example, the volume is not
+         * writable), the file is left untouched and is not counted in the
+         * result; the client can then delete it permanently. The value can be
+         * {@code "true"} or {@code "1"} for {@code true}, {@code "false"} or
+         * {@code "0"} for {@code false}.
+         * <p>
+         * Default: {@code "false"}
+         * </p>
+         * <p>
+         * Type: {@code Boolean}
+         * </p>
+         */
+        public static final String _ParamMoveToTrash = "move_to_trash";
+
+        /**
+         * Use this parameter to set the algorithm of {@link #_CmdChecksum}:
+         * {@link #_ChecksumCrc32}, {@link #_ChecksumMd5},
+         * {@link #_ChecksumSha256}, or another name supported by
+         * {@link java.security.MessageDigest}.
+         * <p>
+         * Default: {@link #_ChecksumSha256}
+         * </p>
+         * <p>
+         * Type: {@code String}
+         * </p>
+         */
+        public static final String _ParamAlgorithm = "algorithm";
+
+        /**
+         * Use this parameter to provide the words to search for, with
+         * {@link #_CmdIndexSearch}; or the text to search for, with
+         * {@link #_CmdContentSearch}.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         */
+        public static final String _ParamQuery = "query";
+
+        /**
+         * Use this parameter to match the case of the text of
+         * {@link #_CmdContentSearch}. Only the case of ASCII letters can be
+         * ignored.
+         * <p>
+         * Default: {@code "false"}
+         * </p>
+         * <p>
+         * Type: {@code Boolean}
+         * </p>
+         */
+        public static final String _ParamCaseSensitive = "case_sensitive";
+
+        /**
+         * Use this parameter to set the maximum number of bytes to search in
+         * each file, with {@link #_CmdContentSearch}.
+         * <p>
+         * Default: {@code 16} MB
+         * </p>
+         * <p>
+         * Type: {@code Long}
+         * </p>
+         */
+        public static final String _ParamMaxFileSize = "max_file_size";
+
         /**
          * Use this parameter to show hidden files. The value can be
          * {@code "true"} or {@code "1"} for {@code true}, {@code "false"} or
@@ -314,7 +678,10 @@ public class BaseFileContract {
         public static final String _ParamSortAscending = "sort_ascending";
 
         /**
-         * Use this parameter to limit results.
+         * Use this parameter to limit results. If a directory has more files
+         * than the limit, the provider returns the first files in the sort
+         * order given by {@link #_ParamSortBy} and
+         * {@link #_ParamSortAscending}.
          * <p>
          * Default: {@code 1000} with {@code query()}.
          * </p>
@@ -335,6 +702,46 @@ public class BaseFileContract {
          */
         public static final String _ParamHasMoreFiles = "has_more_files";
 
+        /**
+         * This parameter is returned from the provider. It's only used for
+         * {@code query()} while querying directory contents. It is the total
+         * number of files which match the filters, including the ones which
+         * exceed {@link #_ParamLimit}.
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         */
+        public static final String _ParamTotalCount = "total_count";
+
+        /**
+         * Use this parameter to list a directory progressively. The provider
+         * returns the first batch of files as soon as it is ready, and keeps
+         * listing the rest in background. The clients will be notified via
+         * the notification URI of the returned cursor every time a new batch
+         * is ready. Can be {@code "true"} or {@code "1"} for {@code true},
+         * {@code "false"} or {@code "0"} for {@code false}.
+         * <p>
+         * Default: {@code "false"} with {@code query()}.
+         * </p>
+         * <p>
+         * Type: {@code Boolean}
+         * </p>
+         * 
+         * @see #_ParamLoading
+         */
+        public static final String _ParamStreaming = "streaming";
+
+        /**
+         * This parameter is returned from the provider. It's only used for
+         * {@code query()} while querying directory contents with
+         * {@link #_ParamStreaming}. If it is {@code "true"}, the listing is
+         * still running and the cursor contains partial results.
+         * <p>
+         * Type: {@code Boolean}
+         * </p>
+         */
+        public static final String _ParamLoading = "loading";
+
         /**
          * Use this parameter to append a file name to a full path of directory
          * to obtains its full pathname.
@@ -396,6 +803,41 @@ public class BaseFileContract {
          */
         public static final String _ParamNegativeRegexFilter = "negative_regex_filter";
 
+        /**
+         * Use this parameter to set glob patterns to filter file names (with
+         * {@code query()}), separated by {@code "|"}. Wildcards are
+         * {@code "*"} and {@code "?"}, and matching is case-insensitive. For
+         * example: {@code "*.pdf|*.docx"}. Directories are not filtered by
+         * this parameter.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         */
+        public static final String _ParamGlobFilter = "glob_filter";
+
+        /**
+         * Use this parameter to set file extensions to filter file names
+         * (with {@code query()}), separated by {@code "|"}. Matching is
+         * case-insensitive. For example: {@code "pdf|docx"}. Directories are
+         * not filtered by this parameter.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         */
+        public static final String _ParamExtensionFilter = "extension_filter";
+
+        /**
+         * Use this parameter to set MIME types to filter file names (with
+         * {@code query()}), separated by {@code "|"}. A MIME type can be a
+         * family, such as {@code "image/*"}. For example:
+         * {@code "image/*|application/pdf"}. MIME types are looked up by
+         * file extensions. Directories are not filtered by this parameter.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         */
+        public static final String _ParamMimeTypeFilter = "mime_type_filter";
+
         /**
          * Use this parameter to tell the provider to validate files or not.
          * <p>
@@ -547,6 +989,19 @@ public class BaseFileContract {
          */
         public static final String _ColumnIconId = "icon_id";
 
+        /**
+         * The category of this file, computed by the provider from the file
+         * type and name. Can be one of {@link #_FileCategoryNone},
+         * {@link #_FileCategoryDirectory}, {@link #_FileCategoryOther},
+         * {@link #_FileCategoryAudio}, {@link #_FileCategoryVideo},
+         * {@link #_FileCategoryImage}, {@link #_FileCategoryPlainText},
+         * {@link #_FileCategoryApk}, {@link #_FileCategoryCompressed}.
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         */
+        public static final String _ColumnFileCategory = "file_category";
+
         /**
          * The name of this provider.
          * <p>
@@ -570,5 +1025,146 @@ public class BaseFileContract {
          * </p>
          */
         public static final String _ColumnProviderIconAttr = "provider_icon_attr";
+
+        /**
+         * The name of a statistic.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdGetStats
+         */
+        public static final String _ColumnStatName = "stat_name";
+
+        /**
+         * The value of a statistic.
+         * <p>
+         * Type: {@code Long}
+         * </p>
+         * 
+         * @see #_CmdGetStats
+         */
+        public static final String _ColumnStatValue = "stat_value";
+
+        /**
+         * The number of files and directories which a task has processed
+         * (e.g. deleted).
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnProgressCount = "progress_count";
+
+        /**
+         * The number of bytes which a task has processed (e.g. deleted).
+         * <p>
+         * Type: {@code Long}
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnProgressBytes = "progress_bytes";
+
+        /**
+         * The path of the file which a task is working on.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnProgressPath = "progress_path";
+
+        /**
+         * The total number of errors of a task.
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnErrorCount = "error_count";
+
+        /**
+         * Whether a task has finished.
+         * <p>
+         * Type: {@code Integer} ({@code 0} or {@code 1})
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnFinished = "finished";
+
+        /**
+         * The average throughput of a task, such as copying files.
+         * <p>
+         * Type: {@code Long}, in bytes per second
+         * </p>
+         * 
+         * @see #_CmdGetProgress
+         */
+        public static final String _ColumnProgressSpeed = "progress_speed";
+
+        /**
+         * The message of an error.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdGetErrors
+         */
+        public static final String _ColumnErrorMessage = "error_message";
+
+        /**
+         * The task ID of a job.
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         * 
+         * @see #_CmdGetCopyJobs
+         */
+        public static final String _ColumnTaskId = "task_id";
+
+        /**
+         * The path of the target file of a job.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdGetCopyJobs
+         */
+        public static final String _ColumnTargetPath = "target_path";
+
+        /**
+         * The checksum of a file, in lower-case hex.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdChecksum
+         */
+        public static final String _ColumnChecksum = "checksum";
+
+        /**
+         * The line number of a match, starting from {@code 1}.
+         * <p>
+         * Type: {@code Integer}
+         * </p>
+         * 
+         * @see #_CmdContentSearch
+         */
+        public static final String _ColumnLineNumber = "line_number";
+
+        /**
+         * A part of a matching line, around the match.
+         * <p>
+         * Type: {@code String}
+         * </p>
+         * 
+         * @see #_CmdContentSearch
+         */
+        public static final String _ColumnSnippet = "snippet";
     }// BaseFile
 }
@@ -0,0 +1,112 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds a byte pattern in byte buffers, with the Boyer-Moore-Horspool
+ * algorithm: after a mismatch, the pattern is shifted by a distance looked up
+ * from the byte under its last position, so most bytes of the buffer are
+ * never read.
+ * <p>
+ * Matching can ignore the case of ASCII letters, which are the same bytes in
+ * all ASCII-based encodings, including UTF-8.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ByteMatcher {
+
+    private final byte[] mPattern;
+    private final boolean mIgnoreCase;
+    /**
+     * Shift distances, indexed by unsigned byte values.
+     */
+    private final int[] mShifts = new int[256];
+
+    /**
+     * Creates new instance.
+     * 
+     * @param pattern
+     *            the pattern, must not be empty.
+     * @param ignoreCase
+     *            {@code true} to ignore the case of ASCII letters.
+     */
+    public ByteMatcher(byte[] pattern, boolean ignoreCase) {
+        if (pattern.length == 0)
+            throw new IllegalArgumentException("Empty pattern");
+
+        mIgnoreCase = ignoreCase;
+        mPattern = new byte[pattern.length];
+        for (int i = 0; i < pattern.length; i++)
+            mPattern[i] = fold(pattern[i]);
+
+        int last = mPattern.length - 1;
+        for (int i = 0; i < mShifts.length; i++)
+            mShifts[i] = mPattern.length;
+        for (int i = 0; i < last; i++) {
+            mShifts[mPattern[i] & 0xff] = last - i;
+            if (ignoreCase && mPattern[i] >= 'a' && mPattern[i] <= 'z')
+                mShifts[(mPattern[i] - 'a' + 'A') & 0xff] = last - i;
+        }
+    }// ByteMatcher()
+
+    /**
+     * Gets the length of the pattern.
+     * 
+     * @return the length, in bytes.
+     */
+    public int length() {
+        return mPattern.length;
+    }// length()
+
+    /**
+     * Finds the pattern in a buffer.
+     * 
+     * @param buffer
+     *            the buffer. Its position and limit are ignored.
+     * @param from
+     *            the index to search from, inclusive.
+     * @param to
+     *            the index to search to, exclusive. A match must end before
+     *            this index.
+     * @return the index of the first match, or {@code -1} if not found.
+     */
+    public int indexOf(ByteBuffer buffer, int from, int to) {
+        int last = mPattern.length - 1;
+        byte lastByte = mPattern[last];
+        int i = from;
+        while (i <= to - mPattern.length) {
+            byte b = buffer.get(i + last);
+            if (fold(b) == lastByte) {
+                int j = last - 1;
+                while (j >= 0 && fold(buffer.get(i + j)) == mPattern[j])
+                    j--;
+                if (j < 0)
+                    return i;
+            }
+            i += mShifts[b & 0xff];
+        }
+        return -1;
+    }// indexOf()
+
+    /**
+     * Folds the case of a byte, if this matcher ignores case.
+     * 
+     * @param b
+     *            the byte.
+     * @return the folded byte.
+     */
+    private byte fold(byte b) {
+        return mIgnoreCase && b >= 'A' && b <= 'Z' ? (byte) (b - 'A' + 'a')
+                : b;
+    }// fold()
+}
@@ -0,0 +1,108 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.SparseArray;
+
+/**
+ * Registry of {@link CancellationToken}, mapped by task IDs.
+ * <p>
+ * Every running task registers its own token, so several tasks can share the
+ * same task ID (for example, a listing which is still running when the client
+ * sends another one with the same ID) without resetting each other's state.
+ * Cancelling a task ID cancels all tokens which are registered with it at
+ * that time; tokens registered later are not affected.
+ * </p>
+ * <p>
+ * Registering, unregistering and cancelling are synchronized. Tasks only poll
+ * their own tokens, which doesn't need any lock.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class CancellationRegistry {
+
+    private final SparseArray<List<CancellationToken>> mTokens = new SparseArray<List<CancellationToken>>();
+
+    /**
+     * Registers a new token.
+     * 
+     * @param taskId
+     *            the task ID.
+     * @param timeout
+     *            the time after which the task is cancelled, in milliseconds.
+     *            {@code 0} for no timeout.
+     * @return the new token. The caller must call
+     *         {@link #unregister(CancellationToken)} when the task finishes.
+     */
+    public synchronized CancellationToken register(int taskId, long timeout) {
+        CancellationToken token = new CancellationToken(taskId, timeout);
+        List<CancellationToken> tokens = mTokens.get(taskId);
+        if (tokens == null) {
+            tokens = new ArrayList<CancellationToken>(1);
+            mTokens.put(taskId, tokens);
+        }
+        tokens.add(token);
+        return token;
+    }// register()
+
+    /**
+     * Unregisters a token.
+     * 
+     * @param token
+     *            the token.
+     */
+    public synchronized void unregister(CancellationToken token) {
+        List<CancellationToken> tokens = mTokens.get(token.getTaskId());
+        if (tokens == null)
+            return;
+
+        tokens.remove(token);
+        if (tokens.isEmpty())
+            mTokens.delete(token.getTaskId());
+    }// unregister()
+
+    /**
+     * Cancels all tokens of a task ID.
+     * 
+     * @param taskId
+     *            the task ID, or {@code 0} to cancel all tokens.
+     * @return the number of cancelled tokens.
+     */
+    public synchronized int cancel(int taskId) {
+        int count = 0;
+        if (taskId == 0) {
+            for (int i = 0; i < mTokens.size(); i++)
+                count += cancel(mTokens.valueAt(i));
+            mTokens.clear();
+        } else {
+            List<CancellationToken> tokens = mTokens.get(taskId);
+            if (tokens != null) {
+                count = cancel(tokens);
+                mTokens.delete(taskId);
+            }
+        }
+        return count;
+    }// cancel()
+
+    /**
+     * Cancels all tokens of {@code tokens}.
+     * 
+     * @return the size of {@code tokens}.
+     */
+    private static int cancel(List<CancellationToken> tokens) {
+        for (CancellationToken token : tokens)
+            token.cancel();
+        return tokens.size();
+    }// cancel()
+}
@@ -0,0 +1,84 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import android.os.SystemClock;
+
+/**
+ * The cancellation state of a single running task, see
+ * {@link CancellationRegistry}.
+ * <p>
+ * {@link #isCancelled()} is safe and cheap to call from any thread, in hot
+ * loops: it is a volatile read, plus a clock read if the token has a
+ * deadline. The clock is read on every call, because a single call can be
+ * made per large file, so skipping reads could overrun the deadline by the
+ * time of copying many of them.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class CancellationToken implements FileSorter.Interruption {
+
+    private final int mTaskId;
+    private final long mDeadline;
+    private volatile boolean mCancelled = false;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param taskId
+     *            the task ID.
+     * @param timeout
+     *            the time after which the task is cancelled, in milliseconds.
+     *            {@code 0} for no timeout.
+     */
+    public CancellationToken(int taskId, long timeout) {
+        mTaskId = taskId;
+        mDeadline = timeout > 0 ? SystemClock.elapsedRealtime() + timeout : 0;
+    }// CancellationToken()
+
+    /**
+     * Gets the task ID.
+     * 
+     * @return the task ID.
+     */
+    public int getTaskId() {
+        return mTaskId;
+    }// getTaskId()
+
+    /**
+     * Cancels the task.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }// cancel()
+
+    /**
+     * Checks if the task has been cancelled, or its deadline has passed.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isCancelled() {
+        if (mCancelled)
+            return true;
+
+        if (mDeadline != 0 && SystemClock.elapsedRealtime() >= mDeadline) {
+            mCancelled = true;
+            return true;
+        }
+
+        return false;
+    }// isCancelled()
+
+    @Override
+    public boolean isInterrupted() {
+        return isCancelled();
+    }// isInterrupted()
+}
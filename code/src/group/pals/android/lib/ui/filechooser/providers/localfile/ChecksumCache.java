@@ -0,0 +1,120 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of file checksums.
+ * <p>
+ * A checksum is keyed by the algorithm, the path, the size and the
+ * modification time of its file, so a changed file never hits an old
+ * checksum. Least recently used checksums are evicted first.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ChecksumCache {
+
+    private final int mMaxEntries;
+    private final LinkedHashMap<String, String> mEntries = new LinkedHashMap<String, String>(
+            16, 0.75f, true);
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param maxEntries
+     *            the maximum number of checksums.
+     */
+    public ChecksumCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+    }// ChecksumCache()
+
+    /**
+     * Gets a checksum.
+     * 
+     * @param algorithm
+     *            the algorithm.
+     * @param path
+     *            the path of the file.
+     * @param size
+     *            the size of the file.
+     * @param lastModified
+     *            the modification time of the file.
+     * @return the checksum, or {@code null} if not available.
+     */
+    public synchronized String get(String algorithm, String path, long size,
+            long lastModified) {
+        String checksum = mEntries.get(genKey(algorithm, path, size,
+                lastModified));
+        if (checksum != null)
+            mHitCount++;
+        else
+            mMissCount++;
+        return checksum;
+    }// get()
+
+    /**
+     * Puts a checksum.
+     * 
+     * @param algorithm
+     *            the algorithm.
+     * @param path
+     *            the path of the file.
+     * @param size
+     *            the size of the file, taken <i>before</i> computing the
+     *            checksum.
+     * @param lastModified
+     *            the modification time of the file, taken <i>before</i>
+     *            computing the checksum.
+     * @param checksum
+     *            the checksum.
+     */
+    public synchronized void put(String algorithm, String path, long size,
+            long lastModified, String checksum) {
+        mEntries.put(genKey(algorithm, path, size, lastModified), checksum);
+        if (mEntries.size() > mMaxEntries)
+            mEntries.remove(mEntries.keySet().iterator().next());
+    }// put()
+
+    /**
+     * Clears this cache.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }// clear()
+
+    /**
+     * Gets the statistics of this cache.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put(LocalFileContract._StatChecksumCacheHits, mHitCount);
+        result.put(LocalFileContract._StatChecksumCacheMisses, mMissCount);
+        result.put(LocalFileContract._StatChecksumCacheEntries,
+                (long) mEntries.size());
+        return result;
+    }// getStats()
+
+    /**
+     * Generates the key of a checksum.
+     */
+    private static String genKey(String algorithm, String path, long size,
+            long lastModified) {
+        return String.format("%s\0%s\0%d\0%d", algorithm, path, size,
+                lastModified);
+    }// genKey()
+}
@@ -0,0 +1,423 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import android.os.SystemClock;
+
+/**
+ * Computes checksums of a file, or of all files in a directory tree.
+ * <p>
+ * Each worker reads files sequentially into its own buffer of
+ * {@link #_BufferSize}, which is reused for all of its files. Mapping files
+ * would leave a mapping per window until the garbage collector frees it,
+ * which can exhaust the address space of 32-bit devices with big files.
+ * Files of a directory tree are computed in parallel by the thread calling
+ * {@link #run()} and helpers from the shared pool of {@link FileTask}.
+ * Checksums are cached in a {@link ChecksumCache}.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ChecksumTask extends FileTask {
+
+    /**
+     * Size of the buffer of each worker.
+     */
+    static final int _BufferSize = 256 * 1024;
+
+    /**
+     * Checksum of a file.
+     */
+    public static class Result {
+
+        private final String mPath;
+        private final long mSize;
+        private final String mChecksum;
+        private final long mSpeed;
+
+        Result(String path, long size, String checksum, long speed) {
+            mPath = path;
+            mSize = size;
+            mChecksum = checksum;
+            mSpeed = speed;
+        }// Result()
+
+        /**
+         * Gets the path of the file.
+         * 
+         * @return the path.
+         */
+        public String getPath() {
+            return mPath;
+        }// getPath()
+
+        /**
+         * Gets the size of the file.
+         * 
+         * @return the size.
+         */
+        public long getSize() {
+            return mSize;
+        }// getSize()
+
+        /**
+         * Gets the checksum, in lower-case hex.
+         * 
+         * @return the checksum.
+         */
+        public String getChecksum() {
+            return mChecksum;
+        }// getChecksum()
+
+        /**
+         * Gets the throughput of computing the checksum.
+         * 
+         * @return the throughput, in bytes per second, or {@code 0} if the
+         *         checksum came from the cache or the time was too short to be
+         *         measured.
+         */
+        public long getSpeed() {
+            return mSpeed;
+        }// getSpeed()
+    }// Result
+
+    /**
+     * A digest algorithm.
+     */
+    static abstract class Digest {
+
+        /**
+         * Updates this digest with {@code count} bytes of {@code buffer}.
+         */
+        abstract void update(byte[] buffer, int count);
+
+        /**
+         * Finishes this digest.
+         * 
+         * @return the digest.
+         */
+        abstract byte[] finish();
+    }// Digest
+
+    private final File mRoot;
+    private final boolean mRecursive;
+    private final String mAlgorithm;
+    private final ChecksumCache mCache;
+    private final List<File> mFiles = new ArrayList<File>();
+    /**
+     * Results of {@link #mFiles}. Guarded by {@code this}.
+     */
+    private Result[] mResults = new Result[0];
+    /**
+     * Index of the next file. Guarded by {@code this}.
+     */
+    private int mNextFile = 0;
+    /**
+     * Number of files which are being computed. Guarded by {@code this}.
+     */
+    private int mRunningFiles = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param root
+     *            the file or directory.
+     * @param recursive
+     *            {@code true} to compute the files in sub directories of
+     *            {@code root}.
+     * @param algorithm
+     *            the algorithm, see {@link BaseFile#_ParamAlgorithm}.
+     * @param cache
+     *            the cache.
+     * @param token
+     *            the cancellation token of this task.
+     * @throws IllegalArgumentException
+     *             if the algorithm is not supported.
+     */
+    public ChecksumTask(File root, boolean recursive, String algorithm,
+            ChecksumCache cache, CancellationToken token) {
+        super(token, root.getPath());
+        mRoot = root;
+        mRecursive = recursive;
+        mAlgorithm = algorithm.toLowerCase(Locale.US);
+        mCache = cache;
+        newDigest(mAlgorithm);
+    }// ChecksumTask()
+
+    @Override
+    protected void execute() {
+        collect(mRoot);
+        synchronized (this) {
+            mResults = new Result[mFiles.size()];
+        }
+
+        startHelpers(Math.min(_MaxHelperThreads, mFiles.size() - 1),
+                new Runnable() {
+
+                    @Override
+                    public void run() {
+                        work();
+                    }// run()
+                });
+        work();
+
+        synchronized (this) {
+            while (mRunningFiles > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }// execute()
+
+    @Override
+    public String toString() {
+        return String.format("%s of '%s'", mAlgorithm, mRoot);
+    }// toString()
+
+    /**
+     * Gets the checksums which have been computed, in the order of the
+     * files.
+     * 
+     * @return the checksums.
+     */
+    public synchronized List<Result> getResults() {
+        List<Result> results = new ArrayList<Result>();
+        for (Result result : mResults)
+            if (result != null)
+                results.add(result);
+        return results;
+    }// getResults()
+
+    /**
+     * Collects the files to compute.
+     * 
+     * @param file
+     *            a file or directory.
+     */
+    private void collect(File file) {
+        if (getToken().isCancelled())
+            return;
+
+        if (!file.isDirectory()) {
+            if (file.isFile())
+                mFiles.add(file);
+            return;
+        }
+
+        if (file != mRoot && (!mRecursive || isSymlink(file)))
+            return;
+
+        File[] files = file.listFiles();
+        if (files == null) {
+            addError(file, "Can't list directory");
+            return;
+        }
+        for (File f : files)
+            collect(f);
+    }// collect()
+
+    /**
+     * Takes files and computes their checksums, until there is no more work
+     * or the task is cancelled.
+     */
+    private void work() {
+        byte[] buffer = null;
+        while (true) {
+            int index;
+            synchronized (this) {
+                if (mNextFile >= mFiles.size() || getToken().isCancelled())
+                    return;
+                index = mNextFile++;
+                mRunningFiles++;
+            }
+
+            try {
+                if (buffer == null)
+                    buffer = new byte[_BufferSize];
+                Result result = compute(mFiles.get(index), buffer);
+                synchronized (this) {
+                    mResults[index] = result;
+                }
+            } finally {
+                synchronized (this) {
+                    mRunningFiles--;
+                    notifyAll();
+                }
+            }
+        }
+    }// work()
+
+    /**
+     * Computes the checksum of a file.
+     * 
+     * @param file
+     *            the file.
+     * @param buffer
+     *            the buffer of the worker.
+     * @return the result, or {@code null} if failed or cancelled.
+     */
+    private Result compute(File file, byte[] buffer) {
+        setCurrentFile(file);
+
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String checksum = mCache.get(mAlgorithm, path, size, lastModified);
+        if (checksum != null) {
+            addCount(0);
+            return new Result(path, size, checksum, 0);
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        Digest digest = newDigest(mAlgorithm);
+        try {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                int count;
+                while ((count = stream.read(buffer)) >= 0) {
+                    if (getToken().isCancelled())
+                        return null;
+
+                    digest.update(buffer, count);
+                    addBytes(count);
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            addError(file, e.toString());
+            return null;
+        } catch (SecurityException e) {
+            addError(file, e.toString());
+            return null;
+        }
+
+        checksum = toHex(digest.finish());
+        mCache.put(mAlgorithm, path, size, lastModified, checksum);
+        addCount(0);
+
+        long time = SystemClock.elapsedRealtime() - startTime;
+        return new Result(path, size, checksum, time > 0 ? size * 1000 / time
+                : 0);
+    }// compute()
+
+    /**
+     * Creates new digest.
+     * 
+     * @param algorithm
+     *            the algorithm, in lower case.
+     * @return the digest.
+     * @throws IllegalArgumentException
+     *             if the algorithm is not supported.
+     */
+    static Digest newDigest(String algorithm) {
+        if (BaseFile._ChecksumCrc32.equals(algorithm)) {
+            return new Digest() {
+
+                final CRC32 mCrc = new CRC32();
+
+                @Override
+                void update(byte[] buffer, int count) {
+                    mCrc.update(buffer, 0, count);
+                }// update()
+
+                @Override
+                byte[] finish() {
+                    long value = mCrc.getValue();
+                    return new byte[] { (byte) (value >>> 24),
+                            (byte) (value >>> 16), (byte) (value >>> 8),
+                            (byte) value };
+                }// finish()
+            };
+        }
+
+        try {
+            final MessageDigest messageDigest = MessageDigest
+                    .getInstance(algorithm);
+            return new Digest() {
+
+                @Override
+                void update(byte[] buffer, int count) {
+                    messageDigest.update(buffer, 0, count);
+                }// update()
+
+                @Override
+                byte[] finish() {
+                    return messageDigest.digest();
+                }// finish()
+            };
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported algorithm "
+                    + algorithm);
+        }
+    }// newDigest()
+
+    /**
+     * Computes the digest of a file, without publishing progress.
+     * 
+     * @param file
+     *            the file.
+     * @param algorithm
+     *            the algorithm, in lower case.
+     * @param buffer
+     *            the buffer to read the file.
+     * @param token
+     *            the cancellation token.
+     * @return the digest, or {@code null} if cancelled.
+     * @throws IOException
+     *             if any.
+     */
+    static byte[] digest(File file, String algorithm, byte[] buffer,
+            CancellationToken token) throws IOException {
+        Digest digest = newDigest(algorithm);
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = stream.read(buffer)) >= 0) {
+                if (token.isCancelled())
+                    return null;
+                digest.update(buffer, count);
+            }
+        } finally {
+            stream.close();
+        }
+        return digest.finish();
+    }// digest()
+
+    /**
+     * Converts bytes to lower-case hex.
+     * 
+     * @param bytes
+     *            the bytes.
+     * @return the hex string.
+     */
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+                    Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }// toHex()
+}
@@ -0,0 +1,266 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A list which keeps its items in small chunks.
+ * <p>
+ * Inserting or removing an item only moves the items of one chunk, and
+ * {@link #copy()} shares the chunks with the copy, which copies a chunk only
+ * when it modifies it the first time. So a copy of a list of {@code n} items
+ * with {@code k} changes costs about {@code O(n / C + k * C)}, for chunks of
+ * {@code C} items, instead of {@code O(n)}. Getting an item by index takes
+ * a binary search over the chunks.
+ * </p>
+ * <p>
+ * This class is not thread-safe. A list must not be modified after it has
+ * been copied, or while other threads read it.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ChunkedList<E> extends AbstractList<E> {
+
+    /**
+     * Maximum number of items of a chunk. A full chunk is split in halves
+     * before inserting new item.
+     */
+    private static final int _ChunkSize = 256;
+
+    /**
+     * A chunk of items.
+     */
+    private static final class Chunk {
+
+        final Object[] mItems;
+        int mLength;
+        /**
+         * The list which can modify this chunk, or {@code null} if this
+         * chunk is shared.
+         */
+        Object mOwner;
+
+        Chunk(Object owner) {
+            mItems = new Object[_ChunkSize];
+            mOwner = owner;
+        }// Chunk()
+
+        Chunk(Chunk chunk, Object owner) {
+            mItems = chunk.mItems.clone();
+            mLength = chunk.mLength;
+            mOwner = owner;
+        }// Chunk()
+    }// Chunk
+
+    private final List<Chunk> mChunks;
+    /**
+     * Index of the first item of each chunk.
+     */
+    private int[] mOffsets;
+    private int mSize = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param items
+     *            the initial items.
+     */
+    public ChunkedList(Collection<? extends E> items) {
+        mChunks = new ArrayList<Chunk>(items.size() * 2 / _ChunkSize + 1);
+
+        /*
+         * Chunks are filled by half, to leave room for insertions.
+         */
+        Chunk chunk = null;
+        for (E item : items) {
+            if (chunk == null || chunk.mLength == _ChunkSize / 2) {
+                chunk = new Chunk(this);
+                mChunks.add(chunk);
+            }
+            chunk.mItems[chunk.mLength++] = item;
+        }
+        mSize = items.size();
+        updateOffsets();
+    }// ChunkedList()
+
+    /**
+     * Creates a copy of {@code list}, which shares its chunks.
+     * 
+     * @param list
+     *            the source list.
+     */
+    private ChunkedList(ChunkedList<E> list) {
+        mChunks = new ArrayList<Chunk>(list.mChunks);
+        mOffsets = list.mOffsets.clone();
+        mSize = list.mSize;
+    }// ChunkedList()
+
+    /**
+     * Creates a copy of this list. Neither this list nor the copy can modify
+     * the chunks which they share; each of them copies a shared chunk the
+     * first time it modifies it.
+     * 
+     * @return the copy.
+     */
+    public ChunkedList<E> copy() {
+        for (Chunk chunk : mChunks)
+            chunk.mOwner = null;
+        return new ChunkedList<E>(this);
+    }// copy()
+
+    @Override
+    public int size() {
+        return mSize;
+    }// size()
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index, mSize);
+        int c = locate(index);
+        return (E) mChunks.get(c).mItems[index - mOffsets[c]];
+    }// get()
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E item) {
+        checkIndex(index, mSize);
+        int c = locate(index);
+        Chunk chunk = own(c);
+        E result = (E) chunk.mItems[index - mOffsets[c]];
+        chunk.mItems[index - mOffsets[c]] = item;
+        return result;
+    }// set()
+
+    @Override
+    public void add(int index, E item) {
+        checkIndex(index, mSize + 1);
+        if (mChunks.isEmpty()) {
+            mChunks.add(new Chunk(this));
+            updateOffsets();
+        }
+
+        int c = index == mSize ? mChunks.size() - 1 : locate(index);
+        Chunk chunk = own(c);
+        int i = index - mOffsets[c];
+        if (chunk.mLength == _ChunkSize) {
+            Chunk next = new Chunk(this);
+            int half = _ChunkSize / 2;
+            System.arraycopy(chunk.mItems, half, next.mItems, 0, half);
+            for (int j = half; j < _ChunkSize; j++)
+                chunk.mItems[j] = null;
+            chunk.mLength = half;
+            next.mLength = half;
+            mChunks.add(c + 1, next);
+            if (i > half) {
+                chunk = next;
+                i -= half;
+            }
+        }
+
+        System.arraycopy(chunk.mItems, i, chunk.mItems, i + 1, chunk.mLength
+                - i);
+        chunk.mItems[i] = item;
+        chunk.mLength++;
+        mSize++;
+        modCount++;
+        updateOffsets();
+    }// add()
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E remove(int index) {
+        checkIndex(index, mSize);
+        int c = locate(index);
+        Chunk chunk = own(c);
+        int i = index - mOffsets[c];
+        E result = (E) chunk.mItems[i];
+        System.arraycopy(chunk.mItems, i + 1, chunk.mItems, i, chunk.mLength
+                - i - 1);
+        chunk.mItems[--chunk.mLength] = null;
+        if (chunk.mLength == 0)
+            mChunks.remove(c);
+        mSize--;
+        modCount++;
+        updateOffsets();
+        return result;
+    }// remove()
+
+    /**
+     * Finds the chunk of an item.
+     * 
+     * @param index
+     *            the index of the item.
+     * @return the index of the chunk.
+     */
+    private int locate(int index) {
+        int lo = 0;
+        int hi = mChunks.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (mOffsets[mid] <= index)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }// locate()
+
+    /**
+     * Gets a chunk to modify it, copies it first if it is shared.
+     * 
+     * @param c
+     *            the index of the chunk.
+     * @return the chunk.
+     */
+    private Chunk own(int c) {
+        Chunk chunk = mChunks.get(c);
+        if (chunk.mOwner != this) {
+            chunk = new Chunk(chunk, this);
+            mChunks.set(c, chunk);
+        }
+        return chunk;
+    }// own()
+
+    /**
+     * Computes the index of the first item of each chunk. This takes
+     * {@code O(n / C)}.
+     */
+    private void updateOffsets() {
+        if (mOffsets == null || mOffsets.length != mChunks.size())
+            mOffsets = new int[mChunks.size()];
+        int offset = 0;
+        for (int c = 0; c < mOffsets.length; c++) {
+            mOffsets[c] = offset;
+            offset += mChunks.get(c).mLength;
+        }
+    }// updateOffsets()
+
+    /**
+     * Checks an index.
+     * 
+     * @param index
+     *            the index.
+     * @param bound
+     *            the exclusive upper bound.
+     * @throws IndexOutOfBoundsException
+     *             if the index is out of bounds.
+     */
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound)
+            throw new IndexOutOfBoundsException("Index: " + index
+                    + ", size: " + mSize);
+    }// checkIndex()
+}
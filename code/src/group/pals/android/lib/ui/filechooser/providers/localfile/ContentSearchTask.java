@@ -0,0 +1,643 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+import group.pals.android.lib.ui.filechooser.utils.FileCategories;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * Searches the content of plain text files (see
+ * {@link BaseFile#_FileCategoryPlainText}) in a directory tree.
+ * <p>
+ * Small files are read into a buffer of each worker, bigger ones through
+ * memory-mapped windows of {@link #_WindowSize}; both are searched with a
+ * {@link ByteMatcher}. Only the first bytes of a file are searched, up to a
+ * size cap. Each matching line is reported once, with its line number and a
+ * snippet (decoded as UTF-8). Lines are only counted up to the matches, so
+ * files without matches are never counted.
+ * </p>
+ * <p>
+ * Directories and files are kept in a shared stack. The thread calling
+ * {@link #run()} and helpers from the shared pool of {@link FileTask} take
+ * items from the top of the stack, so files are searched as soon as their
+ * directories are listed. Clients can take the matches while the search is
+ * running (see {@link #consume()}); {@link #onPublishMatches()} tells them
+ * when to do it. The search stops as soon as it has found enough matches.
+ * </p>
+ * <p>
+ * The count of this task is the number of searched files, and its bytes are
+ * the searched bytes.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ContentSearchTask extends FileTask {
+
+    /**
+     * Size of a memory-mapped window.
+     */
+    private static final int _WindowSize = 8 * 1024 * 1024;
+
+    /**
+     * Size of the buffer of each worker. Files which fit in it are read
+     * instead of being mapped.
+     */
+    private static final int _BufferSize = 128 * 1024;
+
+    /**
+     * Maximum number of bytes of a snippet, before and after the match.
+     */
+    private static final int _MaxSnippetContext = 60;
+
+    /**
+     * Number of new matches which makes a batch.
+     */
+    private static final int _BatchSize = 50;
+
+    /**
+     * Maximum time a worker waits for work, in milliseconds, before checking
+     * the cancellation again.
+     */
+    private static final long _IdleWaitTime = 100;
+
+    /**
+     * A matching line.
+     */
+    public static class Match {
+
+        private final File mFile;
+        private final int mLineNumber;
+        private final String mSnippet;
+
+        Match(File file, int lineNumber, String snippet) {
+            mFile = file;
+            mLineNumber = lineNumber;
+            mSnippet = snippet;
+        }// Match()
+
+        /**
+         * Gets the file.
+         * 
+         * @return the file.
+         */
+        public File getFile() {
+            return mFile;
+        }// getFile()
+
+        /**
+         * Gets the line number, starting from {@code 1}.
+         * 
+         * @return the line number.
+         */
+        public int getLineNumber() {
+            return mLineNumber;
+        }// getLineNumber()
+
+        /**
+         * Gets the snippet: the match and some text around it, in its line.
+         * 
+         * @return the snippet.
+         */
+        public String getSnippet() {
+            return mSnippet;
+        }// getSnippet()
+    }// Match
+
+    private final String mKey;
+    private final File mRoot;
+    private final ByteMatcher mMatcher;
+    private final boolean mRecursive;
+    private final boolean mShowHiddenFiles;
+    private final long mMaxFileSize;
+    private final int mLimit;
+
+    /*
+     * States, guarded by this.
+     */
+
+    /**
+     * Directories and files to search.
+     */
+    private final List<File> mStack = new ArrayList<File>();
+    /**
+     * Number of workers which are searching a directory or a file.
+     */
+    private int mBusyWorkers = 0;
+    private boolean mDone = false;
+    private final List<Match> mMatches = new ArrayList<Match>();
+    private int mPublishedCount = 0;
+    private boolean mConsumed = true;
+    private long mLastConsumeTime = 0;
+    private volatile boolean mLimitReached = false;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param key
+     *            the key to identify this task.
+     * @param root
+     *            the directory or file.
+     * @param matcher
+     *            the matcher.
+     * @param recursive
+     *            {@code true} to search the files in sub directories of
+     *            {@code root}.
+     * @param showHiddenFiles
+     *            {@code true} to search hidden files and directories.
+     * @param maxFileSize
+     *            the maximum number of bytes to search in a file.
+     * @param limit
+     *            the maximum number of matches to find.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public ContentSearchTask(String key, File root, ByteMatcher matcher,
+            boolean recursive, boolean showHiddenFiles, long maxFileSize,
+            int limit, CancellationToken token) {
+        super(token, root.getPath());
+        mKey = key;
+        mRoot = root;
+        mMatcher = matcher;
+        mRecursive = recursive;
+        mShowHiddenFiles = showHiddenFiles;
+        mMaxFileSize = maxFileSize;
+        mLimit = limit;
+    }// ContentSearchTask()
+
+    @Override
+    protected void execute() {
+        synchronized (this) {
+            mStack.add(mRoot);
+        }
+
+        startHelpers(_MaxHelperThreads, new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }// run()
+        });
+        work();
+
+        synchronized (this) {
+            while (mBusyWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            mDone = true;
+            notifyAll();
+        }
+
+        onPublishMatches();
+    }// execute()
+
+    @Override
+    public String toString() {
+        return String.format("content search '%s' (%s)", mRoot, mKey);
+    }// toString()
+
+    /**
+     * Gets the key of this task.
+     * 
+     * @return the key.
+     */
+    public String getKey() {
+        return mKey;
+    }// getKey()
+
+    /**
+     * Will be called (from any worker) when a new batch of matches is ready
+     * and the previous one has been consumed, and when the search finishes.
+     * Default implementation does nothing.
+     */
+    protected void onPublishMatches() {
+        // do nothing
+    }// onPublishMatches()
+
+    /**
+     * Waits until the first batch is ready, or the search finishes.
+     * 
+     * @param timeout
+     *            the maximum time to wait, in milliseconds.
+     */
+    public synchronized void awaitFirstBatch(long timeout) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        while (!mDone && !getToken().isCancelled()
+                && mMatches.size() < _BatchSize) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0)
+                return;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }// awaitFirstBatch()
+
+    /**
+     * Takes all matches found so far.
+     * 
+     * @return a new list of matches.
+     */
+    public synchronized List<Match> consume() {
+        mConsumed = true;
+        mPublishedCount = mMatches.size();
+        mLastConsumeTime = SystemClock.elapsedRealtime();
+        return new ArrayList<Match>(mMatches);
+    }// consume()
+
+    /**
+     * Checks if the search stopped because it had found enough matches.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isLimitReached() {
+        return mLimitReached;
+    }// isLimitReached()
+
+    /**
+     * Cancels this search.
+     */
+    public void cancel() {
+        getToken().cancel();
+        synchronized (this) {
+            notifyAll();
+        }
+    }// cancel()
+
+    /**
+     * Checks if the search should stop.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    private boolean isStopped() {
+        return mLimitReached || getToken().isCancelled();
+    }// isStopped()
+
+    /**
+     * Takes items from the stack and searches them, until there is no more
+     * work or the search stops.
+     */
+    private void work() {
+        byte[] buffer = null;
+        while (true) {
+            File file;
+            synchronized (this) {
+                while (mStack.isEmpty() && mBusyWorkers > 0 && !isStopped()) {
+                    try {
+                        wait(_IdleWaitTime);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (mStack.isEmpty() || isStopped()) {
+                    notifyAll();
+                    return;
+                }
+
+                file = mStack.remove(mStack.size() - 1);
+                mBusyWorkers++;
+            }
+
+            try {
+                if (file.isDirectory())
+                    list(file);
+                else {
+                    if (buffer == null)
+                        buffer = new byte[_BufferSize];
+                    search(file, buffer);
+                }
+            } catch (SecurityException e) {
+                addError(file, e.toString());
+            } finally {
+                synchronized (this) {
+                    mBusyWorkers--;
+                    notifyAll();
+                }
+            }
+        }
+    }// work()
+
+    /**
+     * Pushes the plain text files and sub directories of a directory into
+     * the stack.
+     * 
+     * @param dir
+     *            the directory.
+     */
+    private void list(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            addError(dir, "Can't list directory");
+            return;
+        }
+
+        List<File> files = new ArrayList<File>();
+        for (String name : names) {
+            if (!mShowHiddenFiles && name.startsWith("."))
+                continue;
+
+            File file = new File(dir, name);
+            if (FileCategories.get(name) == BaseFile._FileCategoryPlainText) {
+                if (file.isFile())
+                    files.add(file);
+            } else if (mRecursive && file.isDirectory() && !isSymlink(file))
+                files.add(file);
+        }
+
+        synchronized (this) {
+            mStack.addAll(files);
+            notifyAll();
+        }
+    }// list()
+
+    /**
+     * Searches a file.
+     * 
+     * @param file
+     *            the file.
+     * @param buffer
+     *            the buffer of the worker.
+     */
+    private void search(File file, byte[] buffer) {
+        setCurrentFile(file);
+
+        try {
+            FileInputStream stream = new FileInputStream(file);
+            try {
+                FileChannel channel = stream.getChannel();
+                long size = Math.min(channel.size(), mMaxFileSize);
+                int patternLength = mMatcher.length();
+                LineCounter lineCounter = new LineCounter(channel, buffer);
+
+                /*
+                 * Windows overlap, so matches across two windows are found.
+                 * Matches which start in the overlap are left to the next
+                 * window.
+                 */
+                int lastMatchedLine = 0;
+                long position = 0;
+                while (position < size) {
+                    if (isStopped())
+                        return;
+
+                    ByteBuffer window;
+                    int limit;
+                    if (size <= buffer.length) {
+                        limit = read(stream, buffer, (int) size);
+                        size = limit;
+                        window = ByteBuffer.wrap(buffer, 0, limit);
+                    } else {
+                        limit = (int) Math.min(_WindowSize, size - position);
+                        window = channel.map(FileChannel.MapMode.READ_ONLY,
+                                position, limit);
+                    }
+                    boolean lastWindow = position + limit >= size;
+                    int end = lastWindow ? limit : limit - patternLength + 1;
+
+                    int from = 0;
+                    while (true) {
+                        int index = mMatcher.indexOf(window, from, limit);
+                        if (index < 0 || index >= end)
+                            break;
+
+                        int lineNumber = lineCounter.count(window, position,
+                                index);
+                        if (lineNumber != lastMatchedLine) {
+                            lastMatchedLine = lineNumber;
+                            if (!addMatch(new Match(file, lineNumber,
+                                    getSnippet(window, index, limit))))
+                                return;
+                        }
+
+                        /*
+                         * Next line.
+                         */
+                        from = index + patternLength;
+                        while (from < limit && window.get(from) != '\n')
+                            from++;
+                    }
+
+                    position += end;
+                    addBytes(end);
+                }
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            addError(file, e.toString());
+        } finally {
+            addCount(0);
+        }
+    }// search()
+
+    /**
+     * Adds new match.
+     * 
+     * @param match
+     *            the match.
+     * @return {@code false} if the search should stop.
+     */
+    private boolean addMatch(Match match) {
+        boolean publish;
+        synchronized (this) {
+            if (isStopped())
+                return false;
+
+            mMatches.add(match);
+            if (mMatches.size() >= mLimit)
+                mLimitReached = true;
+            if (mMatches.size() == _BatchSize)
+                notifyAll();
+
+            publish = mConsumed
+                    && mMatches.size() - mPublishedCount >= _BatchSize
+                    && SystemClock.elapsedRealtime() - mLastConsumeTime >= _MinPublishInterval;
+            if (publish)
+                mConsumed = false;
+        }
+
+        if (publish)
+            onPublishMatches();
+        return !mLimitReached;
+    }// addMatch()
+
+    /**
+     * Reads the beginning of a stream.
+     * 
+     * @param stream
+     *            the stream.
+     * @param buffer
+     *            the buffer.
+     * @param length
+     *            the number of bytes to read.
+     * @return the number of bytes read, which is less than {@code length} if
+     *         the stream ended.
+     * @throws IOException
+     *             if an I/O error occurred.
+     */
+    private static int read(FileInputStream stream, byte[] buffer, int length)
+            throws IOException {
+        int count = 0;
+        while (count < length) {
+            int read = stream.read(buffer, count, length - count);
+            if (read < 0)
+                break;
+            count += read;
+        }
+        return count;
+    }// read()
+
+    /**
+     * Counts the line feeds in a range of an array.
+     * 
+     * @param bytes
+     *            the array.
+     * @param from
+     *            the start index, inclusive.
+     * @param to
+     *            the end index, exclusive.
+     * @return the number of line feeds.
+     */
+    private static int countLines(byte[] bytes, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++)
+            if (bytes[i] == '\n')
+                count++;
+        return count;
+    }// countLines()
+
+    /**
+     * Counts the lines of a file, up to the matches.
+     */
+    private static final class LineCounter {
+
+        private final FileChannel mChannel;
+        private final byte[] mBuffer;
+        /**
+         * Position in the file which the lines have been counted to.
+         */
+        private long mPosition = 0;
+        private int mLineNumber = 1;
+
+        /**
+         * Creates new instance.
+         * 
+         * @param channel
+         *            the channel of the file.
+         * @param buffer
+         *            the buffer to read mapped files; or the content of a
+         *            small file, in which case it is not modified.
+         */
+        LineCounter(FileChannel channel, byte[] buffer) {
+            mChannel = channel;
+            mBuffer = buffer;
+        }// LineCounter()
+
+        /**
+         * Counts the lines up to a match.
+         * 
+         * @param window
+         *            the window of the match.
+         * @param windowPosition
+         *            the position of {@code window} in the file.
+         * @param index
+         *            the index of the match in {@code window}.
+         * @return the line number of the match.
+         * @throws IOException
+         *             if an I/O error occurred.
+         */
+        int count(ByteBuffer window, long windowPosition, int index)
+                throws IOException {
+            long target = windowPosition + index;
+            if (window.hasArray()) {
+                mLineNumber += countLines(window.array(),
+                        (int) (mPosition - windowPosition), index);
+                mPosition = target;
+                return mLineNumber;
+            }
+
+            /*
+             * Mapped windows are counted with bulk reads, rather than with
+             * gets of each byte.
+             */
+            ByteBuffer dst = ByteBuffer.wrap(mBuffer);
+            while (mPosition < target) {
+                dst.clear();
+                dst.limit((int) Math.min(mBuffer.length, target - mPosition));
+                int read = mChannel.read(dst, mPosition);
+                if (read <= 0)
+                    break;
+                mLineNumber += countLines(mBuffer, 0, read);
+                mPosition += read;
+            }
+            mPosition = target;
+            return mLineNumber;
+        }// count()
+    }// LineCounter
+
+    /**
+     * Gets the snippet of a match: the match and at most
+     * {@link #_MaxSnippetContext} bytes before and after it, in its line.
+     * 
+     * @param buffer
+     *            the buffer.
+     * @param index
+     *            the index of the match.
+     * @param limit
+     *            the limit of the buffer.
+     * @return the snippet.
+     */
+    private String getSnippet(ByteBuffer buffer, int index, int limit) {
+        int start = index;
+        int min = Math.max(0, index - _MaxSnippetContext);
+        while (start > min && buffer.get(start - 1) != '\n')
+            start--;
+        int end = index + mMatcher.length();
+        int max = Math.min(limit, end + _MaxSnippetContext);
+        while (end < max && buffer.get(end) != '\n')
+            end++;
+
+        /*
+         * Don't cut UTF-8 sequences.
+         */
+        while (start < index && (buffer.get(start) & 0xc0) == 0x80)
+            start++;
+        while (end > index + mMatcher.length() && end < limit
+                && (buffer.get(end) & 0xc0) == 0x80)
+            end--;
+
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(start + i);
+        try {
+            return new String(bytes, "UTF-8").trim();
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes).trim();
+        }
+    }// getSnippet()
+}
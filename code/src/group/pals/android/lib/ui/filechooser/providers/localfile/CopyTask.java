@@ -0,0 +1,381 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies or moves files and directories into a directory, with many
+ * threads.
+ * <p>
+ * A move is a rename if the target is on the same volume, which is atomic
+ * and doesn't touch the content. Otherwise the sources are copied, then
+ * deleted if they were copied without errors.
+ * </p>
+ * <p>
+ * To copy, the thread calling {@link #run()} creates the directories first,
+ * then the files are copied in parallel by that thread and helpers from the
+ * shared pool of {@link FileTask}. Each file is copied with
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+ * in chunks of {@link #_TransferSize}, so the kernel can move the bytes
+ * without copying them into the Java heap. A copied file is checked by its
+ * size, and gets the modification time of its source. When moving, the
+ * content of each copied file is also compared with its source, by their
+ * CRC32 checksums, before the sources are deleted.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class CopyTask extends FileTask {
+
+    /**
+     * Maximum number of bytes of one transfer. The task checks the
+     * cancellation signal and publishes its progress between transfers.
+     */
+    private static final long _TransferSize = 8 * 1024 * 1024;
+
+    /**
+     * A file to copy.
+     */
+    private static class Job {
+
+        final File mSource;
+        final File mTarget;
+        final int mRoot;
+
+        Job(File source, File target, int root) {
+            mSource = source;
+            mTarget = target;
+            mRoot = root;
+        }// Job()
+    }// Job
+
+    private final List<File> mSources;
+    private final File mTargetDir;
+    private final boolean mMove;
+    private final int mMaxHelpers;
+    private final List<Job> mJobs = new ArrayList<Job>();
+    /**
+     * Directories which have been created, to set their modification times
+     * after their files have been copied.
+     */
+    private final List<Job> mDirs = new ArrayList<Job>();
+    /**
+     * Index of the next job. Guarded by {@code this}.
+     */
+    private int mNextJob = 0;
+    /**
+     * Number of jobs which are running. Guarded by {@code this}.
+     */
+    private int mRunningJobs = 0;
+    /**
+     * {@code true} for each source which could not be copied completely.
+     * Guarded by {@code this}.
+     */
+    private final boolean[] mFailedRoots;
+    /**
+     * {@code true} for each source which has been renamed.
+     */
+    private final boolean[] mRenamedRoots;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param sources
+     *            the files and directories to copy, must not be empty.
+     * @param targetDir
+     *            the target directory.
+     * @param move
+     *            {@code true} to move the sources, {@code false} to copy
+     *            them.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public CopyTask(List<File> sources, File targetDir, boolean move,
+            CancellationToken token) {
+        super(token, sources.get(0).getPath());
+        mSources = sources;
+        mTargetDir = targetDir;
+        mMove = move;
+        mMaxHelpers = _MaxHelperThreads;
+        mFailedRoots = new boolean[sources.size()];
+        mRenamedRoots = new boolean[sources.size()];
+    }// CopyTask()
+
+    @Override
+    protected void execute() {
+        for (int i = 0; i < mSources.size(); i++) {
+            if (getToken().isCancelled())
+                return;
+
+            File source = mSources.get(i);
+            File target = new File(mTargetDir, source.getName());
+            setCurrentFile(source);
+
+            if (!source.exists()) {
+                addError(source, "File not found");
+                mFailedRoots[i] = true;
+            } else if (target.exists()) {
+                addError(target, "File exists");
+                mFailedRoots[i] = true;
+            } else if (source.isDirectory()
+                    && isAncestorOf(source, mTargetDir)) {
+                addError(source, "Can't copy a directory into itself");
+                mFailedRoots[i] = true;
+            } else if (mMove && source.renameTo(target)) {
+                mRenamedRoots[i] = true;
+                addCount(0);
+            } else
+                prepare(source, target, i);
+        }
+
+        startHelpers(Math.min(mMaxHelpers, mJobs.size() - 1), new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }// run()
+        });
+        work();
+
+        synchronized (this) {
+            while (mRunningJobs > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        if (getToken().isCancelled())
+            return;
+
+        for (int i = mDirs.size() - 1; i >= 0; i--)
+            mDirs.get(i).mTarget.setLastModified(mDirs.get(i).mSource
+                    .lastModified());
+
+        if (mMove)
+            deleteSources();
+    }// execute()
+
+    @Override
+    public String toString() {
+        return String.format("%s '%s' (%,d) to '%s'", mMove ? "move"
+                : "copy", mSources.get(0), mSources.size(), mTargetDir);
+    }// toString()
+
+    /**
+     * Creates the target directories of a source, and adds its files to the
+     * jobs.
+     * 
+     * @param source
+     *            the source file.
+     * @param target
+     *            the target file.
+     * @param root
+     *            the index of the given source which has {@code source}.
+     */
+    private void prepare(File source, File target, int root) {
+        if (getToken().isCancelled())
+            return;
+
+        if (!source.isDirectory()) {
+            mJobs.add(new Job(source, target, root));
+            return;
+        }
+
+        /*
+         * Links to directories are not followed, they could make loops.
+         */
+        if (isSymlink(source)) {
+            addError(source, "Can't copy symbolic link");
+            mFailedRoots[root] = true;
+            return;
+        }
+
+        if (!target.mkdir()) {
+            addError(target, "Can't create directory");
+            mFailedRoots[root] = true;
+            return;
+        }
+        mDirs.add(new Job(source, target, root));
+        addCount(0);
+
+        String[] names = source.list();
+        if (names == null) {
+            addError(source, "Can't list directory");
+            mFailedRoots[root] = true;
+            return;
+        }
+
+        for (String name : names)
+            prepare(new File(source, name), new File(target, name), root);
+    }// prepare()
+
+    /**
+     * Takes jobs and copies their files, until there is no more work or the
+     * task is cancelled.
+     */
+    private void work() {
+        byte[] buffer = null;
+        while (true) {
+            Job job;
+            synchronized (this) {
+                if (mNextJob >= mJobs.size() || getToken().isCancelled())
+                    return;
+                job = mJobs.get(mNextJob++);
+                mRunningJobs++;
+            }
+
+            try {
+                if (mMove && buffer == null)
+                    buffer = new byte[ChecksumTask._BufferSize];
+                if (!copy(job.mSource, job.mTarget, buffer)) {
+                    synchronized (this) {
+                        mFailedRoots[job.mRoot] = true;
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    mRunningJobs--;
+                    notifyAll();
+                }
+            }
+        }
+    }// work()
+
+    /**
+     * Copies a file. If it fails, the target file is deleted.
+     * 
+     * @param source
+     *            the source file.
+     * @param target
+     *            the target file.
+     * @param buffer
+     *            the buffer of the worker, to verify the content when
+     *            moving.
+     * @return {@code true} if the file has been copied and verified.
+     */
+    private boolean copy(File source, File target, byte[] buffer) {
+        setCurrentFile(source);
+
+        boolean done = false;
+        try {
+            FileInputStream input = new FileInputStream(source);
+            try {
+                FileOutputStream output = new FileOutputStream(target);
+                try {
+                    FileChannel inputChannel = input.getChannel();
+                    FileChannel outputChannel = output.getChannel();
+                    long size = inputChannel.size();
+                    long position = 0;
+                    while (position < size) {
+                        if (getToken().isCancelled())
+                            return false;
+
+                        long count = inputChannel.transferTo(position,
+                                Math.min(_TransferSize, size - position),
+                                outputChannel);
+                        if (count <= 0)
+                            break;
+                        position += count;
+                        addBytes(count);
+                    }
+
+                    if (position != size || outputChannel.size() != size) {
+                        addError(source, "Verification failed");
+                        return false;
+                    }
+                } finally {
+                    output.close();
+                }
+            } finally {
+                input.close();
+            }
+
+            /*
+             * The sources of a move are deleted, so their copies must be
+             * exactly the same.
+             */
+            if (mMove) {
+                byte[] sourceDigest = ChecksumTask.digest(source,
+                        BaseFile._ChecksumCrc32, buffer, getToken());
+                byte[] targetDigest = sourceDigest != null ? ChecksumTask
+                        .digest(target, BaseFile._ChecksumCrc32, buffer,
+                                getToken()) : null;
+                if (targetDigest == null)
+                    return false;
+                if (!Arrays.equals(sourceDigest, targetDigest)) {
+                    addError(source, "Verification failed");
+                    return false;
+                }
+            }
+
+            target.setLastModified(source.lastModified());
+            addCount(0);
+            done = true;
+        } catch (IOException e) {
+            addError(source, e.toString());
+        } catch (SecurityException e) {
+            addError(source, e.toString());
+        } finally {
+            if (!done)
+                target.delete();
+        }
+
+        return done;
+    }// copy()
+
+    /**
+     * Deletes the sources which have been copied completely.
+     */
+    private void deleteSources() {
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < mSources.size(); i++)
+            if (!mFailedRoots[i] && !mRenamedRoots[i])
+                files.add(mSources.get(i));
+        if (files.isEmpty())
+            return;
+
+        new DeleteTask(files, getToken()).run();
+        for (File file : files)
+            if (file.exists())
+                addError(file, "Can't delete source");
+    }// deleteSources()
+
+    /**
+     * Checks if {@code dir} is {@code file} or one of its ancestors.
+     * 
+     * @param dir
+     *            the directory.
+     * @param file
+     *            the file.
+     * @return {@code true} or {@code false}.
+     */
+    private static boolean isAncestorOf(File dir, File file) {
+        try {
+            String dirPath = dir.getCanonicalPath();
+            String path = file.getCanonicalPath();
+            return path.equals(dirPath) || path.startsWith(dirPath + "/");
+        } catch (IOException e) {
+            return false;
+        }
+    }// isAncestorOf()
+}
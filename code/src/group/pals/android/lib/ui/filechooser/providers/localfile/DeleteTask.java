@@ -0,0 +1,332 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Deletes directories recursively, with many threads.
+ * <p>
+ * Directories waiting to be listed are kept in a shared stack. Every worker
+ * takes the latest one, deletes its files and pushes its sub directories, so
+ * idle workers always take over pending work from busy ones. A directory is
+ * deleted by the worker which finishes its last sub directory. The thread
+ * calling {@link #run()} is a worker too; helpers come from the shared pool
+ * of {@link FileTask}.
+ * </p>
+ * <p>
+ * A task can delete many files and directories at once, such as the
+ * selection of a list. They are split into slices of
+ * {@link #_RootSliceSize} which are pushed into the stack, so they are
+ * deleted in parallel too.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class DeleteTask extends FileTask {
+
+    /**
+     * Maximum number of given files in one slice.
+     */
+    private static final int _RootSliceSize = 16;
+
+    /**
+     * Idle workers check the cancellation signal once per this time, in
+     * milliseconds.
+     */
+    private static final long _IdleWaitTime = 100;
+
+    /**
+     * A directory to delete, or a slice of the given files.
+     */
+    private static class Node {
+
+        final File mDir;
+        final Node mParent;
+        /**
+         * The given files of a slice, {@code null} for a directory.
+         */
+        final File[] mFiles;
+        /**
+         * Number of sub directories which have not been deleted, plus one
+         * until this directory has been listed. Guarded by the task.
+         */
+        int mPending = 1;
+        /**
+         * {@code true} if something inside this directory could not be
+         * deleted, so this directory can't be deleted either. Guarded by the
+         * task.
+         */
+        boolean mFailed = false;
+
+        Node(File dir, Node parent) {
+            mDir = dir;
+            mParent = parent;
+            mFiles = null;
+        }// Node()
+
+        Node(File[] files) {
+            mDir = files[0];
+            mParent = null;
+            mFiles = files;
+        }// Node()
+    }// Node
+
+    private final List<File> mRoots;
+    private final int mMaxHelpers;
+    /**
+     * Directories waiting to be listed. Guarded by {@code this}.
+     */
+    private final List<Node> mStack = new ArrayList<Node>();
+    /**
+     * Number of workers which are processing a directory. Guarded by
+     * {@code this}.
+     */
+    private int mBusyWorkers = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param roots
+     *            the files and directories to delete, must not be empty.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public DeleteTask(List<File> roots, CancellationToken token) {
+        this(roots, token, _MaxHelperThreads);
+    }// DeleteTask()
+
+    /**
+     * Creates new instance.
+     * 
+     * @param root
+     *            the file or directory to delete.
+     * @param token
+     *            the cancellation token of this task.
+     * @param maxHelpers
+     *            the maximum number of helper threads, {@code 0} to only use
+     *            the thread calling {@link #run()}.
+     */
+    public DeleteTask(File root, CancellationToken token, int maxHelpers) {
+        this(Collections.singletonList(root), token, maxHelpers);
+    }// DeleteTask()
+
+    /**
+     * Creates new instance.
+     * 
+     * @param roots
+     *            the files and directories to delete, must not be empty.
+     * @param token
+     *            the cancellation token of this task.
+     * @param maxHelpers
+     *            the maximum number of helper threads, {@code 0} to only use
+     *            the thread calling {@link #run()}.
+     */
+    public DeleteTask(List<File> roots, CancellationToken token,
+            int maxHelpers) {
+        super(token, roots.get(0).getPath());
+        mRoots = roots;
+        mMaxHelpers = Math.max(0, Math.min(_MaxHelperThreads, maxHelpers));
+    }// DeleteTask()
+
+    @Override
+    protected void execute() {
+        synchronized (this) {
+            if (mRoots.size() == 1) {
+                File root = mRoots.get(0);
+                mStack.add(root.isDirectory() && !isSymlink(root) ? new Node(
+                        root, null) : new Node(new File[] { root }));
+            } else {
+                for (int i = 0; i < mRoots.size(); i += _RootSliceSize)
+                    mStack.add(new Node(mRoots.subList(i,
+                            Math.min(mRoots.size(), i + _RootSliceSize))
+                            .toArray(new File[0])));
+            }
+        }
+
+        startHelpers(mMaxHelpers, new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }// run()
+        });
+        work();
+    }// execute()
+
+    @Override
+    public String toString() {
+        return String.format("delete '%s' (%,d)", mRoots.get(0),
+                mRoots.size());
+    }// toString()
+
+    /**
+     * Takes directories from the stack and processes them, until there is no
+     * more work or the task is cancelled.
+     */
+    private void work() {
+        while (true) {
+            Node node;
+            synchronized (this) {
+                while (mStack.isEmpty() && mBusyWorkers > 0
+                        && !getToken().isCancelled()) {
+                    try {
+                        wait(_IdleWaitTime);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (mStack.isEmpty() || getToken().isCancelled()) {
+                    notifyAll();
+                    return;
+                }
+
+                node = mStack.remove(mStack.size() - 1);
+                mBusyWorkers++;
+            }
+
+            try {
+                process(node);
+            } catch (SecurityException e) {
+                addError(node.mDir, e.toString());
+                synchronized (this) {
+                    node.mFailed = true;
+                }
+                complete(node);
+            } finally {
+                synchronized (this) {
+                    mBusyWorkers--;
+                    notifyAll();
+                }
+            }
+        }
+    }// work()
+
+    /**
+     * Deletes the files of a directory (or a slice), and pushes its sub
+     * directories into the stack.
+     * 
+     * @param node
+     *            the directory or the slice.
+     */
+    private void process(Node node) {
+        File[] files = node.mFiles != null ? node.mFiles : node.mDir
+                .listFiles();
+        if (files == null) {
+            addError(node.mDir, "Can't list directory");
+            synchronized (this) {
+                node.mFailed = true;
+            }
+            complete(node);
+            return;
+        }
+
+        List<Node> subDirs = new ArrayList<Node>();
+        boolean failed = false;
+        for (File file : files) {
+            if (getToken().isCancelled())
+                return;
+
+            if (file.isDirectory() && !isSymlink(file))
+                subDirs.add(new Node(file, node));
+            else if (!delete(file, true, true))
+                failed = true;
+        }
+
+        synchronized (this) {
+            node.mPending += subDirs.size();
+            node.mFailed |= failed;
+            mStack.addAll(subDirs);
+            notifyAll();
+        }
+
+        complete(node);
+    }// process()
+
+    /**
+     * Releases a hold of a directory. If it was the last one, the directory
+     * is deleted, and its parent is released.
+     * 
+     * @param node
+     *            the directory.
+     */
+    private void complete(Node node) {
+        while (node != null && !getToken().isCancelled()) {
+            boolean failed;
+            synchronized (this) {
+                if (--node.mPending > 0)
+                    return;
+                failed = node.mFailed;
+            }
+
+            /*
+             * A slice is done when its directories are.
+             */
+            if (node.mFiles != null)
+                return;
+
+            if (!delete(node.mDir, false, !failed))
+                failed = true;
+
+            node = node.mParent;
+            if (failed && node != null) {
+                synchronized (this) {
+                    node.mFailed = true;
+                }
+            }
+        }
+    }// complete()
+
+    /**
+     * Deletes a file or an empty directory.
+     * 
+     * @param file
+     *            the file.
+     * @param countBytes
+     *            {@code true} to count the size of {@code file}.
+     * @param reportError
+     *            {@code false} if the deletion is expected to fail because of
+     *            another error, which has been reported.
+     * @return {@code true} if the file was deleted (or doesn't exist
+     *         anymore).
+     */
+    private boolean delete(File file, boolean countBytes, boolean reportError) {
+        setCurrentFile(file);
+
+        try {
+            long length = countBytes ? file.length() : 0;
+            if (file.delete()) {
+                addCount(length);
+                return true;
+            }
+
+            if (!file.exists())
+                return true;
+
+            if (reportError) {
+                File parent = file.getParentFile();
+                if (parent != null && !parent.canWrite())
+                    addError(file, "Permission denied");
+                else if (file.isDirectory())
+                    addError(file, "Directory not empty");
+                else
+                    addError(file, "Can't delete file");
+            }
+        } catch (SecurityException e) {
+            addError(file, e.toString());
+        }
+
+        return false;
+    }// delete()
+}
@@ -0,0 +1,537 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache of directory listings.
+ * <p>
+ * The cache is bounded by both the number of listings and the estimated
+ * memory they take. Least recently used listings are evicted first.
+ * </p>
+ * <p>
+ * Listings are kept in sort order, so when a watched directory changes,
+ * they can be patched with the changed files (see
+ * {@link #patch(String, Entry, Entry, Map)}) instead of being listed again.
+ * The files of a listing are kept in a {@link ChunkedList}, so a patched
+ * listing shares most of its files with the original one.
+ * </p>
+ * <p>
+ * Changes and invalidations are recorded for each directory, so a listing
+ * which is being built is only rejected by {@link #put(String, Entry, long)}
+ * if its own directory changed meanwhile.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class DirectoryCache {
+
+    /**
+     * A cached listing.
+     */
+    public static class Entry {
+
+        private final String mDirPath;
+        private final long mDirLastModified;
+        private final ChunkedList<FileSnapshot> mFiles;
+        private final int mTotalCount;
+        private final long mChangeSeq;
+        private final long mSize;
+        /**
+         * Files mapped by their names, built on demand. It is handed to the
+         * patched version of this entry. Guarded by {@code this}.
+         */
+        private Map<String, FileSnapshot> mIndex;
+
+        /**
+         * Creates new instance.
+         * 
+         * @param dirPath
+         *            the absolute path of the directory.
+         * @param dirLastModified
+         *            the modification time of the directory, taken
+         *            <i>before</i> listing it.
+         * @param files
+         *            the listed files, in sort order.
+         * @param totalCount
+         *            the total number of files which match the filters,
+         *            including the ones exceeding the limit.
+         * @param changeSeq
+         *            the sequence number of changes of the directory (see
+         *            {@link FileObserverPool#getSequence()}), taken
+         *            <i>before</i> listing it.
+         */
+        public Entry(String dirPath, long dirLastModified,
+                List<FileSnapshot> files, int totalCount, long changeSeq) {
+            mDirPath = dirPath;
+            mDirLastModified = dirLastModified;
+            mFiles = new ChunkedList<FileSnapshot>(files);
+            mTotalCount = totalCount;
+            mChangeSeq = changeSeq;
+
+            long size = _EntryOverhead + dirPath.length() * 2;
+            for (FileSnapshot file : files)
+                size += estimateSize(file);
+            mSize = size;
+        }// Entry()
+
+        /**
+         * Creates a patched copy of {@code base}.
+         * 
+         * @param base
+         *            the base entry.
+         * @param files
+         *            the patched files, in sort order.
+         * @param totalCount
+         *            the patched total count.
+         * @param changeSeq
+         *            the sequence number of the last applied change.
+         * @param size
+         *            the estimated size of the patched entry, in bytes.
+         */
+        public Entry(Entry base, ChunkedList<FileSnapshot> files,
+                int totalCount, long changeSeq, long size) {
+            mDirPath = base.mDirPath;
+            mDirLastModified = base.mDirLastModified;
+            mFiles = files;
+            mTotalCount = totalCount;
+            mChangeSeq = changeSeq;
+            mSize = size;
+        }// Entry()
+
+        /**
+         * Gets the absolute path of the directory.
+         * 
+         * @return the directory path.
+         */
+        public String getDirPath() {
+            return mDirPath;
+        }// getDirPath()
+
+        /**
+         * Gets the modification time of the directory, taken before listing
+         * it.
+         * 
+         * @return the modification time.
+         */
+        public long getDirLastModified() {
+            return mDirLastModified;
+        }// getDirLastModified()
+
+        /**
+         * Gets the listed files, in sort order. Don't modify this list.
+         * 
+         * @return the listed files.
+         */
+        public List<FileSnapshot> getFiles() {
+            return mFiles;
+        }// getFiles()
+
+        /**
+         * Creates a copy of the files, to be patched. The copy shares most of
+         * its memory with the files of this entry. Patches of an entry must
+         * be serialized, by synchronizing on it.
+         * 
+         * @return the copy.
+         */
+        public ChunkedList<FileSnapshot> copyFiles() {
+            return mFiles.copy();
+        }// copyFiles()
+
+        /**
+         * Gets the files of this entry mapped by their names. The map is
+         * built if it is not available. Don't modify it.
+         * 
+         * @return the files mapped by their names.
+         */
+        public synchronized Map<String, FileSnapshot> getIndex() {
+            if (mIndex == null) {
+                mIndex = new HashMap<String, FileSnapshot>(
+                        mFiles.size() * 4 / 3 + 1);
+                for (FileSnapshot file : mFiles)
+                    mIndex.put(file.getName(), file);
+            }
+            return mIndex;
+        }// getIndex()
+
+        /**
+         * Takes the index of {@code base}, which this entry is patched from,
+         * and applies the changes of the patch to it.
+         * 
+         * @param base
+         *            the base entry.
+         * @param changes
+         *            the changed files mapped by their names, {@code null}
+         *            values are removed files.
+         */
+        private void takeIndex(Entry base, Map<String, FileSnapshot> changes) {
+            Map<String, FileSnapshot> index;
+            synchronized (base) {
+                index = base.mIndex;
+                base.mIndex = null;
+            }
+            if (index == null)
+                return;
+
+            for (Map.Entry<String, FileSnapshot> change : changes.entrySet()) {
+                if (change.getValue() == null)
+                    index.remove(change.getKey());
+                else
+                    index.put(change.getKey(), change.getValue());
+            }
+            synchronized (this) {
+                mIndex = index;
+            }
+        }// takeIndex()
+
+        /**
+         * Gets the sequence number of changes of the directory, which this
+         * listing is up to date with.
+         * 
+         * @return the sequence number.
+         */
+        public long getChangeSeq() {
+            return mChangeSeq;
+        }// getChangeSeq()
+
+        /**
+         * Gets the total number of files which match the filters, including
+         * the ones exceeding the limit.
+         * 
+         * @return the total count.
+         */
+        public int getTotalCount() {
+            return mTotalCount;
+        }// getTotalCount()
+
+        /**
+         * Gets the estimated size of this entry, in bytes.
+         * 
+         * @return the estimated size.
+         */
+        public long getSize() {
+            return mSize;
+        }// getSize()
+    }// Entry
+
+    /**
+     * Estimated overhead of an entry, in bytes.
+     */
+    private static final int _EntryOverhead = 128;
+
+    /**
+     * Estimated overhead of a file snapshot, in bytes.
+     */
+    private static final int _SnapshotOverhead = 96;
+
+    /**
+     * Maximum number of directories whose last changes are recorded. When
+     * there are more, they are forgotten, and all listings which are being
+     * built are rejected.
+     */
+    private static final int _MaxChangedDirs = 1024;
+
+    /**
+     * Estimates the size of a file snapshot in a listing.
+     * 
+     * @param file
+     *            the file snapshot.
+     * @return the estimated size, in bytes.
+     */
+    public static long estimateSize(FileSnapshot file) {
+        return _SnapshotOverhead + file.getName().length() * 2
+                + file.getFile().getPath().length() * 2;
+    }// estimateSize()
+
+    private final int mMaxEntries;
+    private final long mMaxSize;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(
+            16, 0.75f, true);
+    private long mSize = 0;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+    private long mEvictionCount = 0;
+    private long mInvalidationCount = 0;
+    private long mPatchCount = 0;
+    /**
+     * A clock which ticks on each change or invalidation.
+     */
+    private long mGeneration = 0;
+    /**
+     * Generation of the last invalidation which affected all directories.
+     */
+    private long mGlobalGeneration = 0;
+    /**
+     * Generations of the last changes or invalidations of directories,
+     * mapped by their paths.
+     */
+    private final Map<String, Long> mDirGenerations = new HashMap<String, Long>();
+
+    /**
+     * Creates new instance.
+     * 
+     * @param maxEntries
+     *            the maximum number of listings.
+     * @param maxSize
+     *            the maximum estimated size of all listings, in bytes.
+     */
+    public DirectoryCache(int maxEntries, long maxSize) {
+        mMaxEntries = maxEntries;
+        mMaxSize = maxSize;
+    }// DirectoryCache()
+
+    /**
+     * Gets a listing. This doesn't count as a hit or a miss, since the
+     * listing might be stale, see {@link #countRequest(boolean)}.
+     * 
+     * @param key
+     *            the key.
+     * @return the listing, or {@code null} if not available.
+     */
+    public synchronized Entry get(String key) {
+        return mEntries.get(key);
+    }// get()
+
+    /**
+     * Counts a request of a listing, for the statistics.
+     * 
+     * @param hit
+     *            {@code true} if a cached listing was served, {@code false}
+     *            if the directory had to be listed.
+     */
+    public synchronized void countRequest(boolean hit) {
+        if (hit)
+            mHitCount++;
+        else
+            mMissCount++;
+    }// countRequest()
+
+    /**
+     * Checks if a listing is still in this cache.
+     * 
+     * @param key
+     *            the key.
+     * @param entry
+     *            the listing.
+     * @return {@code true} or {@code false}.
+     */
+    public synchronized boolean contains(String key, Entry entry) {
+        return mEntries.get(key) == entry;
+    }// contains()
+
+    /**
+     * Gets current generation of this cache. The generation changes every
+     * time a directory is changed or invalidated.
+     * 
+     * @return the generation.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }// getGeneration()
+
+    /**
+     * Puts a listing into this cache. If the listing is bigger than the
+     * maximum size of this cache, or if its directory was changed or
+     * invalidated after {@code generation}, it will be ignored.
+     * 
+     * @param key
+     *            the key.
+     * @param entry
+     *            the listing.
+     * @param generation
+     *            the generation of this cache (see {@link #getGeneration()}),
+     *            taken <i>before</i> listing the directory.
+     */
+    public synchronized void put(String key, Entry entry, long generation) {
+        Long dirGeneration = mDirGenerations.get(entry.getDirPath());
+        if (mGlobalGeneration > generation
+                || (dirGeneration != null && dirGeneration > generation))
+            return;
+
+        insert(key, entry);
+    }// put()
+
+    /**
+     * Replaces a listing with its patched version. If the listing has been
+     * replaced or removed meanwhile, it will be ignored. The caller must hold
+     * the lock of {@code entry}, see {@link Entry#copyFiles()}.
+     * <p>
+     * Changes after the patch don't matter: the patched listing records the
+     * last change which it has applied (see {@link Entry#getChangeSeq()}),
+     * so the next changes will be patched later.
+     * </p>
+     * 
+     * @param key
+     *            the key.
+     * @param entry
+     *            the original listing.
+     * @param patched
+     *            the patched listing.
+     * @param changes
+     *            the changed files mapped by their names ({@code null}
+     *            values are removed files), to update the index of
+     *            {@code entry} (see {@link Entry#getIndex()}), which is
+     *            handed to {@code patched}.
+     */
+    public synchronized void patch(String key, Entry entry, Entry patched,
+            Map<String, FileSnapshot> changes) {
+        if (mEntries.get(key) != entry)
+            return;
+
+        mPatchCount++;
+        patched.takeIndex(entry, changes);
+        insert(key, patched);
+    }// patch()
+
+    /**
+     * Puts a listing into this cache, and evicts old ones if needed.
+     * 
+     * @param key
+     *            the key.
+     * @param entry
+     *            the listing.
+     */
+    private void insert(String key, Entry entry) {
+        if (entry.getSize() > mMaxSize) {
+            Entry old = mEntries.remove(key);
+            if (old != null)
+                mSize -= old.getSize();
+            return;
+        }
+
+        Entry old = mEntries.put(key, entry);
+        if (old != null)
+            mSize -= old.getSize();
+        mSize += entry.getSize();
+
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while ((mEntries.size() > mMaxEntries || mSize > mMaxSize)
+                && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (eldest == entry)
+                continue;
+            iterator.remove();
+            mSize -= eldest.getSize();
+            mEvictionCount++;
+        }
+    }// insert()
+
+    /**
+     * Notifies this cache that a directory has changed. Its listings are kept
+     * (they can be patched later), but listings of it which are being built
+     * will not be accepted by {@link #put(String, Entry, long)}.
+     * 
+     * @param dirPath
+     *            the absolute path of the directory.
+     */
+    public synchronized void markChanged(String dirPath) {
+        markDirChanged(dirPath);
+    }// markChanged()
+
+    /**
+     * Records a change of a directory. Must be called while holding
+     * {@code this}.
+     * 
+     * @param dirPath
+     *            the absolute path of the directory.
+     */
+    private void markDirChanged(String dirPath) {
+        mGeneration++;
+        if (mDirGenerations.size() >= _MaxChangedDirs
+                && !mDirGenerations.containsKey(dirPath)) {
+            mDirGenerations.clear();
+            mGlobalGeneration = mGeneration;
+        } else
+            mDirGenerations.put(dirPath, mGeneration);
+    }// markDirChanged()
+
+    /**
+     * Removes a listing.
+     * 
+     * @param key
+     *            the key.
+     */
+    public synchronized void remove(String key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSize -= entry.getSize();
+            mInvalidationCount++;
+            markDirChanged(entry.getDirPath());
+        }
+    }// remove()
+
+    /**
+     * Removes all listings of a directory.
+     * 
+     * @param dirPath
+     *            the absolute path of the directory.
+     * @param recursive
+     *            if {@code true}, all listings of sub directories of
+     *            {@code dirPath} will be removed too.
+     */
+    public synchronized void invalidate(String dirPath, boolean recursive) {
+        String prefix = dirPath.endsWith("/") ? dirPath : dirPath + "/";
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.getDirPath().equals(dirPath)
+                    || (recursive && entry.getDirPath().startsWith(prefix))) {
+                iterator.remove();
+                mSize -= entry.getSize();
+                mInvalidationCount++;
+            }
+        }
+
+        if (recursive) {
+            mGeneration++;
+            mGlobalGeneration = mGeneration;
+            mDirGenerations.clear();
+        } else
+            markDirChanged(dirPath);
+    }// invalidate()
+
+    /**
+     * Removes all listings.
+     */
+    public synchronized void clear() {
+        mInvalidationCount += mEntries.size();
+        mEntries.clear();
+        mSize = 0;
+        mGeneration++;
+        mGlobalGeneration = mGeneration;
+        mDirGenerations.clear();
+    }// clear()
+
+    /**
+     * Gets the statistics of this cache.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put(LocalFileContract._StatListingCacheHits, mHitCount);
+        result.put(LocalFileContract._StatListingCacheMisses, mMissCount);
+        result.put(LocalFileContract._StatListingCacheEvictions,
+                mEvictionCount);
+        result.put(LocalFileContract._StatListingCacheInvalidations,
+                mInvalidationCount);
+        result.put(LocalFileContract._StatListingCachePatches, mPatchCount);
+        result.put(LocalFileContract._StatListingCacheEntries,
+                (long) mEntries.size());
+        result.put(LocalFileContract._StatListingCacheSize, mSize);
+        return result;
+    }// getStats()
+}
@@ -0,0 +1,582 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.DbUtils;
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
+
+/**
+ * Persistent index of file names, for searches which don't walk the file
+ * system.
+ * <p>
+ * Each directory is indexed with its modification time. When a directory is
+ * updated again and its modification time has not changed, its files are
+ * not listed again (see {@link #update(File, boolean)}). Hidden files and
+ * directories are not indexed.
+ * </p>
+ * <p>
+ * File names are split into tokens (see {@link #tokenize(String)}), which
+ * are kept in a full-text table, so searching for prefixes of words takes
+ * milliseconds even with hundreds of thousands of files.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileIndex {
+
+    /**
+     * Modification time of directories which have not been indexed yet.
+     */
+    private static final long _NotIndexed = -1;
+
+    private static final String _SqlDirectoryTree = "(%1$s=? OR (%1$s>=? AND %1$s<?))";
+
+    private final FileIndexHelper mHelper;
+
+    /*
+     * States, guarded by this.
+     */
+
+    private boolean mClosed = false;
+    /**
+     * Number of searches which are using the database.
+     */
+    private int mUserCount = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param context
+     *            the context.
+     */
+    public FileIndex(Context context) {
+        mHelper = new FileIndexHelper(context);
+    }// FileIndex()
+
+    /**
+     * Begins a batch of updates. Updates are much faster in batches.
+     */
+    public void beginBatch() {
+        mHelper.getWritableDatabase().beginTransaction();
+    }// beginBatch()
+
+    /**
+     * Ends the batch of updates which was begun by {@link #beginBatch()}.
+     * 
+     * @param successful
+     *            {@code true} to commit the updates, {@code false} to roll
+     *            them back.
+     */
+    public void endBatch(boolean successful) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (successful)
+            db.setTransactionSuccessful();
+        db.endTransaction();
+    }// endBatch()
+
+    /**
+     * Closes this index. The database is closed after the running searches
+     * finish; next searches return nothing, instead of opening it again.
+     */
+    public synchronized void close() {
+        mClosed = true;
+        if (mUserCount == 0)
+            mHelper.close();
+    }// close()
+
+    /**
+     * Acquires the database for a search, so it is not closed while being
+     * used. Each successful call must be followed by {@link #release()}.
+     * 
+     * @return {@code true} if acquired, {@code false} if this index has been
+     *         closed.
+     */
+    private synchronized boolean acquire() {
+        if (mClosed)
+            return false;
+        mUserCount++;
+        return true;
+    }// acquire()
+
+    /**
+     * Releases the database which was acquired by {@link #acquire()}, and
+     * closes it if this index has been closed meanwhile.
+     */
+    private synchronized void release() {
+        if (--mUserCount == 0 && mClosed)
+            mHelper.close();
+    }// release()
+
+    /**
+     * Updates the index of a directory.
+     * 
+     * @param dir
+     *            the directory.
+     * @param force
+     *            {@code true} to list the directory even if its modification
+     *            time has not changed, e.g. to catch the changes of file
+     *            sizes, which don't change the directory.
+     * @return the absolute paths of the sub directories, which should be
+     *         updated too; or {@code null} if the directory doesn't exist
+     *         anymore, in which case it is removed from the index.
+     */
+    public List<String> update(File dir, boolean force) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        String path = dir.getAbsolutePath();
+
+        /*
+         * The modification time goes first, so a change while listing the
+         * directory is caught next time.
+         */
+        long dirLastModified = dir.lastModified();
+        if (!dir.isDirectory()) {
+            removeTree(db, path);
+            return null;
+        }
+
+        long dirId = -1;
+        long indexedLastModified = _NotIndexed;
+        Cursor cursor = db.query(FileIndexHelper._TableDirectories,
+                new String[] { BaseColumns._ID,
+                        FileIndexHelper._ColumnModificationTime },
+                FileIndexHelper._ColumnPath + "=?", new String[] { path },
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) {
+                dirId = cursor.getLong(0);
+                indexedLastModified = cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<String> subDirs = new ArrayList<String>();
+        if (dirId >= 0 && !force && indexedLastModified == dirLastModified) {
+            cursor = db.query(FileIndexHelper._TableDirectories,
+                    new String[] { FileIndexHelper._ColumnPath },
+                    FileIndexHelper._ColumnParentId + "=?",
+                    new String[] { Long.toString(dirId) }, null, null, null);
+            try {
+                while (cursor.moveToNext())
+                    subDirs.add(cursor.getString(0));
+            } finally {
+                cursor.close();
+            }
+            return subDirs;
+        }
+
+        String[] names = dir.list();
+        if (names == null)
+            return subDirs;
+
+        SQLiteStatement insertDirectory = db.compileStatement(String.format(
+                "INSERT OR IGNORE INTO %s(%s,%s,%s) VALUES(?,?,%d)",
+                FileIndexHelper._TableDirectories,
+                FileIndexHelper._ColumnPath, FileIndexHelper._ColumnParentId,
+                FileIndexHelper._ColumnModificationTime, _NotIndexed));
+        SQLiteStatement insertFile = db.compileStatement(String.format(
+                "INSERT INTO %s(%s,%s,%s,%s,%s) VALUES(?,?,?,?,?)",
+                FileIndexHelper._TableFiles, FileIndexHelper._ColumnParentId,
+                FileIndexHelper._ColumnName, FileIndexHelper._ColumnType,
+                FileIndexHelper._ColumnSize,
+                FileIndexHelper._ColumnModificationTime));
+        SQLiteStatement insertFileName = db.compileStatement(String.format(
+                "INSERT INTO %s(%s,%s) VALUES(?,?)",
+                FileIndexHelper._TableFileNames,
+                DbUtils._SqliteFtsColumnRowId, FileIndexHelper._ColumnTokens));
+        SQLiteStatement updateFile = db.compileStatement(String.format(
+                "UPDATE %s SET %s=?,%s=?,%s=? WHERE %s=?",
+                FileIndexHelper._TableFiles, FileIndexHelper._ColumnType,
+                FileIndexHelper._ColumnSize,
+                FileIndexHelper._ColumnModificationTime, BaseColumns._ID));
+        try {
+            if (dirId < 0) {
+                File parentFile = dir.getParentFile();
+                long parentId = parentFile != null ? getDirectoryId(db,
+                        parentFile.getAbsolutePath()) : -1;
+                insertDirectory.bindString(1, path);
+                if (parentId >= 0)
+                    insertDirectory.bindLong(2, parentId);
+                else
+                    insertDirectory.bindNull(2);
+                insertDirectory.executeInsert();
+                dirId = getDirectoryId(db, path);
+            }
+
+            /*
+             * Indexed files, mapped by their names: {ID, type, size,
+             * modification time}.
+             */
+            Map<String, long[]> indexedFiles = new HashMap<String, long[]>();
+            cursor = db.query(FileIndexHelper._TableFiles, new String[] {
+                    FileIndexHelper._ColumnName, BaseColumns._ID,
+                    FileIndexHelper._ColumnType, FileIndexHelper._ColumnSize,
+                    FileIndexHelper._ColumnModificationTime },
+                    FileIndexHelper._ColumnParentId + "=?",
+                    new String[] { Long.toString(dirId) }, null, null, null);
+            try {
+                while (cursor.moveToNext())
+                    indexedFiles.put(cursor.getString(0),
+                            new long[] { cursor.getLong(1), cursor.getLong(2),
+                                    cursor.getLong(3), cursor.getLong(4) });
+            } finally {
+                cursor.close();
+            }
+
+            for (String name : names) {
+                if (name.startsWith("."))
+                    continue;
+
+                FileSnapshot snapshot = FileSnapshot.take(new File(dir, name),
+                        FileSnapshot._AttrType | FileSnapshot._AttrSize
+                                | FileSnapshot._AttrModificationTime);
+                if (snapshot.getType() == BaseFile._FileTypeNotExisted)
+                    continue;
+
+                long[] indexedFile = indexedFiles.remove(name);
+                if (indexedFile == null) {
+                    insertFile.bindLong(1, dirId);
+                    insertFile.bindString(2, name);
+                    insertFile.bindLong(3, snapshot.getType());
+                    insertFile.bindLong(4, snapshot.length());
+                    insertFile.bindLong(5, snapshot.lastModified());
+                    long id = insertFile.executeInsert();
+
+                    insertFileName.bindLong(1, id);
+                    insertFileName.bindString(2, tokenize(name));
+                    insertFileName.executeInsert();
+                } else if (indexedFile[1] != snapshot.getType()
+                        || indexedFile[2] != snapshot.length()
+                        || indexedFile[3] != snapshot.lastModified()) {
+                    if (indexedFile[1] == BaseFile._FileTypeDirectory
+                            && !snapshot.isDirectory())
+                        removeTree(db, snapshot.getFile().getAbsolutePath());
+
+                    updateFile.bindLong(1, snapshot.getType());
+                    updateFile.bindLong(2, snapshot.length());
+                    updateFile.bindLong(3, snapshot.lastModified());
+                    updateFile.bindLong(4, indexedFile[0]);
+                    updateFile.execute();
+                }
+
+                if (snapshot.isDirectory()
+                        && !FileTask.isSymlink(snapshot.getFile())) {
+                    String subDir = snapshot.getFile().getAbsolutePath();
+                    subDirs.add(subDir);
+                    insertDirectory.bindString(1, subDir);
+                    insertDirectory.bindLong(2, dirId);
+                    insertDirectory.executeInsert();
+                }
+            }// for names
+
+            /*
+             * Remove files which don't exist anymore.
+             */
+            for (Map.Entry<String, long[]> indexedFile : indexedFiles
+                    .entrySet()) {
+                long[] values = indexedFile.getValue();
+                String[] args = { Long.toString(values[0]) };
+                db.delete(FileIndexHelper._TableFileNames,
+                        DbUtils._SqliteFtsColumnRowId + "=?", args);
+                db.delete(FileIndexHelper._TableFiles, BaseColumns._ID + "=?",
+                        args);
+                if (values[1] == BaseFile._FileTypeDirectory)
+                    removeTree(db,
+                            new File(dir, indexedFile.getKey())
+                                    .getAbsolutePath());
+            }
+        } finally {
+            insertDirectory.close();
+            insertFile.close();
+            insertFileName.close();
+            updateFile.close();
+        }
+
+        db.execSQL(String.format("UPDATE %s SET %s=? WHERE %s=?",
+                FileIndexHelper._TableDirectories,
+                FileIndexHelper._ColumnModificationTime, BaseColumns._ID),
+                new Object[] { dirLastModified, dirId });
+        return subDirs;
+    }// update()
+
+    /**
+     * Checks if a directory has been indexed.
+     * 
+     * @param path
+     *            the absolute path of the directory.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isIndexed(String path) {
+        return DatabaseUtils.longForQuery(mHelper.getReadableDatabase(),
+                String.format("SELECT COUNT(*) FROM %s WHERE %s=? AND %s<>%d",
+                        FileIndexHelper._TableDirectories,
+                        FileIndexHelper._ColumnPath,
+                        FileIndexHelper._ColumnModificationTime, _NotIndexed),
+                new String[] { path }) > 0;
+    }// isIndexed()
+
+    /**
+     * Searches for files whose names have all the words of {@code query},
+     * as prefixes of their tokens.
+     * 
+     * @param query
+     *            the query.
+     * @param root
+     *            the directory to search in, can be {@code null} to search
+     *            everywhere.
+     * @param limit
+     *            the maximum number of files to return.
+     * @return the files. They might have changed since they were indexed.
+     *         Empty if this index has been closed.
+     */
+    public List<File> search(String query, File root, int limit) {
+        List<File> result = new ArrayList<File>();
+        String match = genMatchQuery(query);
+        if (match == null || !acquire())
+            return result;
+        try {
+            search(match, root, limit, result);
+        } finally {
+            release();
+        }
+        return result;
+    }// search()
+
+    /**
+     * Searches for files which match an FTS query.
+     * 
+     * @param match
+     *            the FTS query, see {@link #genMatchQuery(String)}.
+     * @param root
+     *            the directory to search in, can be {@code null} to search
+     *            everywhere.
+     * @param limit
+     *            the maximum number of files to return.
+     * @param result
+     *            the list to add the files to.
+     */
+    private void search(String match, File root, int limit, List<File> result) {
+
+        List<String> args = new ArrayList<String>();
+        args.add(match);
+        StringBuilder sql = new StringBuilder(String.format(
+                "SELECT d.%s,f.%s FROM %s n JOIN %s f ON f.%s=n.%s "
+                        + "JOIN %s d ON d.%s=f.%s WHERE n.%s MATCH ?",
+                FileIndexHelper._ColumnPath, FileIndexHelper._ColumnName,
+                FileIndexHelper._TableFileNames, FileIndexHelper._TableFiles,
+                BaseColumns._ID, DbUtils._SqliteFtsColumnRowId,
+                FileIndexHelper._TableDirectories, BaseColumns._ID,
+                FileIndexHelper._ColumnParentId,
+                FileIndexHelper._ColumnTokens));
+        if (root != null) {
+            sql.append(" AND ").append(
+                    String.format(_SqlDirectoryTree, "d."
+                            + FileIndexHelper._ColumnPath));
+            addDirectoryTreeArgs(args, root.getAbsolutePath());
+        }
+        sql.append(" LIMIT ").append(limit);
+
+        Cursor cursor = mHelper.getReadableDatabase().rawQuery(
+                sql.toString(), args.toArray(new String[args.size()]));
+        try {
+            while (cursor.moveToNext())
+                result.add(new File(cursor.getString(0), cursor.getString(1)));
+        } finally {
+            cursor.close();
+        }
+    }// search()
+
+    /**
+     * Gets the statistics of this index.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values, empty if this index has been closed.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        if (!acquire())
+            return result;
+        try {
+            SQLiteDatabase db = mHelper.getReadableDatabase();
+            result.put(LocalFileContract._StatIndexedDirectories,
+                    DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                            + FileIndexHelper._TableDirectories, null));
+            result.put(LocalFileContract._StatIndexedFiles, DatabaseUtils
+                    .longForQuery(db, "SELECT COUNT(*) FROM "
+                            + FileIndexHelper._TableFiles, null));
+        } finally {
+            release();
+        }
+        return result;
+    }// getStats()
+
+    /**
+     * Splits a file name into search tokens: its words (runs of letters and
+     * digits), the parts of camel-case words and of words which mix letters
+     * and digits. For example {@code "MyPhoto2012_01.JPG"} gives
+     * {@code "myphoto2012 my photo 2012 01 jpg"}.
+     * 
+     * @param name
+     *            the file name.
+     * @return the tokens, in lower case, separated by spaces.
+     */
+    public static String tokenize(String name) {
+        Set<String> tokens = new LinkedHashSet<String>();
+        int length = name.length();
+        int i = 0;
+        while (i < length) {
+            if (!Character.isLetterOrDigit(name.charAt(i))) {
+                i++;
+                continue;
+            }
+
+            int wordStart = i;
+            int partStart = i;
+            List<String> parts = new ArrayList<String>();
+            while (i < length && Character.isLetterOrDigit(name.charAt(i))) {
+                if (i > partStart) {
+                    char prev = name.charAt(i - 1);
+                    char c = name.charAt(i);
+                    if ((Character.isLowerCase(prev) && Character
+                            .isUpperCase(c))
+                            || Character.isDigit(prev) != Character
+                                    .isDigit(c)) {
+                        parts.add(name.substring(partStart, i));
+                        partStart = i;
+                    }
+                }
+                i++;
+            }
+            parts.add(name.substring(partStart, i));
+
+            if (parts.size() > 1)
+                tokens.add(name.substring(wordStart, i).toLowerCase(Locale.US));
+            for (String part : parts)
+                tokens.add(part.toLowerCase(Locale.US));
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String token : tokens) {
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(token);
+        }
+        return sb.toString();
+    }// tokenize()
+
+    /**
+     * Generates the full-text query of a search query: each word becomes a
+     * prefix term, and all of them must match.
+     * 
+     * @param query
+     *            the search query.
+     * @return the full-text query, or {@code null} if {@code query} has no
+     *         words.
+     */
+    static String genMatchQuery(String query) {
+        if (query == null)
+            return null;
+
+        StringBuilder sb = new StringBuilder();
+        for (String word : query.toLowerCase(Locale.US).split(
+                "[^\\p{L}\\p{N}]+")) {
+            if (word.length() == 0)
+                continue;
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append(word).append('*');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }// genMatchQuery()
+
+    /**
+     * Gets the ID of a directory.
+     * 
+     * @param db
+     *            the database.
+     * @param path
+     *            the absolute path of the directory.
+     * @return the ID, or {@code -1} if the directory is not in the index.
+     */
+    private static long getDirectoryId(SQLiteDatabase db, String path) {
+        Cursor cursor = db.query(FileIndexHelper._TableDirectories,
+                new String[] { BaseColumns._ID }, FileIndexHelper._ColumnPath
+                        + "=?", new String[] { path }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }// getDirectoryId()
+
+    /**
+     * Removes a directory, its files and all of its sub directories from the
+     * index.
+     * 
+     * @param db
+     *            the database.
+     * @param path
+     *            the absolute path of the directory.
+     */
+    private static void removeTree(SQLiteDatabase db, String path) {
+        List<String> args = new ArrayList<String>();
+        addDirectoryTreeArgs(args, path);
+        String[] argArray = args.toArray(new String[args.size()]);
+        String dirIds = String.format("SELECT %s FROM %s WHERE %s",
+                BaseColumns._ID, FileIndexHelper._TableDirectories,
+                String.format(_SqlDirectoryTree, FileIndexHelper._ColumnPath));
+
+        db.delete(FileIndexHelper._TableFileNames, String.format(
+                "%s IN (SELECT %s FROM %s WHERE %s IN (%s))",
+                DbUtils._SqliteFtsColumnRowId, BaseColumns._ID,
+                FileIndexHelper._TableFiles, FileIndexHelper._ColumnParentId,
+                dirIds), argArray);
+        db.delete(FileIndexHelper._TableFiles, String.format("%s IN (%s)",
+                FileIndexHelper._ColumnParentId, dirIds), argArray);
+        db.delete(FileIndexHelper._TableDirectories, String.format(
+                _SqlDirectoryTree, FileIndexHelper._ColumnPath), argArray);
+    }// removeTree()
+
+    /**
+     * Adds the arguments of {@link #_SqlDirectoryTree}. The paths of sub
+     * directories of {@code path} are the ones in {@code [path + "/", path +
+     * "0")}, since {@code '0'} follows {@code '/'}. This way the index of
+     * paths is used.
+     * 
+     * @param args
+     *            the arguments.
+     * @param path
+     *            the absolute path of the directory.
+     */
+    private static void addDirectoryTreeArgs(List<String> args, String path) {
+        String base = path.endsWith("/") ? path.substring(0,
+                path.length() - 1) : path;
+        args.add(path);
+        args.add(base + '/');
+        args.add(base + (char) ('/' + 1));
+    }// addDirectoryTreeArgs()
+}
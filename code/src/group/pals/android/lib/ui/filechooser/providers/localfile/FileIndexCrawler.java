@@ -0,0 +1,389 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.BuildConfig;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.database.SQLException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Builds and refreshes a {@link FileIndex} in background.
+ * <p>
+ * The crawler walks the root directory breadth-first, at background
+ * priority, in short bursts separated by rests, so it never takes much of
+ * the CPU or the storage. Each burst is one batch of the index. Directories
+ * whose modification times have not changed are not listed again, so
+ * crawling an indexed tree mostly costs one {@code stat} per directory. The
+ * tree is crawled again every {@link #_RecrawlInterval}.
+ * </p>
+ * <p>
+ * The first directories which are crawled (the shallowest ones) are also
+ * watched with {@link FileObserverEx}, up to {@link #_MaxWatches}. Their
+ * changes are indexed right after the coalesced notifications, before the
+ * rest of the crawl.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileIndexCrawler {
+
+    private static final String _ClassName = FileIndexCrawler.class.getName();
+
+    /**
+     * Maximum time of a burst, in milliseconds.
+     */
+    private static final long _BurstTime = 50;
+
+    /**
+     * Time to rest after a burst, in milliseconds.
+     */
+    private static final long _RestTime = 100;
+
+    /**
+     * Time to rest after a burst which failed, in milliseconds.
+     */
+    private static final long _RetryTime = 10 * 1000;
+
+    /**
+     * Time between two crawls of the whole tree, in milliseconds.
+     */
+    private static final long _RecrawlInterval = 15 * 60 * 1000;
+
+    /**
+     * Maximum number of directories to watch.
+     */
+    private static final int _MaxWatches = 1000;
+
+    private final Context mContext;
+    private final File mRoot;
+    private final FileIndex mIndex;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /*
+     * States, guarded by this.
+     */
+
+    /**
+     * Directories to crawl, in breadth-first order.
+     */
+    private final LinkedList<String> mPendingDirs = new LinkedList<String>();
+    /**
+     * Directories which have changed, to be indexed before the crawl.
+     */
+    private final Set<String> mChangedDirs = new LinkedHashSet<String>();
+    private final Map<String, FileObserverEx> mWatches = new HashMap<String, FileObserverEx>();
+    private long mLastCrawlTime = 0;
+    private boolean mStopped = false;
+    private Thread mThread;
+    private HandlerThread mDispatcherThread;
+    private Handler mDispatcher;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param context
+     *            the context.
+     * @param root
+     *            the root directory.
+     */
+    public FileIndexCrawler(Context context, File root) {
+        mContext = context;
+        mRoot = root;
+        mIndex = new FileIndex(context);
+    }// FileIndexCrawler()
+
+    /**
+     * Gets the index.
+     * 
+     * @return the index.
+     */
+    public FileIndex getIndex() {
+        return mIndex;
+    }// getIndex()
+
+    /**
+     * Starts crawling, if it has not started.
+     */
+    public synchronized void start() {
+        if (mThread != null || mStopped)
+            return;
+
+        mDispatcherThread = new HandlerThread(_ClassName,
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mDispatcherThread.start();
+        mDispatcher = new Handler(mDispatcherThread.getLooper());
+
+        mThread = new Thread(_ClassName) {
+
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                crawl();
+            }// run()
+        };
+        mThread.start();
+    }// start()
+
+    /**
+     * Stops crawling and watching, and closes the index. This crawler can't
+     * be started again.
+     */
+    public void stop() {
+        synchronized (this) {
+            mStopped = true;
+            for (FileObserverEx observer : mWatches.values())
+                observer.stopWatching();
+            mWatches.clear();
+            if (mDispatcherThread != null)
+                mDispatcherThread.quit();
+            notifyAll();
+        }
+    }// stop()
+
+    /**
+     * Checks if the tree is being crawled, i.e. the index might be
+     * incomplete.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public synchronized boolean isCrawling() {
+        return !mPendingDirs.isEmpty() || !mChangedDirs.isEmpty();
+    }// isCrawling()
+
+    /**
+     * Requests to index a directory again, before the rest of the crawl.
+     * 
+     * @param path
+     *            the absolute path of the directory.
+     */
+    public synchronized void revalidate(String path) {
+        mChangedDirs.add(path);
+        notifyAll();
+    }// revalidate()
+
+    /**
+     * Gets the statistics of this crawler and its index.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        synchronized (this) {
+            result.put(LocalFileContract._StatIndexPendingDirectories,
+                    (long) (mPendingDirs.size() + mChangedDirs.size()));
+            result.put(LocalFileContract._StatIndexWatchedDirectories,
+                    (long) mWatches.size());
+        }
+        try {
+            result.putAll(mIndex.getStats());
+        } catch (SQLException e) {
+            Log.e(_ClassName, "getStats() >> " + e);
+        }
+        return result;
+    }// getStats()
+
+    /**
+     * Crawls until stopped.
+     */
+    private void crawl() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!mStopped && mPendingDirs.isEmpty()
+                            && mChangedDirs.isEmpty()) {
+                        long remaining = mLastCrawlTime == 0 ? 0
+                                : mLastCrawlTime + _RecrawlInterval
+                                        - SystemClock.elapsedRealtime();
+                        if (remaining <= 0) {
+                            mLastCrawlTime = SystemClock.elapsedRealtime();
+                            mPendingDirs.add(mRoot.getAbsolutePath());
+                            break;
+                        }
+                        wait(remaining);
+                    }
+
+                    if (mStopped)
+                        return;
+                }
+
+                Thread.sleep(runBurst() ? _RestTime : _RetryTime);
+            }
+        } catch (InterruptedException e) {
+            // stop
+        } finally {
+            mIndex.close();
+        }
+    }// crawl()
+
+    /**
+     * Indexes directories until the burst time is over or there is no more
+     * work, in one batch. If the batch fails, its directories are queued
+     * again.
+     * 
+     * @return {@code true} if the batch was committed, {@code false} if it
+     *         failed.
+     */
+    private boolean runBurst() {
+        long startTime = SystemClock.elapsedRealtime();
+        boolean successful = false;
+        /*
+         * The directories of this batch, and whether they were changed.
+         */
+        Map<String, Boolean> paths = new LinkedHashMap<String, Boolean>();
+        String path = null;
+
+        try {
+            mIndex.beginBatch();
+            try {
+                while (SystemClock.elapsedRealtime() - startTime < _BurstTime) {
+                    boolean changed;
+                    synchronized (this) {
+                        path = null;
+                        if (mStopped)
+                            break;
+
+                        Iterator<String> changedDirs = mChangedDirs
+                                .iterator();
+                        changed = changedDirs.hasNext();
+                        if (changed) {
+                            path = changedDirs.next();
+                            changedDirs.remove();
+                        } else if (!mPendingDirs.isEmpty())
+                            path = mPendingDirs.removeFirst();
+                        else
+                            break;
+                    }
+                    paths.put(path, changed);
+
+                    indexDirectory(path, changed);
+                }
+
+                path = null;
+                successful = true;
+            } finally {
+                mIndex.endBatch(successful);
+            }
+        } catch (SQLException e) {
+            Log.e(_ClassName, "runBurst() >> " + e);
+        } catch (SecurityException e) {
+            Log.e(_ClassName, "runBurst() >> " + e);
+            /*
+             * This directory would fail again.
+             */
+            if (path != null)
+                paths.remove(path);
+        }
+
+        if (!successful)
+            requeue(paths);
+
+        if (BuildConfig.DEBUG && !paths.isEmpty())
+            Log.d(_ClassName, String.format(
+                    "runBurst() >> %,d directories in %,d ms%s",
+                    paths.size(), SystemClock.elapsedRealtime() - startTime,
+                    successful ? "" : " (failed)"));
+
+        return successful;
+    }// runBurst()
+
+    /**
+     * Indexes a directory, then queues its sub directories.
+     * 
+     * @param path
+     *            the absolute path of the directory.
+     * @param changed
+     *            {@code true} if the directory has changed.
+     */
+    private void indexDirectory(String path, boolean changed) {
+        List<String> subDirs = mIndex.update(new File(path), changed);
+
+        /*
+         * The sub directories of a changed directory are crawled later, only
+         * new ones need to be indexed now.
+         */
+        if (changed && subDirs != null) {
+            for (Iterator<String> i = subDirs.iterator(); i.hasNext();)
+                if (mIndex.isIndexed(i.next()))
+                    i.remove();
+        }
+
+        synchronized (this) {
+            if (subDirs == null) {
+                FileObserverEx observer = mWatches.remove(path);
+                if (observer != null)
+                    observer.stopWatching();
+                return;
+            }
+
+            mPendingDirs.addAll(subDirs);
+            watch(path);
+        }
+    }// indexDirectory()
+
+    /**
+     * Queues the directories of a failed batch again, in front of the other
+     * directories, since the batch was rolled back.
+     * 
+     * @param paths
+     *            the directories, mapped to {@code true} if they were
+     *            changed.
+     */
+    private synchronized void requeue(Map<String, Boolean> paths) {
+        int index = 0;
+        for (Map.Entry<String, Boolean> entry : paths.entrySet()) {
+            if (entry.getValue())
+                mChangedDirs.add(entry.getKey());
+            else
+                mPendingDirs.add(index++, entry.getKey());
+        }
+    }// requeue()
+
+    /**
+     * Watches a directory, if it is not watched and there are not too many
+     * watches. Must be called while holding {@code this}.
+     * 
+     * @param path
+     *            the absolute path of the directory.
+     */
+    private void watch(final String path) {
+        if (mStopped || mWatches.containsKey(path)
+                || mWatches.size() >= _MaxWatches)
+            return;
+
+        FileObserverEx observer = new FileObserverEx(mContext, path,
+                mDispatcher, mSequence) {
+
+            @Override
+            protected void onNotify() {
+                revalidate(path);
+            }// onNotify()
+        };
+        mWatches.put(path, observer);
+        observer.startWatching();
+    }// watch()
+}
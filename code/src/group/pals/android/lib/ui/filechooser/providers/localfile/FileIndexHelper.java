@@ -0,0 +1,156 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.prefs.Prefs;
+import group.pals.android.lib.ui.filechooser.providers.DbUtils;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.provider.BaseColumns;
+
+/**
+ * SQLite helper for the file index database, see {@link FileIndex}.
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileIndexHelper extends SQLiteOpenHelper {
+
+    private static final String _DatabaseFilename = "FileIndex.sqlite";
+    private static final int _DatabaseVersion = 1;
+
+    /*
+     * TABLES.
+     */
+
+    /**
+     * Indexed directories.
+     */
+    public static final String _TableDirectories = "directories";
+
+    /**
+     * Indexed files, including directories.
+     */
+    public static final String _TableFiles = "files";
+
+    /**
+     * Full-text index of file names. The row ID of a name is the ID of its
+     * file in {@link #_TableFiles}.
+     */
+    public static final String _TableFileNames = "file_names";
+
+    /*
+     * COLUMNS.
+     */
+
+    /**
+     * The absolute path of a directory.
+     * <p>
+     * Type: {@code String}
+     * </p>
+     */
+    public static final String _ColumnPath = "path";
+
+    /**
+     * The ID of the parent directory, in {@link #_TableDirectories}.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     */
+    public static final String _ColumnParentId = "parent_id";
+
+    /**
+     * The name of a file.
+     * <p>
+     * Type: {@code String}
+     * </p>
+     */
+    public static final String _ColumnName = "name";
+
+    /**
+     * The file type, see {@link FileSnapshot#getType()}.
+     * <p>
+     * Type: {@code Integer}
+     * </p>
+     */
+    public static final String _ColumnType = "type";
+
+    /**
+     * The size of a file.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     */
+    public static final String _ColumnSize = "size";
+
+    /**
+     * The modification time of a file, or of a directory when it was last
+     * indexed.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     */
+    public static final String _ColumnModificationTime = "mtime";
+
+    /**
+     * The search tokens of a file name, see {@link FileIndex#tokenize(String)}
+     * .
+     * <p>
+     * Type: {@code String}
+     * </p>
+     */
+    public static final String _ColumnTokens = "tokens";
+
+    private static final String _PatternDatabaseCreator_v1 = String
+            .format("CREATE VIRTUAL TABLE " + _TableFileNames
+                    + " USING %%s(" + _ColumnTokens + ");");
+
+    public FileIndexHelper(Context context) {
+        // always use application context
+        super(context.getApplicationContext(), Prefs.genDatabaseFilename(
+                context, _DatabaseFilename), null, _DatabaseVersion);
+    }// FileIndexHelper()
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + _TableDirectories + "("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY,"
+                + _ColumnPath + " TEXT NOT NULL UNIQUE," + _ColumnParentId
+                + " INTEGER," + _ColumnModificationTime + " INTEGER);");
+        db.execSQL("CREATE INDEX " + _TableDirectories + "_"
+                + _ColumnParentId + " ON " + _TableDirectories + "("
+                + _ColumnParentId + ");");
+
+        db.execSQL("CREATE TABLE " + _TableFiles + "("
+                + BaseColumns._ID + " INTEGER PRIMARY KEY,"
+                + _ColumnParentId + " INTEGER NOT NULL," + _ColumnName
+                + " TEXT NOT NULL," + _ColumnType + " INTEGER," + _ColumnSize
+                + " INTEGER," + _ColumnModificationTime + " INTEGER);");
+        db.execSQL("CREATE INDEX " + _TableFiles + "_" + _ColumnParentId
+                + " ON " + _TableFiles + "(" + _ColumnParentId + ");");
+
+        db.execSQL(String
+                .format(_PatternDatabaseCreator_v1,
+                        Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB ? DbUtils._SqliteFts3
+                                : DbUtils._SqliteFts4));
+    }// onCreate()
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        /*
+         * The index can always be built again from the file system.
+         */
+        db.execSQL("DROP TABLE IF EXISTS " + _TableFileNames + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + _TableFiles + ";");
+        db.execSQL("DROP TABLE IF EXISTS " + _TableDirectories + ";");
+        onCreate(db);
+    }// onUpgrade()
+}
@@ -8,19 +8,43 @@
 package group.pals.android.lib.ui.filechooser.providers.localfile;
 
 import group.pals.android.lib.ui.filechooser.BuildConfig;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.content.Context;
 import android.net.Uri;
-import android.os.Build;
 import android.os.FileObserver;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Message;
 import android.os.SystemClock;
 import android.util.Log;
 
 /**
  * Extended class of {@link FileObserver}, to watch for changes of a directory
  * and notify clients of {@link LocalFileProvider} about those changes.
+ * <p>
+ * Observers don't have their own threads: notifications are posted to a
+ * shared handler, see {@link FileObserverPool}.
+ * </p>
+ * <p>
+ * Each event is stamped with a sequence number, and the names of changed
+ * files are kept, so clients can get the changes since a point in time (see
+ * {@link #getChanges(long)}) and patch what they have built, instead of
+ * listing the directory again.
+ * </p>
+ * <p>
+ * Notifications are coalesced adaptively (see
+ * {@link #setCoalescing(long, long, long)}): an isolated event is notified
+ * after a short delay. While the directory keeps changing, the delay doubles
+ * after each notification, up to the maximum staleness. Once the directory
+ * has been quiet for a while, the delay goes back to the initial one.
+ * </p>
  * 
  * @since v5.1 beta
  * @author Hai Bison
@@ -35,17 +59,198 @@ public class FileObserverEx extends FileObserver {
             | FileObserver.MOVE_SELF | FileObserver.MOVED_FROM
             | FileObserver.MOVED_TO | FileObserver.ATTRIB | FileObserver.MODIFY;
 
-    private static final long _MinTimeBetweenEvents = 5000;
-    private static final int _MsgNotifyChanges = 0;
+    /**
+     * Default delay of the notification of an isolated event, in
+     * milliseconds.
+     */
+    public static final long _DefaultInitialDelay = 250;
+
+    /**
+     * Default time without events after which the directory is considered
+     * quiet, in milliseconds.
+     */
+    public static final long _DefaultQuietPeriod = 2000;
+
+    /**
+     * Default maximum time between an event and its notification, in
+     * milliseconds.
+     */
+    public static final long _DefaultMaxStaleness = 5000;
+
+    /**
+     * Maximum number of changed names to keep. When there are more, the
+     * oldest ones are dropped, and the changes before them are reported as
+     * lost.
+     */
+    private static final int _MaxChanges = 512;
     /**
      * An unknown event, most likely a bug of the system.
      */
     private static final int _FileObserver_UnknownEvent = 32768;
 
-    private final HandlerThread mHandlerThread = new HandlerThread(_ClassName);
+    /**
+     * Changes of files in a directory, since a sequence number.
+     */
+    public static class Delta {
+
+        private final long mSeq;
+        private final boolean mLost;
+        private final boolean mSinceStart;
+        private final List<String> mNames;
+        private final Set<String> mCreatedNames;
+
+        private Delta(long seq, boolean lost, boolean sinceStart,
+                List<String> names, Set<String> createdNames) {
+            mSeq = seq;
+            mLost = lost;
+            mSinceStart = sinceStart;
+            mNames = names;
+            mCreatedNames = createdNames;
+        }// Delta()
+
+        /**
+         * Gets the sequence number of the last change in this delta.
+         * 
+         * @return the sequence number.
+         */
+        public long getSeq() {
+            return mSeq;
+        }// getSeq()
+
+        /**
+         * Checks if some changes were lost, in which case the directory must
+         * be listed again.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        public boolean isLost() {
+            return mLost;
+        }// isLost()
+
+        /**
+         * Checks if the requested sequence number was before the observer
+         * started watching, so this delta only has the changes since then.
+         * Changes before that are unknown.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        public boolean isSinceStart() {
+            return mSinceStart;
+        }// isSinceStart()
+
+        /**
+         * Gets the names of changed files (created, deleted, modified or
+         * moved), in the order of their last changes.
+         * 
+         * @return the file names.
+         */
+        public List<String> getNames() {
+            return mNames;
+        }// getNames()
+
+        /**
+         * Checks if a file did not exist at the requested sequence number,
+         * i.e. its first change after that was a creation.
+         * 
+         * @param name
+         *            the file name.
+         * @return {@code true} if the file is known to be new, {@code false}
+         *         if it existed or if that is unknown.
+         */
+        public boolean isCreated(String name) {
+            return mCreatedNames.contains(name);
+        }// isCreated()
+    }// Delta
+
+    /**
+     * Change of a file.
+     */
+    private static class Change {
+
+        final long mFirstSeq;
+        final boolean mCreated;
+        long mLastSeq;
+
+        Change(long seq, boolean created) {
+            mFirstSeq = seq;
+            mCreated = created;
+            mLastSeq = seq;
+        }// Change()
+    }// Change
+
+    private final Context mContext;
+    private final String mPath;
     private final Handler mHandler;
-    private long mLastEventTime = SystemClock.elapsedRealtime();
-    private boolean mWatching = false;
+    private final AtomicLong mSequence;
+    /**
+     * Changed names, in the order of their last changes. Guarded by
+     * {@code this}.
+     */
+    private final LinkedHashMap<String, Change> mChanges = new LinkedHashMap<String, Change>();
+    /**
+     * Sequence number when watching started. Guarded by {@code this}.
+     */
+    private long mStartSeq;
+    /**
+     * Changes up to this sequence number are lost. Guarded by {@code this}.
+     */
+    private long mLostSeq;
+    private volatile Uri[] mNotificationUris = new Uri[0];
+    private volatile boolean mWatching = false;
+
+    /*
+     * Coalescing states, guarded by this.
+     */
+
+    private long mInitialDelay = _DefaultInitialDelay;
+    private long mQuietPeriod = _DefaultQuietPeriod;
+    private long mMaxStaleness = _DefaultMaxStaleness;
+    /**
+     * Current delay of notifications.
+     */
+    private long mDelay = _DefaultInitialDelay;
+    private long mLastEventTime = 0;
+    /**
+     * {@code true} if a notification has been posted to {@link #mHandler}
+     * but not sent yet.
+     */
+    private boolean mNotifying = false;
+    private long mEventCount = 0;
+    private long mNotificationCount = 0;
+
+    /**
+     * Sends the notifications.
+     */
+    private final Runnable mNotifier = new Runnable() {
+
+        @Override
+        public void run() {
+            synchronized (FileObserverEx.this) {
+                mNotifying = false;
+                mNotificationCount++;
+
+                /*
+                 * If the directory is still changing, back off.
+                 */
+                long quietTime = SystemClock.elapsedRealtime()
+                        - mLastEventTime;
+                if (quietTime < mQuietPeriod)
+                    mDelay = Math.min(mDelay * 2, mMaxStaleness);
+            }
+
+            if (!mWatching)
+                return;
+
+            if (BuildConfig.DEBUG)
+                Log.d(_ClassName, String.format(
+                        "mNotifier.run() >> path = '%s' | %,d URIs", mPath,
+                        mNotificationUris.length));
+
+            for (Uri uri : mNotificationUris)
+                mContext.getContentResolver().notifyChange(uri, null);
+            onNotify();
+        }// run()
+    };
 
     /**
      * Creates new instance.
@@ -54,53 +259,184 @@ public class FileObserverEx extends FileObserver {
      *            the context.
      * @param path
      *            the path to the directory that you want to watch for changes.
+     * @param handler
+     *            the handler to send notifications.
+     * @param sequence
+     *            the source of sequence numbers of events, which can be
+     *            shared by many observers.
      */
-    public FileObserverEx(final Context context, final String path,
-            final Uri notificationUri) {
+    public FileObserverEx(Context context, String path, Handler handler,
+            AtomicLong sequence) {
         super(path, _FileObserverMask);
-
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper()) {
-
-            @Override
-            public void handleMessage(Message msg) {
-                if (BuildConfig.DEBUG)
-                    Log.d(_ClassName,
-                            String.format(
-                                    "mHandler.handleMessage() >> path = '%s' | what = %,d",
-                                    path, msg.what));
-
-                switch (msg.what) {
-                case _MsgNotifyChanges:
-                    context.getContentResolver().notifyChange(notificationUri,
-                            null);
-                    mLastEventTime = SystemClock.elapsedRealtime();
-                    break;
-                }
-            }// handleMessage()
-        };
+        mContext = context;
+        mPath = path;
+        mHandler = handler;
+        mSequence = sequence;
     }// FileObserverEx()
 
+    /**
+     * Will be called (from the handler) after the notification URIs have
+     * been notified, i.e. at most once per coalesced batch of events.
+     * Default implementation does nothing.
+     */
+    protected void onNotify() {
+        // do nothing
+    }// onNotify()
+
+    /**
+     * Gets the path of the directory being watched.
+     * 
+     * @return the path.
+     */
+    public String getPath() {
+        return mPath;
+    }// getPath()
+
+    /**
+     * Sets the coalescing parameters of notifications.
+     * 
+     * @param initialDelay
+     *            the delay of the notification of an isolated event, in
+     *            milliseconds.
+     * @param quietPeriod
+     *            the time without events after which the directory is
+     *            considered quiet, and the delay goes back to
+     *            {@code initialDelay}, in milliseconds.
+     * @param maxStaleness
+     *            the maximum time between an event and its notification, in
+     *            milliseconds. The delay never grows beyond this.
+     */
+    public synchronized void setCoalescing(long initialDelay,
+            long quietPeriod, long maxStaleness) {
+        mInitialDelay = Math.max(0, initialDelay);
+        mQuietPeriod = Math.max(0, quietPeriod);
+        mMaxStaleness = Math.max(mInitialDelay, maxStaleness);
+        mDelay = Math.max(mInitialDelay, Math.min(mDelay, mMaxStaleness));
+    }// setCoalescing()
+
+    /**
+     * Gets the number of events received.
+     * 
+     * @return the number of events.
+     */
+    public synchronized long getEventCount() {
+        return mEventCount;
+    }// getEventCount()
+
+    /**
+     * Gets the number of notifications sent.
+     * 
+     * @return the number of notifications.
+     */
+    public synchronized long getNotificationCount() {
+        return mNotificationCount;
+    }// getNotificationCount()
+
+    /**
+     * Sets the URIs to notify when the directory changes.
+     * 
+     * @param uris
+     *            the URIs.
+     */
+    public void setNotificationUris(Uri[] uris) {
+        mNotificationUris = uris;
+    }// setNotificationUris()
+
+    /**
+     * Gets the changes since a sequence number.
+     * 
+     * @param since
+     *            the sequence number.
+     * @return the changes.
+     */
+    public synchronized Delta getChanges(long since) {
+        boolean sinceStart = since < mStartSeq;
+        if (sinceStart)
+            since = mStartSeq;
+
+        List<String> names = new ArrayList<String>();
+        Set<String> createdNames = new HashSet<String>();
+        long seq = since;
+        for (Map.Entry<String, Change> entry : mChanges.entrySet()) {
+            Change change = entry.getValue();
+            if (change.mLastSeq <= since)
+                continue;
+
+            names.add(entry.getKey());
+            if (change.mFirstSeq > since && change.mCreated)
+                createdNames.add(entry.getKey());
+            seq = Math.max(seq, change.mLastSeq);
+        }
+
+        return new Delta(Math.max(seq, mLostSeq), since < mLostSeq,
+                sinceStart, names, createdNames);
+    }// getChanges()
+
+    /**
+     * Records a change of a file.
+     * 
+     * @param event
+     *            the event.
+     * @param name
+     *            the file name, {@code null} if the directory itself
+     *            changed.
+     */
+    private synchronized void recordChange(int event, String name) {
+        long seq = mSequence.incrementAndGet();
+
+        if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+            mChanges.clear();
+            mLostSeq = seq;
+            return;
+        }
+
+        Change change = mChanges.remove(name);
+        if (change == null)
+            change = new Change(seq, (event & (FileObserver.CREATE
+                    | FileObserver.MOVED_TO)) != 0);
+        change.mLastSeq = seq;
+        mChanges.put(name, change);
+
+        if (mChanges.size() > _MaxChanges) {
+            Iterator<Change> iterator = mChanges.values().iterator();
+            mLostSeq = Math.max(mLostSeq, iterator.next().mLastSeq);
+            iterator.remove();
+        }
+    }// recordChange()
+
     @Override
     public void onEvent(int event, String path) {
         /*
          * Some bugs of Android...
          */
-        if (!mWatching || event == _FileObserver_UnknownEvent || path == null
-                || mHandler.hasMessages(_MsgNotifyChanges)
-                || !mHandlerThread.isAlive() || mHandlerThread.isInterrupted())
+        boolean selfEvent = (event & (FileObserver.DELETE_SELF
+                | FileObserver.MOVE_SELF)) != 0;
+        if (!mWatching || event == _FileObserver_UnknownEvent
+                || (path == null && !selfEvent))
             return;
 
+        recordChange(event, path);
+
+        long delay;
+        synchronized (this) {
+            mEventCount++;
+
+            /*
+             * After a quiet period, this is an isolated event.
+             */
+            long now = SystemClock.elapsedRealtime();
+            if (now - mLastEventTime >= mQuietPeriod)
+                mDelay = mInitialDelay;
+            mLastEventTime = now;
+
+            if (mNotifying)
+                return;
+            mNotifying = true;
+            delay = mDelay;
+        }
+
         try {
-            if (SystemClock.elapsedRealtime() - mLastEventTime <= _MinTimeBetweenEvents)
-                mHandler.sendEmptyMessageDelayed(
-                        _MsgNotifyChanges,
-                        Math.max(
-                                1,
-                                _MinTimeBetweenEvents
-                                        - (SystemClock.elapsedRealtime() - mLastEventTime)));
-            else
-                mHandler.sendEmptyMessage(_MsgNotifyChanges);
+            mHandler.postDelayed(mNotifier, delay);
         } catch (Throwable t) {
             mWatching = false;
             if (BuildConfig.DEBUG)
@@ -110,6 +446,12 @@ public class FileObserverEx extends FileObserver {
 
     @Override
     public void startWatching() {
+        synchronized (this) {
+            mChanges.clear();
+            mStartSeq = mSequence.get();
+            mLostSeq = 0;
+        }
+
         super.startWatching();
 
         if (BuildConfig.DEBUG)
@@ -127,9 +469,9 @@ public class FileObserverEx extends FileObserver {
             Log.d(_ClassName, String.format("stopWatching() >> %s", hashCode()));
 
         mWatching = false;
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ECLAIR)
-            HandlerThreadCompat_v5.quit(mHandlerThread);
-        mHandlerThread.interrupt();
+        mHandler.removeCallbacks(mNotifier);
+        synchronized (this) {
+            mNotifying = false;
+        }
     }// stopWatching()
 }
@@ -0,0 +1,321 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.BuildConfig;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+/**
+ * A pool of {@link FileObserverEx}, mapped by the paths of the directories
+ * they watch.
+ * <p>
+ * Each directory has at most one observer, no matter how many clients watch
+ * it. Observers are reference-counted: every
+ * {@link #acquire(String, Uri)} must be paired with a
+ * {@link #release(String, Uri)}, and an observer stops watching when its
+ * last reference is released. All observers send their notifications via a
+ * single dispatcher thread, which is started the first time it is needed
+ * and stopped by {@link #clear()}.
+ * </p>
+ * <p>
+ * Events of all observers are stamped with sequence numbers from the same
+ * source, see {@link #getSequence()} and {@link #getChanges(String, long)}.
+ * </p>
+ * <p>
+ * All observers share the same coalescing parameters, see
+ * {@link #setCoalescing(long, long, long)}.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileObserverPool {
+
+    private static final String _ClassName = FileObserverPool.class.getName();
+
+    /**
+     * Listener of changes of watched directories.
+     */
+    public static interface OnChangeListener {
+
+        /**
+         * Will be called (from the file observer thread) as soon as a watched
+         * directory changes, before the clients are notified.
+         * 
+         * @param dirPath
+         *            the directory path.
+         */
+        void onChange(String dirPath);
+    }// OnChangeListener
+
+    /**
+     * A watched directory.
+     */
+    private static class Watch {
+
+        final FileObserverEx mObserver;
+        /**
+         * Reference counts of the notification URIs.
+         */
+        final Map<Uri, Integer> mUris = new LinkedHashMap<Uri, Integer>();
+
+        Watch(FileObserverEx observer) {
+            mObserver = observer;
+        }// Watch()
+
+        /**
+         * Updates the notification URIs of the observer.
+         */
+        void updateNotificationUris() {
+            mObserver.setNotificationUris(mUris.keySet().toArray(
+                    new Uri[mUris.size()]));
+        }// updateNotificationUris()
+    }// Watch
+
+    private final Context mContext;
+    private final OnChangeListener mListener;
+    private final Map<String, Watch> mWatches = new HashMap<String, Watch>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private long mInitialDelay = FileObserverEx._DefaultInitialDelay;
+    private long mQuietPeriod = FileObserverEx._DefaultQuietPeriod;
+    private long mMaxStaleness = FileObserverEx._DefaultMaxStaleness;
+    /**
+     * Numbers of events and notifications of observers which have been
+     * removed.
+     */
+    private long mRemovedEventCount = 0;
+    private long mRemovedNotificationCount = 0;
+    private HandlerThread mDispatcherThread;
+    private Handler mDispatcher;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param context
+     *            the context.
+     * @param listener
+     *            the listener, can be {@code null}.
+     */
+    public FileObserverPool(Context context, OnChangeListener listener) {
+        mContext = context;
+        mListener = listener;
+    }// FileObserverPool()
+
+    /**
+     * Starts watching a directory, or adds a reference to the existing
+     * watch.
+     * 
+     * @param dirPath
+     *            the directory path.
+     * @param notificationUri
+     *            the URI to notify when the directory changes.
+     */
+    public synchronized void acquire(final String dirPath, Uri notificationUri) {
+        Watch watch = mWatches.get(dirPath);
+        if (watch == null) {
+            if (mDispatcher == null) {
+                mDispatcherThread = new HandlerThread(_ClassName);
+                mDispatcherThread.start();
+                mDispatcher = new Handler(mDispatcherThread.getLooper());
+            }
+
+            watch = new Watch(new FileObserverEx(mContext, dirPath,
+                    mDispatcher, mSequence) {
+
+                @Override
+                public void onEvent(int event, String path) {
+                    if (mListener != null)
+                        mListener.onChange(dirPath);
+                    super.onEvent(event, path);
+                }// onEvent()
+            });
+            watch.mObserver.setCoalescing(mInitialDelay, mQuietPeriod,
+                    mMaxStaleness);
+            mWatches.put(dirPath, watch);
+            watch.mObserver.startWatching();
+        }
+
+        Integer count = watch.mUris.get(notificationUri);
+        watch.mUris.put(notificationUri, count != null ? count + 1 : 1);
+        if (count == null)
+            watch.updateNotificationUris();
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "acquire() >> '%s' >> %,d watched directories", dirPath,
+                    mWatches.size()));
+    }// acquire()
+
+    /**
+     * Releases a reference of a watch. If it is the last reference, the
+     * directory will not be watched anymore.
+     * 
+     * @param dirPath
+     *            the directory path.
+     * @param notificationUri
+     *            the notification URI, which was given to
+     *            {@link #acquire(String, Uri)}.
+     */
+    public synchronized void release(String dirPath, Uri notificationUri) {
+        Watch watch = mWatches.get(dirPath);
+        if (watch == null)
+            return;
+
+        Integer count = watch.mUris.get(notificationUri);
+        if (count == null)
+            return;
+        if (count > 1) {
+            watch.mUris.put(notificationUri, count - 1);
+            return;
+        }
+
+        watch.mUris.remove(notificationUri);
+        if (watch.mUris.isEmpty()) {
+            remove(watch);
+            mWatches.remove(dirPath);
+        } else
+            watch.updateNotificationUris();
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "release() >> '%s' >> %,d watched directories", dirPath,
+                    mWatches.size()));
+    }// release()
+
+    /**
+     * Checks if a directory is being watched.
+     * 
+     * @param dirPath
+     *            the directory path.
+     * @return {@code true} or {@code false}.
+     */
+    public synchronized boolean isWatching(String dirPath) {
+        return mWatches.containsKey(dirPath);
+    }// isWatching()
+
+    /**
+     * Gets current sequence number of events.
+     * 
+     * @return the sequence number.
+     */
+    public long getSequence() {
+        return mSequence.get();
+    }// getSequence()
+
+    /**
+     * Gets the changes of a directory since a sequence number.
+     * 
+     * @param dirPath
+     *            the directory path.
+     * @param since
+     *            the sequence number, see {@link #getSequence()}.
+     * @return the changes, or {@code null} if the directory is not being
+     *         watched.
+     */
+    public synchronized FileObserverEx.Delta getChanges(String dirPath,
+            long since) {
+        Watch watch = mWatches.get(dirPath);
+        return watch != null ? watch.mObserver.getChanges(since) : null;
+    }// getChanges()
+
+    /**
+     * Gets the number of watched directories.
+     * 
+     * @return the number of watched directories.
+     */
+    public synchronized int size() {
+        return mWatches.size();
+    }// size()
+
+    /**
+     * Stops all watches and the dispatcher thread. Releasing the watches
+     * later is safe, and the next {@link #acquire(String, Uri)} starts new
+     * dispatcher thread.
+     */
+    public synchronized void clear() {
+        for (Watch watch : mWatches.values())
+            remove(watch);
+        mWatches.clear();
+
+        if (mDispatcherThread != null) {
+            mDispatcherThread.quit();
+            mDispatcherThread = null;
+            mDispatcher = null;
+        }
+    }// clear()
+
+    /**
+     * Sets the coalescing parameters of notifications of all observers, see
+     * {@link FileObserverEx#setCoalescing(long, long, long)}.
+     * 
+     * @param initialDelay
+     *            the delay of the notification of an isolated event, in
+     *            milliseconds.
+     * @param quietPeriod
+     *            the time without events after which a directory is
+     *            considered quiet, in milliseconds.
+     * @param maxStaleness
+     *            the maximum time between an event and its notification, in
+     *            milliseconds.
+     */
+    public synchronized void setCoalescing(long initialDelay,
+            long quietPeriod, long maxStaleness) {
+        mInitialDelay = initialDelay;
+        mQuietPeriod = quietPeriod;
+        mMaxStaleness = maxStaleness;
+        for (Watch watch : mWatches.values())
+            watch.mObserver.setCoalescing(initialDelay, quietPeriod,
+                    maxStaleness);
+    }// setCoalescing()
+
+    /**
+     * Gets the statistics of this pool.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values.
+     */
+    public synchronized Map<String, Long> getStats() {
+        long eventCount = mRemovedEventCount;
+        long notificationCount = mRemovedNotificationCount;
+        for (Watch watch : mWatches.values()) {
+            eventCount += watch.mObserver.getEventCount();
+            notificationCount += watch.mObserver.getNotificationCount();
+        }
+
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        result.put(LocalFileContract._StatWatchedDirectories,
+                (long) mWatches.size());
+        result.put(LocalFileContract._StatObserverEvents, eventCount);
+        result.put(LocalFileContract._StatObserverNotifications,
+                notificationCount);
+        return result;
+    }// getStats()
+
+    /**
+     * Stops a watch, and keeps its statistics.
+     * 
+     * @param watch
+     *            the watch.
+     */
+    private void remove(Watch watch) {
+        watch.mObserver.stopWatching();
+        mRemovedEventCount += watch.mObserver.getEventCount();
+        mRemovedNotificationCount += watch.mObserver.getNotificationCount();
+    }// remove()
+}
@@ -0,0 +1,655 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A compiled predicate on file attributes, parsed from the {@code selection}
+ * of a query.
+ * <p>
+ * The syntax is a small subset of SQL. Keywords are case-insensitive:
+ * </p>
+ * 
+ * <pre>
+ * expression := and ( OR and )*
+ * and        := unary ( AND unary )*
+ * unary      := NOT unary | ( expression ) | term
+ * term       := column operator value
+ *             | column BETWEEN value AND value
+ *             | name LIKE value
+ * operator   := = | == | != | &lt;&gt; | &lt; | &lt;= | &gt; | &gt;=
+ * value      := integer | true | false | 'string' | ?
+ * </pre>
+ * <p>
+ * Columns can be {@link BaseFile#_ColumnSize},
+ * {@link BaseFile#_ColumnModificationTime}, {@link BaseFile#_ColumnType},
+ * {@link BaseFile#_ColumnCanRead}, {@link BaseFile#_ColumnCanWrite} (all
+ * compared as integers) and {@link BaseFile#_ColumnName} (compared as
+ * strings, only with {@code =}, {@code !=}, {@code <>} and {@code LIKE}).
+ * {@code ?} is replaced by the next item of {@code selectionArgs}.
+ * {@code LIKE} ignores case and supports the wildcards {@code %} and
+ * {@code _}; {@code name LIKE 'abc%'} is the way to filter by name prefix.
+ * </p>
+ * <p>
+ * For example:
+ * {@code "type = 1 AND size > ? AND modification_time >= ?"}.
+ * </p>
+ * <p>
+ * Predicates are compiled once per spec and cached, see
+ * {@link #compile(String, String[])}. During a directory scan, a predicate
+ * is first checked against the file name (see {@link #acceptName(String)}),
+ * so files which are rejected by their names alone are never stat'ed.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FilePredicate {
+
+    /**
+     * Maximum number of compiled predicates to cache.
+     */
+    private static final int _MaxCachedPredicates = 16;
+
+    /**
+     * Cache of compiled predicates, mapped by their specs.
+     */
+    private static final Map<String, FilePredicate> _CachedPredicates = new LinkedHashMap<String, FilePredicate>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = -6195043560617404384L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, FilePredicate> eldest) {
+            return size() > _MaxCachedPredicates;
+        }// removeEldestEntry()
+    };
+
+    /*
+     * Results of evaluating a predicate against a file name only.
+     */
+
+    private static final int _False = 0;
+    private static final int _True = 1;
+    private static final int _Unknown = 2;
+
+    /**
+     * Compiles a selection.
+     * 
+     * @param selection
+     *            the selection, can be {@code null} or empty.
+     * @param selectionArgs
+     *            the values of the {@code ?} in {@code selection}, can be
+     *            {@code null}.
+     * @return the compiled predicate, or {@code null} if {@code selection} is
+     *         empty.
+     * @throws IllegalArgumentException
+     *             if {@code selection} is invalid, or the number of
+     *             {@code selectionArgs} doesn't match.
+     */
+    public static FilePredicate compile(String selection,
+            String[] selectionArgs) {
+        if (selection == null || selection.trim().length() == 0)
+            return null;
+
+        StringBuilder spec = new StringBuilder(selection);
+        if (selectionArgs != null)
+            for (String arg : selectionArgs)
+                spec.append('\0').append(arg);
+
+        synchronized (_CachedPredicates) {
+            FilePredicate predicate = _CachedPredicates.get(spec.toString());
+            if (predicate == null) {
+                predicate = new FilePredicate(spec.toString(), new Parser(
+                        selection, selectionArgs).parse());
+                _CachedPredicates.put(spec.toString(), predicate);
+            }
+            return predicate;
+        }
+    }// compile()
+
+    private final String mSpec;
+    private final Node mRoot;
+    private final int mAttributes;
+
+    /**
+     * Creates new instance.
+     */
+    private FilePredicate(String spec, Node root) {
+        mSpec = spec;
+        mRoot = root;
+        mAttributes = root.getAttributes();
+    }// FilePredicate()
+
+    /**
+     * Gets the spec of this predicate. Predicates which have the same spec
+     * are the same.
+     * 
+     * @return the spec.
+     */
+    public String getSpec() {
+        return mSpec;
+    }// getSpec()
+
+    /**
+     * Gets the file attributes which this predicate needs.
+     * 
+     * @return the attributes, see {@link FileSnapshot#_AttrAll}...
+     */
+    public int getAttributes() {
+        return mAttributes;
+    }// getAttributes()
+
+    /**
+     * Checks a file by its name only.
+     * 
+     * @param name
+     *            the file name.
+     * @return {@code false} if the file is rejected whatever its other
+     *         attributes are, {@code true} if it might be accepted.
+     */
+    public boolean acceptName(String name) {
+        return mRoot.acceptName(name) != _False;
+    }// acceptName()
+
+    /**
+     * Checks a file.
+     * 
+     * @param snapshot
+     *            the file snapshot, which must have the attributes of
+     *            {@link #getAttributes()}.
+     * @return {@code true} if the file is accepted.
+     */
+    public boolean accept(FileSnapshot snapshot) {
+        return mRoot.accept(snapshot);
+    }// accept()
+
+    /*
+     * PREDICATE TREE
+     */
+
+    /**
+     * A node of the predicate tree.
+     */
+    private static abstract class Node {
+
+        /**
+         * Evaluates this node.
+         */
+        abstract boolean accept(FileSnapshot snapshot);
+
+        /**
+         * Evaluates this node with the file name only.
+         * 
+         * @return {@link FilePredicate#_True}, {@link FilePredicate#_False}
+         *         or {@link FilePredicate#_Unknown}.
+         */
+        abstract int acceptName(String name);
+
+        /**
+         * Gets the file attributes this node needs.
+         */
+        abstract int getAttributes();
+    }// Node
+
+    /**
+     * {@code AND} or {@code OR} of two nodes.
+     */
+    private static class LogicalNode extends Node {
+
+        final boolean mAnd;
+        final Node mLeft;
+        final Node mRight;
+
+        LogicalNode(boolean and, Node left, Node right) {
+            mAnd = and;
+            mLeft = left;
+            mRight = right;
+        }// LogicalNode()
+
+        @Override
+        boolean accept(FileSnapshot snapshot) {
+            return mAnd ? mLeft.accept(snapshot) && mRight.accept(snapshot)
+                    : mLeft.accept(snapshot) || mRight.accept(snapshot);
+        }// accept()
+
+        @Override
+        int acceptName(String name) {
+            int left = mLeft.acceptName(name);
+            if (mAnd ? left == _False : left == _True)
+                return left;
+            int right = mRight.acceptName(name);
+            if (mAnd ? right == _False : right == _True)
+                return right;
+            return left == _Unknown || right == _Unknown ? _Unknown : left;
+        }// acceptName()
+
+        @Override
+        int getAttributes() {
+            return mLeft.getAttributes() | mRight.getAttributes();
+        }// getAttributes()
+    }// LogicalNode
+
+    /**
+     * {@code NOT} of a node.
+     */
+    private static class NotNode extends Node {
+
+        final Node mNode;
+
+        NotNode(Node node) {
+            mNode = node;
+        }// NotNode()
+
+        @Override
+        boolean accept(FileSnapshot snapshot) {
+            return !mNode.accept(snapshot);
+        }// accept()
+
+        @Override
+        int acceptName(String name) {
+            int result = mNode.acceptName(name);
+            return result == _Unknown ? _Unknown : _True - result;
+        }// acceptName()
+
+        @Override
+        int getAttributes() {
+            return mNode.getAttributes();
+        }// getAttributes()
+    }// NotNode
+
+    /**
+     * Compares an integer attribute with a range {@code [min, max]}.
+     */
+    private static class RangeNode extends Node {
+
+        final int mAttribute;
+        final long mMin;
+        final long mMax;
+
+        RangeNode(int attribute, long min, long max) {
+            mAttribute = attribute;
+            mMin = min;
+            mMax = max;
+        }// RangeNode()
+
+        @Override
+        boolean accept(FileSnapshot snapshot) {
+            long value;
+            switch (mAttribute) {
+            case FileSnapshot._AttrSize:
+                value = snapshot.length();
+                break;
+            case FileSnapshot._AttrModificationTime:
+                value = snapshot.lastModified();
+                break;
+            case FileSnapshot._AttrType:
+                value = snapshot.getType();
+                break;
+            case FileSnapshot._AttrCanRead:
+                value = snapshot.canRead() ? 1 : 0;
+                break;
+            default:
+                value = snapshot.canWrite() ? 1 : 0;
+                break;
+            }
+            return value >= mMin && value <= mMax;
+        }// accept()
+
+        @Override
+        int acceptName(String name) {
+            return _Unknown;
+        }// acceptName()
+
+        @Override
+        int getAttributes() {
+            return mAttribute;
+        }// getAttributes()
+    }// RangeNode
+
+    /**
+     * Matches the file name.
+     */
+    private static class NameNode extends Node {
+
+        /**
+         * The pattern of {@code LIKE}, in lower case; or the exact name if
+         * {@link #mLike} is {@code false}.
+         */
+        final String mPattern;
+        final boolean mLike;
+        /**
+         * If the pattern is a literal prefix followed by a single {@code %},
+         * this is that prefix.
+         */
+        final String mPrefix;
+
+        NameNode(String pattern, boolean like) {
+            mLike = like;
+            if (like) {
+                mPattern = pattern.toLowerCase(Locale.US);
+                int percent = mPattern.indexOf('%');
+                mPrefix = percent == mPattern.length() - 1
+                        && mPattern.indexOf('_') < 0 ? mPattern.substring(0,
+                        percent) : null;
+            } else {
+                mPattern = pattern;
+                mPrefix = null;
+            }
+        }// NameNode()
+
+        @Override
+        boolean accept(FileSnapshot snapshot) {
+            return acceptName(snapshot.getName()) == _True;
+        }// accept()
+
+        @Override
+        int acceptName(String name) {
+            boolean matched;
+            if (!mLike)
+                matched = mPattern.equals(name);
+            else if (mPrefix != null)
+                matched = name.regionMatches(true, 0, mPrefix, 0,
+                        mPrefix.length());
+            else
+                matched = matchesLike(mPattern, name.toLowerCase(Locale.US));
+            return matched ? _True : _False;
+        }// acceptName()
+
+        @Override
+        int getAttributes() {
+            return 0;
+        }// getAttributes()
+
+        /**
+         * Matches {@code text} against a {@code LIKE} pattern.
+         * 
+         * @param pattern
+         *            the pattern, which supports wildcards {@code "%"} and
+         *            {@code "_"}.
+         * @param text
+         *            the text.
+         * @return {@code true} or {@code false}.
+         */
+        static boolean matchesLike(String pattern, String text) {
+            int p = 0;
+            int t = 0;
+            int starP = -1;
+            int starT = -1;
+            while (t < text.length()) {
+                if (p < pattern.length()
+                        && (pattern.charAt(p) == '_' || pattern.charAt(p) == text
+                                .charAt(t))) {
+                    p++;
+                    t++;
+                } else if (p < pattern.length() && pattern.charAt(p) == '%') {
+                    starP = p++;
+                    starT = t;
+                } else if (starP >= 0) {
+                    p = starP + 1;
+                    t = ++starT;
+                } else
+                    return false;
+            }
+
+            while (p < pattern.length() && pattern.charAt(p) == '%')
+                p++;
+            return p == pattern.length();
+        }// matchesLike()
+    }// NameNode
+
+    /*
+     * PARSER
+     */
+
+    /**
+     * A recursive descent parser of selections.
+     */
+    private static class Parser {
+
+        final String mSelection;
+        final String[] mArgs;
+        final List<String> mTokens = new ArrayList<String>();
+        /**
+         * Values of string and parameter tokens, in the same order as
+         * {@link #mTokens}. Other items are {@code null}.
+         */
+        final List<String> mValues = new ArrayList<String>();
+        int mPos = 0;
+        int mArgIndex = 0;
+
+        Parser(String selection, String[] args) {
+            mSelection = selection;
+            mArgs = args != null ? args : new String[0];
+        }// Parser()
+
+        /**
+         * Parses the selection.
+         * 
+         * @return the root of the predicate tree.
+         */
+        Node parse() {
+            tokenize();
+            Node root = parseOr();
+            if (mPos < mTokens.size())
+                throw error("Unexpected token " + mTokens.get(mPos));
+            if (mArgIndex != mArgs.length)
+                throw error(String.format(
+                        "Expected %,d selection args, got %,d", mArgIndex,
+                        mArgs.length));
+            return root;
+        }// parse()
+
+        /**
+         * Splits the selection into tokens. Strings are kept as {@code "'"}
+         * and parameters as {@code "?"}, their values go to
+         * {@link #mValues}.
+         */
+        void tokenize() {
+            String s = mSelection;
+            int i = 0;
+            while (i < s.length()) {
+                char c = s.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'') {
+                    StringBuilder value = new StringBuilder();
+                    i++;
+                    while (true) {
+                        if (i >= s.length())
+                            throw error("Unterminated string");
+                        if (s.charAt(i) == '\'') {
+                            if (i + 1 < s.length() && s.charAt(i + 1) == '\'') {
+                                value.append('\'');
+                                i += 2;
+                                continue;
+                            }
+                            i++;
+                            break;
+                        }
+                        value.append(s.charAt(i++));
+                    }
+                    addToken("'", value.toString());
+                } else if (c == '?') {
+                    if (mArgIndex >= mArgs.length)
+                        throw error("Not enough selection args");
+                    addToken("?", mArgs[mArgIndex++]);
+                    i++;
+                } else if (c == '(' || c == ')') {
+                    addToken(String.valueOf(c), null);
+                    i++;
+                } else if ("=!<>".indexOf(c) >= 0) {
+                    int start = i++;
+                    if (i < s.length() && "=>".indexOf(s.charAt(i)) >= 0)
+                        i++;
+                    addToken(s.substring(start, i), null);
+                } else if (Character.isLetterOrDigit(c) || c == '_'
+                        || c == '-') {
+                    int start = i++;
+                    while (i < s.length()
+                            && (Character.isLetterOrDigit(s.charAt(i)) || s
+                                    .charAt(i) == '_'))
+                        i++;
+                    addToken(s.substring(start, i), null);
+                } else
+                    throw error("Unexpected character " + c);
+            }
+        }// tokenize()
+
+        void addToken(String token, String value) {
+            mTokens.add(token);
+            mValues.add(value);
+        }// addToken()
+
+        Node parseOr() {
+            Node node = parseAnd();
+            while (acceptKeyword("OR"))
+                node = new LogicalNode(false, node, parseAnd());
+            return node;
+        }// parseOr()
+
+        Node parseAnd() {
+            Node node = parseUnary();
+            while (acceptKeyword("AND"))
+                node = new LogicalNode(true, node, parseUnary());
+            return node;
+        }// parseAnd()
+
+        Node parseUnary() {
+            if (acceptKeyword("NOT"))
+                return new NotNode(parseUnary());
+            if (acceptKeyword("(")) {
+                Node node = parseOr();
+                if (!acceptKeyword(")"))
+                    throw error("Expected )");
+                return node;
+            }
+            return parseTerm();
+        }// parseUnary()
+
+        Node parseTerm() {
+            String column = next();
+
+            if (BaseFile._ColumnName.equalsIgnoreCase(column)) {
+                if (acceptKeyword("LIKE"))
+                    return new NameNode(nextValue(), true);
+
+                String operator = next();
+                if ("=".equals(operator) || "==".equals(operator))
+                    return new NameNode(nextValue(), false);
+                if ("!=".equals(operator) || "<>".equals(operator))
+                    return new NotNode(new NameNode(nextValue(), false));
+                throw error("Invalid operator for name: " + operator);
+            }
+
+            int attribute;
+            if (BaseFile._ColumnSize.equalsIgnoreCase(column))
+                attribute = FileSnapshot._AttrSize;
+            else if (BaseFile._ColumnModificationTime.equalsIgnoreCase(column))
+                attribute = FileSnapshot._AttrModificationTime;
+            else if (BaseFile._ColumnType.equalsIgnoreCase(column))
+                attribute = FileSnapshot._AttrType;
+            else if (BaseFile._ColumnCanRead.equalsIgnoreCase(column))
+                attribute = FileSnapshot._AttrCanRead;
+            else if (BaseFile._ColumnCanWrite.equalsIgnoreCase(column))
+                attribute = FileSnapshot._AttrCanWrite;
+            else
+                throw error("Invalid column " + column);
+
+            if (acceptKeyword("BETWEEN")) {
+                long min = nextLong();
+                if (!acceptKeyword("AND"))
+                    throw error("Expected AND");
+                return new RangeNode(attribute, min, nextLong());
+            }
+
+            String operator = next();
+            long value = nextLong();
+            if ("=".equals(operator) || "==".equals(operator))
+                return new RangeNode(attribute, value, value);
+            if ("!=".equals(operator) || "<>".equals(operator))
+                return new NotNode(new RangeNode(attribute, value, value));
+            if ("<".equals(operator))
+                return value == Long.MIN_VALUE ? new NotNode(new RangeNode(
+                        attribute, Long.MIN_VALUE, Long.MAX_VALUE))
+                        : new RangeNode(attribute, Long.MIN_VALUE, value - 1);
+            if ("<=".equals(operator))
+                return new RangeNode(attribute, Long.MIN_VALUE, value);
+            if (">".equals(operator))
+                return value == Long.MAX_VALUE ? new NotNode(new RangeNode(
+                        attribute, Long.MIN_VALUE, Long.MAX_VALUE))
+                        : new RangeNode(attribute, value + 1, Long.MAX_VALUE);
+            if (">=".equals(operator))
+                return new RangeNode(attribute, value, Long.MAX_VALUE);
+            throw error("Invalid operator " + operator);
+        }// parseTerm()
+
+        /**
+         * Consumes the next token if it is {@code keyword}, ignoring case.
+         */
+        boolean acceptKeyword(String keyword) {
+            if (mPos < mTokens.size() && mValues.get(mPos) == null
+                    && mTokens.get(mPos).equalsIgnoreCase(keyword)) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }// acceptKeyword()
+
+        String next() {
+            if (mPos >= mTokens.size())
+                throw error("Unexpected end of selection");
+            return mTokens.get(mPos++);
+        }// next()
+
+        /**
+         * Consumes the next token, which must be a string or a parameter.
+         */
+        String nextValue() {
+            String token = next();
+            String value = mValues.get(mPos - 1);
+            if (value == null)
+                throw error("Expected a string or ?, got " + token);
+            return value;
+        }// nextValue()
+
+        /**
+         * Consumes the next token, which must be an integer (or
+         * {@code true}, {@code false}) or a parameter.
+         */
+        long nextLong() {
+            String token = next();
+            String value = mValues.get(mPos - 1);
+            if (value == null)
+                value = token;
+            if ("true".equalsIgnoreCase(value))
+                return 1;
+            if ("false".equalsIgnoreCase(value))
+                return 0;
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                throw error("Expected an integer, got " + value);
+            }
+        }// nextLong()
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(String.format(
+                    "%s in selection: %s", message, mSelection));
+        }// error()
+    }// Parser
+}
@@ -0,0 +1,265 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.io.File;
+
+/**
+ * An immutable snapshot of the attributes of a single file.
+ * <p>
+ * All attributes are read from the file system exactly once, when the
+ * snapshot is taken. Filters, comparators and cursor builders should work on
+ * snapshots instead of calling {@link File#isDirectory()},
+ * {@link File#length()}... again and again, because each of those calls is a
+ * system call (which is very slow on FUSE-backed external storage).
+ * </p>
+ * <p>
+ * A snapshot can be taken with only some of the attributes (see
+ * {@link #take(File, int)}), the others are left {@code false} or {@code 0}.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileSnapshot {
+
+    /*
+     * ATTRIBUTES. The file name is always available.
+     */
+
+    /**
+     * The file type.
+     */
+    public static final int _AttrType = 1;
+
+    /**
+     * The readable attribute.
+     */
+    public static final int _AttrCanRead = 1 << 1;
+
+    /**
+     * The writable attribute.
+     */
+    public static final int _AttrCanWrite = 1 << 2;
+
+    /**
+     * The file size.
+     */
+    public static final int _AttrSize = 1 << 3;
+
+    /**
+     * The modification time.
+     */
+    public static final int _AttrModificationTime = 1 << 4;
+
+    /**
+     * All attributes.
+     */
+    public static final int _AttrAll = _AttrType | _AttrCanRead
+            | _AttrCanWrite | _AttrSize | _AttrModificationTime;
+
+    private final File mFile;
+    private final String mName;
+    private final int mType;
+    private final boolean mCanRead;
+    private final boolean mCanWrite;
+    private final long mSize;
+    private final long mLastModified;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param file
+     *            the file.
+     * @param name
+     *            the file name.
+     * @param type
+     *            the file type.
+     * @param canRead
+     *            the readable attribute.
+     * @param canWrite
+     *            the writable attribute.
+     * @param size
+     *            the file size.
+     * @param lastModified
+     *            the modification time.
+     */
+    private FileSnapshot(File file, String name, int type, boolean canRead,
+            boolean canWrite, long size, long lastModified) {
+        mFile = file;
+        mName = name;
+        mType = type;
+        mCanRead = canRead;
+        mCanWrite = canWrite;
+        mSize = size;
+        mLastModified = lastModified;
+    }// FileSnapshot()
+
+    /**
+     * Takes a snapshot of {@code file}, with all attributes.
+     * 
+     * @param file
+     *            the file.
+     * @return the snapshot.
+     */
+    public static FileSnapshot take(File file) {
+        return take(file, _AttrAll);
+    }// take()
+
+    /**
+     * Takes a snapshot of {@code file}, only reading the attributes in
+     * {@code attributes}. If the file type is not read, it will be
+     * {@link BaseFile#_FileTypeUnknown}.
+     * 
+     * @param file
+     *            the file.
+     * @param attributes
+     *            the attributes to read, see {@link #_AttrAll}...
+     * @return the snapshot.
+     */
+    public static FileSnapshot take(File file, int attributes) {
+        return take(file, (attributes & _AttrType) != 0 ? readType(file)
+                : BaseFile._FileTypeUnknown, attributes);
+    }// take()
+
+    /**
+     * Takes a snapshot of {@code file} whose type has already been read with
+     * {@link #readType(File)}, only reading the other attributes in
+     * {@code attributes}.
+     * 
+     * @param file
+     *            the file.
+     * @param type
+     *            the file type.
+     * @param attributes
+     *            the attributes to read, see {@link #_AttrAll}...
+     *            {@link #_AttrType} is ignored.
+     * @return the snapshot.
+     */
+    public static FileSnapshot take(File file, int type, int attributes) {
+        if (type == BaseFile._FileTypeNotExisted)
+            return new FileSnapshot(file, file.getName(), type, false, false,
+                    0, 0);
+
+        return new FileSnapshot(file, file.getName(), type,
+                (attributes & _AttrCanRead) != 0 && file.canRead(),
+                (attributes & _AttrCanWrite) != 0 && file.canWrite(),
+                (attributes & _AttrSize) != 0 ? file.length() : 0,
+                (attributes & _AttrModificationTime) != 0 ? file
+                        .lastModified() : 0);
+    }// take()
+
+    /**
+     * Reads the type of {@code file}.
+     * 
+     * @param file
+     *            the file.
+     * @return the file type, can be one of
+     *         {@link BaseFile#_FileTypeDirectory},
+     *         {@link BaseFile#_FileTypeFile},
+     *         {@link BaseFile#_FileTypeUnknown},
+     *         {@link BaseFile#_FileTypeNotExisted}.
+     */
+    public static int readType(File file) {
+        if (file.isDirectory())
+            return BaseFile._FileTypeDirectory;
+        if (file.isFile())
+            return BaseFile._FileTypeFile;
+        if (!file.exists())
+            return BaseFile._FileTypeNotExisted;
+        return BaseFile._FileTypeUnknown;
+    }// readType()
+
+    /**
+     * Gets the file.
+     * 
+     * @return the file.
+     */
+    public File getFile() {
+        return mFile;
+    }// getFile()
+
+    /**
+     * Gets the file name.
+     * 
+     * @return the file name.
+     */
+    public String getName() {
+        return mName;
+    }// getName()
+
+    /**
+     * Gets the file type.
+     * 
+     * @return the file type, can be one of
+     *         {@link BaseFile#_FileTypeDirectory},
+     *         {@link BaseFile#_FileTypeFile},
+     *         {@link BaseFile#_FileTypeUnknown},
+     *         {@link BaseFile#_FileTypeNotExisted}.
+     */
+    public int getType() {
+        return mType;
+    }// getType()
+
+    /**
+     * Checks if this file is a directory.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isDirectory() {
+        return mType == BaseFile._FileTypeDirectory;
+    }// isDirectory()
+
+    /**
+     * Checks if this file is a file.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isFile() {
+        return mType == BaseFile._FileTypeFile;
+    }// isFile()
+
+    /**
+     * Gets the readable attribute.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean canRead() {
+        return mCanRead;
+    }// canRead()
+
+    /**
+     * Gets the writable attribute.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean canWrite() {
+        return mCanWrite;
+    }// canWrite()
+
+    /**
+     * Gets the file size.
+     * 
+     * @return the file size.
+     */
+    public long length() {
+        return mSize;
+    }// length()
+
+    /**
+     * Gets the modification time.
+     * 
+     * @return the modification time.
+     */
+    public long lastModified() {
+        return mLastModified;
+    }// lastModified()
+}
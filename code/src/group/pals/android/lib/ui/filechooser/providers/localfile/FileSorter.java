@@ -0,0 +1,755 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorts file snapshots.
+ * <p>
+ * The {@link CollationKey} of each file name is computed once, before
+ * sorting, and it is kept in a bounded cache for next sorts. The keys of a
+ * list which is bigger than the cache are only kept for that sort, so that
+ * it does not flush the cache. Each sort mode
+ * has its own comparator, which only compares pre-computed values. The order
+ * is always: directories first, then the selected key.
+ * </p>
+ * <p>
+ * Big lists (see {@link #FileSorter(Collator, int, int)}) are sorted in
+ * parallel: the list is split into one chunk per CPU, chunks are sorted
+ * concurrently, then merged pairwise. Both the chunk sorts and the merges
+ * are stable, so the result is exactly the same as a sequential sort.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileSorter {
+
+    /**
+     * Interruption signal of a sort.
+     */
+    public static interface Interruption {
+
+        /**
+         * Checks if the sort should stop.
+         * 
+         * @return {@code true} or {@code false}.
+         */
+        boolean isInterrupted();
+    }// Interruption
+
+    /**
+     * The comparators check the interruption signal once every this number
+     * of comparisons (must be a power of two minus one).
+     */
+    private static final int _InterruptionCheckMask = 0xfff;
+
+    /**
+     * Number of available CPUs.
+     */
+    private static final int _CpuCount = Runtime.getRuntime()
+            .availableProcessors();
+
+    /**
+     * Shared executor of parallel sorts. Idle threads die after a while; when
+     * all threads are busy, the sorting thread runs the job itself.
+     */
+    private static final ThreadPoolExecutor _Executor = new ThreadPoolExecutor(
+            0, _CpuCount, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, FileSorter.class.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }// newThread()
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+    /**
+     * An item to be sorted.
+     */
+    private static final class SortItem {
+
+        final FileSnapshot mFile;
+        final boolean mIsDirectory;
+        private final FileSorter mSorter;
+        private final boolean mCacheKey;
+        private CollationKey mKey;
+
+        /**
+         * Creates new item with its collation key.
+         */
+        SortItem(FileSnapshot file, CollationKey key) {
+            this(file, null, false);
+            mKey = key;
+        }// SortItem()
+
+        /**
+         * Creates new item whose collation key is computed by {@code sorter}
+         * the first time it is compared by name. Such an item must only be
+         * used by one thread.
+         */
+        SortItem(FileSnapshot file, FileSorter sorter, boolean cacheKey) {
+            mFile = file;
+            mIsDirectory = file.isDirectory();
+            mSorter = sorter;
+            mCacheKey = cacheKey;
+        }// SortItem()
+
+        /**
+         * Gets the collation key of the file name.
+         */
+        CollationKey getKey() {
+            if (mKey == null)
+                mKey = mSorter.getCollationKey(mFile.getName(), mCacheKey);
+            return mKey;
+        }// getKey()
+    }// SortItem
+
+    /**
+     * Base comparator, which puts directories first and checks the
+     * interruption signal.
+     */
+    private static abstract class BaseComparator implements
+            Comparator<SortItem> {
+
+        private final Interruption mInterruption;
+        final boolean mAscending;
+        private int mCount = 0;
+
+        BaseComparator(boolean ascending, Interruption interruption) {
+            mAscending = ascending;
+            mInterruption = interruption;
+        }// BaseComparator()
+
+        @Override
+        public final int compare(SortItem lhs, SortItem rhs) {
+            if ((++mCount & _InterruptionCheckMask) == 0
+                    && mInterruption != null && mInterruption.isInterrupted())
+                throw new CancellationException();
+
+            if (lhs.mIsDirectory != rhs.mIsDirectory)
+                return lhs.mIsDirectory ? -1 : 1;
+
+            int res = compareKeys(lhs, rhs);
+            return mAscending ? res : -res;
+        }// compare()
+
+        /**
+         * Compares two items of the same kind (both are directories, or both
+         * are not).
+         */
+        abstract int compareKeys(SortItem lhs, SortItem rhs);
+    }// BaseComparator
+
+    /**
+     * Compares names.
+     */
+    private static final class NameComparator extends BaseComparator {
+
+        NameComparator(boolean ascending, Interruption interruption) {
+            super(ascending, interruption);
+        }// NameComparator()
+
+        @Override
+        int compareKeys(SortItem lhs, SortItem rhs) {
+            return lhs.getKey().compareTo(rhs.getKey());
+        }// compareKeys()
+    }// NameComparator
+
+    /**
+     * Compares sizes, then names.
+     */
+    private static final class SizeComparator extends BaseComparator {
+
+        SizeComparator(boolean ascending, Interruption interruption) {
+            super(ascending, interruption);
+        }// SizeComparator()
+
+        @Override
+        int compareKeys(SortItem lhs, SortItem rhs) {
+            long l = lhs.mFile.length();
+            long r = rhs.mFile.length();
+            if (l != r)
+                return l > r ? 1 : -1;
+            return lhs.getKey().compareTo(rhs.getKey());
+        }// compareKeys()
+    }// SizeComparator
+
+    /**
+     * Compares modification times, then names.
+     */
+    private static final class ModificationTimeComparator extends
+            BaseComparator {
+
+        ModificationTimeComparator(boolean ascending,
+                Interruption interruption) {
+            super(ascending, interruption);
+        }// ModificationTimeComparator()
+
+        @Override
+        int compareKeys(SortItem lhs, SortItem rhs) {
+            long l = lhs.mFile.lastModified();
+            long r = rhs.mFile.lastModified();
+            if (l != r)
+                return l > r ? 1 : -1;
+            return lhs.getKey().compareTo(rhs.getKey());
+        }// compareKeys()
+    }// ModificationTimeComparator
+
+    /**
+     * Selects the first files of a listing, in sort order, while keeping at
+     * most {@code limit} files in memory. Use
+     * {@link FileSorter#newSelector(int, boolean, int)} to create new
+     * instances. This class is not thread-safe.
+     */
+    public static class Selector {
+
+        private final FileSorter mSorter;
+        private final int mLimit;
+        private final Comparator<SortItem> mComparator;
+        /**
+         * A max-heap: the head is the <i>last</i> selected file in sort
+         * order.
+         */
+        private final PriorityQueue<SortItem> mItems;
+        private int mTotalCount = 0;
+
+        private Selector(FileSorter sorter, int sortBy, boolean ascending,
+                int limit) {
+            mSorter = sorter;
+            mLimit = Math.max(0, limit);
+            mComparator = newComparator(sortBy, ascending, null);
+            mItems = new PriorityQueue<SortItem>(Math.max(1,
+                    Math.min(mLimit, 1024) + 1),
+                    Collections.reverseOrder(mComparator));
+        }// Selector()
+
+        /**
+         * Offers new file.
+         * 
+         * @param file
+         *            the file snapshot.
+         * @return {@code true} if the file is selected (for now),
+         *         {@code false} if it was rejected.
+         */
+        public boolean offer(FileSnapshot file) {
+            mTotalCount++;
+            if (mLimit == 0)
+                return false;
+
+            /*
+             * The collation key is only computed if the comparisons need it:
+             * when sorting by name, or on ties.
+             */
+            SortItem item = new SortItem(file, mSorter, false);
+            if (mItems.size() < mLimit) {
+                mItems.add(item);
+                return true;
+            }
+
+            if (mComparator.compare(item, mItems.peek()) >= 0)
+                return false;
+            mItems.poll();
+            mItems.add(item);
+            return true;
+        }// offer()
+
+        /**
+         * Gets the selected files, <i>not sorted</i>.
+         * 
+         * @return a new list of selected files.
+         */
+        public List<FileSnapshot> getFiles() {
+            List<FileSnapshot> result = new ArrayList<FileSnapshot>(
+                    mItems.size());
+            for (SortItem item : mItems)
+                result.add(item.mFile);
+            return result;
+        }// getFiles()
+
+        /**
+         * Gets the number of selected files.
+         * 
+         * @return the number of selected files.
+         */
+        public int size() {
+            return mItems.size();
+        }// size()
+
+        /**
+         * Gets the number of offered files.
+         * 
+         * @return the number of offered files.
+         */
+        public int getTotalCount() {
+            return mTotalCount;
+        }// getTotalCount()
+    }// Selector
+
+    private final Collator mCollator;
+    private final int mMaxCachedKeys;
+    private final int mParallelThreshold;
+    private final Map<String, CollationKey> mCachedKeys;
+    private long mSortCount = 0;
+    private long mSortTime = 0;
+    private long mKeyHitCount = 0;
+    private long mKeyMissCount = 0;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param collator
+     *            the collator to compare file names.
+     * @param maxCachedKeys
+     *            the maximum number of collation keys to cache.
+     * @param parallelThreshold
+     *            lists which have at least this number of items will be
+     *            sorted in parallel. Use {@link Integer#MAX_VALUE} to always
+     *            sort sequentially.
+     */
+    public FileSorter(Collator collator, final int maxCachedKeys,
+            int parallelThreshold) {
+        mCollator = collator;
+        mMaxCachedKeys = maxCachedKeys;
+        mParallelThreshold = Math.max(2, parallelThreshold);
+        mCachedKeys = new LinkedHashMap<String, CollationKey>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = -5542339178374581436L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<String, CollationKey> eldest) {
+                return size() > mMaxCachedKeys;
+            }// removeEldestEntry()
+        };
+    }// FileSorter()
+
+    /**
+     * Sorts {@code files}.
+     * 
+     * @param files
+     *            list of file snapshots.
+     * @param sortBy
+     *            can be one of {@link BaseFile#_SortByModificationTime},
+     *            {@link BaseFile#_SortByName}, {@link BaseFile#_SortBySize}.
+     * @param ascending
+     *            {@code true} or {@code false}.
+     * @param interruption
+     *            the interruption signal, can be {@code null}.
+     * @return {@code true} if the sort finished, {@code false} if it was
+     *         interrupted (in which case {@code files} is left untouched).
+     */
+    public boolean sort(List<FileSnapshot> files, int sortBy,
+            boolean ascending, Interruption interruption) {
+        long startTime = System.nanoTime();
+
+        SortItem[] items = newSortItems(files, interruption);
+        if (items == null)
+            return false;
+
+        if (_CpuCount > 1 && items.length >= mParallelThreshold) {
+            if (!sortInParallel(items, sortBy, ascending, interruption))
+                return false;
+        } else {
+            try {
+                Arrays.sort(items,
+                        newComparator(sortBy, ascending, interruption));
+            } catch (CancellationException e) {
+                return false;
+            }
+        }
+
+        for (int i = 0; i < items.length; i++)
+            files.set(i, items[i].mFile);
+
+        synchronized (mCollator) {
+            mSortCount++;
+            mSortTime += (System.nanoTime() - startTime) / 1000000;
+        }
+        return true;
+    }// sort()
+
+    /**
+     * Searches a sorted list for a file, with binary search.
+     * 
+     * @param files
+     *            list of file snapshots, in sort order.
+     * @param file
+     *            the file to search for.
+     * @param sortBy
+     *            can be one of {@link BaseFile#_SortByModificationTime},
+     *            {@link BaseFile#_SortByName}, {@link BaseFile#_SortBySize}.
+     * @param ascending
+     *            {@code true} or {@code false}.
+     * @return the index of a file which is equal to {@code file} in sort
+     *         order, or {@code (-(insertion point) - 1)}, the same as
+     *         {@link Collections#binarySearch(List, Object, Comparator)}.
+     */
+    public int search(List<FileSnapshot> files, FileSnapshot file,
+            int sortBy, boolean ascending) {
+        Comparator<SortItem> comparator = newComparator(sortBy, ascending,
+                null);
+        SortItem item = new SortItem(file, this, true);
+
+        int lo = 0;
+        int hi = files.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int res = comparator.compare(new SortItem(files.get(mid), this,
+                    true), item);
+            if (res < 0)
+                lo = mid + 1;
+            else if (res > 0)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+
+        return -(lo + 1);
+    }// search()
+
+    /**
+     * Finds a file in a sorted list. The file is searched with binary
+     * search, then among its neighbors which are equal to it in sort order.
+     * 
+     * @param files
+     *            list of file snapshots, in sort order.
+     * @param file
+     *            the file to find (the same instance).
+     * @param sortBy
+     *            can be one of {@link BaseFile#_SortByModificationTime},
+     *            {@link BaseFile#_SortByName}, {@link BaseFile#_SortBySize}.
+     * @param ascending
+     *            {@code true} or {@code false}.
+     * @return the index of {@code file}, or {@code -1} if not found.
+     */
+    public int indexOf(List<FileSnapshot> files, FileSnapshot file,
+            int sortBy, boolean ascending) {
+        int index = search(files, file, sortBy, ascending);
+        if (index < 0)
+            return -1;
+        if (files.get(index) == file)
+            return index;
+
+        Comparator<SortItem> comparator = newComparator(sortBy, ascending,
+                null);
+        SortItem item = new SortItem(file, this, true);
+        for (int step = -1; step <= 1; step += 2) {
+            for (int i = index + step; i >= 0 && i < files.size(); i += step) {
+                FileSnapshot other = files.get(i);
+                if (other == file)
+                    return i;
+                if (comparator.compare(new SortItem(other, this, true),
+                        item) != 0)
+                    break;
+            }
+        }
+
+        return -1;
+    }// indexOf()
+
+    /**
+     * Creates new selector.
+     * 
+     * @param sortBy
+     *            can be one of {@link BaseFile#_SortByModificationTime},
+     *            {@link BaseFile#_SortByName}, {@link BaseFile#_SortBySize}.
+     * @param ascending
+     *            {@code true} or {@code false}.
+     * @param limit
+     *            the maximum number of files to select.
+     * @return the selector.
+     */
+    public Selector newSelector(int sortBy, boolean ascending, int limit) {
+        return new Selector(this, sortBy, ascending, limit);
+    }// newSelector()
+
+    /**
+     * Gets the statistics of this sorter.
+     * 
+     * @return a map of statistic names (defined in {@link LocalFileContract})
+     *         to their values.
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        synchronized (mCollator) {
+            result.put(LocalFileContract._StatSorts, mSortCount);
+            result.put(LocalFileContract._StatSortTime, mSortTime);
+            result.put(LocalFileContract._StatSortKeyCacheHits, mKeyHitCount);
+            result.put(LocalFileContract._StatSortKeyCacheMisses,
+                    mKeyMissCount);
+        }
+        return result;
+    }// getStats()
+
+    /**
+     * Gets the collation key of a file name.
+     * 
+     * @param name
+     *            the file name.
+     * @param cache
+     *            {@code true} to put the new key into the cache.
+     * @return the collation key.
+     */
+    private CollationKey getCollationKey(String name, boolean cache) {
+        synchronized (mCollator) {
+            CollationKey key = mCachedKeys.get(name);
+            if (key == null) {
+                key = mCollator.getCollationKey(name);
+                if (cache)
+                    mCachedKeys.put(name, key);
+            }
+            return key;
+        }
+    }// getCollationKey()
+
+    /**
+     * Sorts {@code items} in parallel.
+     * 
+     * @param items
+     *            the items.
+     * @param sortBy
+     *            the sort mode.
+     * @param ascending
+     *            the sort order.
+     * @param interruption
+     *            the interruption signal.
+     * @return {@code true} if the sort finished, {@code false} if it was
+     *         interrupted.
+     */
+    private static boolean sortInParallel(final SortItem[] items,
+            final int sortBy, final boolean ascending,
+            final Interruption interruption) {
+        /*
+         * Boundaries of sorted runs: run i is [bounds[i], bounds[i + 1]).
+         */
+        int[] bounds = new int[_CpuCount + 1];
+        for (int i = 0; i <= _CpuCount; i++)
+            bounds[i] = (int) ((long) items.length * i / _CpuCount);
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < _CpuCount; i++) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            futures.add(_Executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    Arrays.sort(items, from, to,
+                            newComparator(sortBy, ascending, interruption));
+                }// run()
+            }));
+        }
+        if (!await(futures, interruption))
+            return false;
+
+        /*
+         * Merges runs pairwise, until there is only one run left.
+         */
+        SortItem[] src = items;
+        SortItem[] dst = new SortItem[items.length];
+        while (bounds.length > 2) {
+            futures.clear();
+            int runCount = bounds.length - 1;
+            int[] newBounds = new int[(runCount + 1) / 2 + 1];
+            for (int i = 0; i < runCount; i += 2) {
+                newBounds[i / 2] = bounds[i];
+                if (i + 1 == runCount) {
+                    System.arraycopy(src, bounds[i], dst, bounds[i],
+                            bounds[i + 1] - bounds[i]);
+                    continue;
+                }
+
+                final SortItem[] fSrc = src;
+                final SortItem[] fDst = dst;
+                final int lo = bounds[i];
+                final int mid = bounds[i + 1];
+                final int hi = bounds[i + 2];
+                futures.add(_Executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        merge(fSrc, fDst, lo, mid, hi,
+                                newComparator(sortBy, ascending, interruption));
+                    }// run()
+                }));
+            }
+            newBounds[newBounds.length - 1] = items.length;
+
+            if (!await(futures, interruption))
+                return false;
+
+            SortItem[] tmp = src;
+            src = dst;
+            dst = tmp;
+            bounds = newBounds;
+        }
+
+        if (src != items)
+            System.arraycopy(src, 0, items, 0, items.length);
+        return true;
+    }// sortInParallel()
+
+    /**
+     * Merges two sorted runs {@code src[lo, mid)} and {@code src[mid, hi)}
+     * into {@code dst[lo, hi)}. Items of the left run go first when equal.
+     * 
+     * @param src
+     *            the source.
+     * @param dst
+     *            the destination.
+     * @param lo
+     *            start of the left run.
+     * @param mid
+     *            end of the left run, and start of the right run.
+     * @param hi
+     *            end of the right run.
+     * @param comparator
+     *            the comparator.
+     */
+    private static void merge(SortItem[] src, SortItem[] dst, int lo, int mid,
+            int hi, Comparator<SortItem> comparator) {
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi)
+            dst[k++] = comparator.compare(src[j], src[i]) < 0 ? src[j++]
+                    : src[i++];
+        if (i < mid)
+            System.arraycopy(src, i, dst, k, mid - i);
+        else if (j < hi)
+            System.arraycopy(src, j, dst, k, hi - j);
+    }// merge()
+
+    /**
+     * Waits for all {@code futures} to finish. This is a chunk boundary, so
+     * the interruption signal is checked here too.
+     * 
+     * @param futures
+     *            the futures.
+     * @param interruption
+     *            the interruption signal.
+     * @return {@code true} if all jobs finished, {@code false} if they were
+     *         interrupted.
+     */
+    private static boolean await(List<Future<?>> futures,
+            Interruption interruption) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            if (interrupted) {
+                future.cancel(false);
+                continue;
+            }
+
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException)
+                    interrupted = true;
+                else if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                else
+                    throw new RuntimeException(e.getCause());
+            } catch (CancellationException e) {
+                interrupted = true;
+            }
+        }
+
+        return !interrupted
+                && (interruption == null || !interruption.isInterrupted());
+    }// await()
+
+    /**
+     * Creates new comparator for a sort mode.
+     * 
+     * @param sortBy
+     *            the sort mode.
+     * @param ascending
+     *            the sort order.
+     * @param interruption
+     *            the interruption signal.
+     * @return the comparator.
+     */
+    private static Comparator<SortItem> newComparator(int sortBy,
+            boolean ascending, Interruption interruption) {
+        switch (sortBy) {
+        case BaseFile._SortBySize:
+            return new SizeComparator(ascending, interruption);
+        case BaseFile._SortByModificationTime:
+            return new ModificationTimeComparator(ascending, interruption);
+        default:
+            return new NameComparator(ascending, interruption);
+        }
+    }// newComparator()
+
+    /**
+     * Creates sort items for {@code files}, computing their collation keys.
+     * New keys are cached only if {@code files} fits in the cache, otherwise
+     * they would evict each other (and all other keys) before next sort.
+     * 
+     * @param files
+     *            list of file snapshots.
+     * @param interruption
+     *            the interruption signal.
+     * @return the sort items, or {@code null} if interrupted.
+     */
+    private SortItem[] newSortItems(List<FileSnapshot> files,
+            Interruption interruption) {
+        SortItem[] items = new SortItem[files.size()];
+
+        /*
+         * Collators are not thread-safe.
+         */
+        boolean cache = items.length <= mMaxCachedKeys;
+        synchronized (mCollator) {
+            for (int i = 0; i < items.length; i++) {
+                if ((i & _InterruptionCheckMask) == 0 && interruption != null
+                        && interruption.isInterrupted())
+                    return null;
+
+                FileSnapshot file = files.get(i);
+                CollationKey key = mCachedKeys.get(file.getName());
+                if (key == null) {
+                    mKeyMissCount++;
+                    key = mCollator.getCollationKey(file.getName());
+                    if (cache)
+                        mCachedKeys.put(file.getName(), key);
+                } else
+                    mKeyHitCount++;
+                items[i] = new SortItem(file, key);
+            }
+        }
+
+        return items;
+    }// newSortItems()
+}
@@ -0,0 +1,378 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.BuildConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Base of tasks which work on many files, such as deleting or copying.
+ * <p>
+ * A task runs on the thread calling {@link #run()}, which can start helpers
+ * from a shared pool with {@link #startHelpers(int, Runnable)}. The pool is
+ * bounded to {@link #_MaxHelperThreads} threads for all tasks.
+ * </p>
+ * <p>
+ * Progress is published to an {@link OnPublishListener}, at most once per
+ * {@link #_MinPublishInterval}. Files which can't be processed are kept as
+ * {@link Error}s, up to {@link #_MaxErrors}.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public abstract class FileTask {
+
+    private static final String _ClassName = FileTask.class.getName();
+
+    /**
+     * Maximum number of helper threads of all tasks.
+     */
+    protected static final int _MaxHelperThreads = Math.max(1, Math.min(4,
+            Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Minimum time between two publishes, in milliseconds.
+     */
+    protected static final long _MinPublishInterval = 300;
+
+    /**
+     * Maximum number of errors to keep.
+     */
+    private static final int _MaxErrors = 100;
+
+    /**
+     * Shared executor of helpers. Idle threads die after a while. When all
+     * threads are busy, new helpers are discarded, the tasks still run with
+     * the workers they have.
+     */
+    private static final ThreadPoolExecutor _Executor = new ThreadPoolExecutor(
+            0, _MaxHelperThreads, 30, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, _ClassName);
+                    thread.setDaemon(true);
+                    return thread;
+                }// newThread()
+            }, new ThreadPoolExecutor.DiscardPolicy());
+
+    /**
+     * An error.
+     */
+    public static class Error {
+
+        private final String mPath;
+        private final String mMessage;
+
+        Error(String path, String message) {
+            mPath = path;
+            mMessage = message;
+        }// Error()
+
+        /**
+         * Gets the path of the file.
+         * 
+         * @return the path.
+         */
+        public String getPath() {
+            return mPath;
+        }// getPath()
+
+        /**
+         * Gets the error message.
+         * 
+         * @return the message.
+         */
+        public String getMessage() {
+            return mMessage;
+        }// getMessage()
+    }// Error
+
+    /**
+     * Listener of the progress of a task.
+     */
+    public static interface OnPublishListener {
+
+        /**
+         * Will be called (from any worker) when the progress of a task
+         * changes, at most once per {@link FileTask#_MinPublishInterval}, and
+         * once when the task finishes.
+         * 
+         * @param task
+         *            the task.
+         */
+        void onPublish(FileTask task);
+    }// OnPublishListener
+
+    private final CancellationToken mToken;
+    private volatile OnPublishListener mOnPublishListener;
+    private final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicLong mLastPublishTime = new AtomicLong();
+    private volatile String mCurrentPath;
+    private volatile long mStartTime = 0;
+    private volatile long mFinishTime = 0;
+    private volatile boolean mFinished = false;
+    /**
+     * Guarded by itself.
+     */
+    private final List<Error> mErrors = new ArrayList<Error>();
+    private final AtomicInteger mErrorCount = new AtomicInteger();
+
+    /**
+     * Creates new instance.
+     * 
+     * @param token
+     *            the cancellation token of this task.
+     * @param path
+     *            the initial value of {@link #getCurrentPath()}.
+     */
+    protected FileTask(CancellationToken token, String path) {
+        mToken = token;
+        mCurrentPath = path;
+    }// FileTask()
+
+    /**
+     * Does the work of this task, on the thread calling {@link #run()}.
+     */
+    protected abstract void execute();
+
+    /**
+     * Sets the listener of the progress.
+     * 
+     * @param listener
+     *            the listener, can be {@code null}.
+     */
+    public void setOnPublishListener(OnPublishListener listener) {
+        mOnPublishListener = listener;
+    }// setOnPublishListener()
+
+    /**
+     * Runs this task, and waits for it to finish or to be cancelled.
+     * 
+     * @return the number of processed files and directories.
+     */
+    public int run() {
+        mStartTime = SystemClock.elapsedRealtime();
+        try {
+            execute();
+        } finally {
+            mFinishTime = SystemClock.elapsedRealtime();
+            mFinished = true;
+            onPublish();
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "run() >> %s >> %,d files, %,d bytes, %,d errors, "
+                            + "%,d ms, %.2f MB/s", this, mCount.get(),
+                    mBytes.get(), mErrorCount.get(), mFinishTime - mStartTime,
+                    getSpeed() / (1024 * 1024.0)));
+
+        return mCount.get();
+    }// run()
+
+    /**
+     * Gets the cancellation token.
+     * 
+     * @return the cancellation token.
+     */
+    public CancellationToken getToken() {
+        return mToken;
+    }// getToken()
+
+    /**
+     * Gets the number of processed files and directories.
+     * 
+     * @return the number of processed files and directories.
+     */
+    public int getCount() {
+        return mCount.get();
+    }// getCount()
+
+    /**
+     * Gets the total size of processed files.
+     * 
+     * @return the size, in bytes.
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }// getBytes()
+
+    /**
+     * Gets the average throughput of this task, from its start to its finish
+     * (or to now if it's running).
+     * 
+     * @return the throughput, in bytes per second.
+     */
+    public long getSpeed() {
+        long startTime = mStartTime;
+        if (startTime == 0)
+            return 0;
+
+        long time = (mFinished ? mFinishTime : SystemClock.elapsedRealtime())
+                - startTime;
+        return time > 0 ? mBytes.get() * 1000 / time : 0;
+    }// getSpeed()
+
+    /**
+     * Gets the path of the file which is being processed.
+     * 
+     * @return the path.
+     */
+    public String getCurrentPath() {
+        return mCurrentPath;
+    }// getCurrentPath()
+
+    /**
+     * Gets the total number of errors.
+     * 
+     * @return the number of errors.
+     */
+    public int getErrorCount() {
+        return mErrorCount.get();
+    }// getErrorCount()
+
+    /**
+     * Gets the errors, up to {@link #_MaxErrors}.
+     * 
+     * @return a new list of errors.
+     */
+    public List<Error> getErrors() {
+        synchronized (mErrors) {
+            return new ArrayList<Error>(mErrors);
+        }
+    }// getErrors()
+
+    /**
+     * Checks if this task has finished (or has been cancelled).
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }// isFinished()
+
+    /**
+     * Starts helpers from the shared pool. Helpers which can't get a thread
+     * are discarded.
+     * 
+     * @param count
+     *            the number of helpers.
+     * @param helper
+     *            the work of each helper.
+     */
+    protected static void startHelpers(int count, Runnable helper) {
+        for (int i = 0; i < count; i++)
+            _Executor.execute(helper);
+    }// startHelpers()
+
+    /**
+     * Sets the path of the file which is being processed.
+     * 
+     * @param file
+     *            the file.
+     */
+    protected void setCurrentFile(File file) {
+        mCurrentPath = file.getPath();
+    }// setCurrentFile()
+
+    /**
+     * Counts a processed file.
+     * 
+     * @param bytes
+     *            the number of bytes to count, along with the file.
+     */
+    protected void addCount(long bytes) {
+        mCount.incrementAndGet();
+        mBytes.addAndGet(bytes);
+        publish();
+    }// addCount()
+
+    /**
+     * Counts processed bytes of a file which is being processed.
+     * 
+     * @param bytes
+     *            the number of bytes.
+     */
+    protected void addBytes(long bytes) {
+        mBytes.addAndGet(bytes);
+        publish();
+    }// addBytes()
+
+    /**
+     * Adds an error.
+     * 
+     * @param file
+     *            the file.
+     * @param message
+     *            the error message.
+     */
+    protected void addError(File file, String message) {
+        mErrorCount.incrementAndGet();
+        synchronized (mErrors) {
+            if (mErrors.size() < _MaxErrors)
+                mErrors.add(new Error(file.getPath(), message));
+        }
+    }// addError()
+
+    /**
+     * Publishes the progress if it's time to.
+     */
+    private void publish() {
+        long now = SystemClock.elapsedRealtime();
+        long last = mLastPublishTime.get();
+        if (now - last >= _MinPublishInterval
+                && mLastPublishTime.compareAndSet(last, now))
+            onPublish();
+    }// publish()
+
+    /**
+     * Notifies the listener of the progress.
+     */
+    private void onPublish() {
+        OnPublishListener listener = mOnPublishListener;
+        if (listener != null)
+            listener.onPublish(this);
+    }// onPublish()
+
+    /**
+     * Checks if {@code file} is a symbolic link.
+     * 
+     * @param file
+     *            the file.
+     * @return {@code true} or {@code false}.
+     */
+    protected static boolean isSymlink(File file) {
+        try {
+            File parent = file.getParentFile();
+            File canonical = parent == null ? file : new File(
+                    parent.getCanonicalFile(), file.getName());
+            return !canonical.getCanonicalFile().equals(
+                    canonical.getAbsoluteFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }// isSymlink()
+}
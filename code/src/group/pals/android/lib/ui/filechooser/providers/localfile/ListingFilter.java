@@ -0,0 +1,447 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+import group.pals.android.lib.ui.filechooser.utils.TextUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import android.webkit.MimeTypeMap;
+
+/**
+ * A compiled filter of directory listings.
+ * <p>
+ * Filters are compiled once per spec and cached, see
+ * {@link #get(boolean, int, String, String, String, String, String)}.
+ * Predicates are evaluated from the cheapest to the most expensive one:
+ * </p>
+ * <ol>
+ * <li>Hidden files.</li>
+ * <li>Extensions, globs and MIME types: hash lookups on the file name (a
+ * wildcard matcher is only used for globs which are not {@code "*.ext"} or
+ * plain names).</li>
+ * <li>Positive and negative regex.</li>
+ * <li>Filters which need the file system (file type).</li>
+ * </ol>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ListingFilter {
+
+    /**
+     * Separator of items in the filter params.
+     */
+    private static final String _Separator = "\\|";
+
+    /**
+     * Maximum number of compiled filters to cache.
+     */
+    private static final int _MaxCachedFilters = 16;
+
+    /**
+     * Cache of compiled filters, mapped by their specs.
+     */
+    private static final Map<String, ListingFilter> _CachedFilters = new LinkedHashMap<String, ListingFilter>(
+            16, 0.75f, true) {
+
+        private static final long serialVersionUID = 2693217430451373528L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, ListingFilter> eldest) {
+            return size() > _MaxCachedFilters;
+        }// removeEldestEntry()
+    };
+
+    /**
+     * Gets the compiled filter of a spec. All string params can be
+     * {@code null} or empty.
+     * 
+     * @param showHiddenFiles
+     *            see {@link BaseFile#_ParamShowHiddenFiles}.
+     * @param filterMode
+     *            see {@link BaseFile#_ParamFilterMode}.
+     * @param positiveRegex
+     *            see {@link BaseFile#_ParamPositiveRegexFilter}.
+     * @param negativeRegex
+     *            see {@link BaseFile#_ParamNegativeRegexFilter}.
+     * @param globs
+     *            see {@link BaseFile#_ParamGlobFilter}.
+     * @param extensions
+     *            see {@link BaseFile#_ParamExtensionFilter}.
+     * @param mimeTypes
+     *            see {@link BaseFile#_ParamMimeTypeFilter}.
+     * @return the compiled filter.
+     */
+    public static ListingFilter get(boolean showHiddenFiles, int filterMode,
+            String positiveRegex, String negativeRegex, String globs,
+            String extensions, String mimeTypes) {
+        String spec = String.format("%s\0%d\0%s\0%s\0%s\0%s\0%s",
+                showHiddenFiles, filterMode, emptyIfNull(positiveRegex),
+                emptyIfNull(negativeRegex), emptyIfNull(globs),
+                emptyIfNull(extensions), emptyIfNull(mimeTypes));
+
+        synchronized (_CachedFilters) {
+            ListingFilter filter = _CachedFilters.get(spec);
+            if (filter == null) {
+                filter = new ListingFilter(spec, showHiddenFiles, filterMode,
+                        positiveRegex, negativeRegex, globs, extensions,
+                        mimeTypes);
+                _CachedFilters.put(spec, filter);
+            }
+            return filter;
+        }
+    }// get()
+
+    private final String mSpec;
+    private final boolean mShowHiddenFiles;
+    private final int mFilterMode;
+    private final Pattern mPositivePattern;
+    private final Pattern mNegativePattern;
+    /**
+     * Extensions of {@code "*.ext"} globs.
+     */
+    private final Set<String> mGlobExtensions = new HashSet<String>();
+    /**
+     * Globs which have no wildcards.
+     */
+    private final Set<String> mGlobNames = new HashSet<String>();
+    /**
+     * Other globs.
+     */
+    private final List<String> mGlobPatterns = new ArrayList<String>();
+    private final boolean mHasGlobs;
+    private final Set<String> mExtensions;
+    private final Set<String> mMimeTypes;
+    /**
+     * Cache of MIME type matches, mapped by file extensions.
+     */
+    private final Map<String, Boolean> mMimeTypeMatches;
+
+    /**
+     * Creates new instance.
+     */
+    private ListingFilter(String spec, boolean showHiddenFiles,
+            int filterMode, String positiveRegex, String negativeRegex,
+            String globs, String extensions, String mimeTypes) {
+        mSpec = spec;
+        mShowHiddenFiles = showHiddenFiles;
+        mFilterMode = filterMode;
+        mPositivePattern = TextUtils.compileRegex(positiveRegex);
+        mNegativePattern = TextUtils.compileRegex(negativeRegex);
+
+        for (String glob : split(globs)) {
+            /*
+             * Only single extensions are looked up as extensions, names are
+             * checked with the text after their last dot.
+             */
+            if (glob.startsWith("*.") && glob.indexOf('*', 2) < 0
+                    && glob.indexOf('?') < 0 && glob.indexOf('.', 2) < 0)
+                mGlobExtensions.add(glob.substring(2));
+            else if (glob.indexOf('*') < 0 && glob.indexOf('?') < 0)
+                mGlobNames.add(glob);
+            else
+                mGlobPatterns.add(glob);
+        }
+        mHasGlobs = !mGlobExtensions.isEmpty() || !mGlobNames.isEmpty()
+                || !mGlobPatterns.isEmpty();
+
+        Set<String> set = new HashSet<String>();
+        for (String ext : split(extensions))
+            set.add(ext.startsWith(".") ? ext.substring(1) : ext);
+        mExtensions = set.isEmpty() ? null : set;
+
+        set = new HashSet<String>();
+        for (String mimeType : split(mimeTypes))
+            set.add(mimeType.endsWith("/*") ? mimeType.substring(0,
+                    mimeType.length() - 1) : mimeType);
+        mMimeTypes = set.isEmpty() ? null : set;
+        mMimeTypeMatches = mMimeTypes != null ? new ConcurrentHashMap<String, Boolean>()
+                : null;
+    }// ListingFilter()
+
+    /**
+     * Gets the spec of this filter. Filters which have the same spec are the
+     * same.
+     * 
+     * @return the spec.
+     */
+    public String getSpec() {
+        return mSpec;
+    }// getSpec()
+
+    /**
+     * Checks if this filter accepts hidden files.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isShowHiddenFiles() {
+        return mShowHiddenFiles;
+    }// isShowHiddenFiles()
+
+    /**
+     * Checks if a directory which has been accepted by
+     * {@link #filter(File, String, int)} really matches this filter. Listings
+     * always show directories so users can browse them, but searches only
+     * want the ones whose names match.
+     * 
+     * @param name
+     *            the directory name.
+     * @return {@code true} or {@code false}.
+     */
+    public boolean matchDirectory(String name) {
+        return mFilterMode != BaseFile._FilterFilesOnly
+                && acceptFileName(name);
+    }// matchDirectory()
+
+    /**
+     * Filters a file.
+     * 
+     * @param dir
+     *            the parent directory.
+     * @param name
+     *            the file name.
+     * @param attributes
+     *            the attributes to read into the snapshot, see
+     *            {@link FileSnapshot#take(File, int)}. The file type is always
+     *            read.
+     * @return the snapshot of the file if it is accepted, or {@code null} if
+     *         it is rejected.
+     */
+    public FileSnapshot filter(File dir, String name, int attributes) {
+        if (!acceptHiddenAndPatterns(name))
+            return null;
+
+        /*
+         * Directories always pass the file name filters, so a rejected name
+         * still needs its file type, but only after the regex filters. The
+         * type is read once, and reused by the snapshot.
+         */
+        File file = new File(dir, name);
+        return filter(file, name, FileSnapshot.readType(file), attributes);
+    }// filter()
+
+    /**
+     * Filters a file whose type has already been read, with
+     * {@link FileSnapshot#readType(File)}.
+     * 
+     * @param file
+     *            the file.
+     * @param type
+     *            the file type.
+     * @param attributes
+     *            the attributes to read into the snapshot, see
+     *            {@link FileSnapshot#take(File, int, int)}.
+     * @return the snapshot of the file if it is accepted, or {@code null} if
+     *         it is rejected.
+     */
+    public FileSnapshot filter(File file, int type, int attributes) {
+        String name = file.getName();
+        if (!acceptHiddenAndPatterns(name))
+            return null;
+        return filter(file, name, type, attributes);
+    }// filter()
+
+    /**
+     * Filters a file which has passed
+     * {@link #acceptHiddenAndPatterns(String)}, by its type and its name.
+     * 
+     * @param file
+     *            the file.
+     * @param name
+     *            the file name.
+     * @param type
+     *            the file type.
+     * @param attributes
+     *            the attributes to read into the snapshot.
+     * @return the snapshot of the file if it is accepted, or {@code null} if
+     *         it is rejected.
+     */
+    private FileSnapshot filter(File file, String name, int type,
+            int attributes) {
+        if (type != BaseFile._FileTypeDirectory) {
+            if (mFilterMode != BaseFile._FilterDirectoriesOnly
+                    && !acceptFileName(name))
+                return null;
+            if (mFilterMode == BaseFile._FilterDirectoriesOnly
+                    && type == BaseFile._FileTypeFile)
+                return null;
+        }
+
+        return FileSnapshot.take(file, type, attributes);
+    }// filter()
+
+    /**
+     * Checks {@code name} against the hidden file setting and the regex
+     * filters, which don't need the file type.
+     * 
+     * @param name
+     *            the file name.
+     * @return {@code true} if the name passes those filters.
+     */
+    private boolean acceptHiddenAndPatterns(String name) {
+        if (!mShowHiddenFiles && name.startsWith("."))
+            return false;
+        if (mPositivePattern != null && !mPositivePattern.matcher(name).find())
+            return false;
+        if (mNegativePattern != null && mNegativePattern.matcher(name).find())
+            return false;
+        return true;
+    }// acceptHiddenAndPatterns()
+
+    /**
+     * Checks {@code name} against the glob, extension and MIME type filters.
+     * 
+     * @param name
+     *            the file name.
+     * @return {@code true} if the name passes all of those filters.
+     */
+    private boolean acceptFileName(String name) {
+        if (!mHasGlobs && mExtensions == null && mMimeTypes == null)
+            return true;
+
+        String lowerName = name.toLowerCase(Locale.US);
+        int dot = lowerName.lastIndexOf('.');
+        String ext = dot >= 0 ? lowerName.substring(dot + 1) : null;
+
+        if (mExtensions != null && (ext == null || !mExtensions.contains(ext)))
+            return false;
+
+        if (mHasGlobs && !acceptGlobs(lowerName, ext))
+            return false;
+
+        if (mMimeTypes != null) {
+            if (ext == null)
+                return false;
+            Boolean matched = mMimeTypeMatches.get(ext);
+            if (matched == null) {
+                matched = matchesMimeTypes(ext);
+                mMimeTypeMatches.put(ext, matched);
+            }
+            if (!matched)
+                return false;
+        }
+
+        return true;
+    }// acceptFileName()
+
+    /**
+     * Checks {@code lowerName} against the globs.
+     * 
+     * @param lowerName
+     *            the file name, in lower case.
+     * @param ext
+     *            the extension of {@code lowerName}, can be {@code null}.
+     * @return {@code true} if {@code lowerName} matches one of the globs.
+     */
+    private boolean acceptGlobs(String lowerName, String ext) {
+        if (ext != null && mGlobExtensions.contains(ext))
+            return true;
+        if (mGlobNames.contains(lowerName))
+            return true;
+        for (String glob : mGlobPatterns)
+            if (matchesGlob(glob, lowerName))
+                return true;
+        return false;
+    }// acceptGlobs()
+
+    /**
+     * Checks if the MIME type of {@code ext} matches the MIME type filters.
+     * 
+     * @param ext
+     *            the file extension, in lower case.
+     * @return {@code true} or {@code false}.
+     */
+    private boolean matchesMimeTypes(String ext) {
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(
+                ext);
+        if (mimeType == null)
+            return false;
+
+        if (mMimeTypes.contains(mimeType))
+            return true;
+        int slash = mimeType.indexOf('/');
+        return slash >= 0
+                && mMimeTypes.contains(mimeType.substring(0, slash + 1));
+    }// matchesMimeTypes()
+
+    /**
+     * Matches {@code text} against {@code glob}.
+     * 
+     * @param glob
+     *            the glob, which supports wildcards {@code "*"} and
+     *            {@code "?"}.
+     * @param text
+     *            the text.
+     * @return {@code true} or {@code false}.
+     */
+    private static boolean matchesGlob(String glob, String text) {
+        int g = 0;
+        int t = 0;
+        int starG = -1;
+        int starT = -1;
+        while (t < text.length()) {
+            if (g < glob.length()
+                    && (glob.charAt(g) == '?' || glob.charAt(g) == text
+                            .charAt(t))) {
+                g++;
+                t++;
+            } else if (g < glob.length() && glob.charAt(g) == '*') {
+                starG = g++;
+                starT = t;
+            } else if (starG >= 0) {
+                g = starG + 1;
+                t = ++starT;
+            } else
+                return false;
+        }
+
+        while (g < glob.length() && glob.charAt(g) == '*')
+            g++;
+        return g == glob.length();
+    }// matchesGlob()
+
+    /**
+     * Splits a filter param into lower-case items.
+     * 
+     * @param param
+     *            the param, can be {@code null}.
+     * @return the items.
+     */
+    private static List<String> split(String param) {
+        List<String> result = new ArrayList<String>();
+        if (android.text.TextUtils.isEmpty(param))
+            return result;
+
+        for (String item : param.split(_Separator)) {
+            item = item.trim().toLowerCase(Locale.US);
+            if (item.length() > 0)
+                result.add(item);
+        }
+        return result;
+    }// split()
+
+    /**
+     * Returns an empty string if {@code s} is {@code null}.
+     */
+    private static String emptyIfNull(String s) {
+        return s != null ? s : "";
+    }// emptyIfNull()
+}
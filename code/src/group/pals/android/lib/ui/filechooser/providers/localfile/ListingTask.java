@@ -0,0 +1,241 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.util.List;
+
+import android.os.SystemClock;
+
+/**
+ * A directory listing which can be consumed while it is still running.
+ * <p>
+ * The listing thread adds files with {@link #add(FileSnapshot)}. Clients take
+ * what has been collected so far with {@link #consume()}. Every time a new
+ * batch of files is ready <i>and</i> the previous one has been consumed,
+ * {@link #onPublish()} is called, so the owner can tell the clients to query
+ * again.
+ * </p>
+ * <p>
+ * Files are collected by a {@link FileSorter.Selector}, so at any time this
+ * task only holds the first files (in sort order) of what has been added.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ListingTask {
+
+    /**
+     * Minimum time between two publishes, in milliseconds. This also gives
+     * clients some time to register their observers after a query returns.
+     */
+    private static final long _MinPublishInterval = 300;
+
+    private final String mKey;
+    private final int mBatchSize;
+    private final FileSorter.Selector mSelector;
+    private int mPublishedCount = 0;
+    private boolean mConsumed = true;
+    private long mLastConsumeTime = 0;
+    private boolean mFinished = false;
+    private Throwable mError;
+    private final CancellationToken mToken;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param key
+     *            the key to identify this task, usually the listing cache
+     *            key.
+     * @param batchSize
+     *            the number of new files which makes a batch.
+     * @param selector
+     *            the selector to collect files.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public ListingTask(String key, int batchSize,
+            FileSorter.Selector selector, CancellationToken token) {
+        mKey = key;
+        mBatchSize = Math.max(1, batchSize);
+        mSelector = selector;
+        mToken = token;
+    }// ListingTask()
+
+    /**
+     * Gets the key of this task.
+     * 
+     * @return the key.
+     */
+    public String getKey() {
+        return mKey;
+    }// getKey()
+
+    /**
+     * Will be called (from the listing thread) when a new batch of files is
+     * ready, or when the listing finishes. Default implementation does
+     * nothing.
+     */
+    protected void onPublish() {
+        // do nothing
+    }// onPublish()
+
+    /**
+     * Adds new file to this listing.
+     * 
+     * @param file
+     *            the file snapshot.
+     */
+    public void add(FileSnapshot file) {
+        boolean publish;
+        synchronized (this) {
+            mSelector.offer(file);
+            int count = mSelector.getTotalCount();
+            if (count == mBatchSize)
+                notifyAll();
+
+            publish = mConsumed
+                    && count - mPublishedCount >= mBatchSize
+                    && SystemClock.elapsedRealtime() - mLastConsumeTime >= _MinPublishInterval;
+            if (publish) {
+                mPublishedCount = count;
+                mConsumed = false;
+            }
+        }
+
+        if (publish)
+            onPublish();
+    }// add()
+
+    /**
+     * Gets the number of files added so far, including the ones which were
+     * not selected.
+     * 
+     * @return the number of files.
+     */
+    public synchronized int getTotalCount() {
+        return mSelector.getTotalCount();
+    }// getTotalCount()
+
+    /**
+     * Marks this listing as finished, then publishes the final result.
+     */
+    public void finish() {
+        long delay;
+        synchronized (this) {
+            mFinished = true;
+            notifyAll();
+            delay = mLastConsumeTime + _MinPublishInterval
+                    - SystemClock.elapsedRealtime();
+        }
+
+        if (delay > 0)
+            SystemClock.sleep(delay);
+        onPublish();
+    }// finish()
+
+    /**
+     * Waits until the first batch is ready, or the listing finishes.
+     * 
+     * @param timeout
+     *            the maximum time to wait, in milliseconds.
+     */
+    public synchronized void awaitFirstBatch(long timeout) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        while (!mFinished && !isCancelled()
+                && mSelector.getTotalCount() < mBatchSize) {
+            long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0)
+                return;
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }// awaitFirstBatch()
+
+    /**
+     * Takes all files collected so far.
+     * 
+     * @return a new list of collected files.
+     */
+    public synchronized List<FileSnapshot> consume() {
+        mConsumed = true;
+        mPublishedCount = mSelector.getTotalCount();
+        mLastConsumeTime = SystemClock.elapsedRealtime();
+        return mSelector.getFiles();
+    }// consume()
+
+    /**
+     * Gets a copy of all files collected so far, without consuming them.
+     * 
+     * @return a new list of collected files.
+     */
+    public synchronized List<FileSnapshot> getFiles() {
+        return mSelector.getFiles();
+    }// getFiles()
+
+    /**
+     * Checks if this listing has finished.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }// isFinished()
+
+    /**
+     * Records the error which stopped this listing. The listing still has to
+     * be finished with {@link #finish()}.
+     * 
+     * @param error
+     *            the error.
+     */
+    public synchronized void setError(Throwable error) {
+        mError = error;
+    }// setError()
+
+    /**
+     * Gets the error which stopped this listing.
+     * 
+     * @return the error, or {@code null} if there is none.
+     */
+    public synchronized Throwable getError() {
+        return mError;
+    }// getError()
+
+    /**
+     * Cancels this listing.
+     */
+    public void cancel() {
+        mToken.cancel();
+        synchronized (this) {
+            notifyAll();
+        }
+    }// cancel()
+
+    /**
+     * Checks if this listing has been cancelled.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isCancelled() {
+        return mToken.isCancelled();
+    }// isCancelled()
+
+    /**
+     * Gets the cancellation token of this task.
+     * 
+     * @return the token.
+     */
+    public CancellationToken getToken() {
+        return mToken;
+    }// getToken()
+}
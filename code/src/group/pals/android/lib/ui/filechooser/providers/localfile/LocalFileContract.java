@@ -25,4 +25,190 @@ public class LocalFileContract {
      * The unique ID of this provider.
      */
     public static final String _ID = "7dab9818-0a8b-47ef-88cc-10fe538bfaf7";
+
+    /*
+     * COMMANDS. These are handled by LocalFileProvider, in addition to the
+     * ones of BaseFile.
+     */
+
+    /**
+     * Use this command with
+     * {@link android.content.ContentResolver#update(android.net.Uri, android.content.ContentValues, String, String[])}
+     * to set how the notifications of changed directories are coalesced, for
+     * all watched directories. An isolated change is notified after
+     * {@link #_ParamInitialDelay}; under sustained changes the delay grows,
+     * up to {@link #_ParamMaxStaleness}, and it goes back to the initial
+     * delay after {@link #_ParamQuietPeriod} without changes. Missing
+     * parameters are reset to their defaults. The result is {@code 1}.
+     */
+    public static final String _CmdSetCoalescing = "set_coalescing";
+
+    /*
+     * PARAMETERS.
+     */
+
+    /**
+     * The delay of the notification of an isolated change, in milliseconds.
+     * Default is {@code 250}.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     * 
+     * @see #_CmdSetCoalescing
+     */
+    public static final String _ParamInitialDelay = "initial_delay";
+
+    /**
+     * The time without changes after which a directory is considered quiet,
+     * in milliseconds. Default is {@code 2000}.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     * 
+     * @see #_CmdSetCoalescing
+     */
+    public static final String _ParamQuietPeriod = "quiet_period";
+
+    /**
+     * The maximum time between a change and its notification, in
+     * milliseconds. Default is {@code 5000}.
+     * <p>
+     * Type: {@code Long}
+     * </p>
+     * 
+     * @see #_CmdSetCoalescing
+     */
+    public static final String _ParamMaxStaleness = "max_staleness";
+
+    /*
+     * STATISTICS. These are the names returned by
+     * BaseFile._CmdGetStats.
+     */
+
+    /**
+     * Number of directory listings served from the cache.
+     */
+    public static final String _StatListingCacheHits = "listing_cache_hits";
+
+    /**
+     * Number of directory listings which were not found in the cache.
+     */
+    public static final String _StatListingCacheMisses = "listing_cache_misses";
+
+    /**
+     * Number of cached listings evicted because the cache was full.
+     */
+    public static final String _StatListingCacheEvictions = "listing_cache_evictions";
+
+    /**
+     * Number of cached listings removed because their directories changed.
+     */
+    public static final String _StatListingCacheInvalidations = "listing_cache_invalidations";
+
+    /**
+     * Number of listings which were patched with the changes of their
+     * directories, instead of being listed again.
+     */
+    public static final String _StatListingCachePatches = "listing_cache_patches";
+
+    /**
+     * Number of listings in the cache.
+     */
+    public static final String _StatListingCacheEntries = "listing_cache_entries";
+
+    /**
+     * Estimated size of the cache, in bytes.
+     */
+    public static final String _StatListingCacheSize = "listing_cache_size";
+
+    /**
+     * Number of file queries which requested all columns (without
+     * projection).
+     */
+    public static final String _StatFullQueries = "full_queries";
+
+    /**
+     * Number of file queries which requested some columns (with projection).
+     */
+    public static final String _StatProjectedQueries = "projected_queries";
+
+    /**
+     * Prefix of the statistics of requested columns. Followed by a column
+     * name, it is the number of file queries which requested that column
+     * (queries without projection request all columns).
+     */
+    public static final String _StatColumnRequestsPrefix = "column_requests:";
+
+    /**
+     * Number of directories being watched for changes.
+     */
+    public static final String _StatWatchedDirectories = "watched_directories";
+
+    /**
+     * Number of file system events received by the directory observers.
+     */
+    public static final String _StatObserverEvents = "observer_events";
+
+    /**
+     * Number of change notifications sent by the directory observers, after
+     * coalescing the events.
+     */
+    public static final String _StatObserverNotifications = "observer_notifications";
+
+    /**
+     * Number of checksums served from the cache.
+     */
+    public static final String _StatChecksumCacheHits = "checksum_cache_hits";
+
+    /**
+     * Number of checksums which were not found in the cache.
+     */
+    public static final String _StatChecksumCacheMisses = "checksum_cache_misses";
+
+    /**
+     * Number of checksums in the cache.
+     */
+    public static final String _StatChecksumCacheEntries = "checksum_cache_entries";
+
+    /**
+     * Number of directories in the file index.
+     */
+    public static final String _StatIndexedDirectories = "indexed_directories";
+
+    /**
+     * Number of files in the file index.
+     */
+    public static final String _StatIndexedFiles = "indexed_files";
+
+    /**
+     * Number of directories waiting to be indexed.
+     */
+    public static final String _StatIndexPendingDirectories = "index_pending_directories";
+
+    /**
+     * Number of directories being watched to keep the file index fresh.
+     */
+    public static final String _StatIndexWatchedDirectories = "index_watched_directories";
+
+    /**
+     * Number of directory listings sorted.
+     */
+    public static final String _StatSorts = "sorts";
+
+    /**
+     * Total time spent on sorting directory listings, in milliseconds.
+     */
+    public static final String _StatSortTime = "sort_time";
+
+    /**
+     * Number of collation keys of file names served from the cache while
+     * sorting.
+     */
+    public static final String _StatSortKeyCacheHits = "sort_key_cache_hits";
+
+    /**
+     * Number of collation keys of file names which were not found in the
+     * cache while sorting.
+     */
+    public static final String _StatSortKeyCacheMisses = "sort_key_cache_misses";
 }
@@ -9,33 +9,38 @@ package group.pals.android.lib.ui.filechooser.providers.localfile;
 
 import group.pals.android.lib.ui.filechooser.BuildConfig;
 import group.pals.android.lib.ui.filechooser.R;
+import group.pals.android.lib.ui.filechooser.prefs.Prefs;
+import group.pals.android.lib.ui.filechooser.providers.BaseFileCursor;
 import group.pals.android.lib.ui.filechooser.providers.BaseFileProviderUtils;
 import group.pals.android.lib.ui.filechooser.providers.ProviderUtils;
 import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
 import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileProvider;
 import group.pals.android.lib.ui.filechooser.utils.FileUtils;
-import group.pals.android.lib.ui.filechooser.utils.TextUtils;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.CancellationException;
-import java.util.regex.Pattern;
+import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.MatrixCursor;
-import android.database.MatrixCursor.RowBuilder;
+import android.database.SQLException;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseBooleanArray;
 
 /**
  * Local file provider.
@@ -82,11 +87,6 @@ public class LocalFileProvider extends BaseFileProvider {
     private static final UriMatcher _UriMatcher = new UriMatcher(
             UriMatcher.NO_MATCH);
 
-    /**
-     * Map of task IDs to their interruption signals.
-     */
-    private static final SparseBooleanArray _MapInterruption = new SparseBooleanArray();
-
     static {
         _UriMatcher.addURI(LocalFileContract._Authority, BaseFile._PathDir
                 + "/*", _Directory);
@@ -98,8 +98,198 @@ public class LocalFileProvider extends BaseFileProvider {
                 + "/*", _ApiCommand);
     }// static
 
-    private final Collator mCollator = Collator.getInstance();
-    private FileObserverEx mFileObserverEx;
+    /**
+     * Number of files in a batch of a streaming listing.
+     */
+    private static final int _StreamingBatchSize = 200;
+
+    /**
+     * Maximum time to wait for the first batch of a streaming listing, in
+     * milliseconds.
+     */
+    private static final long _StreamingFirstBatchTimeout = 500;
+
+    /**
+     * Maximum number of directory listings in the cache.
+     */
+    private static final int _ListingCacheMaxEntries = 32;
+
+    /**
+     * Maximum estimated size of the listing cache, in bytes.
+     */
+    private static final long _ListingCacheMaxSize = 4 * 1024 * 1024;
+
+    /**
+     * A cached listing is listed again instead of being patched if the
+     * number of changes times this ratio exceeds its number of files (plus
+     * {@link #_MinPatchedListingSize}).
+     */
+    private static final int _MaxPatchRatio = 4;
+
+    /**
+     * Small listings are always patched, see {@link #_MaxPatchRatio}.
+     */
+    private static final int _MinPatchedListingSize = 256;
+
+    /**
+     * Maximum number of collation keys of file names to cache. Bigger
+     * listings are sorted without caching their keys.
+     */
+    private static final int _SortKeyCacheMaxSize = 8 * 1024;
+
+    /**
+     * Listings which have at least this number of files will be sorted in
+     * parallel.
+     */
+    private static final int _ParallelSortThreshold = 20000;
+
+    private final FileSorter mFileSorter = new FileSorter(
+            Collator.getInstance(), _SortKeyCacheMaxSize,
+            _ParallelSortThreshold);
+    private final DirectoryCache mDirectoryCache = new DirectoryCache(
+            _ListingCacheMaxEntries, _ListingCacheMaxSize);
+    /**
+     * Watches the directories of listings until their cursors are closed.
+     */
+    private FileObserverPool mFileObserverPool;
+
+    /**
+     * Cancellation tokens of running tasks.
+     */
+    private final CancellationRegistry mCancellationRegistry = new CancellationRegistry();
+
+    /**
+     * Running streaming listings, mapped by their task IDs and cache keys.
+     */
+    private final Map<String, ListingTask> mListingTasks = new HashMap<String, ListingTask>();
+
+    /**
+     * Maximum number of file tasks to keep, for their progress and errors.
+     */
+    private static final int _MaxFileTasks = 16;
+
+    /**
+     * Recent file tasks (deletions, copies...), mapped by their task IDs.
+     * Finished ones are kept for a while, so clients can still get their
+     * progress and errors.
+     */
+    private final Map<Integer, FileTask> mFileTasks = new LinkedHashMap<Integer, FileTask>() {
+
+        private static final long serialVersionUID = 2473582045183620386L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, FileTask> eldest) {
+            return size() > _MaxFileTasks && eldest.getValue().isFinished();
+        }// removeEldestEntry()
+    };
+
+    /**
+     * Maximum number of searches to keep.
+     */
+    private static final int _MaxSearchTasks = 16;
+
+    /**
+     * Recent searches, mapped by their task IDs. Finished ones are kept, so
+     * clients can query them again when they are notified.
+     */
+    private final Map<Integer, ListingTask> mSearchTasks = new LinkedHashMap<Integer, ListingTask>() {
+
+        private static final long serialVersionUID = -2896407416239453216L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, ListingTask> eldest) {
+            return size() > _MaxSearchTasks && eldest.getValue().isFinished();
+        }// removeEldestEntry()
+    };
+
+    /**
+     * Content searches, mapped by their task IDs. Finished ones are kept, so
+     * clients can query them again when they are notified.
+     */
+    private final Map<Integer, ContentSearchTask> mContentSearchTasks = new LinkedHashMap<Integer, ContentSearchTask>() {
+
+        private static final long serialVersionUID = 5017730546388204722L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Integer, ContentSearchTask> eldest) {
+            return size() > _MaxSearchTasks && eldest.getValue().isFinished();
+        }// removeEldestEntry()
+    };
+
+    /**
+     * Maximum length of the text of {@link BaseFile#_CmdContentSearch}, in
+     * bytes.
+     */
+    private static final int _MaxContentSearchQueryLength = 1024;
+
+    /**
+     * Default value of {@link BaseFile#_ParamMaxFileSize}.
+     */
+    private static final long _DefaultContentSearchMaxFileSize = 16 * 1024 * 1024;
+
+    /**
+     * The trash, created in {@link #onCreate()}.
+     */
+    private Trash mTrash;
+
+    /**
+     * The crawler of the file index, created on the first
+     * {@link BaseFile#_CmdIndexSearch}. Guarded by {@code this}.
+     */
+    private FileIndexCrawler mFileIndexCrawler;
+
+    /**
+     * Maximum number of checksums to cache.
+     */
+    private static final int _MaxCachedChecksums = 1024;
+
+    private final ChecksumCache mChecksumCache = new ChecksumCache(
+            _MaxCachedChecksums);
+
+    /**
+     * Notifies the clients which are watching {@link BaseFile#_CmdGetProgress}
+     * .
+     */
+    private final FileTask.OnPublishListener mFileTaskOnPublishListener = new FileTask.OnPublishListener() {
+
+        @Override
+        public void onPublish(FileTask task) {
+            getContext().getContentResolver().notifyChange(
+                    BaseFile.genContentUriApi(LocalFileContract._Authority)
+                            .buildUpon().appendPath(BaseFile._CmdGetProgress)
+                            .build(), null);
+        }// onPublish()
+    };
+
+    /**
+     * Number of file queries which requested each column of
+     * {@link BaseFileProviderUtils#_BaseFileCursorColumns}. Also used as the
+     * lock of {@link #mProjectedQueries} and {@link #mFullQueries}.
+     */
+    private final long[] mColumnRequests = new long[BaseFileProviderUtils._BaseFileCursorColumns.length];
+    private long mProjectedQueries = 0;
+    private long mFullQueries = 0;
+
+    @Override
+    public boolean onCreate() {
+        mFileObserverPool = new FileObserverPool(getContext(),
+                new FileObserverPool.OnChangeListener() {
+
+                    @Override
+                    public void onChange(String dirPath) {
+                        /*
+                         * The listings will be patched with the changes.
+                         */
+                        mDirectoryCache.markChanged(dirPath);
+                    }// onChange()
+                });
+        mTrash = new Trash(getContext().getPackageName());
+        mTrash.schedulePurge(Environment.getExternalStorageDirectory());
+        return super.onCreate();
+    }// onCreate()
 
     @Override
     public String getType(Uri uri) {
@@ -131,41 +321,63 @@ public class LocalFileProvider extends BaseFileProvider {
         case _File: {
             int taskId = ProviderUtils.getIntQueryParam(uri,
                     BaseFile._ParamTaskId, 0);
+            long timeout = ProviderUtils.getLongQueryParam(uri,
+                    BaseFile._ParamTimeout, 0);
 
             boolean isRecursive = ProviderUtils.getBooleanQueryParam(uri,
                     BaseFile._ParamRecursive, true);
+            boolean moveToTrash = ProviderUtils.getBooleanQueryParam(uri,
+                    BaseFile._ParamMoveToTrash, false);
             File file = extractFile(uri);
             if (file.canWrite()) {
                 File parentFile = file.getParentFile();
 
-                if (file.isFile() || !isRecursive) {
+                /*
+                 * If the file can't be moved to trash, it is left untouched,
+                 * the client decides whether to delete it permanently.
+                 */
+                if (moveToTrash) {
+                    if ((file.isFile() || isRecursive)
+                            && mTrash.moveToTrash(file))
+                        count = 1;
+                } else if (file.isFile() || !isRecursive) {
                     if (file.delete())
                         count = 1;
-                } else {
-                    _MapInterruption.put(taskId, false);
-                    count = deleteFile(taskId, file, isRecursive);
-                    if (_MapInterruption.get(taskId))
-                        if (BuildConfig.DEBUG)
-                            Log.d(_ClassName, "delete() >> cancelled...");
-                    _MapInterruption.delete(taskId);
-                }
+                } else
+                    count = runFileTask(
+                            new DeleteTask(Collections.singletonList(file),
+                                    mCancellationRegistry.register(taskId,
+                                            timeout)), taskId);
 
                 if (count > 0) {
-                    getContext().getContentResolver()
-                            .notifyChange(
-                                    BaseFile.genContentUriBase(
-                                            LocalFileContract._Authority)
-                                            .buildUpon()
-                                            .appendPath(
-                                                    Uri.fromFile(parentFile)
-                                                            .toString())
-                                            .build(), null);
+                    mDirectoryCache.invalidate(file.getAbsolutePath(), true);
+                    if (parentFile != null)
+                        mDirectoryCache.invalidate(
+                                parentFile.getAbsolutePath(), false);
+
+                    notifyDirectoryChanged(parentFile);
                 }
             }
 
             break;// _File
         }
 
+        case _ApiCommand: {
+            if (BaseFile._CmdResumableCopy.equals(uri.getLastPathSegment()))
+                return doDiscardCopyJob(uri);
+            if (!BaseFile._CmdDeleteFiles.equals(uri.getLastPathSegment()))
+                throw new IllegalArgumentException("Unknown URI " + uri);
+            if (selectionArgs == null || selectionArgs.length == 0)
+                break;
+
+            count = doDeleteFiles(uri, selectionArgs);
+
+            /*
+             * The parent directories have been notified.
+             */
+            return count;// _ApiCommand
+        }
+
         default:
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -179,6 +391,227 @@ public class LocalFileProvider extends BaseFileProvider {
         return count;
     }// delete()
 
+    /**
+     * Deletes many files as one task, see {@link BaseFile#_CmdDeleteFiles}.
+     * 
+     * @param uri
+     *            the request URI.
+     * @param fileUris
+     *            the URIs of the files.
+     * @return the number of given files which have been deleted.
+     */
+    private int doDeleteFiles(Uri uri, String[] fileUris) {
+        int taskId = ProviderUtils.getIntQueryParam(uri,
+                BaseFile._ParamTaskId, 0);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+        boolean isRecursive = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamRecursive, true);
+        boolean moveToTrash = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamMoveToTrash, false);
+
+        List<File> files = new ArrayList<File>();
+        List<File> remainingFiles = new ArrayList<File>();
+        for (String fileUri : fileUris) {
+            File file = new File(Uri.parse(fileUri).getPath());
+            if (!file.canWrite() || (!isRecursive && file.isDirectory()))
+                continue;
+
+            files.add(file);
+            if (!moveToTrash)
+                remainingFiles.add(file);
+            else if (!mTrash.moveToTrash(file) && BuildConfig.DEBUG)
+                Log.d(_ClassName, "doDeleteFiles() >> can't move to trash: "
+                        + file);
+        }
+
+        if (!remainingFiles.isEmpty())
+            runFileTask(new DeleteTask(remainingFiles,
+                    mCancellationRegistry.register(taskId, timeout)), taskId);
+
+        /*
+         * Invalidates the caches of all files, but notifies each parent
+         * directory only once.
+         */
+        int count = 0;
+        Set<File> parentFiles = new LinkedHashSet<File>();
+        for (File file : files) {
+            if (file.exists())
+                continue;
+
+            count++;
+            mDirectoryCache.invalidate(file.getAbsolutePath(), true);
+            File parentFile = file.getParentFile();
+            if (parentFile != null && parentFiles.add(parentFile))
+                mDirectoryCache.invalidate(parentFile.getAbsolutePath(),
+                        false);
+        }
+        for (File parentFile : parentFiles)
+            notifyDirectoryChanged(parentFile);
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "doDeleteFiles() >> %,d of %,d files deleted", count,
+                    fileUris.length));
+
+        return count;
+    }// doDeleteFiles()
+
+    /**
+     * Starts or resumes a resumable copy, see
+     * {@link BaseFile#_CmdResumableCopy}.
+     * 
+     * @param uri
+     *            the request URI.
+     * @return {@code 1} if the file has been copied, {@code 0} if not.
+     */
+    private int doResumableCopy(Uri uri) {
+        int taskId = ProviderUtils.getIntQueryParam(uri,
+                BaseFile._ParamTaskId, 0);
+        if (taskId == 0)
+            return 0;
+
+        /*
+         * The task is registered while holding the lock, so two requests of
+         * the same job can't run it at the same time.
+         */
+        File stateFile = getCopyJobFile(taskId);
+        ResumableCopyTask.State state;
+        ResumableCopyTask task;
+        synchronized (mFileTasks) {
+            FileTask runningTask = mFileTasks.get(taskId);
+            if (runningTask != null && !runningTask.isFinished())
+                return 0;
+
+            state = stateFile.isFile() ? ResumableCopyTask.State
+                    .load(stateFile) : null;
+            if (state == null) {
+                String source = uri.getQueryParameter(BaseFile._ParamSource);
+                String target = uri.getQueryParameter(BaseFile._ParamTarget);
+                if (source == null || target == null)
+                    return 0;
+
+                File sourceFile = new File(Uri.parse(source).getPath());
+                File targetDir = new File(Uri.parse(target).getPath());
+                if (!sourceFile.isFile() || !targetDir.isDirectory()
+                        || !targetDir.canWrite())
+                    return 0;
+
+                state = new ResumableCopyTask.State(stateFile, sourceFile,
+                        new File(targetDir, sourceFile.getName()));
+            }
+
+            task = new ResumableCopyTask(state,
+                    mCancellationRegistry.register(taskId, ProviderUtils
+                            .getLongQueryParam(uri, BaseFile._ParamTimeout, 0)));
+            mFileTasks.put(taskId, task);
+        }
+
+        runFileTask(task, taskId);
+        if (!task.isCompleted())
+            return 0;
+
+        File targetDir = state.getTarget().getParentFile();
+        mDirectoryCache.invalidate(targetDir.getAbsolutePath(), false);
+        notifyDirectoryChanged(targetDir);
+        return 1;
+    }// doResumableCopy()
+
+    /**
+     * Discards a resumable copy which is not running, along with its
+     * temporary file.
+     * 
+     * @param uri
+     *            the request URI.
+     * @return {@code 1} if the job has been discarded, {@code 0} if not.
+     */
+    private int doDiscardCopyJob(Uri uri) {
+        int taskId = ProviderUtils.getIntQueryParam(uri,
+                BaseFile._ParamTaskId, 0);
+        synchronized (mFileTasks) {
+            FileTask task = mFileTasks.get(taskId);
+            if (task != null && !task.isFinished())
+                return 0;
+
+            ResumableCopyTask.State state = ResumableCopyTask.State
+                    .load(getCopyJobFile(taskId));
+            if (state == null)
+                return 0;
+
+            state.delete();
+            return 1;
+        }
+    }// doDiscardCopyJob()
+
+    /**
+     * Gets the directory which keeps the states of resumable copies.
+     * 
+     * @return the directory.
+     */
+    private File getCopyJobsDir() {
+        return getContext().getDir(
+                Prefs.genDatabaseFilename(getContext(), "copy_jobs"),
+                Context.MODE_PRIVATE);
+    }// getCopyJobsDir()
+
+    /**
+     * Gets the state file of a resumable copy.
+     * 
+     * @param taskId
+     *            the task ID.
+     * @return the state file.
+     */
+    private File getCopyJobFile(int taskId) {
+        return new File(getCopyJobsDir(), Integer.toString(taskId));
+    }// getCopyJobFile()
+
+    /**
+     * Runs a file task on the calling thread. The task is kept in
+     * {@link #mFileTasks}, so clients can get its progress and errors.
+     * 
+     * @param task
+     *            the task, its token must have been registered to
+     *            {@link #mCancellationRegistry}.
+     * @param taskId
+     *            the task ID.
+     * @return the number of processed files and directories.
+     */
+    private int runFileTask(FileTask task, int taskId) {
+        task.setOnPublishListener(mFileTaskOnPublishListener);
+        if (taskId != 0) {
+            synchronized (mFileTasks) {
+                mFileTasks.put(taskId, task);
+            }
+        }
+
+        try {
+            int count = task.run();
+            if (task.getToken().isCancelled())
+                if (BuildConfig.DEBUG)
+                    Log.d(_ClassName, "runFileTask() >> cancelled...");
+            return count;
+        } finally {
+            mCancellationRegistry.unregister(task.getToken());
+        }
+    }// runFileTask()
+
+    /**
+     * Notifies the clients which are listing {@code dir}.
+     * 
+     * @param dir
+     *            the directory, can be {@code null}.
+     */
+    private void notifyDirectoryChanged(File dir) {
+        if (dir == null)
+            return;
+
+        getContext().getContentResolver().notifyChange(
+                BaseFile.genContentUriBase(LocalFileContract._Authority)
+                        .buildUpon()
+                        .appendPath(Uri.fromFile(dir).toString()).build(),
+                null);
+    }// notifyDirectoryChanged()
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         if (BuildConfig.DEBUG)
@@ -213,6 +646,8 @@ public class LocalFileProvider extends BaseFileProvider {
             }
 
             if (newFile.exists()) {
+                mDirectoryCache.invalidate(file.getAbsolutePath(), false);
+
                 Uri newUri = BaseFile
                         .genContentIdUriBase(LocalFileContract._Authority)
                         .buildUpon()
@@ -249,15 +684,29 @@ public class LocalFileProvider extends BaseFileProvider {
             return matrixCursor;
         }
         case _ApiCommand: {
-            return doAnswerApiCommand(uri);
+            if (BaseFile._CmdSearch.equals(uri.getLastPathSegment())) {
+                countColumnRequests(projection);
+                return doSearch(uri, projection, selection, selectionArgs,
+                        sortOrder);
+            }
+            if (BaseFile._CmdIndexSearch.equals(uri.getLastPathSegment())) {
+                countColumnRequests(projection);
+                return doIndexSearch(uri, projection, sortOrder);
+            }
+            if (BaseFile._CmdContentSearch.equals(uri.getLastPathSegment()))
+                return doContentSearch(uri);
+            return doAnswerApiCommand(uri, projection);
         }// _Api
 
         case _Directory: {
-            return doListFiles(uri);
+            countColumnRequests(projection);
+            return doListFiles(uri, projection, selection, selectionArgs,
+                    sortOrder);
         }// _Directory
 
         case _File: {
-            return doRetrieveFileInfo(uri);
+            countColumnRequests(projection);
+            return doRetrieveFileInfo(uri, projection);
         }// _File
 
         default:
@@ -268,12 +717,91 @@ public class LocalFileProvider extends BaseFileProvider {
     @Override
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, "update() >> " + uri);
+
+        if (_UriMatcher.match(uri) == _ApiCommand) {
+            if (BaseFile._CmdCopy.equals(uri.getLastPathSegment()))
+                return doCopyFiles(uri, selectionArgs, false);
+            if (BaseFile._CmdMove.equals(uri.getLastPathSegment()))
+                return doCopyFiles(uri, selectionArgs, true);
+            if (BaseFile._CmdResumableCopy.equals(uri.getLastPathSegment()))
+                return doResumableCopy(uri);
+            if (LocalFileContract._CmdSetCoalescing.equals(uri
+                    .getLastPathSegment())) {
+                mFileObserverPool.setCoalescing(ProviderUtils
+                        .getLongQueryParam(uri,
+                                LocalFileContract._ParamInitialDelay,
+                                FileObserverEx._DefaultInitialDelay),
+                        ProviderUtils.getLongQueryParam(uri,
+                                LocalFileContract._ParamQuietPeriod,
+                                FileObserverEx._DefaultQuietPeriod),
+                        ProviderUtils.getLongQueryParam(uri,
+                                LocalFileContract._ParamMaxStaleness,
+                                FileObserverEx._DefaultMaxStaleness));
+                return 1;
+            }
+        }
+
         /*
-         * Currently the library doesn't support this method.
+         * Currently the library doesn't support other updates.
          */
         throw new UnsupportedOperationException();
     }// update()
 
+    /**
+     * Copies or moves files into a directory, as one task. See
+     * {@link BaseFile#_CmdCopy} and {@link BaseFile#_CmdMove}.
+     * 
+     * @param uri
+     *            the request URI.
+     * @param fileUris
+     *            the URIs of the source files.
+     * @param move
+     *            {@code true} to move, {@code false} to copy.
+     * @return the number of copied (or moved) files and directories.
+     */
+    private int doCopyFiles(Uri uri, String[] fileUris, boolean move) {
+        String target = uri.getQueryParameter(BaseFile._ParamTarget);
+        if (fileUris == null || fileUris.length == 0 || target == null)
+            return 0;
+
+        File targetDir = new File(Uri.parse(target).getPath());
+        if (!targetDir.isDirectory() || !targetDir.canWrite())
+            return 0;
+
+        List<File> files = new ArrayList<File>();
+        for (String fileUri : fileUris)
+            files.add(new File(Uri.parse(fileUri).getPath()));
+
+        int taskId = ProviderUtils.getIntQueryParam(uri,
+                BaseFile._ParamTaskId, 0);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+        int count = runFileTask(new CopyTask(files, targetDir, move,
+                mCancellationRegistry.register(taskId, timeout)), taskId);
+
+        /*
+         * Notifies each changed directory once.
+         */
+        Set<File> dirs = new LinkedHashSet<File>();
+        dirs.add(targetDir);
+        if (move) {
+            for (File file : files) {
+                mDirectoryCache.invalidate(file.getAbsolutePath(), true);
+                File parentFile = file.getParentFile();
+                if (parentFile != null)
+                    dirs.add(parentFile);
+            }
+        }
+        for (File dir : dirs) {
+            mDirectoryCache.invalidate(dir.getAbsolutePath(), false);
+            notifyDirectoryChanged(dir);
+        }
+
+        return count;
+    }// doCopyFiles()
+
     /*
      * UTILITIES
      */
@@ -283,45 +811,70 @@ public class LocalFileProvider extends BaseFileProvider {
      * 
      * @param uri
      *            the request URI.
+     * @param projection
+     *            the requested columns of commands which return files, can be
+     *            {@code null}.
      * @return the response.
      */
-    private MatrixCursor doAnswerApiCommand(Uri uri) {
-        MatrixCursor matrixCursor = null;
+    private Cursor doAnswerApiCommand(Uri uri, String[] projection) {
+        Cursor result = null;
 
         if (BaseFile._CmdCancel.equals(uri.getLastPathSegment())) {
             int taskId = ProviderUtils.getIntQueryParam(uri,
                     BaseFile._ParamTaskId, 0);
-            synchronized (_MapInterruption) {
-                if (taskId == 0) {
-                    for (int i = 0; i < _MapInterruption.size(); i++)
-                        _MapInterruption.put(_MapInterruption.keyAt(i), true);
-                } else if (_MapInterruption.indexOfKey(taskId) >= 0)
-                    _MapInterruption.put(taskId, true);
+            int count = mCancellationRegistry.cancel(taskId);
+
+            /*
+             * Wake up the clients which are waiting for cancelled streaming
+             * listings.
+             */
+            synchronized (mListingTasks) {
+                for (Iterator<ListingTask> i = mListingTasks.values()
+                        .iterator(); i.hasNext();) {
+                    ListingTask task = i.next();
+                    if (task.isCancelled()) {
+                        task.cancel();
+                        i.remove();
+                    }
+                }
+            }
+            synchronized (mSearchTasks) {
+                for (Iterator<ListingTask> i = mSearchTasks.values()
+                        .iterator(); i.hasNext();) {
+                    ListingTask task = i.next();
+                    if (task.isCancelled()) {
+                        task.cancel();
+                        i.remove();
+                    }
+                }
+            }
+            synchronized (mContentSearchTasks) {
+                for (Iterator<ContentSearchTask> i = mContentSearchTasks
+                        .values().iterator(); i.hasNext();) {
+                    ContentSearchTask task = i.next();
+                    if (task.getToken().isCancelled()) {
+                        task.cancel();
+                        i.remove();
+                    }
+                }
             }
+
+            if (BuildConfig.DEBUG)
+                Log.d(_ClassName, String.format(
+                        "cancel() >> task %d >> cancelled %,d tasks", taskId,
+                        count));
             return null;
         } else if (BaseFile._CmdGetDefaultPath.equals(uri.getLastPathSegment())) {
-            matrixCursor = BaseFileProviderUtils.newBaseFileCursor();
+            countColumnRequests(projection);
+            BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(1,
+                    projection);
 
             File file = Environment.getExternalStorageDirectory();
             if (file == null || !file.isDirectory())
                 file = new File("/");
-            int type = file.isFile() ? BaseFile._FileTypeFile : (file
-                    .isDirectory() ? BaseFile._FileTypeDirectory
-                    : BaseFile._FileTypeUnknown);
-            RowBuilder newRow = matrixCursor.newRow();
-            newRow.add(0);// _ID
-            newRow.add(BaseFile
-                    .genContentIdUriBase(LocalFileContract._Authority)
-                    .buildUpon().appendPath(Uri.fromFile(file).toString())
-                    .build().toString());
-            newRow.add(file.getAbsolutePath());
-            newRow.add(file.getName());
-            newRow.add(file.canRead() ? 1 : 0);
-            newRow.add(file.canWrite() ? 1 : 0);
-            newRow.add(file.length());
-            newRow.add(type);
-            newRow.add(file.lastModified());
-            newRow.add(FileUtils.getResIcon(type, file.getName()));
+            addFileRow(cursor, 0,
+                    FileSnapshot.take(file, getRequiredAttributes(cursor)));
+            result = cursor;
         }// get default path
         else if (BaseFile._CmdIsAncestorOf.equals(uri.getLastPathSegment())) {
             return doCheckAncestor(uri);
@@ -332,27 +885,118 @@ public class LocalFileProvider extends BaseFileProvider {
             if (file == null)
                 return null;
 
-            matrixCursor = BaseFileProviderUtils.newBaseFileCursor();
+            countColumnRequests(projection);
+            BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(1,
+                    projection);
+            addFileRow(cursor, 0,
+                    FileSnapshot.take(file, getRequiredAttributes(cursor)));
+            result = cursor;
+        } else if (BaseFile._CmdGetProgress.equals(uri.getLastPathSegment())) {
+            FileTask task = getFileTask(uri);
+            if (task != null) {
+                MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                        BaseFile._ColumnProgressCount,
+                        BaseFile._ColumnProgressBytes,
+                        BaseFile._ColumnProgressPath,
+                        BaseFile._ColumnErrorCount, BaseFile._ColumnFinished,
+                        BaseFile._ColumnProgressSpeed });
+                matrixCursor.newRow().add(task.getCount())
+                        .add(task.getBytes()).add(task.getCurrentPath())
+                        .add(task.getErrorCount())
+                        .add(task.isFinished() ? 1 : 0).add(task.getSpeed());
+                result = matrixCursor;
+            }
+        } else if (BaseFile._CmdGetErrors.equals(uri.getLastPathSegment())) {
+            FileTask task = getFileTask(uri);
+            if (task != null) {
+                MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                        BaseFile._ColumnPath, BaseFile._ColumnErrorMessage });
+                for (FileTask.Error error : task.getErrors())
+                    matrixCursor.newRow().add(error.getPath())
+                            .add(error.getMessage());
+                result = matrixCursor;
+            }
+        } else if (BaseFile._CmdGetCopyJobs.equals(uri.getLastPathSegment())) {
+            int taskId = ProviderUtils.getIntQueryParam(uri,
+                    BaseFile._ParamTaskId, 0);
+            File[] files = taskId != 0 ? new File[] { getCopyJobFile(taskId) }
+                    : getCopyJobsDir().listFiles();
 
-            int type = file.isFile() ? BaseFile._FileTypeFile : (file
-                    .isDirectory() ? BaseFile._FileTypeDirectory : (file
-                    .exists() ? BaseFile._FileTypeUnknown
-                    : BaseFile._FileTypeNotExisted));
+            MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                    BaseFile._ColumnTaskId, BaseFile._ColumnPath,
+                    BaseFile._ColumnTargetPath, BaseFile._ColumnSize,
+                    BaseFile._ColumnProgressBytes });
+            if (files != null) {
+                for (File file : files) {
+                    int id;
+                    try {
+                        id = Integer.parseInt(file.getName());
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
 
-            RowBuilder newRow = matrixCursor.newRow();
-            newRow.add(0);// _ID
-            newRow.add(BaseFile
-                    .genContentIdUriBase(LocalFileContract._Authority)
-                    .buildUpon().appendPath(Uri.fromFile(file).toString())
-                    .build().toString());
-            newRow.add(file.getAbsolutePath());
-            newRow.add(file.getName());
-            newRow.add(file.canRead() ? 1 : 0);
-            newRow.add(file.canWrite() ? 1 : 0);
-            newRow.add(file.length());
-            newRow.add(type);
-            newRow.add(file.lastModified());
-            newRow.add(FileUtils.getResIcon(type, file.getName()));
+                    ResumableCopyTask.State state = ResumableCopyTask.State
+                            .load(file);
+                    if (state != null)
+                        matrixCursor.newRow().add(id)
+                                .add(state.getSource().getAbsolutePath())
+                                .add(state.getTarget().getAbsolutePath())
+                                .add(state.getSize()).add(state.getOffset());
+                }
+            }
+            result = matrixCursor;
+        } else if (BaseFile._CmdChecksum.equals(uri.getLastPathSegment())) {
+            return doComputeChecksums(uri);
+        } else if (BaseFile._CmdRestore.equals(uri.getLastPathSegment())) {
+            String source = uri.getQueryParameter(BaseFile._ParamSource);
+            if (source == null)
+                return null;
+
+            File file = new File(Uri.parse(source).getPath());
+            if (!mTrash.restore(file))
+                return null;
+
+            File parentFile = file.getParentFile();
+            if (parentFile != null) {
+                mDirectoryCache.invalidate(parentFile.getAbsolutePath(), false);
+                notifyDirectoryChanged(parentFile);
+            }
+
+            countColumnRequests(projection);
+            BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(1,
+                    projection);
+            addFileRow(cursor, 0,
+                    FileSnapshot.take(file, getRequiredAttributes(cursor)));
+            result = cursor;
+        } else if (BaseFile._CmdGetStats.equals(uri.getLastPathSegment())) {
+            MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                    BaseFile._ColumnStatName, BaseFile._ColumnStatValue });
+            for (Map.Entry<String, Long> stat : mDirectoryCache.getStats()
+                    .entrySet())
+                matrixCursor.newRow().add(stat.getKey()).add(stat.getValue());
+            for (Map.Entry<String, Long> stat : getColumnRequestStats()
+                    .entrySet())
+                matrixCursor.newRow().add(stat.getKey()).add(stat.getValue());
+            for (Map.Entry<String, Long> stat : mFileObserverPool.getStats()
+                    .entrySet())
+                matrixCursor.newRow().add(stat.getKey()).add(stat.getValue());
+            for (Map.Entry<String, Long> stat : mChecksumCache.getStats()
+                    .entrySet())
+                matrixCursor.newRow().add(stat.getKey()).add(stat.getValue());
+            for (Map.Entry<String, Long> stat : mFileSorter.getStats()
+                    .entrySet())
+                matrixCursor.newRow().add(stat.getKey()).add(stat.getValue());
+            FileIndexCrawler crawler;
+            synchronized (this) {
+                crawler = mFileIndexCrawler;
+            }
+            if (crawler != null) {
+                for (Map.Entry<String, Long> stat : crawler.getStats()
+                        .entrySet())
+                    matrixCursor.newRow().add(stat.getKey())
+                            .add(stat.getValue());
+            }
+            result = matrixCursor;
         } else if (BaseFile._CmdShutdown.equals(uri.getLastPathSegment())) {
             /*
              * TODO Stop all tasks. If the activity call this command in
@@ -360,38 +1004,103 @@ public class LocalFileProvider extends BaseFileProvider {
              * started next time the activity starts. So we comment out this.
              * Let the Android system do what it wants to do!!!! I hate this.
              */
-            // synchronized (_MapInterruption) {
-            // for (int i = 0; i < _MapInterruption.size(); i++)
-            // _MapInterruption.put(_MapInterruption.keyAt(i), true);
-            // }
-
-            if (mFileObserverEx != null) {
-                mFileObserverEx.stopWatching();
-                mFileObserverEx = null;
+            // mCancellationRegistry.cancel(0);
+
+            mFileObserverPool.clear();
+            mChecksumCache.clear();
+            synchronized (this) {
+                if (mFileIndexCrawler != null) {
+                    mFileIndexCrawler.stop();
+                    mFileIndexCrawler = null;
+                }
             }
         }
 
-        return matrixCursor;
+        return result;
     }// doAnswerApiCommand()
 
+    /**
+     * Computes the checksums of a file, or of all files in a directory.
+     * 
+     * @param uri
+     *            the original URI from client.
+     * @return the checksums, see {@link BaseFile#_CmdChecksum}; or
+     *         {@code null} if the file doesn't exist or the algorithm is not
+     *         supported.
+     */
+    private Cursor doComputeChecksums(Uri uri) {
+        String source = uri.getQueryParameter(BaseFile._ParamSource);
+        if (source == null)
+            return null;
+
+        File file = new File(Uri.parse(source).getPath());
+        if (!file.exists())
+            return null;
+
+        String algorithm = uri.getQueryParameter(BaseFile._ParamAlgorithm);
+        if (android.text.TextUtils.isEmpty(algorithm))
+            algorithm = BaseFile._ChecksumSha256;
+        boolean recursive = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamRecursive, true);
+        int taskId = ProviderUtils.getIntQueryParam(uri,
+                BaseFile._ParamTaskId, 0);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+
+        CancellationToken token = mCancellationRegistry.register(taskId,
+                timeout);
+        ChecksumTask task;
+        try {
+            task = new ChecksumTask(file, recursive, algorithm,
+                    mChecksumCache, token);
+        } catch (IllegalArgumentException e) {
+            mCancellationRegistry.unregister(token);
+            Log.e(_ClassName, "doComputeChecksums() >> " + e);
+            return null;
+        }
+        runFileTask(task, taskId);
+
+        MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                BaseFile._ColumnPath, BaseFile._ColumnSize,
+                BaseFile._ColumnChecksum, BaseFile._ColumnProgressSpeed });
+        for (ChecksumTask.Result result : task.getResults())
+            matrixCursor.newRow().add(result.getPath()).add(result.getSize())
+                    .add(result.getChecksum()).add(result.getSpeed());
+        return matrixCursor;
+    }// doComputeChecksums()
+
     /**
      * Lists the content of a directory, if available.
+     * <p>
+     * If {@link BaseFile#_ParamStreaming} is {@code true}, the listing runs
+     * in background and this method returns as soon as the first batch of
+     * files is ready. The directory-info row then has
+     * {@link BaseFile#_ParamLoading} set to {@code true}, and the clients are
+     * notified via {@code uri} when more files are ready.
+     * </p>
      * 
      * @param uri
      *            the URI pointing to a directory.
+     * @param projection
+     *            the requested columns, can be {@code null}.
+     * @param selection
+     *            the selection, see {@link FilePredicate}. Can be
+     *            {@code null}.
+     * @param selectionArgs
+     *            the selection args, can be {@code null}.
+     * @param sortOrder
+     *            the sort order, see {@link #applySortOrder(String, int[])}.
+     *            Can be {@code null}.
      * @return the content of a directory, or {@code null} if not available.
      */
-    private MatrixCursor doListFiles(Uri uri) {
-        MatrixCursor matrixCursor = BaseFileProviderUtils.newBaseFileCursor();
+    private BaseFileCursor doListFiles(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
 
-        File dir = extractFile(uri);
+        final File dir = extractFile(uri);
 
         if (BuildConfig.DEBUG)
             Log.d(_ClassName, "srcFile = " + dir);
 
-        if (!dir.isDirectory() || !dir.canRead())
-            return null;
-
         /*
          * Prepare params...
          */
@@ -403,6 +1112,12 @@ public class LocalFileProvider extends BaseFileProvider {
                 BaseFile._ParamSortAscending, true);
         int sortBy = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamSortBy,
                 BaseFile._SortByName);
+        if (!android.text.TextUtils.isEmpty(sortOrder)) {
+            int[] sort = { sortBy, sortAscending ? 1 : 0 };
+            applySortOrder(sortOrder, sort);
+            sortBy = sort[0];
+            sortAscending = sort[1] != 0;
+        }
         int filterMode = ProviderUtils.getIntQueryParam(uri,
                 BaseFile._ParamFilterMode, BaseFile._FilterFilesAndDirectories);
         int limit = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamLimit,
@@ -411,325 +1126,1242 @@ public class LocalFileProvider extends BaseFileProvider {
                 .getQueryParameter(BaseFile._ParamPositiveRegexFilter);
         String negativeRegex = uri
                 .getQueryParameter(BaseFile._ParamNegativeRegexFilter);
+        boolean streaming = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamStreaming);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
 
-        _MapInterruption.put(taskId, false);
-
-        boolean[] hasMoreFiles = { false };
-        List<File> files = new ArrayList<File>();
-        listFiles(taskId, dir, showHiddenFiles, filterMode, limit,
-                positiveRegex, negativeRegex, files, hasMoreFiles);
-        if (!_MapInterruption.get(taskId)) {
-            sortFiles(taskId, files, sortAscending, sortBy);
-            if (!_MapInterruption.get(taskId)) {
-                for (int i = 0; i < files.size(); i++) {
-                    if (_MapInterruption.get(taskId))
-                        break;
+        /*
+         * Only read the attributes which are requested or needed for sorting
+         * and selection. Creating the cursor also validates the projection.
+         */
+        BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(0,
+                projection);
+        FilePredicate predicate = FilePredicate.compile(selection,
+                selectionArgs);
+        int attributes = getRequiredAttributes(cursor);
+        if (predicate != null)
+            attributes |= predicate.getAttributes();
+        if (sortBy == BaseFile._SortBySize)
+            attributes |= FileSnapshot._AttrSize;
+        else if (sortBy == BaseFile._SortByModificationTime)
+            attributes |= FileSnapshot._AttrModificationTime;
+
+        ListingFilter filter = ListingFilter.get(showHiddenFiles, filterMode,
+                positiveRegex, negativeRegex,
+                uri.getQueryParameter(BaseFile._ParamGlobFilter),
+                uri.getQueryParameter(BaseFile._ParamExtensionFilter),
+                uri.getQueryParameter(BaseFile._ParamMimeTypeFilter));
+        String cacheKey = genListingCacheKey(dir, filter, predicate,
+                attributes, limit, sortBy, sortAscending);
 
-                    File f = files.get(i);
-                    int type = f.isFile() ? BaseFile._FileTypeFile : (f
-                            .isDirectory() ? BaseFile._FileTypeDirectory
-                            : BaseFile._FileTypeUnknown);
-                    RowBuilder newRow = matrixCursor.newRow();
-                    newRow.add(i);// _ID
-                    newRow.add(BaseFile
-                            .genContentIdUriBase(LocalFileContract._Authority)
-                            .buildUpon().appendPath(Uri.fromFile(f).toString())
-                            .build().toString());
-                    newRow.add(f.getAbsolutePath());
-                    newRow.add(f.getName());
-                    newRow.add(f.canRead() ? 1 : 0);
-                    newRow.add(f.canWrite() ? 1 : 0);
-                    newRow.add(f.length());
-                    newRow.add(type);
-                    newRow.add(f.lastModified());
-                    newRow.add(FileUtils.getResIcon(type, f.getName()));
-                }// for files
+        /*
+         * Watch the directory before reading the cache or listing the
+         * directory, so no changes are missed. If the listing finishes, the
+         * directory is watched until the cursor is closed.
+         */
+        final String dirPath = dir.getAbsolutePath();
+        final Uri notificationUri = uri;
+        mFileObserverPool.acquire(dirPath, notificationUri);
+        boolean watching = false;
 
-                /*
-                 * The last row contains:
-                 * 
-                 * - The ID;
-                 * 
-                 * - The base file URI to original directory, which has
-                 * parameter BaseFile._ParamHasMoreFiles to indicate the
-                 * directory has more files or not.
-                 * 
-                 * - The system absolute path to original directory.
-                 * 
-                 * - The name of original directory.
-                 */
-                RowBuilder newRow = matrixCursor.newRow();
-                newRow.add(files.size());// _ID
-                newRow.add(BaseFile
-                        .genContentIdUriBase(LocalFileContract._Authority)
-                        .buildUpon()
-                        .appendPath(Uri.fromFile(dir).toString())
-                        .appendQueryParameter(BaseFile._ParamHasMoreFiles,
-                                Boolean.toString(hasMoreFiles[0])).build()
-                        .toString());
-                newRow.add(dir.getAbsolutePath());
-                newRow.add(dir.getName());
+        /*
+         * This query has its own token, a streaming listing has another one,
+         * since it can outlive the query.
+         */
+        CancellationToken token = mCancellationRegistry.register(taskId,
+                timeout);
+        ListingTask task = null;
+        boolean finished;
+        boolean sorted = false;
+        int totalCount;
+        List<FileSnapshot> files;
+        try {
+            DirectoryCache.Entry cacheEntry = getCachedListing(cacheKey, dir,
+                    filter, predicate, attributes, limit, sortBy,
+                    sortAscending);
+            mDirectoryCache.countRequest(cacheEntry != null);
+            if (cacheEntry != null) {
+                finished = true;
+                sorted = true;
+                totalCount = cacheEntry.getTotalCount();
+                files = cacheEntry.getFiles();
+            } else {
+                if (!dir.isDirectory() || !dir.canRead())
+                    return null;
+
+                if (streaming) {
+                    task = getStreamingListingTask(uri, cacheKey, taskId,
+                            timeout, dir, filter, predicate, attributes, limit,
+                            sortBy, sortAscending);
+                    task.awaitFirstBatch(_StreamingFirstBatchTimeout);
+
+                    /*
+                     * Read the states before consuming the files, so the files
+                     * are always up to date with the states.
+                     */
+                    finished = task.isFinished();
+                    totalCount = task.getTotalCount();
+                    files = task.consume();
+                } else {
+                    /*
+                     * The generation goes first, see getCachedListing().
+                     */
+                    long generation = mDirectoryCache.getGeneration();
+                    long changeSeq = mFileObserverPool.getSequence();
+                    long dirLastModified = dir.lastModified();
+
+                    task = new ListingTask(cacheKey, Integer.MAX_VALUE,
+                            mFileSorter.newSelector(sortBy, sortAscending,
+                                    limit), token);
+                    listFiles(dir, filter, predicate, attributes, task);
+
+                    /*
+                     * Listings are cached in sort order, so they can be
+                     * patched later.
+                     */
+                    files = task.getFiles();
+                    sorted = !isListingCancelled(token, task)
+                            && sortFiles(token, task, files, sortAscending,
+                                    sortBy);
+                    if (sorted)
+                        mDirectoryCache.put(cacheKey, new DirectoryCache.Entry(
+                                dirPath, dirLastModified, files,
+                                task.getTotalCount(), changeSeq), generation);
+                    task.finish();
+
+                    finished = true;
+                    totalCount = task.getTotalCount();
+                }
             }
-        }
 
-        try {
-            if (_MapInterruption.get(taskId)) {
+            cursor.ensureCapacity(files.size() + 1);
+            if (!isListingCancelled(token, task)) {
+                if (!sorted)
+                    sortFiles(token, task, files, sortAscending, sortBy);
+                if (!isListingCancelled(token, task)) {
+                    int parent = addParent(cursor, dir);
+                    for (int i = 0; i < files.size(); i++) {
+                        if (isListingCancelled(token, task))
+                            break;
+                        addFileRow(cursor, i, parent, files.get(i));
+                    }// for files
+
+                    /*
+                     * The last row contains:
+                     * 
+                     * - The ID;
+                     * 
+                     * - The base file URI to original directory, which has
+                     * parameter BaseFile._ParamHasMoreFiles to indicate the
+                     * directory has more files or not, parameter
+                     * BaseFile._ParamTotalCount for the total number of
+                     * matching files, and parameter BaseFile._ParamLoading if
+                     * the listing is still running.
+                     * 
+                     * - The system absolute path to original directory.
+                     * 
+                     * - The name of original directory.
+                     */
+                    Uri.Builder uriInfo = BaseFile
+                            .genContentIdUriBase(LocalFileContract._Authority)
+                            .buildUpon()
+                            .appendPath(Uri.fromFile(dir).toString())
+                            .appendQueryParameter(BaseFile._ParamHasMoreFiles,
+                                    Boolean.toString(totalCount > files.size()))
+                            .appendQueryParameter(BaseFile._ParamTotalCount,
+                                    Integer.toString(totalCount));
+                    if (!finished)
+                        uriInfo.appendQueryParameter(BaseFile._ParamLoading,
+                                Boolean.toString(true));
+
+                    cursor.addInfoRow(files.size(), uriInfo.build().toString(),
+                            dir.getAbsolutePath(), dir.getName());
+                }
+            }
+
+            if (isListingCancelled(token, task)) {
                 if (BuildConfig.DEBUG)
                     Log.d(_ClassName, "query() >> cancelled...");
                 return null;
             }
+
+            /*
+             * Only keep watching the directory if the listing has finished,
+             * and stop watching it when the last cursor of it is closed.
+             */
+            if (finished) {
+                cursor.setOnCloseListener(new BaseFileCursor.OnCloseListener() {
+
+                    @Override
+                    public void onClose(BaseFileCursor cursor) {
+                        mFileObserverPool.release(dirPath, notificationUri);
+                    }// onClose()
+                });
+                watching = true;
+            }
         } finally {
-            _MapInterruption.delete(taskId);
+            mCancellationRegistry.unregister(token);
+            if (!watching)
+                mFileObserverPool.release(dirPath, notificationUri);
         }
 
-        if (mFileObserverEx != null)
-            mFileObserverEx.stopWatching();
-        mFileObserverEx = new FileObserverEx(getContext(),
-                dir.getAbsolutePath(), uri);
-        mFileObserverEx.startWatching();
-
         /*
          * Tells the Cursor what URI to watch, so it knows when its source data
          * changes.
          */
-        matrixCursor.setNotificationUri(getContext().getContentResolver(), uri);
-        return matrixCursor;
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
     }// doListFiles()
 
     /**
-     * Retrieves file information of a single file.
+     * Gets the running streaming listing of {@code cacheKey} and
+     * {@code taskId}, or starts a new one if there is none. The listing has
+     * its own cancellation token, which is registered with {@code taskId}
+     * until the listing finishes.
      * 
      * @param uri
-     *            the URI pointing to a file.
-     * @return the file information. Can be {@code null}, based on the input
-     *         parameters.
+     *            the original URI.
+     * @param cacheKey
+     *            the key to put the result into the listing cache.
+     * @param taskId
+     *            the task ID.
+     * @param timeout
+     *            the timeout of the listing, in milliseconds.
+     * @param dir
+     *            the source directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @param limit
+     *            the limit.
+     * @param sortBy
+     *            the sort mode.
+     * @param sortAscending
+     *            the sort order.
+     * @return the listing task.
      */
-    private MatrixCursor doRetrieveFileInfo(Uri uri) {
-        MatrixCursor matrixCursor = BaseFileProviderUtils.newBaseFileCursor();
-
-        File file = extractFile(uri);
-        int type = file.isFile() ? BaseFile._FileTypeFile
-                : (file.isDirectory() ? BaseFile._FileTypeDirectory : (file
-                        .exists() ? BaseFile._FileTypeUnknown
-                        : BaseFile._FileTypeNotExisted));
-        RowBuilder newRow = matrixCursor.newRow();
-        newRow.add(0);// _ID
-        newRow.add(BaseFile.genContentIdUriBase(LocalFileContract._Authority)
-                .buildUpon().appendPath(Uri.fromFile(file).toString()).build()
-                .toString());
-        newRow.add(file.getAbsolutePath());
-        newRow.add(file.getName());
-        newRow.add(file.canRead() ? 1 : 0);
-        newRow.add(file.canWrite() ? 1 : 0);
-        newRow.add(file.length());
-        newRow.add(type);
-        newRow.add(file.lastModified());
-        newRow.add(FileUtils.getResIcon(type, file.getName()));
+    private ListingTask getStreamingListingTask(final Uri uri,
+            final String cacheKey, int taskId, long timeout, final File dir,
+            final ListingFilter filter, final FilePredicate predicate,
+            final int attributes, int limit, final int sortBy,
+            final boolean sortAscending) {
+        /*
+         * The same URI can be queried with different projections, selections
+         * and sort orders, so the task is identified by the cache key, which
+         * has all of them. Clients which use different task IDs never share
+         * or cancel each other's listings.
+         */
+        final String key = taskId + "\0" + cacheKey;
+        synchronized (mListingTasks) {
+            ListingTask task = mListingTasks.get(key);
+            if (task != null && !task.isCancelled())
+                return task;
+
+            final ListingTask newTask = new ListingTask(cacheKey,
+                    _StreamingBatchSize, mFileSorter.newSelector(sortBy,
+                            sortAscending, limit),
+                    mCancellationRegistry.register(taskId, timeout)) {
+
+                @Override
+                protected void onPublish() {
+                    if (!isCancelled())
+                        getContext().getContentResolver().notifyChange(uri,
+                                null);
+                }// onPublish()
+            };
+            mListingTasks.put(key, newTask);
+
+            new Thread(_ClassName) {
+
+                @Override
+                public void run() {
+                    long generation = mDirectoryCache.getGeneration();
+                    long changeSeq = mFileObserverPool.getSequence();
+                    long dirLastModified = dir.lastModified();
+
+                    try {
+                        listFiles(dir, filter, predicate, attributes, newTask);
+
+                        List<FileSnapshot> files = newTask.getFiles();
+                        if (!newTask.isCancelled()
+                                && mFileSorter.sort(files, sortBy,
+                                        sortAscending, newTask.getToken()))
+                            mDirectoryCache.put(cacheKey,
+                                    new DirectoryCache.Entry(dir
+                                            .getAbsolutePath(),
+                                            dirLastModified, files, newTask
+                                                    .getTotalCount(),
+                                            changeSeq), generation);
+                    } catch (RuntimeException e) {
+                        Log.e(_ClassName, "getStreamingListingTask() >> " + e);
+                        newTask.setError(e);
+                    } finally {
+                        mCancellationRegistry.unregister(newTask.getToken());
+                        synchronized (mListingTasks) {
+                            if (mListingTasks.get(key) == newTask)
+                                mListingTasks.remove(key);
+                        }
+                        newTask.finish();
+                    }
+                }// run()
+            }.start();
+
+            return newTask;
+        }
+    }// getStreamingListingTask()
+
+    /**
+     * Searches a directory and its sub directories, see
+     * {@link BaseFile#_CmdSearch}.
+     * 
+     * @param uri
+     *            the original URI from client.
+     * @param projection
+     *            the requested columns, can be {@code null}.
+     * @param selection
+     *            the selection, see {@link FilePredicate}. Can be
+     *            {@code null}.
+     * @param selectionArgs
+     *            the selection args, can be {@code null}.
+     * @param sortOrder
+     *            the sort order, see {@link #applySortOrder(String, int[])}.
+     *            Can be {@code null}.
+     * @return the files found so far, or {@code null} if the directory is
+     *         not available or the search has been cancelled.
+     */
+    private BaseFileCursor doSearch(Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String sortOrder) {
+        String source = uri.getQueryParameter(BaseFile._ParamSource);
+        if (source == null)
+            return null;
+
+        File dir = new File(Uri.parse(source).getPath());
+        if (!dir.isDirectory() || !dir.canRead())
+            return null;
+
+        /*
+         * Prepare params...
+         */
+        int taskId = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamTaskId,
+                0);
+        boolean sortAscending = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamSortAscending, true);
+        int sortBy = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamSortBy,
+                BaseFile._SortByName);
+        if (!android.text.TextUtils.isEmpty(sortOrder)) {
+            int[] sort = { sortBy, sortAscending ? 1 : 0 };
+            applySortOrder(sortOrder, sort);
+            sortBy = sort[0];
+            sortAscending = sort[1] != 0;
+        }
+        int limit = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamLimit,
+                1000);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+
+        BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(0,
+                projection);
+        FilePredicate predicate = FilePredicate.compile(selection,
+                selectionArgs);
+        int attributes = getRequiredAttributes(cursor);
+        if (predicate != null)
+            attributes |= predicate.getAttributes();
+        if (sortBy == BaseFile._SortBySize)
+            attributes |= FileSnapshot._AttrSize;
+        else if (sortBy == BaseFile._SortByModificationTime)
+            attributes |= FileSnapshot._AttrModificationTime;
+
+        ListingFilter filter = ListingFilter.get(
+                ProviderUtils.getBooleanQueryParam(uri,
+                        BaseFile._ParamShowHiddenFiles),
+                ProviderUtils.getIntQueryParam(uri, BaseFile._ParamFilterMode,
+                        BaseFile._FilterFilesAndDirectories),
+                uri.getQueryParameter(BaseFile._ParamPositiveRegexFilter),
+                uri.getQueryParameter(BaseFile._ParamNegativeRegexFilter),
+                uri.getQueryParameter(BaseFile._ParamGlobFilter),
+                uri.getQueryParameter(BaseFile._ParamExtensionFilter),
+                uri.getQueryParameter(BaseFile._ParamMimeTypeFilter));
+        String key = genListingCacheKey(dir, filter, predicate, attributes,
+                limit, sortBy, sortAscending);
+
+        CancellationToken token = mCancellationRegistry.register(taskId,
+                timeout);
+        try {
+            ListingTask task = getSearchTask(uri, key, taskId, timeout, dir,
+                    filter, predicate, attributes, limit, sortBy,
+                    sortAscending);
+            task.awaitFirstBatch(_StreamingFirstBatchTimeout);
+
+            /*
+             * Read the states before consuming the files, so the files are
+             * always up to date with the states.
+             */
+            boolean finished = task.isFinished();
+            int totalCount = task.getTotalCount();
+            List<FileSnapshot> files = task.consume();
+
+            cursor.ensureCapacity(files.size() + 1);
+            if (isListingCancelled(token, task)
+                    || !sortFiles(token, task, files, sortAscending, sortBy)) {
+                if (BuildConfig.DEBUG)
+                    Log.d(_ClassName, "doSearch() >> cancelled...");
+                return null;
+            }
+
+            /*
+             * Files of the same directory share their parent.
+             */
+            Map<File, Integer> parents = new HashMap<File, Integer>();
+            for (int i = 0; i < files.size(); i++) {
+                FileSnapshot file = files.get(i);
+                File parentFile = file.getFile().getParentFile();
+                Integer parent = parents.get(parentFile);
+                if (parent == null) {
+                    parent = addParent(cursor, parentFile);
+                    parents.put(parentFile, parent);
+                }
+                addFileRow(cursor, i, parent, file);
+            }// for files
+
+            /*
+             * The last row is the same as the one of a directory listing.
+             * Parameter BaseFile._ParamHasMoreFiles is true if the search
+             * stopped at the limit.
+             */
+            Uri.Builder uriInfo = BaseFile
+                    .genContentIdUriBase(LocalFileContract._Authority)
+                    .buildUpon()
+                    .appendPath(Uri.fromFile(dir).toString())
+                    .appendQueryParameter(BaseFile._ParamHasMoreFiles,
+                            Boolean.toString(totalCount >= limit))
+                    .appendQueryParameter(BaseFile._ParamTotalCount,
+                            Integer.toString(totalCount));
+            if (!finished)
+                uriInfo.appendQueryParameter(BaseFile._ParamLoading,
+                        Boolean.toString(true));
+            cursor.addInfoRow(files.size(), uriInfo.build().toString(),
+                    dir.getAbsolutePath(), dir.getName());
+        } finally {
+            mCancellationRegistry.unregister(token);
+        }
+
+        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        return cursor;
+    }// doSearch()
+
+    /**
+     * Searches the file index, see {@link BaseFile#_CmdIndexSearch}. The
+     * index covers the external storage, and is started on the first call.
+     * 
+     * @param uri
+     *            the original URI from client.
+     * @param projection
+     *            the requested columns, can be {@code null}.
+     * @param sortOrder
+     *            the sort order, see {@link #applySortOrder(String, int[])}.
+     *            Can be {@code null}.
+     * @return the files, or {@code null} if the search has been cancelled.
+     */
+    private BaseFileCursor doIndexSearch(Uri uri, String[] projection,
+            String sortOrder) {
+        FileIndexCrawler crawler;
+        synchronized (this) {
+            if (mFileIndexCrawler == null) {
+                File root = Environment.getExternalStorageDirectory();
+                if (root == null || !root.isDirectory())
+                    return null;
+                mFileIndexCrawler = new FileIndexCrawler(getContext(), root);
+                mFileIndexCrawler.start();
+            }
+            crawler = mFileIndexCrawler;
+        }
+
+        String source = uri.getQueryParameter(BaseFile._ParamSource);
+        File dir = source != null ? new File(Uri.parse(source).getPath())
+                : null;
+        int taskId = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamTaskId,
+                0);
+        boolean sortAscending = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamSortAscending, true);
+        int sortBy = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamSortBy,
+                BaseFile._SortByName);
+        if (!android.text.TextUtils.isEmpty(sortOrder)) {
+            int[] sort = { sortBy, sortAscending ? 1 : 0 };
+            applySortOrder(sortOrder, sort);
+            sortBy = sort[0];
+            sortAscending = sort[1] != 0;
+        }
+        int limit = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamLimit,
+                1000);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+
+        BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(0,
+                projection);
+        int attributes = getRequiredAttributes(cursor) | FileSnapshot._AttrType;
+        if (sortBy == BaseFile._SortBySize)
+            attributes |= FileSnapshot._AttrSize;
+        else if (sortBy == BaseFile._SortByModificationTime)
+            attributes |= FileSnapshot._AttrModificationTime;
+
+        CancellationToken token = mCancellationRegistry.register(taskId,
+                timeout);
+        try {
+            List<File> hits;
+            try {
+                hits = crawler.getIndex().search(
+                        uri.getQueryParameter(BaseFile._ParamQuery), dir,
+                        limit);
+            } catch (SQLException e) {
+                Log.e(_ClassName, "doIndexSearch() >> " + e);
+                hits = new ArrayList<File>();
+            }
+
+            /*
+             * Files which don't exist anymore are skipped, and their
+             * directories are indexed again.
+             */
+            List<FileSnapshot> files = new ArrayList<FileSnapshot>(
+                    hits.size());
+            for (File hit : hits) {
+                if (token.isCancelled())
+                    return null;
+
+                FileSnapshot snapshot = FileSnapshot.take(hit, attributes);
+                if (snapshot.getType() != BaseFile._FileTypeNotExisted)
+                    files.add(snapshot);
+                else if (hit.getParentFile() != null)
+                    crawler.revalidate(hit.getParentFile().getAbsolutePath());
+            }
+
+            cursor.ensureCapacity(files.size() + 1);
+            if (!sortFiles(token, null, files, sortAscending, sortBy))
+                return null;
+
+            Map<File, Integer> parents = new HashMap<File, Integer>();
+            for (int i = 0; i < files.size(); i++) {
+                FileSnapshot file = files.get(i);
+                File parentFile = file.getFile().getParentFile();
+                Integer parent = parents.get(parentFile);
+                if (parent == null) {
+                    parent = addParent(cursor, parentFile);
+                    parents.put(parentFile, parent);
+                }
+                addFileRow(cursor, i, parent, file);
+            }// for files
+
+            if (dir == null)
+                dir = Environment.getExternalStorageDirectory();
+            Uri.Builder uriInfo = BaseFile
+                    .genContentIdUriBase(LocalFileContract._Authority)
+                    .buildUpon()
+                    .appendPath(Uri.fromFile(dir).toString())
+                    .appendQueryParameter(BaseFile._ParamHasMoreFiles,
+                            Boolean.toString(hits.size() >= limit))
+                    .appendQueryParameter(BaseFile._ParamTotalCount,
+                            Integer.toString(files.size()));
+            if (crawler.isCrawling())
+                uriInfo.appendQueryParameter(BaseFile._ParamLoading,
+                        Boolean.toString(true));
+            cursor.addInfoRow(files.size(), uriInfo.build().toString(),
+                    dir.getAbsolutePath(), dir.getName());
+        } finally {
+            mCancellationRegistry.unregister(token);
+        }
+
+        return cursor;
+    }// doIndexSearch()
+
+    /**
+     * Searches for text in the plain text files of a directory, see
+     * {@link BaseFile#_CmdContentSearch}.
+     * 
+     * @param uri
+     *            the original URI from client.
+     * @return the matching lines found so far, or {@code null} if the
+     *         directory is not available, the query is invalid or the search
+     *         has been cancelled.
+     */
+    private Cursor doContentSearch(Uri uri) {
+        String source = uri.getQueryParameter(BaseFile._ParamSource);
+        String query = uri.getQueryParameter(BaseFile._ParamQuery);
+        if (source == null || android.text.TextUtils.isEmpty(query))
+            return null;
+
+        File dir = new File(Uri.parse(source).getPath());
+        if (!dir.isDirectory() || !dir.canRead())
+            return null;
+
+        byte[] pattern;
+        try {
+            pattern = query.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            pattern = query.getBytes();
+        }
+        if (pattern.length > _MaxContentSearchQueryLength)
+            return null;
+
+        /*
+         * Prepare params...
+         */
+        int taskId = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamTaskId,
+                0);
+        boolean caseSensitive = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamCaseSensitive);
+        boolean recursive = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamRecursive, true);
+        boolean showHiddenFiles = ProviderUtils.getBooleanQueryParam(uri,
+                BaseFile._ParamShowHiddenFiles);
+        long maxFileSize = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamMaxFileSize, _DefaultContentSearchMaxFileSize);
+        int limit = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamLimit,
+                1000);
+        long timeout = ProviderUtils.getLongQueryParam(uri,
+                BaseFile._ParamTimeout, 0);
+        String key = String.format("%s|%s|%s|%s|%s|%d|%d",
+                dir.getAbsolutePath(), query, caseSensitive, recursive,
+                showHiddenFiles, maxFileSize, limit);
+
+        ContentSearchTask task = getContentSearchTask(uri, key, taskId,
+                timeout, dir, new ByteMatcher(pattern, !caseSensitive),
+                recursive, showHiddenFiles, maxFileSize, limit);
+        task.awaitFirstBatch(_StreamingFirstBatchTimeout);
+
+        List<ContentSearchTask.Match> matches = task.consume();
+        if (task.getToken().isCancelled()) {
+            if (BuildConfig.DEBUG)
+                Log.d(_ClassName, "doContentSearch() >> cancelled...");
+            return null;
+        }
 
+        MatrixCursor matrixCursor = new MatrixCursor(new String[] {
+                BaseFile._ColumnUri, BaseFile._ColumnPath,
+                BaseFile._ColumnLineNumber, BaseFile._ColumnSnippet },
+                matches.size());
+        for (ContentSearchTask.Match match : matches)
+            matrixCursor.newRow().add(genFileUri(match.getFile()))
+                    .add(match.getFile().getAbsolutePath())
+                    .add(match.getLineNumber()).add(match.getSnippet());
+
+        matrixCursor.setNotificationUri(getContext().getContentResolver(),
+                uri);
         return matrixCursor;
-    }// doRetrieveFileInfo()
+    }// doContentSearch()
 
     /**
-     * Lists all file inside {@code dir}.
+     * Gets the content search of {@code key} and {@code taskId}, or starts a
+     * new one if there is none. A different search of {@code taskId} is
+     * cancelled. The search is registered with {@code taskId} until it
+     * finishes.
      * 
+     * @param uri
+     *            the original URI.
+     * @param key
+     *            the key of the search.
      * @param taskId
      *            the task ID.
+     * @param timeout
+     *            the timeout of the search, in milliseconds.
      * @param dir
-     *            the source directory.
+     *            the root directory.
+     * @param matcher
+     *            the matcher.
+     * @param recursive
+     *            {@code true} to search sub directories.
      * @param showHiddenFiles
-     *            {@code true} or {@code false}.
-     * @param filterMode
-     *            can be one of {@link BaseFile#_FilterDirectoriesOnly},
-     *            {@link BaseFile#_FilterFilesOnly},
-     *            {@link BaseFile#_FilterFilesAndDirectories}.
+     *            {@code true} to search hidden files.
+     * @param maxFileSize
+     *            the maximum number of bytes to search in a file.
      * @param limit
      *            the limit.
-     * @param positiveRegex
-     *            the positive regex filter.
-     * @param negativeRegex
-     *            the negative regex filter.
-     * @param results
-     *            the results.
-     * @param hasMoreFiles
-     *            the first item will contain a value representing that there is
-     *            more files (exceeding {@code limit}) or not.
-     */
-    private void listFiles(final int taskId, final File dir,
-            final boolean showHiddenFiles, final int filterMode,
-            final int limit, String positiveRegex, String negativeRegex,
-            final List<File> results, final boolean hasMoreFiles[]) {
-        final Pattern positivePattern = TextUtils.compileRegex(positiveRegex);
-        final Pattern negativePattern = TextUtils.compileRegex(negativeRegex);
-
-        hasMoreFiles[0] = false;
-        try {
-            dir.listFiles(new FileFilter() {
+     * @return the content search.
+     */
+    private ContentSearchTask getContentSearchTask(final Uri uri, String key,
+            final int taskId, long timeout, File dir, ByteMatcher matcher,
+            boolean recursive, boolean showHiddenFiles, long maxFileSize,
+            int limit) {
+        synchronized (mContentSearchTasks) {
+            ContentSearchTask task = mContentSearchTasks.get(taskId);
+            if (task != null) {
+                if (task.getKey().equals(key) && !task.getToken().isCancelled())
+                    return task;
+                task.cancel();
+            }
+
+            final ContentSearchTask newTask = new ContentSearchTask(key, dir,
+                    matcher, recursive, showHiddenFiles, maxFileSize, limit,
+                    mCancellationRegistry.register(taskId, timeout)) {
+
+                @Override
+                protected void onPublishMatches() {
+                    if (!getToken().isCancelled())
+                        getContext().getContentResolver().notifyChange(uri,
+                                null);
+                }// onPublishMatches()
+            };
+            mContentSearchTasks.put(taskId, newTask);
+
+            new Thread(_ClassName) {
 
                 @Override
-                public boolean accept(File pathname) {
-                    if (_MapInterruption.get(taskId))
-                        throw new CancellationException();
-
-                    if (filterMode == BaseFile._FilterDirectoriesOnly
-                            && pathname.isFile())
-                        return false;
-                    if (!showHiddenFiles && pathname.getName().startsWith("."))
-                        return false;
-                    if (positivePattern != null
-                            && !positivePattern.matcher(pathname.getName())
-                                    .find())
-                        return false;
-                    if (negativePattern != null
-                            && negativePattern.matcher(pathname.getName())
-                                    .find())
-                        return false;
-
-                    if (results.size() >= limit) {
-                        hasMoreFiles[0] = true;
-                        throw new CancellationException("Exceeding limit...");
+                public void run() {
+                    /*
+                     * The task is marked as finished even if it fails.
+                     */
+                    try {
+                        runFileTask(newTask, taskId);
+                    } catch (RuntimeException e) {
+                        Log.e(_ClassName, "getContentSearchTask() >> " + e);
                     }
-                    results.add(pathname);
+                }// run()
+            }.start();
 
-                    return false;
-                }// accept()
-            });
-        } catch (CancellationException e) {
-            if (BuildConfig.DEBUG)
-                Log.d(_ClassName, "listFiles() >> cancelled... >> " + e);
+            return newTask;
         }
-    }// listFiles()
+    }// getContentSearchTask()
 
     /**
-     * Sorts {@code files}.
+     * Gets the search of {@code key} and {@code taskId}, or starts a new one
+     * if there is none. A different search of {@code taskId} is cancelled.
+     * The search has its own cancellation token, which is registered with
+     * {@code taskId} until the search finishes.
      * 
+     * @param uri
+     *            the original URI.
+     * @param key
+     *            the key of the search.
      * @param taskId
      *            the task ID.
-     * @param files
-     *            list of files.
-     * @param ascending
-     *            {@code true} or {@code false}.
+     * @param timeout
+     *            the timeout of the search, in milliseconds.
+     * @param dir
+     *            the root directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @param limit
+     *            the limit.
      * @param sortBy
-     *            can be one of {@link BaseFile.#_SortByModificationTime},
-     *            {@link BaseFile.#_SortByName}, {@link BaseFile.#_SortBySize}.
+     *            the sort mode.
+     * @param sortAscending
+     *            the sort order.
+     * @return the listing task which collects the found files.
      */
-    private void sortFiles(final int taskId, final List<File> files,
-            final boolean ascending, final int sortBy) {
-        try {
-            Collections.sort(files, new Comparator<File>() {
+    private ListingTask getSearchTask(final Uri uri, String key,
+            final int taskId, long timeout, final File dir,
+            final ListingFilter filter, final FilePredicate predicate,
+            final int attributes, final int limit, int sortBy,
+            boolean sortAscending) {
+        synchronized (mSearchTasks) {
+            ListingTask task = mSearchTasks.get(taskId);
+            if (task != null) {
+                if (task.getKey().equals(key) && !task.isCancelled())
+                    return task;
+                task.cancel();
+            }
+
+            final ListingTask newTask = new ListingTask(key,
+                    _StreamingBatchSize, mFileSorter.newSelector(sortBy,
+                            sortAscending, limit),
+                    mCancellationRegistry.register(taskId, timeout)) {
 
                 @Override
-                public int compare(File lhs, File rhs) {
-                    if (_MapInterruption.get(taskId))
-                        throw new CancellationException();
+                protected void onPublish() {
+                    if (!isCancelled())
+                        getContext().getContentResolver().notifyChange(uri,
+                                null);
+                }// onPublish()
+            };
+            mSearchTasks.put(taskId, newTask);
 
-                    if (lhs.isDirectory() && !rhs.isDirectory())
-                        return -1;
-                    if (!lhs.isDirectory() && rhs.isDirectory())
-                        return 1;
+            new Thread(_ClassName) {
 
-                    /*
-                     * Default is to compare by name (case insensitive).
-                     */
-                    int res = mCollator.compare(lhs.getName(), rhs.getName());
-
-                    switch (sortBy) {
-                    case BaseFile._SortByName:
-                        break;// SortByName
-
-                    case BaseFile._SortBySize:
-                        if (lhs.length() > rhs.length())
-                            res = 1;
-                        else if (lhs.length() < rhs.length())
-                            res = -1;
-                        break;// SortBySize
-
-                    case BaseFile._SortByModificationTime:
-                        if (lhs.lastModified() > rhs.lastModified())
-                            res = 1;
-                        else if (lhs.lastModified() < rhs.lastModified())
-                            res = -1;
-                        break;// SortByDate
+                @Override
+                public void run() {
+                    try {
+                        runFileTask(new SearchTask(dir, filter, predicate,
+                                attributes, limit, newTask, newTask
+                                        .getToken()), taskId);
+                    } catch (RuntimeException e) {
+                        Log.e(_ClassName, "getSearchTask() >> " + e);
+                        newTask.setError(e);
+                    } finally {
+                        newTask.finish();
                     }
+                }// run()
+            }.start();
 
-                    return ascending ? res : -res;
-                }// compare()
-            });
-        } catch (CancellationException e) {
-            if (BuildConfig.DEBUG)
-                Log.d(_ClassName, "sortFiles() >> cancelled...");
+            return newTask;
         }
-    }// sortFiles()
+    }// getSearchTask()
 
     /**
-     * Deletes {@code file}.
+     * Checks if a listing has been cancelled.
      * 
-     * @param taskId
-     *            the task ID.
-     * @param file
-     *            {@link File}.
-     * @param recursive
-     *            if {@code true} and {@code file} is a directory, this thread
-     *            will delete all sub files/ folders of it recursively.
-     * @return the total files deleted.
+     * @param token
+     *            the cancellation token of the query.
+     * @param task
+     *            the listing task, can be {@code null}.
+     * @return {@code true} or {@code false}.
      */
-    private int deleteFile(final int taskId, final File file,
-            final boolean recursive) {
-        final int[] count = { 0 };
-        if (_MapInterruption.get(taskId))
-            return count[0];
+    private static boolean isListingCancelled(CancellationToken token,
+            ListingTask task) {
+        return token.isCancelled() || (task != null && task.isCancelled());
+    }// isListingCancelled()
 
-        if (file.isFile()) {
-            if (file.delete())
-                count[0]++;
-            return count[0];
+    /**
+     * Generates the key of a listing in the listing cache.
+     * 
+     * @param dir
+     *            the source directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes which the listing reads.
+     * @param limit
+     *            the limit.
+     * @param sortBy
+     *            the sort mode.
+     * @param sortAscending
+     *            the sort order.
+     * @return the cache key.
+     */
+    private static String genListingCacheKey(File dir, ListingFilter filter,
+            FilePredicate predicate, int attributes, int limit, int sortBy,
+            boolean sortAscending) {
+        /*
+         * The sort mode is a part of the key, because when the directory has
+         * more files than the limit, the listing holds the first files in
+         * sort order.
+         */
+        return String.format("%s\0%s\0%s\0%d\0%d\0%d\0%s",
+                dir.getAbsolutePath(), filter.getSpec(),
+                predicate != null ? predicate.getSpec() : "", attributes,
+                limit, sortBy, sortAscending);
+    }// genListingCacheKey()
+
+    /**
+     * Gets a listing from the listing cache.
+     * <p>
+     * If the directory is being watched by {@link FileObserverPool}, the
+     * listing is patched with the files which have changed since it was
+     * built. Otherwise, or if the listing was built before the directory was
+     * watched, the modification time of the directory will be checked to make
+     * sure the listing is still valid.
+     * </p>
+     * 
+     * @param cacheKey
+     *            the cache key.
+     * @param dir
+     *            the source directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes which the listing reads.
+     * @param limit
+     *            the limit.
+     * @param sortBy
+     *            the sort mode.
+     * @param sortAscending
+     *            the sort order.
+     * @return the cached listing, or {@code null} if not available.
+     */
+    private DirectoryCache.Entry getCachedListing(String cacheKey, File dir,
+            ListingFilter filter, FilePredicate predicate, int attributes,
+            int limit, int sortBy, boolean sortAscending) {
+        DirectoryCache.Entry entry = mDirectoryCache.get(cacheKey);
+        if (entry == null)
+            return null;
+
+        FileObserverEx.Delta delta = mFileObserverPool.getChanges(
+                dir.getAbsolutePath(), entry.getChangeSeq());
+
+        if ((delta == null || delta.isSinceStart())
+                && dir.lastModified() != entry.getDirLastModified()) {
+            mDirectoryCache.remove(cacheKey);
+            return null;
         }
+        if (delta == null || delta.getSeq() == entry.getChangeSeq())
+            return entry;
 
         /*
-         * If the directory is empty, try to delete it and return here.
+         * Patches of a listing are serialized. If another query has patched
+         * it meanwhile, use the patched version.
          */
-        if (file.delete()) {
-            count[0]++;
-            return count[0];
+        synchronized (entry) {
+            if (!mDirectoryCache.contains(cacheKey, entry))
+                return getCachedListing(cacheKey, dir, filter, predicate,
+                        attributes, limit, sortBy, sortAscending);
+
+            Map<String, FileSnapshot> changes = new HashMap<String, FileSnapshot>();
+            DirectoryCache.Entry patched = delta.isLost() ? null
+                    : patchListing(entry, delta, changes, dir, filter,
+                            predicate, attributes, limit, sortBy,
+                            sortAscending);
+            if (patched == null) {
+                mDirectoryCache.remove(cacheKey);
+                return null;
+            }
+
+            mDirectoryCache.patch(cacheKey, entry, patched, changes);
+            return patched;
         }
+    }// getCachedListing()
+
+    /**
+     * Patches a sorted listing with the changes of its directory. Each
+     * changed file is removed (found via binary search), checked again, and
+     * inserted at its sorted position if it still matches the filters. This
+     * takes {@code O(k log n)} comparisons and {@code k} file checks, for
+     * {@code k} changed files, instead of listing and sorting {@code n}
+     * files again. The patched files share most of their memory with the
+     * cached ones (see {@link ChunkedList}), and the index of the cached
+     * listing is only read. If there are too many changes, the directory is
+     * listed again.
+     * <p>
+     * The caller must hold the lock of {@code entry}.
+     * </p>
+     * 
+     * @param entry
+     *            the cached listing.
+     * @param delta
+     *            the changes of the directory since the listing was built.
+     * @param changes
+     *            to receive the changed files mapped by their names,
+     *            {@code null} values are removed files.
+     * @param dir
+     *            the source directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes which the listing reads.
+     * @param limit
+     *            the limit.
+     * @param sortBy
+     *            the sort mode.
+     * @param sortAscending
+     *            the sort order.
+     * @return the patched listing, or {@code null} if the directory must be
+     *         listed again.
+     */
+    private DirectoryCache.Entry patchListing(DirectoryCache.Entry entry,
+            FileObserverEx.Delta delta, Map<String, FileSnapshot> changes,
+            File dir, ListingFilter filter, FilePredicate predicate,
+            int attributes, int limit, int sortBy, boolean sortAscending) {
+        if ((long) delta.getNames().size() * _MaxPatchRatio > entry.getFiles()
+                .size() + _MinPatchedListingSize)
+            return null;
 
-        if (!recursive)
-            return count[0];
+        Map<String, FileSnapshot> index = entry.getIndex();
+        ChunkedList<FileSnapshot> files = entry.copyFiles();
+        int totalCount = entry.getTotalCount();
+        long size = entry.getSize();
+
+        for (String name : delta.getNames()) {
+            FileSnapshot old = changes.containsKey(name) ? changes.get(name)
+                    : index.get(name);
+            if (old != null) {
+                changes.put(name, null);
+                int i = mFileSorter.indexOf(files, old, sortBy, sortAscending);
+                if (i < 0)
+                    return null;
+                files.remove(i);
+                totalCount--;
+                size -= DirectoryCache.estimateSize(old);
+            } else if (totalCount > files.size() && !delta.isCreated(name)) {
+                /*
+                 * The file might be one of the files exceeding the limit, and
+                 * we don't know if it was counted.
+                 */
+                return null;
+            }
 
-        try {
-            try {
-                file.listFiles(new FileFilter() {
+            FileSnapshot snapshot = takeSnapshot(dir, name, filter, predicate,
+                    attributes);
+            if (snapshot == null)
+                continue;
+
+            totalCount++;
+            int i = mFileSorter.search(files, snapshot, sortBy, sortAscending);
+            if (i < 0)
+                i = -(i + 1);
+            if (i >= limit)
+                continue;
+
+            files.add(i, snapshot);
+            changes.put(name, snapshot);
+            size += DirectoryCache.estimateSize(snapshot);
+            if (files.size() > limit) {
+                FileSnapshot last = files.remove(files.size() - 1);
+                changes.put(last.getName(), null);
+                size -= DirectoryCache.estimateSize(last);
+            }
+        }// for names
 
-                    @Override
-                    public boolean accept(File pathname) {
-                        if (_MapInterruption.get(taskId))
-                            throw new CancellationException();
-
-                        if (pathname.isFile()) {
-                            if (pathname.delete())
-                                count[0]++;
-                        } else if (pathname.isDirectory()) {
-                            if (recursive)
-                                count[0] += deleteFile(taskId, pathname,
-                                        recursive);
-                            else if (pathname.delete())
-                                count[0]++;
-                        }
+        /*
+         * If a file was removed from a listing which exceeds the limit, the
+         * next files are unknown.
+         */
+        if (files.size() < Math.min(limit, totalCount))
+            return null;
 
-                        return false;
-                    }// accept()
-                });
-            } catch (CancellationException e) {
-                return count[0];
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "patchListing() >> '%s' >> %,d changes >> %,d files",
+                    entry.getDirPath(), delta.getNames().size(), files.size()));
+
+        return new DirectoryCache.Entry(entry, files, totalCount,
+                delta.getSeq(), size);
+    }// patchListing()
+
+    /**
+     * Retrieves file information of a single file.
+     * 
+     * @param uri
+     *            the URI pointing to a file.
+     * @param projection
+     *            the requested columns, can be {@code null}.
+     * @return the file information. Can be {@code null}, based on the input
+     *         parameters.
+     */
+    private BaseFileCursor doRetrieveFileInfo(Uri uri, String[] projection) {
+        BaseFileCursor cursor = BaseFileProviderUtils.newBaseFileCursor(1,
+                projection);
+
+        addFileRow(cursor, 0, FileSnapshot.take(extractFile(uri),
+                getRequiredAttributes(cursor)));
+
+        return cursor;
+    }// doRetrieveFileInfo()
+
+    /**
+     * Lists all file inside {@code dir}.
+     * <p>
+     * {@code filter} and {@code predicate} apply the predicates which only
+     * need the file name first, so most rejected files never touch the file
+     * system. Then a single {@link FileSnapshot} is taken for each remaining
+     * file, and it is reused by the selection predicate, the sorter and the
+     * cursor builder.
+     * </p>
+     * <p>
+     * Every matching file is offered to {@code task}, whose selector keeps
+     * only the first files in sort order, up to the limit.
+     * </p>
+     * 
+     * @param dir
+     *            the source directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @param task
+     *            the listing task to collect the results.
+     */
+    private static void listFiles(File dir, ListingFilter filter,
+            FilePredicate predicate, int attributes, ListingTask task) {
+        String[] names = dir.list();
+        if (names == null)
+            return;
+
+        for (String name : names) {
+            if (task.isCancelled()) {
+                if (BuildConfig.DEBUG)
+                    Log.d(_ClassName, "listFiles() >> cancelled...");
+                return;
             }
 
-            if (file.delete())
-                count[0]++;
-        } catch (Throwable t) {
-            // TODO
+            FileSnapshot snapshot = takeSnapshot(dir, name, filter, predicate,
+                    attributes);
+            if (snapshot != null)
+                task.add(snapshot);
+        }// for names
+    }// listFiles()
+
+    /**
+     * Takes a snapshot of a file in {@code dir}, if it matches
+     * {@code filter} and {@code predicate}. The predicates which only need
+     * the file name are checked first.
+     * 
+     * @param dir
+     *            the source directory.
+     * @param name
+     *            the file name.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @return the file snapshot, or {@code null} if the file doesn't match or
+     *         doesn't exist.
+     */
+    static FileSnapshot takeSnapshot(File dir, String name,
+            ListingFilter filter, FilePredicate predicate, int attributes) {
+        if (predicate != null && !predicate.acceptName(name))
+            return null;
+        return acceptSnapshot(filter.filter(dir, name, attributes), predicate);
+    }// takeSnapshot()
+
+    /**
+     * Takes a snapshot of a file whose type has already been read, if it
+     * matches {@code filter} and {@code predicate}, see
+     * {@link #takeSnapshot(File, String, ListingFilter, FilePredicate, int)}.
+     * 
+     * @param file
+     *            the file.
+     * @param type
+     *            the file type, see {@link FileSnapshot#readType(File)}.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @return the file snapshot, or {@code null} if the file doesn't match or
+     *         doesn't exist.
+     */
+    static FileSnapshot takeSnapshot(File file, int type,
+            ListingFilter filter, FilePredicate predicate, int attributes) {
+        if (predicate != null && !predicate.acceptName(file.getName()))
+            return null;
+        return acceptSnapshot(filter.filter(file, type, attributes),
+                predicate);
+    }// takeSnapshot()
+
+    /**
+     * Checks a snapshot which has been accepted by a {@link ListingFilter}
+     * against {@code predicate}.
+     * 
+     * @param snapshot
+     *            the snapshot, can be {@code null}.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @return {@code snapshot}, or {@code null} if it is {@code null},
+     *         doesn't match or doesn't exist.
+     */
+    private static FileSnapshot acceptSnapshot(FileSnapshot snapshot,
+            FilePredicate predicate) {
+        if (snapshot == null
+                || snapshot.getType() == BaseFile._FileTypeNotExisted
+                || (predicate != null && !predicate.accept(snapshot)))
+            return null;
+        return snapshot;
+    }// acceptSnapshot()
+
+    /**
+     * Applies the {@code sortOrder} of a query, which has the form
+     * {@code "column [ASC|DESC]"}. The column can be
+     * {@link BaseFile#_ColumnName}, {@link BaseFile#_ColumnSize} or
+     * {@link BaseFile#_ColumnModificationTime}. Directories are always listed
+     * first.
+     * 
+     * @param sortOrder
+     *            the sort order.
+     * @param sort
+     *            the sort mode and sort ascending flag ({@code 0} or
+     *            {@code 1}), which will be overridden.
+     * @throws IllegalArgumentException
+     *             if {@code sortOrder} is not supported.
+     */
+    private static void applySortOrder(String sortOrder, int[] sort) {
+        String[] parts = sortOrder.trim().split("\\s+");
+        if (parts.length > 2)
+            throw new IllegalArgumentException("Unsupported sort order "
+                    + sortOrder);
+
+        if (BaseFile._ColumnName.equalsIgnoreCase(parts[0]))
+            sort[0] = BaseFile._SortByName;
+        else if (BaseFile._ColumnSize.equalsIgnoreCase(parts[0]))
+            sort[0] = BaseFile._SortBySize;
+        else if (BaseFile._ColumnModificationTime.equalsIgnoreCase(parts[0]))
+            sort[0] = BaseFile._SortByModificationTime;
+        else
+            throw new IllegalArgumentException("Unsupported sort order "
+                    + sortOrder);
+
+        if (parts.length == 1 || "ASC".equalsIgnoreCase(parts[1]))
+            sort[1] = 1;
+        else if ("DESC".equalsIgnoreCase(parts[1]))
+            sort[1] = 0;
+        else
+            throw new IllegalArgumentException("Unsupported sort order "
+                    + sortOrder);
+    }// applySortOrder()
+
+    /**
+     * Sorts {@code files}.
+     * 
+     * @param token
+     *            the cancellation token of the query.
+     * @param task
+     *            the listing task, can be {@code null}.
+     * @param files
+     *            list of file snapshots.
+     * @param ascending
+     *            {@code true} or {@code false}.
+     * @param sortBy
+     *            can be one of {@link BaseFile.#_SortByModificationTime},
+     *            {@link BaseFile.#_SortByName}, {@link BaseFile.#_SortBySize}.
+     * @return {@code true} if the sort finished, {@code false} if it was
+     *         cancelled.
+     */
+    private boolean sortFiles(final CancellationToken token,
+            final ListingTask task,
+            final List<FileSnapshot> files, final boolean ascending,
+            final int sortBy) {
+        long startTime = BuildConfig.DEBUG ? SystemClock.elapsedRealtime() : 0;
+
+        boolean sorted = mFileSorter.sort(files, sortBy, ascending,
+                new FileSorter.Interruption() {
+
+                    @Override
+                    public boolean isInterrupted() {
+                        return isListingCancelled(token, task);
+                    }// isInterrupted()
+                });
+
+        if (BuildConfig.DEBUG) {
+            if (sorted)
+                Log.d(_ClassName, String.format(
+                        "sortFiles() >> sorted %,d files by %d in %,d ms",
+                        files.size(), sortBy, SystemClock.elapsedRealtime()
+                                - startTime));
+            else
+                Log.d(_ClassName, "sortFiles() >> cancelled...");
         }
 
-        return count[0];
-    }// deleteFile()
+        return sorted;
+    }// sortFiles()
+
+    /**
+     * Gets the file task of {@link BaseFile#_ParamTaskId}.
+     * 
+     * @param uri
+     *            the original URI from client.
+     * @return the file task, or {@code null} if not available.
+     */
+    private FileTask getFileTask(Uri uri) {
+        int taskId = ProviderUtils.getIntQueryParam(uri, BaseFile._ParamTaskId,
+                0);
+        synchronized (mFileTasks) {
+            return mFileTasks.get(taskId);
+        }
+    }// getFileTask()
 
     /**
      * Checks ancestor with {@link BaseFile#_CmdIsAncestorOf},
@@ -763,6 +2395,197 @@ public class LocalFileProvider extends BaseFileProvider {
         return null;
     }// doCheckAncestor()
 
+    /**
+     * Adds a new row into {@code cursor} with the attributes of
+     * {@code snapshot}.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @param id
+     *            the row ID.
+     * @param snapshot
+     *            the file snapshot.
+     */
+    private static void addFileRow(BaseFileCursor cursor, int id,
+            FileSnapshot snapshot) {
+        String uri = null;
+        if (cursor.hasColumn(BaseFile._ColumnUri))
+            uri = genFileUri(snapshot.getFile());
+        int fileCategory = getFileCategory(cursor, snapshot);
+        cursor.addRow(id, uri, snapshot.getFile().getAbsolutePath(),
+                snapshot.getName(), snapshot.canRead(), snapshot.canWrite(),
+                snapshot.length(), snapshot.getType(), snapshot.lastModified(),
+                getResIcon(cursor, fileCategory), fileCategory);
+    }// addFileRow()
+
+    /**
+     * Adds a new row into {@code cursor} with the attributes of
+     * {@code snapshot}. Its URI and path will be derived from {@code parent}
+     * when they are read.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @param id
+     *            the row ID.
+     * @param parent
+     *            the parent index of the file, see
+     *            {@link #addParent(BaseFileCursor, File)}.
+     * @param snapshot
+     *            the file snapshot.
+     */
+    private static void addFileRow(BaseFileCursor cursor, int id, int parent,
+            FileSnapshot snapshot) {
+        int fileCategory = getFileCategory(cursor, snapshot);
+        cursor.addRow(id, parent, snapshot.getName(), snapshot.canRead(),
+                snapshot.canWrite(), snapshot.length(), snapshot.getType(),
+                snapshot.lastModified(), getResIcon(cursor, fileCategory),
+                fileCategory);
+    }// addFileRow()
+
+    /**
+     * Gets the file category of {@code snapshot}, if {@code cursor} needs
+     * it.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @param snapshot
+     *            the file snapshot.
+     * @return the file category, or {@link BaseFile#_FileCategoryNone} if
+     *         {@code cursor} needs neither the file category nor the icon.
+     */
+    private static int getFileCategory(BaseFileCursor cursor,
+            FileSnapshot snapshot) {
+        if (!cursor.hasColumn(BaseFile._ColumnFileCategory)
+                && !cursor.hasColumn(BaseFile._ColumnIconId))
+            return BaseFile._FileCategoryNone;
+        return FileUtils.getFileCategory(snapshot.getType(),
+                snapshot.getName());
+    }// getFileCategory()
+
+    /**
+     * Gets the icon of {@code fileCategory}, if {@code cursor} needs it.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @param fileCategory
+     *            the file category.
+     * @return the icon resource ID, or {@code 0} if {@code cursor} doesn't
+     *         need it.
+     */
+    private static int getResIcon(BaseFileCursor cursor, int fileCategory) {
+        if (!cursor.hasColumn(BaseFile._ColumnIconId))
+            return 0;
+        return FileUtils.getResIcon(fileCategory);
+    }// getResIcon()
+
+    /**
+     * Gets the file attributes needed by the columns of {@code cursor}.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @return the attributes, see {@link FileSnapshot#_AttrAll}...
+     */
+    private static int getRequiredAttributes(BaseFileCursor cursor) {
+        int attributes = 0;
+        if (cursor.hasColumn(BaseFile._ColumnType)
+                || cursor.hasColumn(BaseFile._ColumnFileCategory)
+                || cursor.hasColumn(BaseFile._ColumnIconId))
+            attributes |= FileSnapshot._AttrType;
+        if (cursor.hasColumn(BaseFile._ColumnCanRead))
+            attributes |= FileSnapshot._AttrCanRead;
+        if (cursor.hasColumn(BaseFile._ColumnCanWrite))
+            attributes |= FileSnapshot._AttrCanWrite;
+        if (cursor.hasColumn(BaseFile._ColumnSize))
+            attributes |= FileSnapshot._AttrSize;
+        if (cursor.hasColumn(BaseFile._ColumnModificationTime))
+            attributes |= FileSnapshot._AttrModificationTime;
+        return attributes;
+    }// getRequiredAttributes()
+
+    /**
+     * Counts the columns requested by a file query. A query without
+     * projection requests all columns.
+     * 
+     * @param projection
+     *            the projection, can be {@code null}.
+     */
+    private void countColumnRequests(String[] projection) {
+        String[] columns = BaseFileProviderUtils._BaseFileCursorColumns;
+        synchronized (mColumnRequests) {
+            if (projection == null || projection.length == 0) {
+                mFullQueries++;
+                for (int i = 0; i < columns.length; i++)
+                    mColumnRequests[i]++;
+                return;
+            }
+
+            mProjectedQueries++;
+            for (int i = 0; i < columns.length; i++) {
+                for (String column : projection) {
+                    if (columns[i].equals(column)) {
+                        mColumnRequests[i]++;
+                        break;
+                    }
+                }
+            }
+        }
+    }// countColumnRequests()
+
+    /**
+     * Gets the statistics of requested columns.
+     * 
+     * @return the statistics, mapped by their names in
+     *         {@link LocalFileContract}.
+     */
+    private Map<String, Long> getColumnRequestStats() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        String[] columns = BaseFileProviderUtils._BaseFileCursorColumns;
+        synchronized (mColumnRequests) {
+            result.put(LocalFileContract._StatFullQueries, mFullQueries);
+            result.put(LocalFileContract._StatProjectedQueries,
+                    mProjectedQueries);
+            for (int i = 0; i < columns.length; i++)
+                result.put(LocalFileContract._StatColumnRequestsPrefix
+                        + columns[i], mColumnRequests[i]);
+        }
+        return result;
+    }// getColumnRequestStats()
+
+    /**
+     * Adds {@code dir} as a parent into {@code cursor}.
+     * 
+     * @param cursor
+     *            the base file cursor.
+     * @param dir
+     *            the directory.
+     * @return the parent index.
+     */
+    private static int addParent(BaseFileCursor cursor, File dir) {
+        /*
+         * Build the URI and path of a child whose name is not changed by
+         * encoding, then strip that name. This way the prefixes are exactly
+         * the same as what genFileUri() and File.getAbsolutePath() produce.
+         */
+        File child = new File(dir, "x");
+        String uri = genFileUri(child);
+        String path = child.getAbsolutePath();
+        return cursor.addParent(uri.substring(0, uri.length() - 1),
+                path.substring(0, path.length() - 1));
+    }// addParent()
+
+    /**
+     * Generates the content URI of a file.
+     * 
+     * @param file
+     *            the file.
+     * @return the content URI.
+     */
+    private static String genFileUri(File file) {
+        return BaseFile.genContentIdUriBase(LocalFileContract._Authority)
+                .buildUpon().appendPath(Uri.fromFile(file).toString()).build()
+                .toString();
+    }// genFileUri()
+
     /**
      * Extracts source file from request URI.
      * 
@@ -0,0 +1,479 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Copies a large file, so that the copy can be resumed after it has been
+ * cancelled, or after the process has been killed.
+ * <p>
+ * The file is copied into a hidden sibling of the target, in chunks of
+ * {@link #_ChunkSize}. The checksum of each chunk is computed from the
+ * source while copying. Once per {@link #_ChunksPerCheckpoint} chunks, the
+ * copied data is synced to the storage and the {@link State} of the job is
+ * saved, so a resumed copy starts from the last checkpoint. The last
+ * checkpointed chunk is verified again before resuming, and unverified data
+ * after it is dropped.
+ * </p>
+ * <p>
+ * When all chunks have been copied, the copy is read back and verified
+ * against the checksums, then renamed to the target (which is atomic). If a
+ * chunk doesn't match, the job goes back to that chunk, so it can be
+ * resumed.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class ResumableCopyTask extends FileTask {
+
+    /**
+     * Size of a chunk.
+     */
+    private static final int _ChunkSize = 4 * 1024 * 1024;
+
+    /**
+     * Number of chunks between two checkpoints.
+     */
+    private static final int _ChunksPerCheckpoint = 8;
+
+    /**
+     * Size of the buffer to copy data.
+     */
+    private static final int _BufferSize = 256 * 1024;
+
+    /**
+     * Suffix of temporary files.
+     */
+    private static final String _TempSuffix = ".afc_part";
+
+    private static final String _KeySource = "source";
+    private static final String _KeyTarget = "target";
+    private static final String _KeySize = "size";
+    private static final String _KeyModified = "modified";
+    private static final String _KeyOffset = "offset";
+    private static final String _KeyChunkChecksum = "chunk.";
+
+    /**
+     * State of a copy job, saved in a file.
+     */
+    public static class State {
+
+        private final File mFile;
+        private final File mSource;
+        private final File mTarget;
+        private long mSize;
+        private long mModified;
+        private long mOffset = 0;
+        /**
+         * Checksums of copied chunks.
+         */
+        private final List<Long> mChecksums = new ArrayList<Long>();
+
+        /**
+         * Creates new state of a new job. It's not saved until the job runs.
+         * 
+         * @param file
+         *            the file to save this state.
+         * @param source
+         *            the source file.
+         * @param target
+         *            the target file.
+         */
+        public State(File file, File source, File target) {
+            mFile = file;
+            mSource = source;
+            mTarget = target;
+            mSize = source.length();
+            mModified = source.lastModified();
+        }// State()
+
+        /**
+         * Loads a saved state.
+         * 
+         * @param file
+         *            the file of the state.
+         * @return the state, or {@code null} if it can't be loaded.
+         */
+        public static State load(File file) {
+            Properties properties = new Properties();
+            try {
+                InputStream stream = new FileInputStream(file);
+                try {
+                    properties.load(stream);
+                } finally {
+                    stream.close();
+                }
+
+                String source = properties.getProperty(_KeySource);
+                String target = properties.getProperty(_KeyTarget);
+                if (source == null || target == null)
+                    return null;
+
+                State state = new State(file, new File(source),
+                        new File(target));
+                state.mSize = Long.parseLong(properties.getProperty(_KeySize));
+                state.mModified = Long.parseLong(properties
+                        .getProperty(_KeyModified));
+                state.mOffset = Long.parseLong(properties
+                        .getProperty(_KeyOffset));
+                long chunks = (state.mOffset + _ChunkSize - 1) / _ChunkSize;
+                for (long i = 0; i < chunks; i++)
+                    state.mChecksums.add(Long.valueOf(properties
+                            .getProperty(_KeyChunkChecksum + i)));
+                return state;
+            } catch (IOException e) {
+                return null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }// load()
+
+        /**
+         * Saves this state. The file is replaced atomically, so a crash
+         * never leaves a broken state.
+         * 
+         * @throws IOException
+         *             if any.
+         */
+        void save() throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(_KeySource, mSource.getAbsolutePath());
+            properties.setProperty(_KeyTarget, mTarget.getAbsolutePath());
+            properties.setProperty(_KeySize, Long.toString(mSize));
+            properties.setProperty(_KeyModified, Long.toString(mModified));
+            properties.setProperty(_KeyOffset, Long.toString(mOffset));
+            for (int i = 0; i < mChecksums.size(); i++)
+                properties.setProperty(_KeyChunkChecksum + i,
+                        Long.toString(mChecksums.get(i)));
+
+            File temp = new File(mFile.getPath() + _TempSuffix);
+            FileOutputStream stream = new FileOutputStream(temp);
+            try {
+                properties.store(stream, null);
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+            if (!temp.renameTo(mFile))
+                throw new IOException("Can't save " + mFile);
+        }// save()
+
+        /**
+         * Deletes this state, and the temporary file of the job.
+         */
+        public void delete() {
+            getTempFile().delete();
+            mFile.delete();
+        }// delete()
+
+        /**
+         * Goes back to a chunk, dropping it and all chunks after it.
+         * 
+         * @param chunk
+         *            the index of the chunk.
+         */
+        void rewind(int chunk) {
+            while (mChecksums.size() > chunk)
+                mChecksums.remove(mChecksums.size() - 1);
+            mOffset = (long) chunk * _ChunkSize;
+        }// rewind()
+
+        /**
+         * Gets the source file.
+         * 
+         * @return the source file.
+         */
+        public File getSource() {
+            return mSource;
+        }// getSource()
+
+        /**
+         * Gets the target file.
+         * 
+         * @return the target file.
+         */
+        public File getTarget() {
+            return mTarget;
+        }// getTarget()
+
+        /**
+         * Gets the size of the source file, when the job started.
+         * 
+         * @return the size.
+         */
+        public long getSize() {
+            return mSize;
+        }// getSize()
+
+        /**
+         * Gets the number of bytes which have been copied, up to the last
+         * checkpoint.
+         * 
+         * @return the number of bytes.
+         */
+        public long getOffset() {
+            return mOffset;
+        }// getOffset()
+
+        /**
+         * Gets the temporary file, a hidden sibling of the target.
+         * 
+         * @return the temporary file.
+         */
+        public File getTempFile() {
+            return new File(mTarget.getParentFile(), "." + mTarget.getName()
+                    + _TempSuffix);
+        }// getTempFile()
+    }// State
+
+    private final State mState;
+    private boolean mCompleted = false;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param state
+     *            the state of the job.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public ResumableCopyTask(State state, CancellationToken token) {
+        super(token, state.getSource().getPath());
+        mState = state;
+    }// ResumableCopyTask()
+
+    /**
+     * Checks if the file has been copied, verified and renamed to the
+     * target.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isCompleted() {
+        return mCompleted;
+    }// isCompleted()
+
+    @Override
+    public String toString() {
+        return String.format("resumable copy '%s' to '%s' from %,d",
+                mState.getSource(), mState.getTarget(), mState.getOffset());
+    }// toString()
+
+    @Override
+    protected void execute() {
+        File source = mState.getSource();
+        if (!source.isFile()) {
+            addError(source, "File not found");
+            return;
+        }
+        if (mState.getTarget().exists()) {
+            addError(mState.getTarget(), "File exists");
+            return;
+        }
+
+        /*
+         * Starts over if the source has changed.
+         */
+        if (source.length() != mState.mSize
+                || source.lastModified() != mState.mModified) {
+            mState.mSize = source.length();
+            mState.mModified = source.lastModified();
+            mState.rewind(0);
+        }
+
+        try {
+            RandomAccessFile output = new RandomAccessFile(
+                    mState.getTempFile(), "rw");
+            try {
+                FileInputStream input = new FileInputStream(source);
+                try {
+                    if (!copy(input.getChannel(), output))
+                        return;
+                } finally {
+                    input.close();
+                }
+
+                int chunk = verify(output);
+                if (chunk >= 0) {
+                    addError(source, "Verification failed");
+                    mState.rewind(chunk);
+                    mState.save();
+                    return;
+                }
+            } finally {
+                output.close();
+            }
+
+            if (mState.getTarget().exists()) {
+                addError(mState.getTarget(), "File exists");
+                return;
+            }
+            if (!mState.getTempFile().renameTo(mState.getTarget())) {
+                addError(mState.getTarget(), "Can't rename temporary file");
+                return;
+            }
+
+            mState.getTarget().setLastModified(mState.mModified);
+            mState.delete();
+            addCount(0);
+            mCompleted = true;
+        } catch (IOException e) {
+            addError(source, e.toString());
+        } catch (SecurityException e) {
+            addError(source, e.toString());
+        }
+    }// execute()
+
+    /**
+     * Copies the remaining chunks, from the last checkpoint.
+     * 
+     * @param input
+     *            the source.
+     * @param output
+     *            the temporary file.
+     * @return {@code true} if all chunks have been copied, {@code false} if
+     *         the task has been cancelled.
+     * @throws IOException
+     *             if any.
+     */
+    private boolean copy(FileChannel input, RandomAccessFile output)
+            throws IOException {
+        byte[] buffer = new byte[_BufferSize];
+
+        /*
+         * The data after the last checkpoint may not have been synced, drops
+         * it. The last chunk before it is verified again.
+         */
+        if (output.length() < mState.mOffset)
+            mState.rewind(0);
+        else if (mState.mOffset > 0) {
+            int chunk = mState.mChecksums.size() - 1;
+            long position = (long) chunk * _ChunkSize;
+            if (checksum(output, position,
+                    (int) (mState.mOffset - position), buffer) != mState.mChecksums
+                    .get(chunk))
+                mState.rewind(chunk);
+        }
+        output.setLength(mState.mOffset);
+
+        CRC32 crc = new CRC32();
+        int chunks = 0;
+        while (mState.mOffset < mState.mSize) {
+            if (getToken().isCancelled()) {
+                checkpoint(output);
+                return false;
+            }
+
+            long length = Math.min(_ChunkSize, mState.mSize - mState.mOffset);
+            crc.reset();
+            input.position(mState.mOffset);
+            output.seek(mState.mOffset);
+            long position = 0;
+            while (position < length) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0,
+                        (int) Math.min(buffer.length, length - position));
+                int count = input.read(byteBuffer);
+                if (count < 0)
+                    throw new IOException("Source file has been truncated");
+                crc.update(buffer, 0, count);
+                output.write(buffer, 0, count);
+                position += count;
+                addBytes(count);
+            }
+
+            mState.mChecksums.add(crc.getValue());
+            mState.mOffset += length;
+            if (++chunks % _ChunksPerCheckpoint == 0)
+                checkpoint(output);
+        }
+
+        checkpoint(output);
+        return true;
+    }// copy()
+
+    /**
+     * Verifies all chunks of the temporary file.
+     * 
+     * @param output
+     *            the temporary file.
+     * @return the index of the first chunk which doesn't match its checksum,
+     *         or {@code -1} if all chunks match.
+     * @throws IOException
+     *             if any.
+     */
+    private int verify(RandomAccessFile output) throws IOException {
+        if (output.length() != mState.mSize)
+            return 0;
+
+        byte[] buffer = new byte[_BufferSize];
+        for (int i = 0; i < mState.mChecksums.size(); i++) {
+            long position = (long) i * _ChunkSize;
+            int length = (int) Math.min(_ChunkSize, mState.mSize - position);
+            if (checksum(output, position, length, buffer) != mState.mChecksums
+                    .get(i))
+                return i;
+        }
+
+        return -1;
+    }// verify()
+
+    /**
+     * Syncs the temporary file and saves the state.
+     * 
+     * @param output
+     *            the temporary file.
+     * @throws IOException
+     *             if any.
+     */
+    private void checkpoint(RandomAccessFile output) throws IOException {
+        output.getFD().sync();
+        mState.save();
+    }// checkpoint()
+
+    /**
+     * Computes the checksum of a part of a file.
+     * 
+     * @param file
+     *            the file.
+     * @param position
+     *            the start position.
+     * @param length
+     *            the length.
+     * @param buffer
+     *            the buffer.
+     * @return the checksum.
+     * @throws IOException
+     *             if any.
+     */
+    private static long checksum(RandomAccessFile file, long position,
+            int length, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        file.seek(position);
+        while (length > 0) {
+            int count = file.read(buffer, 0, Math.min(buffer.length, length));
+            if (count < 0)
+                break;
+            crc.update(buffer, 0, count);
+            length -= count;
+        }
+        return crc.getValue();
+    }// checksum()
+}
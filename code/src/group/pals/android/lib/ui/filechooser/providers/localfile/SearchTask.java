@@ -0,0 +1,281 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Searches a directory tree for files which match a filter.
+ * <p>
+ * Directories are kept in a shared stack. The thread calling {@link #run()}
+ * and helpers from the shared pool of {@link FileTask} take directories from
+ * the top of the stack, so each worker goes deep into its own sub tree while
+ * idle workers take what the others have pushed. Matching files are added to
+ * a {@link ListingTask}, so clients can consume them while the search is
+ * running. The search stops as soon as the listing has got enough files.
+ * </p>
+ * <p>
+ * The count of this task is the number of searched directories.
+ * </p>
+ * <p>
+ * Symbolic links to directories are not followed. Each directory is kept
+ * with its canonical path, so checking a sub directory only takes one
+ * canonicalization.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class SearchTask extends FileTask {
+
+    /**
+     * Maximum time a worker waits for work, in milliseconds, before checking
+     * the cancellation again.
+     */
+    private static final long _IdleWaitTime = 100;
+
+    /**
+     * A directory to search.
+     */
+    private static final class Dir {
+
+        final File mFile;
+        /**
+         * The canonical file of {@link #mFile}.
+         */
+        final File mCanonicalFile;
+
+        Dir(File file, File canonicalFile) {
+            mFile = file;
+            mCanonicalFile = canonicalFile;
+        }// Dir()
+    }// Dir
+
+    private final File mRoot;
+    private final ListingFilter mFilter;
+    private final FilePredicate mPredicate;
+    private final int mAttributes;
+    private final int mLimit;
+    private final ListingTask mListing;
+    /**
+     * Directories to search. Guarded by {@code this}.
+     */
+    private final List<Dir> mStack = new ArrayList<Dir>();
+    /**
+     * Number of workers which are searching a directory. Guarded by
+     * {@code this}.
+     */
+    private int mBusyWorkers = 0;
+    private volatile boolean mLimitReached = false;
+
+    /**
+     * Creates new instance.
+     * 
+     * @param root
+     *            the root directory.
+     * @param filter
+     *            the filter.
+     * @param predicate
+     *            the selection predicate, can be {@code null}.
+     * @param attributes
+     *            the file attributes to read.
+     * @param limit
+     *            the maximum number of files to find.
+     * @param listing
+     *            the listing to collect the found files. It should share
+     *            {@code token} with this task.
+     * @param token
+     *            the cancellation token of this task.
+     */
+    public SearchTask(File root, ListingFilter filter,
+            FilePredicate predicate, int attributes, int limit,
+            ListingTask listing, CancellationToken token) {
+        super(token, root.getPath());
+        mRoot = root;
+        mFilter = filter;
+        mPredicate = predicate;
+        mAttributes = attributes;
+        mLimit = limit;
+        mListing = listing;
+    }// SearchTask()
+
+    @Override
+    protected void execute() {
+        File canonicalRoot;
+        try {
+            canonicalRoot = mRoot.getCanonicalFile();
+        } catch (IOException e) {
+            canonicalRoot = mRoot.getAbsoluteFile();
+        }
+        mStack.add(new Dir(mRoot, canonicalRoot));
+
+        startHelpers(_MaxHelperThreads, new Runnable() {
+
+            @Override
+            public void run() {
+                work();
+            }// run()
+        });
+        work();
+
+        synchronized (this) {
+            while (mBusyWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }// execute()
+
+    @Override
+    public String toString() {
+        return String.format("search '%s' (%s)", mRoot, mListing.getKey());
+    }// toString()
+
+    /**
+     * Checks if the search stopped because it had found enough files.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    public boolean isLimitReached() {
+        return mLimitReached;
+    }// isLimitReached()
+
+    /**
+     * Checks if the search should stop.
+     * 
+     * @return {@code true} or {@code false}.
+     */
+    private boolean isStopped() {
+        return mLimitReached || getToken().isCancelled();
+    }// isStopped()
+
+    /**
+     * Takes directories from the stack and searches them, until there is no
+     * more work or the search stops.
+     */
+    private void work() {
+        while (true) {
+            Dir dir;
+            synchronized (this) {
+                while (mStack.isEmpty() && mBusyWorkers > 0 && !isStopped()) {
+                    try {
+                        wait(_IdleWaitTime);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (mStack.isEmpty() || isStopped()) {
+                    notifyAll();
+                    return;
+                }
+
+                dir = mStack.remove(mStack.size() - 1);
+                mBusyWorkers++;
+            }
+
+            try {
+                search(dir);
+            } catch (SecurityException e) {
+                addError(dir.mFile, e.toString());
+            } finally {
+                synchronized (this) {
+                    mBusyWorkers--;
+                    notifyAll();
+                }
+            }
+        }
+    }// work()
+
+    /**
+     * Searches the files of a directory, and pushes its sub directories into
+     * the stack.
+     * 
+     * @param dir
+     *            the directory.
+     */
+    private void search(Dir dir) {
+        setCurrentFile(dir.mFile);
+
+        String[] names = dir.mFile.list();
+        if (names == null) {
+            addError(dir.mFile, "Can't list directory");
+            return;
+        }
+
+        List<Dir> subDirs = new ArrayList<Dir>();
+        for (String name : names) {
+            if (isStopped())
+                return;
+
+            /*
+             * Hidden files and directories are skipped, unless hidden files
+             * are shown. Directories which don't match are still searched.
+             */
+            if (!mFilter.isShowHiddenFiles() && name.startsWith("."))
+                continue;
+
+            /*
+             * The type is needed anyway, to search the sub directories.
+             */
+            File file = new File(dir.mFile, name);
+            int type = FileSnapshot.readType(file);
+            boolean isDirectory = type == BaseFile._FileTypeDirectory;
+            FileSnapshot snapshot = LocalFileProvider.takeSnapshot(file,
+                    type, mFilter, mPredicate, mAttributes);
+            if (snapshot != null
+                    && (!isDirectory || mFilter.matchDirectory(name))) {
+                mListing.add(snapshot);
+                if (mListing.getTotalCount() >= mLimit)
+                    mLimitReached = true;
+            }
+
+            if (isDirectory) {
+                Dir subDir = toSubDir(dir, file);
+                if (subDir != null)
+                    subDirs.add(subDir);
+            }
+        }// for names
+
+        synchronized (this) {
+            mStack.addAll(subDirs);
+            notifyAll();
+        }
+
+        addCount(0);
+    }// search()
+
+    /**
+     * Makes a sub directory to search, if it is not a symbolic link.
+     * 
+     * @param dir
+     *            the parent directory.
+     * @param file
+     *            the sub directory.
+     * @return the sub directory, or {@code null} if it is a symbolic link.
+     */
+    private static Dir toSubDir(Dir dir, File file) {
+        File path = new File(dir.mCanonicalFile, file.getName());
+        try {
+            File canonicalFile = path.getCanonicalFile();
+            return canonicalFile.equals(path) ? new Dir(file, canonicalFile)
+                    : null;
+        } catch (IOException e) {
+            return new Dir(file, path);
+        }
+    }// toSubDir()
+}
@@ -0,0 +1,587 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.providers.localfile;
+
+import group.pals.android.lib.ui.filechooser.BuildConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * Trash directories, one per volume.
+ * <p>
+ * Moving a file to trash is a rename into the hidden directory
+ * {@link #_TrashDirName} on its volume, so it takes the same time for a file
+ * and for a directory with thousands of files. The trash is at the root of
+ * the volume (its mount point, or the external storage directory) if that is
+ * writable, otherwise in the app-specific directory of the volume (
+ * {@code Android/data/<package>/files}).
+ * </p>
+ * <p>
+ * The trashed files are deleted later by a purger, which runs on a background
+ * thread with low priority. The purger keeps each trash within
+ * {@link #_MaxAge} and {@link #_MaxSizePercent} of its volume, deleting the
+ * oldest entries first. While a trash has entries, the purger runs again when
+ * the oldest one expires.
+ * </p>
+ * <p>
+ * Each entry is a directory which has the trashed file and a properties file
+ * with its original path, the time it was trashed and (once the purger has
+ * measured it) its size.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class Trash {
+
+    private static final String _ClassName = Trash.class.getName();
+
+    /**
+     * Name of the trash directories.
+     */
+    public static final String _TrashDirName = ".afc_trash";
+
+    /**
+     * Maximum time to keep an entry, in milliseconds.
+     */
+    private static final long _MaxAge = 3 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Maximum size of a trash, in percent of its volume.
+     */
+    private static final int _MaxSizePercent = 10;
+
+    /**
+     * Delay before purging, in milliseconds. Many deletions in a row are
+     * purged at once.
+     */
+    private static final long _PurgeDelay = 10 * 1000;
+
+    private static final String _EntryFileName = "file";
+    private static final String _EntryInfoName = "info";
+    private static final String _KeyPath = "path";
+    private static final String _KeyTime = "time";
+    private static final String _KeySize = "size";
+
+    /**
+     * An entry in a trash.
+     */
+    private static class Entry {
+
+        final File mDir;
+        final Properties mInfo;
+        final long mTime;
+
+        Entry(File dir, Properties info) {
+            mDir = dir;
+            mInfo = info;
+            mTime = parseLong(info.getProperty(_KeyTime), dir.lastModified());
+        }// Entry()
+    }// Entry
+
+    private final String mPackageName;
+    private final AtomicInteger mEntryCount = new AtomicInteger();
+    /**
+     * Trash directories which have been used, to be purged. Guarded by
+     * {@code this}.
+     */
+    private final Set<File> mTrashDirs = new HashSet<File>();
+    /**
+     * Mount points, the longest first. Guarded by {@code this}.
+     */
+    private List<String> mMountPoints;
+    private Handler mPurger;
+    /**
+     * {@code true} if a purge has been posted by {@link #schedule(File)}.
+     * Guarded by {@code this}.
+     */
+    private boolean mPurgePosted;
+
+    /**
+     * Purges all known trash directories, then schedules the next purge for
+     * when the oldest entry left expires.
+     */
+    private final Runnable mPurgeRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            List<File> trashDirs;
+            synchronized (Trash.this) {
+                mPurgePosted = false;
+                trashDirs = new ArrayList<File>(mTrashDirs);
+            }
+
+            long oldest = Long.MAX_VALUE;
+            for (File trashDir : trashDirs)
+                oldest = Math.min(oldest, purge(trashDir));
+
+            if (oldest < Long.MAX_VALUE) {
+                long delay = Math.max(_PurgeDelay, oldest + _MaxAge
+                        - System.currentTimeMillis());
+                synchronized (Trash.this) {
+                    if (!mPurgePosted)
+                        mPurger.postDelayed(this, delay);
+                }
+            }
+        }// run()
+    };
+
+    /**
+     * Creates new instance.
+     * 
+     * @param packageName
+     *            the package name of the app, used for the app-specific
+     *            directories of the volumes.
+     */
+    public Trash(String packageName) {
+        mPackageName = packageName;
+    }// Trash()
+
+    /**
+     * Moves a file to the trash of its volume.
+     * 
+     * @param file
+     *            the file.
+     * @return {@code true} if the file was moved, {@code false} if it could
+     *         not (e.g. the volume is read-only, or the file is in a trash).
+     */
+    public boolean moveToTrash(File file) {
+        File trashDir = getTrashDir(file, true);
+        if (trashDir == null)
+            return false;
+
+        File entryDir = new File(trashDir, String.format("%d-%d",
+                System.currentTimeMillis(), mEntryCount.incrementAndGet()));
+        if (!entryDir.mkdirs())
+            return false;
+
+        Properties info = new Properties();
+        info.setProperty(_KeyPath, file.getAbsolutePath());
+        info.setProperty(_KeyTime, Long.toString(System.currentTimeMillis()));
+        if (!storeInfo(entryDir, info)
+                || !file.renameTo(new File(entryDir, _EntryFileName))) {
+            new File(entryDir, _EntryInfoName).delete();
+            entryDir.delete();
+            return false;
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format("moveToTrash() >> '%s' >> '%s'",
+                    file, entryDir));
+
+        schedule(trashDir);
+        return true;
+    }// moveToTrash()
+
+    /**
+     * Restores the latest trashed file of a path.
+     * 
+     * @param file
+     *            the original file.
+     * @return {@code true} if the file was restored, {@code false} if there
+     *         is no such file in trash, or if {@code file} exists.
+     */
+    public boolean restore(File file) {
+        if (file.exists())
+            return false;
+
+        Entry latest = null;
+        for (File trashDir : getTrashDirs(file)) {
+            for (Entry entry : listEntries(trashDir)) {
+                if (file.getAbsolutePath().equals(
+                        entry.mInfo.getProperty(_KeyPath))
+                        && (latest == null || entry.mTime > latest.mTime))
+                    latest = entry;
+            }
+        }
+        if (latest == null)
+            return false;
+
+        File parent = file.getParentFile();
+        if (parent != null)
+            parent.mkdirs();
+        if (!new File(latest.mDir, _EntryFileName).renameTo(file))
+            return false;
+
+        new File(latest.mDir, _EntryInfoName).delete();
+        latest.mDir.delete();
+        return true;
+    }// restore()
+
+    /**
+     * Schedules a purge of the trash of external storage, e.g. when the
+     * provider starts.
+     * 
+     * @param externalStorage
+     *            the external storage directory, can be {@code null}.
+     */
+    public void schedulePurge(File externalStorage) {
+        if (externalStorage == null)
+            return;
+
+        for (File trashDir : getTrashDirs(externalStorage))
+            if (trashDir.isDirectory())
+                schedule(trashDir);
+    }// schedulePurge()
+
+    /**
+     * Schedules a purge of a trash directory.
+     * 
+     * @param trashDir
+     *            the trash directory.
+     */
+    private synchronized void schedule(File trashDir) {
+        mTrashDirs.add(trashDir);
+
+        if (mPurger == null) {
+            HandlerThread thread = new HandlerThread(_ClassName,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mPurger = new Handler(thread.getLooper());
+        }
+
+        mPurger.removeCallbacks(mPurgeRunnable);
+        mPurger.postDelayed(mPurgeRunnable, _PurgeDelay);
+        mPurgePosted = true;
+    }// schedule()
+
+    /**
+     * Deletes old entries of a trash directory, and the oldest ones while
+     * the trash is too big.
+     * 
+     * @param trashDir
+     *            the trash directory.
+     * @return the time the oldest entry left was trashed, or
+     *         {@link Long#MAX_VALUE} if the trash is empty.
+     */
+    private long purge(File trashDir) {
+        List<Entry> entries = listEntries(trashDir);
+        Collections.sort(entries, new Comparator<Entry>() {
+
+            @Override
+            public int compare(Entry lhs, Entry rhs) {
+                return lhs.mTime < rhs.mTime ? -1
+                        : (lhs.mTime == rhs.mTime ? 0 : 1);
+            }// compare()
+        });
+
+        long maxSize;
+        try {
+            StatFs statFs = new StatFs(trashDir.getPath());
+            maxSize = (long) statFs.getBlockCount() * statFs.getBlockSize()
+                    / 100 * _MaxSizePercent;
+        } catch (IllegalArgumentException e) {
+            maxSize = Long.MAX_VALUE;
+        }
+
+        long totalSize = 0;
+        for (Entry entry : entries) {
+            long size = parseLong(entry.mInfo.getProperty(_KeySize), -1);
+            if (size < 0) {
+                size = measure(new File(entry.mDir, _EntryFileName));
+                entry.mInfo.setProperty(_KeySize, Long.toString(size));
+                storeInfo(entry.mDir, entry.mInfo);
+            }
+            totalSize += size;
+        }
+
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (Entry entry : entries) {
+            if (now - entry.mTime <= _MaxAge && totalSize <= maxSize)
+                break;
+
+            new DeleteTask(entry.mDir, new CancellationToken(0, 0), 0).run();
+            totalSize -= parseLong(entry.mInfo.getProperty(_KeySize), 0);
+            count++;
+        }
+
+        if (BuildConfig.DEBUG)
+            Log.d(_ClassName, String.format(
+                    "purge() >> '%s' >> purged %,d of %,d entries, %,d bytes left",
+                    trashDir, count, entries.size(), totalSize));
+
+        return count < entries.size() ? entries.get(count).mTime
+                : Long.MAX_VALUE;
+    }// purge()
+
+    /**
+     * Lists the entries of a trash directory. Broken entries are deleted.
+     * 
+     * @param trashDir
+     *            the trash directory.
+     * @return the entries.
+     */
+    private static List<Entry> listEntries(File trashDir) {
+        List<Entry> result = new ArrayList<Entry>();
+        File[] dirs = trashDir.listFiles();
+        if (dirs == null)
+            return result;
+
+        for (File dir : dirs) {
+            if (!dir.isDirectory())
+                continue;
+
+            Properties info = loadInfo(dir);
+            if (info == null && !new File(dir, _EntryFileName).exists())
+                dir.delete();
+            else
+                result.add(new Entry(dir, info != null ? info
+                        : new Properties()));
+        }
+
+        return result;
+    }// listEntries()
+
+    /**
+     * Gets the trash directory of the volume of {@code file}: the first of
+     * {@link #getTrashDirs(File)} which exists and is writable, or which can
+     * be created.
+     * 
+     * @param file
+     *            the file.
+     * @param create
+     *            {@code true} to create the trash directory if needed.
+     * @return the trash directory, or {@code null} if {@code file} is in
+     *         trash, or if the volume has no writable trash.
+     */
+    private File getTrashDir(File file, boolean create) {
+        List<File> trashDirs = getTrashDirs(file);
+
+        for (File trashDir : trashDirs)
+            if (trashDir.isDirectory() && trashDir.canWrite())
+                return trashDir;
+
+        if (!create)
+            return null;
+
+        for (File trashDir : trashDirs) {
+            if (trashDir.isDirectory() || !trashDir.mkdirs()
+                    || !trashDir.canWrite())
+                continue;
+
+            /*
+             * Keeps media scanners out.
+             */
+            try {
+                new File(trashDir, ".nomedia").createNewFile();
+            } catch (IOException e) {
+                // ignore it
+            }
+            return trashDir;
+        }
+
+        return null;
+    }// getTrashDir()
+
+    /**
+     * Gets the possible trash directories of the volume of {@code file}, which
+     * may not exist: {@link #_TrashDirName} at the root of the volume, then in
+     * the app-specific directory of the volume.
+     * 
+     * @param file
+     *            the file.
+     * @return the trash directories, empty if {@code file} is in trash, or if
+     *         its volume is unknown.
+     */
+    private List<File> getTrashDirs(File file) {
+        List<File> result = new ArrayList<File>();
+
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        } catch (IOException e) {
+            return result;
+        }
+
+        String volume = null;
+        for (String s : getMountPoints()) {
+            if (path.equals(s)
+                    || path.startsWith(s.endsWith("/") ? s : s + "/")) {
+                volume = s;
+                break;
+            }
+        }
+        if (volume == null)
+            return result;
+
+        result.add(new File(volume, _TrashDirName));
+        result.add(new File(new File(volume, String.format(
+                "Android/data/%s/files", mPackageName)), _TrashDirName));
+
+        for (File trashDir : result) {
+            String trashPath = trashDir.getPath();
+            if (path.equals(trashPath) || path.startsWith(trashPath + "/")) {
+                result.clear();
+                break;
+            }
+        }
+
+        return result;
+    }// getTrashDirs()
+
+    /**
+     * Gets the mount points, from {@code /proc/mounts}, and the external
+     * storage directory. The latter is often not a mount point itself (e.g.
+     * {@code /storage/emulated/0}), and the root of its mount point is not
+     * writable.
+     * 
+     * @return the mount points, the longest first.
+     */
+    private synchronized List<String> getMountPoints() {
+        if (mMountPoints != null)
+            return mMountPoints;
+
+        List<String> mountPoints = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(
+                    "/proc/mounts"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(" ");
+                    if (fields.length > 1)
+                        mountPoints.add(fields[1].replace("\\040", " "));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.e(_ClassName, "getMountPoints() >> " + e);
+        }
+
+        try {
+            String externalStorage = Environment.getExternalStorageDirectory()
+                    .getCanonicalPath();
+            if (!mountPoints.contains(externalStorage))
+                mountPoints.add(externalStorage);
+        } catch (IOException e) {
+            Log.e(_ClassName, "getMountPoints() >> " + e);
+        }
+
+        Collections.sort(mountPoints, new Comparator<String>() {
+
+            @Override
+            public int compare(String lhs, String rhs) {
+                return rhs.length() - lhs.length();
+            }// compare()
+        });
+
+        mMountPoints = mountPoints;
+        return mMountPoints;
+    }// getMountPoints()
+
+    /**
+     * Measures the size of a file or directory, recursively.
+     * 
+     * @param file
+     *            the file.
+     * @return the size, in bytes.
+     */
+    private static long measure(File file) {
+        if (!file.isDirectory())
+            return file.length();
+
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File f : files)
+                size += measure(f);
+        return size;
+    }// measure()
+
+    /**
+     * Loads the information of an entry.
+     * 
+     * @param entryDir
+     *            the entry directory.
+     * @return the information, or {@code null} if not available.
+     */
+    private static Properties loadInfo(File entryDir) {
+        try {
+            InputStream stream = new FileInputStream(new File(entryDir,
+                    _EntryInfoName));
+            try {
+                Properties info = new Properties();
+                info.load(stream);
+                return info;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }// loadInfo()
+
+    /**
+     * Stores the information of an entry.
+     * 
+     * @param entryDir
+     *            the entry directory.
+     * @param info
+     *            the information.
+     * @return {@code true} if succeeded.
+     */
+    private static boolean storeInfo(File entryDir, Properties info) {
+        try {
+            OutputStream stream = new FileOutputStream(new File(entryDir,
+                    _EntryInfoName));
+            try {
+                info.store(stream, null);
+                return true;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }// storeInfo()
+
+    /**
+     * Parses a long value.
+     * 
+     * @param value
+     *            the value, can be {@code null}.
+     * @param defaultValue
+     *            the default value.
+     * @return the parsed value, or {@code defaultValue} if {@code value} is
+     *         not a number.
+     */
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }// parseLong()
+}
@@ -0,0 +1,330 @@
+/*
+ *    Copyright (c) 2012 Hai Bison
+ *
+ *    See the file LICENSE at the root directory of this project for copying
+ *    permission.
+ */
+
+package group.pals.android.lib.ui.filechooser.utils;
+
+import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Classifies regular files into categories (see
+ * {@link BaseFile#_FileCategoryAudio}...) by their extensions.
+ * <p>
+ * The extension lists of {@link MimeTypes} are expanded into an
+ * open-addressing hash table, so classifying a file name is a single lookup.
+ * Extensions which can't be expanded (such as {@code "php.*"}) are kept in a
+ * small regex per category. Everything is built lazily, the first time it is
+ * used.
+ * </p>
+ * 
+ * @since v5.1 beta
+ * @author Hai Bison
+ * 
+ */
+public class FileCategories {
+
+    /**
+     * Categories and their regex in {@link MimeTypes}, in order of
+     * precedence: when an extension belongs to several categories, the first
+     * one wins.
+     */
+    private static final int[] _Categories = { BaseFile._FileCategoryApk,
+            BaseFile._FileCategoryAudio, BaseFile._FileCategoryCompressed,
+            BaseFile._FileCategoryImage, BaseFile._FileCategoryPlainText,
+            BaseFile._FileCategoryVideo };
+    private static final String[] _CategoryRegex = {
+            MimeTypes._RegexFileTypeApks, MimeTypes._RegexFileTypeAudios,
+            MimeTypes._RegexFileTypeCompressed, MimeTypes._RegexFileTypeImages,
+            MimeTypes._RegexFileTypePlainTexts, MimeTypes._RegexFileTypeVideos };
+
+    /**
+     * Maximum number of extensions which one pattern can be expanded to.
+     */
+    private static final int _MaxExpansions = 64;
+
+    /**
+     * Holds the instance, which is created when this class is first
+     * accessed.
+     */
+    private static class Holder {
+
+        static final FileCategories _Instance = new FileCategories();
+    }// Holder
+
+    /**
+     * Gets the category of a regular file.
+     * 
+     * @param fileName
+     *            the file name.
+     * @return the category, {@link BaseFile#_FileCategoryOther} if it is
+     *         unknown.
+     */
+    public static int get(String fileName) {
+        /*
+         * Same as the regex in MimeTypes: there must be at least one
+         * character before the dot.
+         */
+        int dot = fileName.lastIndexOf('.');
+        String ext = dot > 0 && dot < fileName.length() - 1 ? fileName
+                .substring(dot + 1).toLowerCase(Locale.US) : null;
+
+        return Holder._Instance.lookup(fileName, ext);
+    }// get()
+
+    /*
+     * The hash table. Its capacity is a power of two; a null key marks an
+     * empty slot.
+     */
+    private final String[] mKeys;
+    private final int[] mValues;
+    private final int mMask;
+    /**
+     * Regex of the extensions which can't be expanded, in the same order as
+     * {@link #_Categories}. They match whole file names, the same way as the
+     * original regex in {@link MimeTypes}. Items can be {@code null}.
+     */
+    private final Pattern[] mFallbacks = new Pattern[_Categories.length];
+    /**
+     * Literal prefixes of the fallback extensions, in the same order as
+     * {@link #mFallbacks}. A fallback regex is only run if the file name has
+     * a dot followed by one of its prefixes.
+     */
+    private final String[][] mFallbackPrefixes = new String[_Categories.length][];
+
+    /**
+     * Creates new instance.
+     */
+    private FileCategories() {
+        List<String> extensions = new ArrayList<String>();
+        List<Integer> categories = new ArrayList<Integer>();
+
+        for (int i = 0; i < _Categories.length; i++) {
+            StringBuilder fallback = new StringBuilder();
+            List<String> prefixes = new ArrayList<String>();
+            for (String alternative : extractAlternatives(_CategoryRegex[i])) {
+                List<String> expanded = expand(alternative);
+                if (expanded == null) {
+                    if (fallback.length() > 0)
+                        fallback.append('|');
+                    fallback.append(alternative);
+                    prefixes.add(getLiteralPrefix(alternative));
+                    continue;
+                }
+
+                for (String ext : expanded) {
+                    if (ext.length() == 0)
+                        continue;
+                    extensions.add(ext);
+                    categories.add(_Categories[i]);
+                }
+            }
+
+            if (fallback.length() > 0) {
+                mFallbacks[i] = Pattern.compile(String.format(
+                        "(?si)^.+\\.(?:%s)$", fallback));
+                mFallbackPrefixes[i] = prefixes.toArray(new String[prefixes
+                        .size()]);
+            }
+        }
+
+        int capacity = 16;
+        while (capacity < extensions.size() * 2)
+            capacity <<= 1;
+        mKeys = new String[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+
+        for (int i = 0; i < extensions.size(); i++) {
+            int index = indexOf(extensions.get(i));
+            /*
+             * Keep the first category.
+             */
+            if (mKeys[index] == null) {
+                mKeys[index] = extensions.get(i);
+                mValues[index] = categories.get(i);
+            }
+        }
+    }// FileCategories()
+
+    /**
+     * Finds the slot of {@code ext} in the hash table.
+     * 
+     * @param ext
+     *            the extension.
+     * @return the index of the slot which holds {@code ext}, or of the empty
+     *         slot where it should be.
+     */
+    private int indexOf(String ext) {
+        int hash = ext.hashCode();
+        hash ^= hash >>> 16;
+        int index = hash & mMask;
+        while (mKeys[index] != null && !mKeys[index].equals(ext))
+            index = (index + 1) & mMask;
+        return index;
+    }// indexOf()
+
+    /**
+     * Looks up the category of a file name.
+     * 
+     * @param fileName
+     *            the file name.
+     * @param ext
+     *            the extension of {@code fileName}, in lower case. Can be
+     *            {@code null}.
+     * @return the category.
+     */
+    private int lookup(String fileName, String ext) {
+        int category = BaseFile._FileCategoryOther;
+        if (ext != null) {
+            int index = indexOf(ext);
+            if (mKeys[index] != null)
+                category = mValues[index];
+        }
+
+        /*
+         * Fallbacks of categories which have higher precedence than the one
+         * found in the table still need to be checked.
+         */
+        for (int i = 0; i < _Categories.length; i++) {
+            if (_Categories[i] == category)
+                return category;
+            if (mFallbacks[i] != null
+                    && hasPrefixAfterDot(fileName, mFallbackPrefixes[i])
+                    && mFallbacks[i].matcher(fileName).find())
+                return _Categories[i];
+        }
+
+        return category;
+    }// lookup()
+
+    /**
+     * Checks if {@code fileName} has a dot (which is not the first character)
+     * followed by one of {@code prefixes}, ignoring case.
+     * 
+     * @param fileName
+     *            the file name.
+     * @param prefixes
+     *            the prefixes.
+     * @return {@code true} or {@code false}.
+     */
+    private static boolean hasPrefixAfterDot(String fileName,
+            String[] prefixes) {
+        for (int dot = fileName.indexOf('.', 1); dot >= 0; dot = fileName
+                .indexOf('.', dot + 1))
+            for (String prefix : prefixes)
+                if (fileName.regionMatches(true, dot + 1, prefix, 0,
+                        prefix.length()))
+                    return true;
+        return false;
+    }// hasPrefixAfterDot()
+
+    /**
+     * Gets the literal prefix of a pattern, which is the characters before
+     * the first special one.
+     * 
+     * @param pattern
+     *            the pattern.
+     * @return the literal prefix, can be empty.
+     */
+    private static String getLiteralPrefix(String pattern) {
+        int i = 0;
+        while (i < pattern.length()
+                && Character.isLetterOrDigit(pattern.charAt(i)))
+            i++;
+        /*
+         * The last literal character can be made optional by a quantifier.
+         */
+        if (i > 0 && i < pattern.length()
+                && "?*{".indexOf(pattern.charAt(i)) >= 0)
+            i--;
+        return pattern.substring(0, i);
+    }// getLiteralPrefix()
+
+    /**
+     * Extracts the extension alternatives of a regex in {@link MimeTypes},
+     * which has the form {@code "(?si)^.+\\.(ext1|ext2...)$"} or
+     * {@code "(?si)^.+\\.ext$"}.
+     * 
+     * @param regex
+     *            the regex.
+     * @return the alternatives.
+     */
+    private static String[] extractAlternatives(String regex) {
+        String s = regex.substring(regex.indexOf("\\.") + 2);
+        if (s.endsWith("$"))
+            s = s.substring(0, s.length() - 1);
+        if (s.startsWith("(") && s.endsWith(")"))
+            s = s.substring(1, s.length() - 1);
+        return s.split("\\|");
+    }// extractAlternatives()
+
+    /**
+     * Expands a simple pattern into all extensions it matches. Supported
+     * syntax: literal characters, character classes (such as {@code "[jrt]"}
+     * or {@code "[2-3]"}) and the optional quantifier {@code "?"}.
+     * 
+     * @param pattern
+     *            the pattern.
+     * @return the extensions, or {@code null} if the pattern is not simple.
+     */
+    private static List<String> expand(String pattern) {
+        List<String> result = new ArrayList<String>();
+        result.add("");
+
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            StringBuilder unit = new StringBuilder();
+            if (c == '[') {
+                int end = pattern.indexOf(']', i);
+                if (end < 0)
+                    return null;
+                for (int j = i + 1; j < end; j++) {
+                    if (j + 2 < end && pattern.charAt(j + 1) == '-') {
+                        for (char r = pattern.charAt(j); r <= pattern
+                                .charAt(j + 2); r++)
+                            unit.append(r);
+                        j += 2;
+                    } else
+                        unit.append(pattern.charAt(j));
+                }
+                i = end + 1;
+            } else if (Character.isLetterOrDigit(c)) {
+                unit.append(c);
+                i++;
+            } else
+                return null;
+
+            boolean optional = false;
+            if (i < pattern.length()) {
+                char q = pattern.charAt(i);
+                if (q == '?') {
+                    optional = true;
+                    i++;
+                } else if (q == '+' || q == '*' || q == '{')
+                    return null;
+            }
+
+            List<String> next = new ArrayList<String>();
+            for (String prefix : result) {
+                if (optional)
+                    next.add(prefix);
+                for (int j = 0; j < unit.length(); j++)
+                    next.add(prefix + unit.charAt(j));
+            }
+            if (next.size() > _MaxExpansions)
+                return null;
+            result = next;
+        }
+
+        return result;
+    }// expand()
+}
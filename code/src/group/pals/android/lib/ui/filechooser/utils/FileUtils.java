@@ -10,10 +10,6 @@ package group.pals.android.lib.ui.filechooser.utils;
 import group.pals.android.lib.ui.filechooser.R;
 import group.pals.android.lib.ui.filechooser.providers.basefile.BaseFileContract.BaseFile;
 
-import java.util.regex.Pattern;
-
-import android.util.SparseArray;
-
 /**
  * Utilities for files.
  * 
@@ -24,32 +20,7 @@ import android.util.SparseArray;
 public class FileUtils {
 
     /**
-     * Map of the pattern for file types corresponding to resource IDs for
-     * icons.
-     */
-    private static final SparseArray<Pattern> _MapFileIcons = new SparseArray<Pattern>();
-
-    static {
-        _MapFileIcons.put(R.drawable.afc_file_audio,
-                Pattern.compile(MimeTypes._RegexFileTypeAudios));
-        _MapFileIcons.put(R.drawable.afc_file_video,
-                Pattern.compile(MimeTypes._RegexFileTypeVideos));
-        _MapFileIcons.put(R.drawable.afc_file_image,
-                Pattern.compile(MimeTypes._RegexFileTypeImages));
-        _MapFileIcons.put(R.drawable.afc_file_plain_text,
-                Pattern.compile(MimeTypes._RegexFileTypePlainTexts));
-
-        /*
-         * APK files are counted before compressed files.
-         */
-        _MapFileIcons.put(R.drawable.afc_file_apk,
-                Pattern.compile(MimeTypes._RegexFileTypeApks));
-        _MapFileIcons.put(R.drawable.afc_file_compressed,
-                Pattern.compile(MimeTypes._RegexFileTypeCompressed));
-    }
-
-    /**
-     * Gets resource icon based on file type and name.
+     * Gets the category of a file.
      * 
      * @param fileType
      *            the file type, can be one of
@@ -58,25 +29,67 @@ public class FileUtils {
      *            {@link BaseFile#_FileTypeUnknown}.
      * @param fileName
      *            the file name.
-     * @return the resource icon ID.
+     * @return the file category, see {@link BaseFile#_ColumnFileCategory}.
      */
-    public static int getResIcon(int fileType, String fileName) {
+    public static int getFileCategory(int fileType, String fileName) {
         switch (fileType) {
         case BaseFile._FileTypeDirectory:
-            return R.drawable.afc_folder;
+            return BaseFile._FileCategoryDirectory;
 
         case BaseFile._FileTypeFile:
-            for (int i = 0; i < _MapFileIcons.size(); i++)
-                if (_MapFileIcons.valueAt(i).matcher(fileName).find())
-                    return _MapFileIcons.keyAt(i);
+            return FileCategories.get(fileName);
 
-            return R.drawable.afc_file;
+        default:
+            return BaseFile._FileCategoryNone;
+        }
+    }// getFileCategory()
 
+    /**
+     * Gets resource icon of a file category.
+     * 
+     * @param fileCategory
+     *            the file category, see {@link BaseFile#_ColumnFileCategory}.
+     * @return the resource icon ID.
+     */
+    public static int getResIcon(int fileCategory) {
+        switch (fileCategory) {
+        case BaseFile._FileCategoryDirectory:
+            return R.drawable.afc_folder;
+        case BaseFile._FileCategoryAudio:
+            return R.drawable.afc_file_audio;
+        case BaseFile._FileCategoryVideo:
+            return R.drawable.afc_file_video;
+        case BaseFile._FileCategoryImage:
+            return R.drawable.afc_file_image;
+        case BaseFile._FileCategoryPlainText:
+            return R.drawable.afc_file_plain_text;
+        case BaseFile._FileCategoryApk:
+            return R.drawable.afc_file_apk;
+        case BaseFile._FileCategoryCompressed:
+            return R.drawable.afc_file_compressed;
+        case BaseFile._FileCategoryOther:
+            return R.drawable.afc_file;
         default:
             return android.R.drawable.ic_delete;
         }
     }// getResIcon()
 
+    /**
+     * Gets resource icon based on file type and name.
+     * 
+     * @param fileType
+     *            the file type, can be one of
+     *            {@link BaseFile#_FileTypeDirectory},
+     *            {@link BaseFile#_FileTypeFile},
+     *            {@link BaseFile#_FileTypeUnknown}.
+     * @param fileName
+     *            the file name.
+     * @return the resource icon ID.
+     */
+    public static int getResIcon(int fileType, String fileName) {
+        return getResIcon(getFileCategory(fileType, fileName));
+    }// getResIcon()
+
     /**
      * Checks whether the filename given is valid or not.<br>
      * See <a href="http://en.wikipedia.org/wiki/Filename">wiki</a> for more
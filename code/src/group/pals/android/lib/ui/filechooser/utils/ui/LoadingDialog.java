@@ -26,6 +26,10 @@ public abstract class LoadingDialog extends AsyncTask<Void, Void, Object> {
     public static final String _ClassName = LoadingDialog.class.getName();
 
     private final ProgressDialog mDialog;
+    /**
+     * Handler of the UI thread.
+     */
+    private final Handler mHandler = new Handler();
     /**
      * Default is {@code 500}ms
      */
@@ -134,6 +138,34 @@ public abstract class LoadingDialog extends AsyncTask<Void, Void, Object> {
         }
     }// doFinish()
 
+    /**
+     * Sets the message of the dialog. Must be called from the UI thread.
+     * 
+     * @param msg
+     *            the message.
+     */
+    protected void setMessage(CharSequence msg) {
+        mDialog.setMessage(msg);
+    }// setMessage()
+
+    /**
+     * Sets the message of the dialog from any thread. The message is ignored
+     * if the dialog has finished meanwhile.
+     * 
+     * @param msg
+     *            the message.
+     */
+    protected void postMessage(final CharSequence msg) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (!mFinished)
+                    setMessage(msg);
+            }// run()
+        });
+    }// postMessage()
+
     /**
      * Gets the delay time before showing the dialog.
      * 
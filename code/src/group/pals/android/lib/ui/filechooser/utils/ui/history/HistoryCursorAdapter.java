@@ -262,8 +262,9 @@ public class HistoryCursorAdapter extends ResourceCursorTreeAdapter {
 
         String fileName = null;
         String filePath = null;
-        Cursor fileInfo = context.getContentResolver().query(uri, null, null,
-                null, null);
+        Cursor fileInfo = context.getContentResolver().query(uri,
+                new String[] { BaseFile._ColumnName, BaseFile._ColumnPath },
+                null, null, null);
         try {
             if (fileInfo != null && fileInfo.moveToFirst()) {
                 fileName = fileInfo.getString(fileInfo